@@ -20,17 +20,51 @@
 
 package org.jsl.cde;
 
+import java.nio.ByteBuffer;
 import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public abstract class Body
 {
     public static final int SEGMENT = 1;
     public static final int BALL    = 2;
+    public static final int CAPSULE = 3;
+    public static final int POLYGON = 4;
 
-    private static final int [] DEFAULT_GROUPS = { 0 };
+    static final int [] DEFAULT_GROUPS = { 0 };
 
     private final int [] m_groups;
 
+    /* Index of the body in the CDE, -1 if body is not registered. */
+    int m_idx = -1;
+
+    /* Region of the CDE the body is asleep in, -1 if the body is stepped every run(). */
+    int m_region = -1;
+
+    /* Body at rest searched by the region catch-up pass,
+     * it is not moved by the pass until something hits it.
+     */
+    boolean m_resting;
+
+    /* Upper bound of the distance any primitive point of the body
+     * was moved by the CDE in the hybrid mode, used by the PairCache.
+     */
+    double m_travel;
+
+    /* Small numbers identifying the body classes, used to find
+     * the pair kernel specialized for the body classes pair.
+     */
+    private static final AtomicInteger s_classes = new AtomicInteger();
+    private static final ClassValue<Integer> s_classIds = new ClassValue<Integer>()
+    {
+        protected Integer computeValue( Class<?> type )
+        {
+            return s_classes.getAndIncrement();
+        }
+    };
+
+    private int m_classId = -1;
+
     public static class Point
     {
         public static final int SIZE = 2;
@@ -74,6 +108,79 @@ public abstract class Body
         public static double getY2( double [] dv, int offs ) { return Point.getY(dv, offs+Point.SIZE); }
     }
 
+    /* Segment with a radius (rounded segment). */
+    public static class Capsule
+    {
+        public static int set( double [] dv, int offs, double x1, double y1, double x2, double y2, double r )
+        {
+            offs = Segment.set( dv, offs, x1, y1, x2, y2 );
+            dv[offs] = r;
+            return (offs + 1);
+        }
+
+        public static double getX1( double [] dv, int offs ) { return Segment.getX1(dv, offs); }
+        public static double getY1( double [] dv, int offs ) { return Segment.getY1(dv, offs); }
+        public static double getX2( double [] dv, int offs ) { return Segment.getX2(dv, offs); }
+        public static double getY2( double [] dv, int offs ) { return Segment.getY2(dv, offs); }
+        public static double getR( double [] dv, int offs ) { return dv[offs+2*Point.SIZE]; }
+    }
+
+    /* Convex polygon: number of vertices followed by the vertices,
+     * vertices are written with Point.set() after the Polygon.set().
+     */
+    public static class Polygon
+    {
+        public static final int MAX_VERTICES = 8;
+
+        public static int set( double [] dv, int offs, int vertices )
+        {
+            if ((vertices < 3) || (vertices > MAX_VERTICES))
+                throw new IllegalArgumentException( "Invalid number of polygon vertices: " + vertices );
+            dv[offs] = vertices;
+            return (offs + 1);
+        }
+
+        public static int getVertices( double [] dv, int offs ) { return (int) dv[offs]; }
+        public static double getX( double [] dv, int offs, int idx ) { return Point.getX(dv, offs+1+idx*Point.SIZE); }
+        public static double getY( double [] dv, int offs, int idx ) { return Point.getY(dv, offs+1+idx*Point.SIZE); }
+    }
+
+    /**
+     * Implemented by the bodies which can be saved by CDE.save()
+     * and CDE.saveDynamicState(), other bodies do not need the methods.
+     */
+    public interface Snapshot
+    {
+        /**
+         * Writes everything required to recreate the body by the Body.Loader,
+         * used by CDE.save().
+         */
+        void saveState( ByteBuffer buf );
+
+        /**
+         * Writes the mutable state of the body (position, velocity and so on),
+         * used by CDE.saveDynamicState() to rewind the world later.
+         * Data written by the constructor arguments which can not change
+         * does not need to be saved.
+         */
+        void saveDynamicState( ByteBuffer buf );
+
+        /**
+         * Restores the state written by saveDynamicState() into the same body,
+         * used by CDE.restoreDynamicState().
+         */
+        void restoreDynamicState( ByteBuffer buf );
+    }
+
+    /**
+     * Creates a body from the state written by Body.Snapshot.saveState(),
+     * used by CDE.load().
+     */
+    public interface Loader
+    {
+        Body load( ByteBuffer buf );
+    }
+
     public Body()
     {
         m_groups = DEFAULT_GROUPS;
@@ -85,6 +192,27 @@ public abstract class Body
         m_groups = groups;
     }
 
+    /**
+     * Returns index of the body in the CDE it is registered in,
+     * or -1 if body is not registered. Index can change
+     * when some other body is added to or removed from the CDE.
+     */
+    public final int getIndex()
+    {
+        return m_idx;
+    }
+
+    final int getClassId()
+    {
+        int classId = m_classId;
+        if (classId < 0)
+        {
+            classId = s_classIds.get( getClass() );
+            m_classId = classId;
+        }
+        return classId;
+    }
+
     boolean inTheSameGroup( Body obj2 )
     {
         if (m_groups == obj2.m_groups)
@@ -114,6 +242,23 @@ public abstract class Body
         return false;
     }
 
+    /**
+     * Returns true if the body is in any of the groups,
+     * null means any group.
+     */
+    boolean inGroups( int [] groups )
+    {
+        if (groups == null)
+            return true;
+
+        for (int g : groups)
+        {
+            if (Arrays.binarySearch(m_groups, g) >= 0)
+                return true;
+        }
+        return false;
+    }
+
     public abstract int getPrCount();
     public abstract int getPrType( int id );
     public abstract int getPrPosition( double t, int id, double [] dv, int offs );
@@ -121,6 +266,28 @@ public abstract class Body
     public abstract int applyPrImpulse( int id, double x, double y, double vx, double vy );
     public abstract void move( double t );
 
+    /**
+     * Returns an upper bound of the speed of any point of any primitive
+     * until the next applyPrImpulse() or move() call,
+     * so no primitive point moves farther than (getMaxSpeed() * t) in time t.
+     * Engine uses it to skip the pairs which can not impact.
+     * Default implementation returns Double.POSITIVE_INFINITY (unknown).
+     */
+    public double getMaxSpeed()
+    {
+        return Double.POSITIVE_INFINITY;
+    }
+
+    /**
+     * Sensor body does not take part in impacts, CDE only reports
+     * when it starts and stops to overlap other bodies (see SensorEvents).
+     * Should not change while the body is registered in the CDE.
+     */
+    public boolean isSensor()
+    {
+        return false;
+    }
+
     public void handleImpact( Body b )
     {
         /* Do nothing */
@@ -20,83 +20,285 @@
 
 package org.jsl.cde;
 
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
 import java.util.HashSet;
-import java.util.Iterator;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 public class CDE
 {
-    private static final Logger s_logger = Logger.getLogger( "org.jsl.ide" );
-    private static final double GSC = (1.0d + Math.sqrt(5.0d)) / 2.0d;
+    private static final Logger s_logger = Logger.getLogger( "org.jsl.cde" );
+
+    /* Impact search precision, the same as in the DefaultPairKernel. */
     private static final double EPS = 0.000001d;
 
-    private static class Impact
+    /* Any built-in primitive can be represented as a convex polygon
+     * with a radius (ball is a polygon with one vertex, segment and capsule
+     * are polygons with two vertices), layout is [vertices, r, x0, y0, x1, y1, ...].
+     * CONVEX_SIZE is also the maximum size of the built-in primitive position.
+     */
+    static final int CONVEX_SIZE = (2 + Body.Polygon.MAX_VERTICES*Body.Point.SIZE);
+
+    /* Snapshot format (all numbers are big endian):
+     * +-------+--------+---------+-------+---------+-----------------------+----------+-----+
+     * | magic | length | version | flags | objects | object state records  | sections | END |
+     * +-------+--------+---------+-------+---------+-----------------------+----------+-----+
+     * length is a length of the data following the length field,
+     * every object state record is an int length followed by the Body.Snapshot.saveState() data,
+     * every section is an int tag, an int length and a section data.
+     */
+    private static final int SNAPSHOT_MAGIC = 0x43444553; /* "CDES" */
+    private static final int SNAPSHOT_VERSION = 1;
+    private static final int SNAPSHOT_HEADER_SIZE = 8;
+    private static final int SNAPSHOT_MAX_LENGTH = (1 << 30);
+    private static final int SNAPSHOT_CHUNK_SIZE = (64 * 1024);
+    private static final int SNAPSHOT_FLAG_REFERENCE_MODE = 0x01;
+    private static final int SNAPSHOT_SECTION_END = 0;
+    private static final int SNAPSHOT_SECTION_SENSORS = 1;
+    private static final int SNAPSHOT_SECTION_REGIONS = 2;
+
+    /* Pair solvers table size is MAX_TYPES*MAX_TYPES. */
+    public static final int MAX_TYPES = 16;
+
+    private static class SSSolver extends PairSolver
     {
-        public Body o1;
-        public int o1pi;
-        public Body o2;
-        public int o2pi;
-        public double x;
-        public double y;
+        private final DefaultPairKernel m_kernel;
+        private final double [] m_tdv = new double[32];
+
+        public SSSolver( DefaultPairKernel kernel )
+        {
+            m_kernel = kernel;
+        }
+
+        int getBuiltinId()
+        {
+            return BUILTIN_SS;
+        }
 
-        public final int getType()
+        public double getImpactTime(
+                Body o1, int o1pi, Body o2, int o2pi, double frameTime, double impactTime, Impact impact )
         {
-            return ((o1.getPrType(o1pi) << 8) | (o2.getPrType(o2pi)));
+            return m_kernel.getImpactTimeSS( o1, o1pi, o2, o2pi, frameTime, impactTime, impact );
+        }
+
+        public boolean getImpactLine( Impact impact, double [] dv, int offs )
+        {
+            /* o1[o1pi] - segment hit by the end point of the o2[o2pi],
+             * impact line is a perpendicular to the o1[o1pi] (see SBSolver).
+             */
+            final double [] tdv = m_tdv;
+            impact.o1.getPrPosition( 0.0d, impact.o1pi, tdv, 0 );
+            final double sx = (Body.Segment.getX2(tdv, 0) - Body.Segment.getX1(tdv, 0));
+            final double sy = (Body.Segment.getY2(tdv, 0) - Body.Segment.getY1(tdv, 0));
+            if ((sx == 0.0d) && (sy == 0.0d))
+                return false;
+            dv[offs] = sy;
+            dv[offs+1] = -sx;
+            return true;
         }
     }
 
-    private static abstract class Segment2Ball extends Body
+    private static class SBSolver extends PairSolver
     {
-        public Body m_obj;
-        public int m_id;
+        private final DefaultPairKernel m_kernel;
+        private final double [] m_tdv = new double[32];
 
-        public int getPrCount()
+        public SBSolver( DefaultPairKernel kernel )
         {
-            return 1;
+            m_kernel = kernel;
         }
 
-        public int getPrType( int id )
+        int getBuiltinId()
         {
-            return Body.BALL;
+            return BUILTIN_SB;
         }
 
-        public int getPrImpulse( int id, double x, double y, double [] dv, int offs )
+        public double getImpactTime(
+                Body o1, int o1pi, Body o2, int o2pi, double frameTime, double impactTime, Impact impact )
         {
-            assert( id == 0 );
-            return m_obj.getPrImpulse( m_id, x, y, dv, offs );
+            return m_kernel.getImpactTimeSB( o1, o1pi, o2, o2pi, frameTime, impactTime, impact );
         }
 
-        public int applyPrImpulse( int id, double x, double y, double vx, double vy )
+        public boolean getImpactLine( Impact impact, double [] dv, int offs )
+        {
+            /* o1[o1pi] - segment,
+             * o2[o2pi] - ball
+             */
+            final double [] tdv = m_tdv;
+            final int segmentOffs = 0;
+            final int ballOffs = impact.o1.getPrPosition( 0.0d, impact.o1pi, tdv, segmentOffs );
+            impact.o2.getPrPosition( 0.0d, impact.o2pi, tdv, ballOffs );
+
+            if (((impact.x == Body.Segment.getX1(tdv, segmentOffs)) &&
+                 (impact.y == Body.Segment.getY1(tdv, segmentOffs))) ||
+                ((impact.x == Body.Segment.getX2(tdv, segmentOffs)) &&
+                 (impact.y == Body.Segment.getY2(tdv, segmentOffs))))
+            {
+                /* impact line is a vector from impact point to the ball center */
+                dv[offs] = (Body.Ball.getX(tdv, ballOffs) - impact.x);
+                dv[offs+1] = (Body.Ball.getY(tdv, ballOffs) - impact.y);
+            }
+            else
+            {
+                /* impact line is a perpendicular to the segment (non clock-wise),
+                 * rotate it by matrix  |  0  1 |
+                 *                      | -1  0 |
+                 */
+                final double sx = (Body.Segment.getX2(tdv, segmentOffs) - Body.Segment.getX1(tdv, segmentOffs));
+                final double sy = (Body.Segment.getY2(tdv, segmentOffs) - Body.Segment.getY1(tdv, segmentOffs));
+                dv[offs] = sy;
+                dv[offs+1] = -sx;
+            }
+            return true;
+        }
+    }
+
+    private static class BBSolver extends PairSolver
+    {
+        private final DefaultPairKernel m_kernel;
+        private final double [] m_tdv = new double[32];
+
+        public BBSolver( DefaultPairKernel kernel )
         {
-            assert( id == 0 );
-            return m_obj.applyPrImpulse( m_id, x, y, vx, vy );
+            m_kernel = kernel;
         }
 
-        public void move( double t )
+        int getBuiltinId()
         {
-            throw new RuntimeException( "Method should never be called." );
+            return BUILTIN_BB;
+        }
+
+        public double getImpactTime(
+                Body o1, int o1pi, Body o2, int o2pi, double frameTime, double impactTime, Impact impact )
+        {
+            return m_kernel.getImpactTimeBB( o1, o1pi, o2, o2pi, frameTime, impactTime, impact );
+        }
+
+        public boolean getImpactLine( Impact impact, double [] dv, int offs )
+        {
+            final double [] tdv = m_tdv;
+            final int ball1Offs = 0;
+            final int ball2Offs = impact.o1.getPrPosition( 0.0d, impact.o1pi, tdv, ball1Offs );
+            impact.o2.getPrPosition( 0.0d, impact.o2pi, tdv, ball2Offs );
+
+            if ((Body.Ball.getR(tdv, ball1Offs) == 0.0d) &&
+                (Body.Ball.getR(tdv, ball2Offs) == 0.0d))
+            {
+                /* Two points, there is no impact line. */
+                return false;
+            }
+
+            dv[offs] = (Body.Ball.getX(tdv, ball2Offs) - Body.Ball.getX(tdv, ball1Offs));
+            dv[offs+1] = (Body.Ball.getY(tdv, ball2Offs) - Body.Ball.getY(tdv, ball1Offs));
+            return true;
         }
     }
 
-    private static class SegmentE1Ball extends Segment2Ball
+    /**
+     * Solver for the capsule or polygon and any built-in primitive,
+     * all primitives are treated as convex polygons with a radius,
+     * so there is only one distance function and one impact time search.
+     */
+    private static class ConvexSolver extends PairSolver
     {
-        public int getPrPosition( double t, int id, double [] dv, int offs )
+        private final DefaultPairKernel m_kernel;
+
+        public ConvexSolver( DefaultPairKernel kernel )
+        {
+            m_kernel = kernel;
+        }
+
+        int getBuiltinId()
+        {
+            return BUILTIN_CONVEX;
+        }
+
+        public double getImpactTime(
+                Body o1, int o1pi, Body o2, int o2pi, double frameTime, double impactTime, Impact impact )
+        {
+            return m_kernel.getImpactTimeConvex(
+                    o1, o1pi, o1.getPrType(o1pi), o2, o2pi, o2.getPrType(o2pi), frameTime, impactTime, impact );
+        }
+
+        public boolean getImpactLine( Impact impact, double [] dv, int offs )
+        {
+            return m_kernel.getImpactLineConvex( impact, dv, offs );
+        }
+    }
+
+    /**
+     * Calls the solver with primitives swapped,
+     * used for the reverse order of the primitive types.
+     */
+    private static class SwappedSolver extends PairSolver
+    {
+        private final PairSolver m_solver;
+
+        public SwappedSolver( PairSolver solver )
+        {
+            m_solver = solver;
+        }
+
+        int getBuiltinId()
+        {
+            return -m_solver.getBuiltinId();
+        }
+
+        public double getImpactTime(
+                Body o1, int o1pi, Body o2, int o2pi, double frameTime, double impactTime, Impact impact )
+        {
+            return m_solver.getImpactTime( o2, o2pi, o1, o1pi, frameTime, impactTime, impact );
+        }
+
+        public boolean getImpactLine( Impact impact, double [] dv, int offs )
         {
-            assert( id == 0 );
-            m_obj.getPrPosition( t, m_id, dv, offs );
-            return Body.Ball.set( dv, offs, Body.Segment.getX1(dv, offs), Body.Segment.getY1(dv, offs), 0.0d );
+            /* Impact is always set by the original solver
+             * with its primitive order, so it is resolved by the original solver.
+             */
+            throw new RuntimeException( "Internal error" );
         }
     }
 
-    private static class SegmentE2Ball extends Segment2Ball
+    /**
+     * Body moved ahead by the time, used by predictImpacts()
+     * for the bodies asleep in a region (see getLag()).
+     */
+    private static class LaggedBody extends Body
     {
+        Body m_body;
+        double m_shift;
+
+        public int getPrCount() { return m_body.getPrCount(); }
+        public int getPrType( int id ) { return m_body.getPrType( id ); }
+
         public int getPrPosition( double t, int id, double [] dv, int offs )
         {
-            assert( id == 0 );
-            m_obj.getPrPosition( t, m_id, dv, offs );
-            return Body.Ball.set( dv, offs, Body.Segment.getX2(dv, offs), Body.Segment.getY2(dv, offs), 0.0d );
+            return m_body.getPrPosition( t+m_shift, id, dv, offs );
+        }
+
+        public int getPrImpulse( int id, double x, double y, double [] dv, int offs )
+        {
+            return m_body.getPrImpulse( id, x, y, dv, offs );
+        }
+
+        public int applyPrImpulse( int id, double x, double y, double vx, double vy )
+        {
+            throw new RuntimeException( "Internal error" );
+        }
+
+        public void move( double t )
+        {
+            throw new RuntimeException( "Internal error" );
         }
+
+        public double getMaxSpeed() { return m_body.getMaxSpeed(); }
     }
 
     /**
@@ -120,7 +322,7 @@ public class CDE
      * Distance is positive if point is on the left side
      * of the direct, negative otherwise.
      */
-    private static double getDistanceDP(
+    static double getDistanceDP(
             double x1, double y1, double x2, double y2, double px, double py )
     {
         x2 -= x1;
@@ -141,7 +343,7 @@ public class CDE
         }
     }
 
-    private static double getDistanceDP( double [] tdv, int segment1Offs, int pointOffs )
+    static double getDistanceDP( double [] tdv, int segment1Offs, int pointOffs )
     {
         return getDistanceDP(
                 Body.Segment.getX1(tdv, segment1Offs), Body.Segment.getY1(tdv, segment1Offs),
@@ -153,13 +355,13 @@ public class CDE
      * Returns distance between direct on points
      * (x1, y1) - (x2, y2) and ball at point (bx, by) with radius (br).
      */
-    private static double getDistanceDB(
+    static double getDistanceDB(
             double x1, double y1, double x2, double y2, double bx, double by, double br )
     {
         return (getDistanceDP(x1, y1, x2, y2, bx, by) - br);
     }
 
-    private static double getDistanceDB( double [] tdv, int segmentOffs, int ballOffs )
+    static double getDistanceDB( double [] tdv, int segmentOffs, int ballOffs )
     {
         return getDistanceDB(
                 Body.Segment.getX1(tdv, segmentOffs), Body.Segment.getY1(tdv, segmentOffs),
@@ -170,7 +372,7 @@ public class CDE
     /**
      * Returns distance between two balls.
      */
-    private static double getDistanceBB(
+    static double getDistanceBB(
             double b1x, double b1y, double b1r, double b2x, double b2y, double b2r )
     {
         final double dx = (b2x - b1x);
@@ -178,385 +380,830 @@ public class CDE
         return Math.sqrt( dx*dx + dy*dy ) - (b1r + b2r);
     }
 
-    private static double getDistanceBB( double [] tdv, int ball1Offs, int ball2Offs )
+    static double getDistanceBB( double [] tdv, int ball1Offs, int ball2Offs )
     {
         return getDistanceBB(
                 Body.Ball.getX(tdv, ball1Offs), Body.Ball.getY(tdv, ball1Offs), Body.Ball.getR(tdv, ball1Offs),
                 Body.Ball.getX(tdv, ball2Offs), Body.Ball.getY(tdv, ball2Offs), Body.Ball.getR(tdv, ball2Offs));
     }
 
-    private static double getImpactTimeSS(
-            double [] tdv, Body b1, int b1pi, Body b2, int b2pi, int b2ps, double frameTime, double impactTime, Impact impact )
+    /* Batch versions of the distance functions above
+     * for many primitives kept in the separate arrays of coordinates.
+     * Loops have no branches and no calls but Math.sqrt() (an intrinsic),
+     * so the JIT compiler can vectorize them, results are the same
+     * as of the one pair functions bit to bit.
+     */
+
+    /**
+     * Writes getDistanceDP() of the direct (x1, y1) - (x2, y2)
+     * and every point in [from, to) to the distance[from, to).
+     */
+    static void getDistanceDP(
+            double x1, double y1, double x2, double y2,
+            double [] px, double [] py, int from, int to, double [] distance )
     {
-        /* b1[b1pi] - segment
-         * b2[b2pi] - segment
-         */
-        double t1 = 0.0d;
-        final int segment1Offs = 0;
-        final int segment2Offs = b1.getPrPosition( t1, b1pi, tdv, segment1Offs );
-        b2.getPrPosition( t1, b2pi, tdv, segment2Offs );
+        x2 -= x1;
+        y2 -= y1;
 
-        double d1 = getDistanceDP( tdv, segment1Offs, segment2Offs+b2ps );
-        if (d1 < 0.0d)
-            return impactTime;
+        final double segmentLength = Math.sqrt( x2*x2 + y2*y2 );
+        if (segmentLength > 0.0d)
+        {
+            for (int idx=from; idx<to; idx++)
+            {
+                final double dx = (px[idx] - x1);
+                final double dy = (py[idx] - y1);
+                distance[idx] = ((dx*y2 - x2*dy) / segmentLength);
+            }
+        }
+        else
+        {
+            /* Segment is actually a point, both ends consists. */
+            for (int idx=from; idx<to; idx++)
+            {
+                final double dx = (px[idx] - x1);
+                final double dy = (py[idx] - y1);
+                distance[idx] = Math.sqrt( dx*dx + dy*dy );
+            }
+        }
+    }
 
-        double t2 = frameTime;
-        b1.getPrPosition( t2, b1pi, tdv, segment1Offs );
-        b2.getPrPosition( t2, b2pi, tdv, segment2Offs );
-        double d2 = getDistanceDP( tdv, segment1Offs, segment2Offs+b2ps );
+    /**
+     * Writes getDistanceDB() of the direct (x1, y1) - (x2, y2)
+     * and every ball in [from, to) to the distance[from, to).
+     */
+    static void getDistanceDB(
+            double x1, double y1, double x2, double y2,
+            double [] bx, double [] by, double [] br, int from, int to, double [] distance )
+    {
+        getDistanceDP( x1, y1, x2, y2, bx, by, from, to, distance );
+        for (int idx=from; idx<to; idx++)
+            distance[idx] -= br[idx];
+    }
 
-        if (d2 > 0.0d)
+    /**
+     * Writes getDistanceBB() of the ball 'ball' and every ball in [from, to)
+     * to the distance[from, to).
+     */
+    static void getDistanceBB(
+            double [] bx, double [] by, double [] br, int ball, int from, int to, double [] distance )
+    {
+        final double b1x = bx[ball];
+        final double b1y = by[ball];
+        final double b1r = br[ball];
+        for (int idx=from; idx<to; idx++)
         {
-            /* let's try t2 = (t2 / 2),
-             * if distance still > 0 - no impact.
-             */
-            t2 /= 2.0d;
-            b1.getPrPosition( t2, b1pi, tdv, segment1Offs );
-            b2.getPrPosition( t2, b2pi, tdv, segment2Offs );
-            d2 = getDistanceDP( tdv, segment1Offs, segment2Offs+b2ps );
-            if (d2 > 0.0d)
-                return impactTime;
+            final double dx = (bx[idx] - b1x);
+            final double dy = (by[idx] - b1y);
+            distance[idx] = (Math.sqrt(dx*dx + dy*dy) - (b1r + br[idx]));
         }
+    }
 
-        /* Second segment end definitely cross the direct on the time interval,
-         * but not necessary on the segment, will check it later.
-         */
-        for (;;)
+    /**
+     * Writes the built-in primitive in the convex layout
+     * (see CONVEX_SIZE), returns the offset after it.
+     */
+    static int getConvex( double [] dv, int offs, int type, double [] out, int outOffs )
+    {
+        switch (type)
         {
-            double tt = (t2 - t1);
-            if (tt < EPS)
+            case Body.SEGMENT:
             {
-                if (t1 < impactTime)
-                {
-                    final double sx = (Body.Segment.getX2(tdv, segment1Offs) - Body.Segment.getX1(tdv, segment1Offs));
-                    final double sy = (Body.Segment.getY2(tdv, segment1Offs) - Body.Segment.getY1(tdv, segment1Offs));
-                    final double segmentLength = Math.sqrt( sx*sx + sy*sy );
-                    if (segmentLength > 0.0d)
-                    {
-                        final double px = (Body.Point.getX(tdv, segment2Offs + b2ps)
-                                           - Body.Segment.getX1(tdv, segment1Offs));
-                        final double py = (Body.Point.getY(tdv, segment2Offs + b2ps)
-                                           - Body.Segment.getY1(tdv, segment1Offs));
-                        final double tbx = (((sx * px) + (sy * py)) / segmentLength);
-                        if ((tbx >= 0.0d) && (tbx <= segmentLength))
-                        {
-                            /* Impact happen on segment. */
-                            impact.o1 = b1;
-                            impact.o1pi = b1pi;
-                            impact.o2 = b2;
-                            impact.o2pi = b2pi;
-                            impact.x = Body.Segment.getX1(tdv, segment1Offs) + (tbx * sx / segmentLength);
-                            impact.y = Body.Segment.getY1(tdv, segment1Offs) + (tbx * sy / segmentLength);
-                            impactTime = t1;
-                        }
-                    }
-                    /* case when (segmentLength == 0.0d)
-                     * will be handled anyway later when segment end points
-                     * and ball impact time will be checked.
-                     */
-                }
-                return impactTime;
+                final double x1 = Body.Segment.getX1( dv, offs );
+                final double y1 = Body.Segment.getY1( dv, offs );
+                final double x2 = Body.Segment.getX2( dv, offs );
+                final double y2 = Body.Segment.getY2( dv, offs );
+                out[outOffs] = 2;
+                out[outOffs+1] = 0.0d;
+                return Body.Point.set( out, Body.Point.set(out, outOffs+2, x1, y1), x2, y2 );
+            }
+
+            case Body.BALL:
+            {
+                final double x = Body.Ball.getX( dv, offs );
+                final double y = Body.Ball.getY( dv, offs );
+                final double r = Body.Ball.getR( dv, offs );
+                out[outOffs] = 1;
+                out[outOffs+1] = r;
+                return Body.Point.set( out, outOffs+2, x, y );
+            }
+
+            case Body.CAPSULE:
+            {
+                final double x1 = Body.Capsule.getX1( dv, offs );
+                final double y1 = Body.Capsule.getY1( dv, offs );
+                final double x2 = Body.Capsule.getX2( dv, offs );
+                final double y2 = Body.Capsule.getY2( dv, offs );
+                final double r = Body.Capsule.getR( dv, offs );
+                out[outOffs] = 2;
+                out[outOffs+1] = r;
+                return Body.Point.set( out, Body.Point.set(out, outOffs+2, x1, y1), x2, y2 );
             }
 
-            tt = (t1 + (tt / 2.0d));
-            b1.getPrPosition(tt, b1pi, tdv, segment1Offs);
-            b2.getPrPosition(tt, b2pi, tdv, segment2Offs);
-            final double dt = getDistanceDP(tdv, segment1Offs, segment2Offs + b2ps);
+            case Body.POLYGON:
+            {
+                final int vertices = Body.Polygon.getVertices( dv, offs );
+                System.arraycopy( dv, offs+1, out, outOffs+2, vertices*Body.Point.SIZE );
+                out[outOffs] = vertices;
+                out[outOffs+1] = 0.0d;
+                return (outOffs + 2 + vertices*Body.Point.SIZE);
+            }
+
+            default:
+                throw new RuntimeException( "Invalid primitive type: " + type );
+        }
+    }
 
-            if (dt > 0.0d)
-                t1 = tt;
+    /**
+     * Returns true if the point (px, py) is strictly inside the convex polygon
+     * with 'vertices' vertices at 'offs' (any direction of the vertices).
+     */
+    private static boolean isInside( double [] dv, int offs, int vertices, double px, double py )
+    {
+        boolean positive = false;
+        boolean negative = false;
+        double x1 = Body.Point.getX( dv, offs + (vertices-1)*Body.Point.SIZE );
+        double y1 = Body.Point.getY( dv, offs + (vertices-1)*Body.Point.SIZE );
+        for (int idx=0; idx<vertices; idx++)
+        {
+            final double x2 = Body.Point.getX( dv, offs + idx*Body.Point.SIZE );
+            final double y2 = Body.Point.getY( dv, offs + idx*Body.Point.SIZE );
+            final double d = ((x2 - x1)*(py - y1) - (y2 - y1)*(px - x1));
+            if (d > 0.0d)
+                positive = true;
+            else if (d < 0.0d)
+                negative = true;
             else
-                t2 = tt;
+                return false;
+            if (positive && negative)
+                return false;
+            x1 = x2;
+            y1 = y2;
         }
+        return true;
     }
 
-    private static double getImpactTimeSS(
-            double [] tdv, Body b1, int b1pi, Body b2, int b2pi, double frameTime, double impactTime, Impact impact )
+    /**
+     * Returns position [0, 1] of the point on the segment
+     * (x1, y1) - (x2, y2) nearest to the point (px, py).
+     */
+    private static double getNearestK( double x1, double y1, double x2, double y2, double px, double py )
     {
-        assert( b1.getPrType(b1pi) == Body.SEGMENT );
-        assert( b2.getPrType(b2pi) == Body.SEGMENT );
-        impactTime = getImpactTimeSS( tdv, b1, b1pi, b2, b2pi, 0, frameTime, impactTime, impact );
-        impactTime = getImpactTimeSS( tdv, b1, b1pi, b2, b2pi, Body.Point.SIZE, frameTime, impactTime, impact );
-        impactTime = getImpactTimeSS( tdv, b2, b2pi, b1, b1pi, 0, frameTime, impactTime, impact);
-        impactTime = getImpactTimeSS( tdv, b2, b2pi, b1, b1pi, Body.Point.SIZE, frameTime, impactTime, impact);
-        return impactTime;
+        final double sx = (x2 - x1);
+        final double sy = (y2 - y1);
+        final double sl = (sx*sx + sy*sy);
+        if (sl == 0.0d)
+            return 0.0d;
+        final double k = (((px - x1)*sx + (py - y1)*sy) / sl);
+        if (k < 0.0d)
+            return 0.0d;
+        if (k > 1.0d)
+            return 1.0d;
+        return k;
     }
 
-    private static double getImpactTimeSB(
-            double [] tdv, Body b1, int b1pi, Body b2, int b2pi, double frameTime, double impactTime, Impact impact )
+    /**
+     * Returns distance from the point (px, py) to the segment (x1, y1) - (x2, y2).
+     */
+    private static double getDistanceSP( double x1, double y1, double x2, double y2, double px, double py )
     {
-        /* b1[b1pi] - segment
-         * b2[b2pi] - ball
-         */
-        assert( b1.getPrType(b1pi) == Body.SEGMENT );
-        assert( b2.getPrType(b2pi) == Body.BALL );
+        final double k = getNearestK( x1, y1, x2, y2, px, py );
+        final double dx = (x1 + k*(x2 - x1) - px);
+        final double dy = (y1 + k*(y2 - y1) - py);
+        return Math.sqrt( dx*dx + dy*dy );
+    }
 
-        double t1 = 0.0d;
-        final int segmentOffs = 0;
-        final int ballOffs = b1.getPrPosition( t1, b1pi, tdv, segmentOffs );
-        b2.getPrPosition( t1, b2pi, tdv, ballOffs );
-        double d1 = getDistanceDB( tdv, segmentOffs, ballOffs );
-        if (d1 < 0.0d)
-            return impactTime;
+    /**
+     * Returns distance between segments (ax, ay) - (bx, by) and (cx, cy) - (dx, dy),
+     * writes nearest points (first on the segment AB, then on the segment CD)
+     * to the 'dv' at 'offs'.
+     */
+    private static double getDistanceSS(
+            double ax, double ay, double bx, double by, double cx, double cy, double dx, double dy,
+            double [] dv, int offs )
+    {
+        final double d1 = ((bx - ax)*(cy - ay) - (by - ay)*(cx - ax));
+        final double d2 = ((bx - ax)*(dy - ay) - (by - ay)*(dx - ax));
+        final double d3 = ((dx - cx)*(ay - cy) - (dy - cy)*(ax - cx));
+        final double d4 = ((dx - cx)*(by - cy) - (dy - cy)*(bx - cx));
+        if ((((d1 > 0.0d) && (d2 < 0.0d)) || ((d1 < 0.0d) && (d2 > 0.0d))) &&
+            (((d3 > 0.0d) && (d4 < 0.0d)) || ((d3 < 0.0d) && (d4 > 0.0d))))
+        {
+            /* Segments cross each other. */
+            final double k = (d3 / (d3 - d4));
+            final double x = (ax + k*(bx - ax));
+            final double y = (ay + k*(by - ay));
+            Body.Point.set( dv, Body.Point.set(dv, offs, x, y), x, y );
+            return 0.0d;
+        }
 
-        double t2 = frameTime;
-        b1.getPrPosition( t2, b1pi, tdv, segmentOffs );
-        b2.getPrPosition( t2, b2pi, tdv, ballOffs );
-        double d2 = getDistanceDB( tdv, segmentOffs, ballOffs );
+        /* Otherwise the nearest points pair contains one of the end points. */
+        double k = getNearestK( cx, cy, dx, dy, ax, ay );
+        double qx = (cx + k*(dx - cx));
+        double qy = (cy + k*(dy - cy));
+        double ds = ((qx - ax)*(qx - ax) + (qy - ay)*(qy - ay));
+        double px = ax;
+        double py = ay;
 
-        if (d2 > 0.0d)
+        k = getNearestK( cx, cy, dx, dy, bx, by );
+        double x = (cx + k*(dx - cx));
+        double y = (cy + k*(dy - cy));
+        double dd = ((x - bx)*(x - bx) + (y - by)*(y - by));
+        if (dd < ds)
         {
-            /* let's try t2 = (t2 / 2),
-             * if distance still > 0 - no impact.
-             */
-            t2 /= 2.0d;
-            b1.getPrPosition( t2, b1pi, tdv, segmentOffs );
-            b2.getPrPosition( t2, b2pi, tdv, ballOffs );
-            d2 = getDistanceDB( tdv, segmentOffs, ballOffs );
-            if (d2 > 0.0d)
-                return impactTime;
+            ds = dd;
+            px = bx;
+            py = by;
+            qx = x;
+            qy = y;
         }
 
-        /* Ball definitely cross the direct on the time interval,
-         * but not necessary on the segment, will check it later.
-         */
-        for (;;)
+        k = getNearestK( ax, ay, bx, by, cx, cy );
+        x = (ax + k*(bx - ax));
+        y = (ay + k*(by - ay));
+        dd = ((x - cx)*(x - cx) + (y - cy)*(y - cy));
+        if (dd < ds)
         {
-            double tt = (t2 - t1);
-            if (tt < EPS)
-            {
-                if (t1 < impactTime)
-                {
-                    final double sx = (Body.Segment.getX2(tdv, segmentOffs) - Body.Segment.getX1(tdv, segmentOffs));
-                    final double sy = (Body.Segment.getY2(tdv, segmentOffs) - Body.Segment.getY1(tdv, segmentOffs));
-                    final double segmentLength = Math.sqrt( sx*sx + sy*sy );
-                    if (segmentLength > 0.0d)
-                    {
-                        final double bx = (Body.Ball.getX(tdv, ballOffs) - Body.Segment.getX1(tdv, segmentOffs));
-                        final double by = (Body.Ball.getY(tdv, ballOffs) - Body.Segment.getY1(tdv, segmentOffs));
-                        final double tbx = (((sx * bx) + (sy * by)) / segmentLength);
-                        if ((tbx >= 0.0d) && (tbx <= segmentLength))
-                        {
-                            /* Impact happen on segment. */
-                            impact.o1 = b1;
-                            impact.o1pi = b1pi;
-                            impact.o2 = b2;
-                            impact.o2pi = b2pi;
-                            impact.x = Body.Segment.getX1(tdv, segmentOffs) + (tbx * sx / segmentLength);
-                            impact.y = Body.Segment.getY1(tdv, segmentOffs) + (tbx * sy / segmentLength);
-                            impactTime = t1;
-                        }
-                    }
-                    /* case when (segmentLength == 0.0d)
-                     * will be handled anyway later when segment end points
-                     * and ball impact time will be checked.
-                     */
-                }
-                return impactTime;
-            }
-
-            tt = (t1 + (tt / 2.0d));
-            b1.getPrPosition( tt, b1pi, tdv, segmentOffs );
-            b2.getPrPosition( tt, b2pi, tdv, ballOffs );
-            final double dt = getDistanceDB( tdv, segmentOffs, ballOffs );
+            ds = dd;
+            px = x;
+            py = y;
+            qx = cx;
+            qy = cy;
+        }
 
-            if (dt > 0.0d)
-                t1 = tt;
-            else
-                t2 = tt;
+        k = getNearestK( ax, ay, bx, by, dx, dy );
+        x = (ax + k*(bx - ax));
+        y = (ay + k*(by - ay));
+        dd = ((x - dx)*(x - dx) + (y - dy)*(y - dy));
+        if (dd < ds)
+        {
+            ds = dd;
+            px = x;
+            py = y;
+            qx = dx;
+            qy = dy;
         }
+
+        Body.Point.set( dv, Body.Point.set(dv, offs, px, py), qx, qy );
+        return Math.sqrt( ds );
     }
 
-    private static double getImpactTimeBB(
-            double [] tdv, Body o1, int o1pi, Body o2, int o2pi, double frameTime, double impactTime, Impact impact )
+    /**
+     * Returns distance between two primitives in the convex layout,
+     * negative if they overlap. Writes nearest points of the polygons
+     * (without radius) to the 'dv' at 'offs', uses 2 more points after them.
+     */
+    static double getDistanceConvex( double [] tdv, int offs1, int offs2, double [] dv, int offs )
     {
-        /* It is not so simple to detect the impact time for balls,
-         * especially if they are relatively small comparing to their speed.
-         * We will try to find minimum distance first (distance between centers - (radius sum)),
-         * and consider they impacts if minimum distance is less or equal zero.
-         */
-        double t1 = 0.0;
-        double t2 = frameTime;
-        double t11 = (t2 - (t2 - t1)/GSC);
-        double t22 = (t1 + (t2 - t1)/GSC);
-
-        final int ball1Offs = 0;
-        final int ball2Offs = o1.getPrPosition( t11, o1pi, tdv, ball1Offs );
-        o2.getPrPosition( t11, o2pi, tdv, ball2Offs );
-        double d11 = getDistanceBB( tdv, ball1Offs, ball2Offs );
-
-        /*
-        o1.getPrPosition( 0.0d, o1pi, tdv, ball1Offs );
-        o2.getPrPosition( 0.0d, o2pi, tdv, ball2Offs );
-        System.out.println( "d1=" + getDistanceBB(tdv, ball1Offs, ball2Offs) );
-        */
+        final int vertices1 = (int) tdv[offs1];
+        final int vertices2 = (int) tdv[offs2];
+        final double r = (tdv[offs1+1] + tdv[offs2+1]);
+        final int points1Offs = (offs1 + 2);
+        final int points2Offs = (offs2 + 2);
 
-        o1.getPrPosition( t22, o1pi, tdv, ball1Offs );
-        o2.getPrPosition( t22, o2pi, tdv, ball2Offs );
-        double d22 = getDistanceBB( tdv, ball1Offs, ball2Offs );
-
-        for (;;)
+        /* Polygon can contain other primitive completely. */
+        if (vertices2 > 2)
         {
-            if ((t2 - t1) < EPS)
+            final double x = Body.Point.getX( tdv, points1Offs );
+            final double y = Body.Point.getY( tdv, points1Offs );
+            if (isInside(tdv, points2Offs, vertices2, x, y))
             {
-                t2 = (t2 + t1) / 2.0d;
-                break;
+                Body.Point.set( dv, Body.Point.set(dv, offs, x, y), x, y );
+                return -r;
             }
+        }
 
-            if (d11 >= d22)
-            {
-                t1 = t11;
-                t11 = t22;
-                d11 = d22;
-                t22 = (t1 + (t2 - t1)/GSC);
-                o1.getPrPosition( t22, o1pi, tdv, ball1Offs );
-                o2.getPrPosition( t22, o2pi, tdv, ball2Offs );
-                d22 = getDistanceBB( tdv, ball1Offs, ball2Offs );
-            }
-            else
+        if (vertices1 > 2)
+        {
+            final double x = Body.Point.getX( tdv, points2Offs );
+            final double y = Body.Point.getY( tdv, points2Offs );
+            if (isInside(tdv, points1Offs, vertices1, x, y))
             {
-                t2 = t22;
-                t22 = t11;
-                d22 = d11;
-                t11 = (t2 - (t2 - t1)/GSC);
-                o1.getPrPosition( t11, o1pi, tdv, ball1Offs );
-                o2.getPrPosition( t11, o2pi, tdv, ball2Offs );
-                d11 = getDistanceBB( tdv, ball1Offs, ball2Offs );
+                Body.Point.set( dv, Body.Point.set(dv, offs, x, y), x, y );
+                return -r;
             }
         }
 
-        o1.getPrPosition( t2, o1pi, tdv, ball1Offs );
-        o2.getPrPosition( t2, o2pi, tdv, ball2Offs );
-        final double d2 = getDistanceBB( tdv, ball1Offs, ball2Offs );
-        if (d2 > 0.0d)
-            return impactTime;
-
-        t1 = 0.0d;
-        for (;;)
+        /* Otherwise the nearest points are on the edges,
+         * polygons with 1 or 2 vertices have one edge.
+         */
+        final int edges1 = ((vertices1 > 2) ? vertices1 : 1);
+        final int edges2 = ((vertices2 > 2) ? vertices2 : 1);
+        final int pointsOffs = (offs + 2*Body.Point.SIZE);
+        double distance = Double.POSITIVE_INFINITY;
+        for (int idx1=0; idx1<edges1; idx1++)
         {
-            double tt = (t2 - t1);
-            if (tt < EPS)
+            final int a = (points1Offs + idx1*Body.Point.SIZE);
+            final int b = (points1Offs + ((idx1+1) % vertices1)*Body.Point.SIZE);
+            for (int idx2=0; idx2<edges2; idx2++)
             {
-                if (t1 < impactTime)
+                final int c = (points2Offs + idx2*Body.Point.SIZE);
+                final int d = (points2Offs + ((idx2+1) % vertices2)*Body.Point.SIZE);
+                final double dd = getDistanceSS(
+                        Body.Point.getX(tdv, a), Body.Point.getY(tdv, a),
+                        Body.Point.getX(tdv, b), Body.Point.getY(tdv, b),
+                        Body.Point.getX(tdv, c), Body.Point.getY(tdv, c),
+                        Body.Point.getX(tdv, d), Body.Point.getY(tdv, d),
+                        dv, pointsOffs );
+                if (dd < distance)
                 {
-                    /* Object state in the 'tdv' can be at time point 't1',
-                     * as well as at time point 't2'. But we return impact time = t1 here,
-                     * so we should take an impact point exactly at 't1'.
-                     */
-                    impactTime = t1;
-                    impact.o1 = o1;
-                    impact.o1pi = o1pi;
-                    impact.o2 = o2;
-                    impact.o2pi = o2pi;
-                    if (Body.Ball.getR(tdv, ball1Offs) == 0.0d)
-                    {
-                        o1.getPrPosition( impactTime, o1pi, tdv, ball1Offs );
-                        impact.x = Body.Ball.getX( tdv, ball1Offs );
-                        impact.y = Body.Ball.getY( tdv, ball1Offs );
-                    }
-                    else if (Body.Ball.getR(tdv, ball2Offs) == 0.0d)
-                    {
-                        o2.getPrPosition( impactTime, o2pi, tdv, ball2Offs );
-                        impact.x = Body.Ball.getX( tdv, ball2Offs );
-                        impact.y = Body.Ball.getY( tdv, ball2Offs );
-                    }
-                    else
-                    {
-                        o1.getPrPosition( impactTime, o1pi, tdv, ball1Offs );
-                        o2.getPrPosition( impactTime, o2pi, tdv, ball2Offs );
-                        tt = (Body.Ball.getR(tdv, ball1Offs) + Body.Ball.getR(tdv, ball2Offs)) /
-                                Body.Ball.getR(tdv, ball1Offs);
-                        impact.x = Body.Ball.getX(tdv, ball1Offs) +
-                                tt * (Body.Ball.getX(tdv, ball2Offs) - Body.Ball.getX(tdv, ball1Offs));
-                        impact.y = Body.Ball.getY(tdv, ball1Offs) +
-                                tt * (Body.Ball.getY(tdv, ball2Offs) - Body.Ball.getY(tdv, ball1Offs));
-                    }
+                    distance = dd;
+                    System.arraycopy( dv, pointsOffs, dv, offs, 2*Body.Point.SIZE );
+                    if (dd == 0.0d)
+                        return -r;
                 }
-                return impactTime;
             }
-
-            tt = (t1 + (tt / 2.0d));
-            o1.getPrPosition( tt, o1pi, tdv, ball1Offs );
-            o2.getPrPosition( tt, o2pi, tdv, ball2Offs );
-            final double dt = getDistanceBB( tdv, ball1Offs, ball2Offs );
-            if (dt > 0.0d)
-                t1 = tt;
-            else
-                t2 = tt;
         }
+        return (distance - r);
     }
 
-    private double getImpactTimeSB(
-            Body o1, int o1pi, Body o2, int o2pi, double frameTime, double impactTime, Impact impact )
+    /**
+     * Returns distance from the ray origin (x, y) with unit direction (dx, dy)
+     * to the segment (x1, y1) - (x2, y2), or -1 if the ray does not hit the segment.
+     */
+    private static double getRayDistanceS(
+            double x1, double y1, double x2, double y2, double x, double y, double dx, double dy )
     {
-        m_segmentE1Ball.m_obj = o1;
-        m_segmentE1Ball.m_id = o1pi;
-        impactTime = getImpactTimeBB( m_tdv, m_segmentE1Ball, 0, o2, o2pi, frameTime, impactTime, impact );
-        if (impact.o1 == m_segmentE1Ball)
+        final double ax = (x1 - x);
+        final double ay = (y1 - y);
+        final double ex = (x2 - x1);
+        final double ey = (y2 - y1);
+        final double denom = (dx*ey - dy*ex);
+        final double ad = (ax*dy - ay*dx);
+        if (denom != 0.0d)
         {
-            impact.o1 = o1;
-            impact.o1pi = o1pi;
+            final double t = ((ax*ey - ay*ex) / denom);
+            final double s = (ad / denom);
+            if ((t >= 0.0d) && (s >= 0.0d) && (s <= 1.0d))
+                return t;
+            return -1.0d;
         }
 
-        impactTime = getImpactTimeSB( m_tdv, o1, o1pi, o2, o2pi, frameTime, impactTime, impact );
-
-        m_segmentE2Ball.m_obj = o1;
-        m_segmentE1Ball.m_id = o1pi;
-        impactTime = getImpactTimeBB( m_tdv, m_segmentE2Ball, 0, o2, o2pi, frameTime, impactTime, impact );
-        if (impact.o1 == m_segmentE2Ball)
+        if (ad != 0.0d)
         {
-            impact.o1 = o1;
-            impact.o1pi = o1pi;
+            /* Parallel */
+            return -1.0d;
         }
 
-        return impactTime;
+        /* Collinear, check the segment end points. */
+        final double ta = (ax*dx + ay*dy);
+        final double tb = ((ax + ex)*dx + (ay + ey)*dy);
+        if ((ta < 0.0d) && (tb < 0.0d))
+            return -1.0d;
+        if ((ta < 0.0d) || (tb < 0.0d))
+            return 0.0d;
+        return Math.min( ta, tb );
     }
 
-    private double getImpactTime( Body o1, Body o2, double frameTime, double impactTime, Impact impact )
+    /**
+     * Returns distance from the ray origin (x, y) with unit direction (dx, dy)
+     * to the ball (bx, by, r), or -1 if the ray does not hit the ball.
+     */
+    private static double getRayDistanceB(
+            double bx, double by, double r, double x, double y, double dx, double dy )
     {
-        final int o1pc = o1.getPrCount();
-        final int o2pc = o2.getPrCount();
+        final double px = (x - bx);
+        final double py = (y - by);
+        final double c = (px*px + py*py - r*r);
+        if (c <= 0.0d)
+            return 0.0d;
+        final double b = (px*dx + py*dy);
+        if (b > 0.0d)
+            return -1.0d;
+        final double disc = (b*b - c);
+        if (disc < 0.0d)
+            return -1.0d;
+        return (-b - Math.sqrt(disc));
+    }
 
-        for (int o1pi=0; o1pi<o1pc; o1pi++)
-        {
-            for (int o2pi=0; o2pi<o2pc; o2pi++)
-            {
-                final int type = ((o1.getPrType(o1pi) << 8) | o2.getPrType(o2pi));
-                switch (type)
-                {
-                    case ((Body.SEGMENT << 8) | Body.SEGMENT):
-                        impactTime = getImpactTimeSS( m_tdv, o1, o1pi, o2, o2pi, frameTime, impactTime, impact );
-                        break;
+    private static double minDistance( double d1, double d2 )
+    {
+        if (d1 < 0.0d)
+            return d2;
+        if (d2 < 0.0d)
+            return d1;
+        return Math.min( d1, d2 );
+    }
 
-                    case ((Body.SEGMENT << 8) | Body.BALL):
-                        impactTime = getImpactTimeSB( o1, o1pi, o2, o2pi, frameTime, impactTime, impact );
-                        break;
+    /**
+     * Returns distance from the ray origin (x, y) with unit direction (dx, dy)
+     * to the primitive, or -1 if the ray does not hit the primitive.
+     * Distance is 0 if the origin is inside the primitive or on the segment.
+     */
+    private static double getRayDistance( double [] dv, int offs, int type, double x, double y, double dx, double dy )
+    {
+        switch (type)
+        {
+            case Body.SEGMENT:
+                return getRayDistanceS(
+                        Body.Segment.getX1(dv, offs), Body.Segment.getY1(dv, offs),
+                        Body.Segment.getX2(dv, offs), Body.Segment.getY2(dv, offs), x, y, dx, dy );
 
-                    case ((Body.BALL << 8) | Body.SEGMENT):
-                        impactTime = getImpactTimeSB( o2, o2pi, o1, o1pi, frameTime, impactTime, impact );
-                        break;
+            case Body.BALL:
+                return getRayDistanceB(
+                        Body.Ball.getX(dv, offs), Body.Ball.getY(dv, offs), Body.Ball.getR(dv, offs), x, y, dx, dy );
 
-                    case ((Body.BALL << 8) | Body.BALL):
-                        impactTime = getImpactTimeBB( m_tdv, o1, o1pi, o2, o2pi, frameTime, impactTime, impact );
-                        break;
+            case Body.CAPSULE:
+            {
+                final double x1 = Body.Capsule.getX1( dv, offs );
+                final double y1 = Body.Capsule.getY1( dv, offs );
+                final double x2 = Body.Capsule.getX2( dv, offs );
+                final double y2 = Body.Capsule.getY2( dv, offs );
+                final double r = Body.Capsule.getR( dv, offs );
+                if (getDistanceSP(x1, y1, x2, y2, x, y) <= r)
+                    return 0.0d;
 
-                    default:
-                        throw new RuntimeException( "Invalid impact type: " + type );
+                /* Capsule border is two balls at the ends and two sides. */
+                double d = minDistance( getRayDistanceB(x1, y1, r, x, y, dx, dy), getRayDistanceB(x2, y2, r, x, y, dx, dy) );
+                final double sx = (x2 - x1);
+                final double sy = (y2 - y1);
+                final double length = Math.sqrt( sx*sx + sy*sy );
+                if (length > 0.0d)
+                {
+                    final double nx = (sy * r / length);
+                    final double ny = (-sx * r / length);
+                    d = minDistance( d, getRayDistanceS(x1+nx, y1+ny, x2+nx, y2+ny, x, y, dx, dy) );
+                    d = minDistance( d, getRayDistanceS(x1-nx, y1-ny, x2-nx, y2-ny, x, y, dx, dy) );
                 }
+                return d;
+            }
+
+            case Body.POLYGON:
+            {
+                final int vertices = Body.Polygon.getVertices( dv, offs );
+                if (isInside(dv, offs+1, vertices, x, y))
+                    return 0.0d;
 
-                if ((impactTime == 0.0d) || (impactTime == Double.MIN_VALUE))
-                    return impactTime;
+                double d = -1.0d;
+                double x1 = Body.Polygon.getX( dv, offs, vertices-1 );
+                double y1 = Body.Polygon.getY( dv, offs, vertices-1 );
+                for (int idx=0; idx<vertices; idx++)
+                {
+                    final double x2 = Body.Polygon.getX( dv, offs, idx );
+                    final double y2 = Body.Polygon.getY( dv, offs, idx );
+                    d = minDistance( d, getRayDistanceS(x1, y1, x2, y2, x, y, dx, dy) );
+                    x1 = x2;
+                    y1 = y2;
+                }
+                return d;
             }
+
+            default:
+                throw new RuntimeException( "Invalid primitive type: " + type );
         }
-        return impactTime;
     }
 
-    private boolean handleImpact(
-            Impact impact, double [] tdv, int impulse1Offs, int impulse2Offs, int offs,
-            double impactLineX, double impactLineY )
+    /**
+     * Returns distance from the ray origin (x, y) with unit direction (dx, dy)
+     * to the box, 0 if the origin is inside, or -1 if the ray does not hit the box.
+     */
+    private static double getRayBoxDistance(
+            double minX, double minY, double maxX, double maxY, double x, double y, double dx, double dy )
     {
-        final double impactLineLength = Math.sqrt(
-                impactLineX*impactLineX + impactLineY*impactLineY );
+        double t1 = 0.0d;
+        double t2 = Double.POSITIVE_INFINITY;
+        if (dx != 0.0d)
+        {
+            final double ta = ((minX - x) / dx);
+            final double tb = ((maxX - x) / dx);
+            t1 = Math.max( t1, Math.min(ta, tb) );
+            t2 = Math.min( t2, Math.max(ta, tb) );
+        }
+        else if ((x < minX) || (x > maxX))
+            return -1.0d;
+
+        if (dy != 0.0d)
+        {
+            final double ta = ((minY - y) / dy);
+            final double tb = ((maxY - y) / dy);
+            t1 = Math.max( t1, Math.min(ta, tb) );
+            t2 = Math.min( t2, Math.max(ta, tb) );
+        }
+        else if ((y < minY) || (y > maxY))
+            return -1.0d;
+
+        return (t1 <= t2) ? t1 : -1.0d;
+    }
+
+    private static double getBoxDistance( double minX, double minY, double maxX, double maxY, double x, double y )
+    {
+        final double dx = Math.max( Math.max(minX - x, x - maxX), 0.0d );
+        final double dy = Math.max( Math.max(minY - y, y - maxY), 0.0d );
+        return Math.sqrt( dx*dx + dy*dy );
+    }
+
+    /**
+     * Returns distance from the point (x, y) to the primitive,
+     * 0 if the point is inside the primitive or on the segment.
+     */
+    private static double getPointDistance( double [] dv, int offs, int type, double x, double y )
+    {
+        switch (type)
+        {
+            case Body.SEGMENT:
+                return getDistanceSP(
+                        Body.Segment.getX1(dv, offs), Body.Segment.getY1(dv, offs),
+                        Body.Segment.getX2(dv, offs), Body.Segment.getY2(dv, offs), x, y );
+
+            case Body.BALL:
+            {
+                final double dx = (Body.Ball.getX(dv, offs) - x);
+                final double dy = (Body.Ball.getY(dv, offs) - y);
+                return Math.max( Math.sqrt(dx*dx + dy*dy) - Body.Ball.getR(dv, offs), 0.0d );
+            }
+
+            case Body.CAPSULE:
+            {
+                final double d = getDistanceSP(
+                        Body.Capsule.getX1(dv, offs), Body.Capsule.getY1(dv, offs),
+                        Body.Capsule.getX2(dv, offs), Body.Capsule.getY2(dv, offs), x, y );
+                return Math.max( d - Body.Capsule.getR(dv, offs), 0.0d );
+            }
+
+            case Body.POLYGON:
+            {
+                final int vertices = Body.Polygon.getVertices( dv, offs );
+                if (isInside(dv, offs+1, vertices, x, y))
+                    return 0.0d;
+
+                double d = Double.POSITIVE_INFINITY;
+                double x1 = Body.Polygon.getX( dv, offs, vertices-1 );
+                double y1 = Body.Polygon.getY( dv, offs, vertices-1 );
+                for (int idx=0; idx<vertices; idx++)
+                {
+                    final double x2 = Body.Polygon.getX( dv, offs, idx );
+                    final double y2 = Body.Polygon.getY( dv, offs, idx );
+                    d = Math.min( d, getDistanceSP(x1, y1, x2, y2, x, y) );
+                    x1 = x2;
+                    y1 = y2;
+                }
+                return d;
+            }
+
+            default:
+                throw new RuntimeException( "Invalid primitive type: " + type );
+        }
+    }
+
+    /**
+     * Returns true if the segment (x1, y1) - (x2, y2) overlaps the box.
+     */
+    private static boolean overlapsBox(
+            double x1, double y1, double x2, double y2, double minX, double minY, double maxX, double maxY )
+    {
+        /* Clip the segment by the box (Liang-Barsky). */
+        final double sx = (x2 - x1);
+        final double sy = (y2 - y1);
+        double t1 = 0.0d;
+        double t2 = 1.0d;
+        if (sx != 0.0d)
+        {
+            final double ta = ((minX - x1) / sx);
+            final double tb = ((maxX - x1) / sx);
+            t1 = Math.max( t1, Math.min(ta, tb) );
+            t2 = Math.min( t2, Math.max(ta, tb) );
+        }
+        else if ((x1 < minX) || (x1 > maxX))
+            return false;
+
+        if (sy != 0.0d)
+        {
+            final double ta = ((minY - y1) / sy);
+            final double tb = ((maxY - y1) / sy);
+            t1 = Math.max( t1, Math.min(ta, tb) );
+            t2 = Math.min( t2, Math.max(ta, tb) );
+        }
+        else if ((y1 < minY) || (y1 > maxY))
+            return false;
+
+        return (t1 <= t2);
+    }
+
+    /**
+     * Returns true if the primitive overlaps the box.
+     */
+    private static boolean overlapsBox(
+            double [] dv, int offs, int type, double minX, double minY, double maxX, double maxY )
+    {
+        switch (type)
+        {
+            case Body.SEGMENT:
+                return overlapsBox(
+                        Body.Segment.getX1(dv, offs), Body.Segment.getY1(dv, offs),
+                        Body.Segment.getX2(dv, offs), Body.Segment.getY2(dv, offs), minX, minY, maxX, maxY );
+
+            case Body.BALL:
+            {
+                final double r = Body.Ball.getR( dv, offs );
+                final double d = getBoxDistance( minX, minY, maxX, maxY, Body.Ball.getX(dv, offs), Body.Ball.getY(dv, offs) );
+                return (d <= r);
+            }
+
+            case Body.CAPSULE:
+            {
+                final double x1 = Body.Capsule.getX1( dv, offs );
+                final double y1 = Body.Capsule.getY1( dv, offs );
+                final double x2 = Body.Capsule.getX2( dv, offs );
+                final double y2 = Body.Capsule.getY2( dv, offs );
+                if (overlapsBox(x1, y1, x2, y2, minX, minY, maxX, maxY))
+                    return true;
+
+                /* Axis does not cross the box, so the nearest points pair
+                 * contains either an axis end or a box corner.
+                 */
+                double d = Math.min(
+                        getBoxDistance(minX, minY, maxX, maxY, x1, y1),
+                        getBoxDistance(minX, minY, maxX, maxY, x2, y2) );
+                d = Math.min( d, getDistanceSP(x1, y1, x2, y2, minX, minY) );
+                d = Math.min( d, getDistanceSP(x1, y1, x2, y2, maxX, minY) );
+                d = Math.min( d, getDistanceSP(x1, y1, x2, y2, minX, maxY) );
+                d = Math.min( d, getDistanceSP(x1, y1, x2, y2, maxX, maxY) );
+                return (d <= Body.Capsule.getR(dv, offs));
+            }
+
+            case Body.POLYGON:
+            {
+                /* Box is inside the polygon or some edge overlaps the box. */
+                final int vertices = Body.Polygon.getVertices( dv, offs );
+                if (isInside(dv, offs+1, vertices, minX, minY))
+                    return true;
+
+                double x1 = Body.Polygon.getX( dv, offs, vertices-1 );
+                double y1 = Body.Polygon.getY( dv, offs, vertices-1 );
+                for (int idx=0; idx<vertices; idx++)
+                {
+                    final double x2 = Body.Polygon.getX( dv, offs, idx );
+                    final double y2 = Body.Polygon.getY( dv, offs, idx );
+                    if (overlapsBox(x1, y1, x2, y2, minX, minY, maxX, maxY))
+                        return true;
+                    x1 = x2;
+                    y1 = y2;
+                }
+                return false;
+            }
+
+            default:
+                throw new RuntimeException( "Invalid primitive type: " + type );
+        }
+    }
+
+    /**
+     * Inserts hit to the list sorted by the distance,
+     * keeps only 'capacity' nearest hits. Returns the new number of hits.
+     * Hits on the same distance are sorted by body index and primitive id,
+     * so the result does not depend on the order primitives were checked.
+     */
+    private static int addHit(
+            Body obj, int id, double x, double y, double distance,
+            Body [] hitBody, int [] hitId, double [] hit, int hits, int capacity )
+    {
+        int idx = hits;
+        while (idx > 0)
+        {
+            final double d = Hit.getDistance( hit, (idx-1)*Hit.SIZE );
+            if ((d < distance) ||
+                ((d == distance) &&
+                 ((hitBody[idx-1].m_idx < obj.m_idx) ||
+                  ((hitBody[idx-1].m_idx == obj.m_idx) && (hitId[idx-1] < id)))))
+            {
+                break;
+            }
+            idx--;
+        }
+
+        if (idx == capacity)
+            return hits;
+
+        if (hits == capacity)
+            hits--;
+
+        for (int jdx=hits; jdx>idx; jdx--)
+        {
+            hitBody[jdx] = hitBody[jdx-1];
+            hitId[jdx] = hitId[jdx-1];
+            System.arraycopy( hit, (jdx-1)*Hit.SIZE, hit, jdx*Hit.SIZE, Hit.SIZE );
+        }
+
+        hitBody[idx] = obj;
+        hitId[idx] = id;
+        Hit.set( hit, idx*Hit.SIZE, x, y, distance );
+        return (hits + 1);
+    }
+
+    /**
+     * Returns true if the second primitive approaches the first one
+     * along the normal (nx, ny) directed from the first primitive to the second,
+     * and at least one of them can change its movement.
+     */
+    static boolean isApproaching( double [] tdv, int impulse1Offs, int impulse2Offs, double nx, double ny )
+    {
+        if ((Impulse.getM(tdv, impulse1Offs) == Double.MAX_VALUE) &&
+            (Impulse.getM(tdv, impulse2Offs) == Double.MAX_VALUE))
+        {
+            /* Both are immovable, nothing to exchange. */
+            return false;
+        }
+
+        final double vx = (Impulse.getVx(tdv, impulse2Offs) - Impulse.getVx(tdv, impulse1Offs));
+        final double vy = (Impulse.getVy(tdv, impulse2Offs) - Impulse.getVy(tdv, impulse1Offs));
+        return ((vx*nx + vy*ny) < 0.0d);
+    }
+
+    private double getImpactTime(
+            Body o1, int o1pi, Body o2, int o2pi, double frameTime, double impactTime, Impact impact )
+    {
+        return getKernel( o1, o2 ).getImpactTime( o1, o1pi, o2, o2pi, frameTime, impactTime, impact );
+    }
+
+    private double getImpactTime( Body o1, Body o2, double frameTime, double impactTime, Impact impact )
+    {
+        return getKernel( o1, o2 ).getImpactTime( o1, o2, frameTime, impactTime, impact );
+    }
+
+    /**
+     * Checks static level primitives close to the body primitives,
+     * level primitives are taken from the grid cells overlapped
+     * by the area primitive can reach in the frameTime.
+     */
+    private double getImpactTimeLevel( Body obj, double frameTime, double impactTime, Impact impact )
+    {
+        final StaticLevel level = m_level;
+        final double maxDistance = (obj.getMaxSpeed() * frameTime);
+        if (maxDistance == 0.0d)
+        {
+            /* Both objects do not move. */
+            return impactTime;
+        }
+
+        if (Double.isInfinite(maxDistance) || Double.isNaN(maxDistance))
+        {
+            /* Can reach any level primitive. */
+            return getImpactTime( level, obj, frameTime, impactTime, impact );
+        }
+
+        final double [] tdv = m_tdv;
+        final int prCount = obj.getPrCount();
+        for (int pi=0; pi<prCount; pi++)
+        {
+            obj.getPrPosition( 0.0d, pi, tdv, 0 );
+            final int type = obj.getPrType( pi );
+            final double minX = (StaticLevel.getMinX(type, tdv, 0) - maxDistance);
+            final double minY = (StaticLevel.getMinY(type, tdv, 0) - maxDistance);
+            final double maxX = (StaticLevel.getMaxX(type, tdv, 0) + maxDistance);
+            final double maxY = (StaticLevel.getMaxY(type, tdv, 0) + maxDistance);
+
+            if ((maxX < level.getGridMinX()) || (minX > level.getGridMaxX()) ||
+                (maxY < level.getGridMinY()) || (minY > level.getGridMaxY()))
+            {
+                continue;
+            }
+
+            final int cols = level.getCols();
+            final int cx1 = level.getCellX( minX );
+            final int cy1 = level.getCellY( minY );
+            final int cx2 = level.getCellX( maxX );
+            final int cy2 = level.getCellY( maxY );
+            for (int cy=cy1; cy<=cy2; cy++)
+            {
+                for (int cx=cx1; cx<=cx2; cx++)
+                {
+                    final int cell = (cy*cols + cx);
+                    final int itemEnd = level.getCellStart( cell + 1 );
+                    for (int item=level.getCellStart(cell); item<itemEnd; item++)
+                    {
+                        final int id = level.getItem( item );
+                        /* Primitive can overlap many cells,
+                         * check it only in the first cell of the area.
+                         */
+                        if ((Math.max(level.getPrCellX(id), cx1) != cx) ||
+                            (Math.max(level.getPrCellY(id), cy1) != cy))
+                        {
+                            continue;
+                        }
+
+                        if (m_hybridMode)
+                        {
+                            impactTime = getKernel( level, obj ).getImpactTimeHybrid(
+                                    level, id, obj, pi, frameTime, maxDistance, impactTime, impact, null );
+                        }
+                        else
+                        {
+                            impactTime = getImpactTime( level, id, obj, pi, frameTime, impactTime, impact );
+                        }
+                        if ((impactTime == 0.0d) || (impactTime == Double.MIN_VALUE))
+                            return impactTime;
+                    }
+                }
+            }
+        }
+        return impactTime;
+    }
+
+    private boolean handleImpact(
+            Impact impact, double [] tdv, int impulse1Offs, int impulse2Offs, int offs,
+            double impactLineX, double impactLineY )
+    {
+        final double impactLineLength = Math.sqrt(
+                impactLineX*impactLineX + impactLineY*impactLineY );
 
         final double cos = (impactLineX / impactLineLength);
         final double sin = (impactLineY / impactLineLength);
@@ -571,13 +1218,14 @@ public class CDE
 
         if (Impulse.getM(tdv, impulse1Offs) == Double.MAX_VALUE)
         {
+            /* Second object reflects from the first one. */
             Impulse.setVx( tdv, impulse2Offs,
-                    Impulse.getVx(tdv, impulse1Offs) - Impulse.getVx(tdv, impulse2Offs) );
+                    2.0d * Impulse.getVx(tdv, impulse1Offs) - Impulse.getVx(tdv, impulse2Offs) );
         }
         else if (Impulse.getM(tdv, impulse2Offs) == Double.MAX_VALUE)
         {
             Impulse.setVx( tdv, impulse1Offs,
-                    Impulse.getVx(tdv, impulse2Offs) - Impulse.getVx(tdv, impulse1Offs) );
+                    2.0d * Impulse.getVx(tdv, impulse2Offs) - Impulse.getVx(tdv, impulse1Offs) );
         }
         else
         {
@@ -588,8 +1236,8 @@ public class CDE
             final double m2 = Impulse.getM( tdv, impulse2Offs );
             final double u1 = Impulse.getVx( tdv, impulse1Offs );
             final double u2 = Impulse.getVx( tdv, impulse2Offs );
-            final double v1 = 2 * m2 * (u1 - u2) / (m1 + m2);
-            final double v2 = (m1 - m2) * (u1 - u2) / (m1 + m2);
+            final double v1 = ((m1 - m2) * u1 + 2 * m2 * u2) / (m1 + m2);
+            final double v2 = ((m2 - m1) * u2 + 2 * m1 * u1) / (m1 + m2);
             Impulse.setVx( tdv, impulse1Offs, v1 );
             Impulse.setVx( tdv, impulse2Offs, v2 );
         }
@@ -604,227 +1252,2900 @@ public class CDE
         impact.o2.applyPrImpulse( impact.o2pi, impact.x, impact.y,
                 Impulse.getVx(tdv, impulse2Offs), Impulse.getVy(tdv, impulse2Offs) );
 
-        impact.o1.handleImpact( impact.o2 );
-        impact.o2.handleImpact( impact.o1 );
-
-        return true;
-    }
-
-    private boolean handleImpactSB( Impact impact, double [] tdv, int segmentOffs, int ballOffs, int offs )
-    {
-        /* o1[o1pi] - segment,
-         * o2[o2pi] - ball
-         *                   / offs
-         * +---------+------X-----------------+--------------+
-         * | segment | ball X segment impulse | ball impulse |
-         * +---------+------X-----------------+--------------+
-         */
-        assert( impact.o2pi == 0 );
-
-        final int segmentImpulseOffs = offs;
-        final int ballImpulseOffs = impact.o1.getPrImpulse(
-                impact.o1pi, impact.x, impact.y, tdv, segmentImpulseOffs );
-
-        offs = impact.o2.getPrImpulse( impact.o2pi, impact.x, impact.y, tdv, ballImpulseOffs );
-
-        double impactLineX, impactLineY;
-
-        if ((impact.x == Body.Segment.getX1(tdv, segmentOffs)) &&
-            (impact.y == Body.Segment.getY1(tdv, segmentOffs)))
-        {
-            /* impact line is a vector from impact point to the ball center */
-            impactLineX = (Body.Ball.getX(tdv, ballOffs) - impact.x);
-            impactLineY = (Body.Ball.getY(tdv, ballOffs) - impact.y);
-        }
-        else if ((impact.x == Body.Segment.getX2(tdv, segmentOffs)) &&
-                 (impact.y == Body.Segment.getY2(tdv, segmentOffs)))
-        {
-            /* impact line is a vector from impact point to the ball center */
-            impactLineX = (Body.Ball.getX(tdv, ballOffs) - impact.x);
-            impactLineY = (Body.Ball.getY(tdv, ballOffs) - impact.y);
-        }
-        else
-        {
-            /* impact line is a perpendicular to the segment (non clock-wise),
-             * rotate it by matrix  |  0  1 |
-             *                      | -1  0 |
-             */
-            final double sx = (Body.Segment.getX2(tdv, segmentOffs) - Body.Segment.getX1(tdv, segmentOffs));
-            final double sy = (Body.Segment.getY2(tdv, segmentOffs) - Body.Segment.getY1(tdv, segmentOffs));
-            impactLineX = sy;
-            impactLineY = -sx;
-        }
-
-        return handleImpact( impact, tdv, segmentImpulseOffs, ballImpulseOffs, offs, impactLineX, impactLineY );
-    }
-
-    private boolean handleImpactBB( Impact impact, double [] tdv, int ball1Offs, int ball2Offs, int offs )
-    {
-        /* o1[o1pi] - ball 1
-         * o2[o2pi] - ball 2
-         *                    / offs
-         * +--------+--------X----------------+----------------+
-         * | ball 1 | ball 2 X ball 1 impulse | ball 2 impulse |
-         * +--------+--------X----------------+----------------+
-         */
-        assert( impact.o1pi == 0 );
-        assert( impact.o2pi == 0 );
-
-        final int ball1ImpulseOffs = offs;
-        final int ball2ImpulseOffs = impact.o1.getPrImpulse( impact.o1pi, impact.x, impact.y, tdv, offs );
-        offs = impact.o2.getPrImpulse( impact.o2pi, impact.x, impact.y, tdv, ball2ImpulseOffs );
-
-        double impactLineX, impactLineY;
-
-        if ((Body.Ball.getR(tdv, ball1Offs) == 0.0d) &&
-            (Body.Ball.getR(tdv, ball2Offs) == 0.0d))
-        {
-            assert( false );
-            impactLineX = 0.0d;
-            impactLineY = 0.0d;
-        }
-        else
+        if (m_bodyCallbacks)
         {
-            impactLineX = (Body.Ball.getX(tdv, ball2Offs) - Body.Ball.getX(tdv, ball1Offs));
-            impactLineY = (Body.Ball.getY(tdv, ball2Offs) - Body.Ball.getY(tdv, ball1Offs));
+            impact.o1.handleImpact( impact.o2 );
+            impact.o2.handleImpact( impact.o1 );
         }
 
-        return handleImpact( impact, tdv, ball1ImpulseOffs, ball2ImpulseOffs, offs, impactLineX, impactLineY );
-    }
-
-    private boolean handleImpactSS( Impact impact, double [] tdv, int segment1Offs, int segment2Offs, int offs )
-    {
-        /* o1[o1pi] - segment 1
-         * o2[o2pi] - segment 2
-         * +-----------+-----------X-------------------+-------------------+
-         * | segment 1 | segment 2 X segment 1 impulse | segment 2 impulse |
-         * +-----------+-----------X-------------------+-------------------+
-         */
         return true;
     }
 
-    private void handleImpact( Impact impact )
+    private void handleImpact( Impact impact, double time )
     {
+        final PairSolver solver = m_solvers[
+                (impact.o1.getPrType(impact.o1pi) * MAX_TYPES) + impact.o2.getPrType(impact.o2pi)];
         final double [] tdv = m_tdv;
-        final int o1offs = 0;
-        final int o2offs = impact.o1.getPrPosition( 0.0d, impact.o1pi, tdv, o1offs );
-        final int offs = impact.o2.getPrPosition( 0.0d, impact.o2pi, tdv, o2offs );
-        switch (impact.getType())
+        if (solver.getImpactLine(impact, tdv, 0))
         {
-            case ((Body.SEGMENT << 8) | Body.SEGMENT):
-                handleImpactSS( impact, tdv, o1offs, o2offs, offs );
-                break;
-
-            case ((Body.SEGMENT << 8) | Body.BALL):
-                handleImpactSB( impact, tdv, o1offs, o2offs, offs );
-                break;
-
-            case ((Body.BALL << 8) | Body.SEGMENT):
-                /* Ball will be always the second impact object. */
-                throw new RuntimeException( "Internal error" );
-
-            case ((Body.BALL << 8) | Body.BALL):
-                handleImpactBB( impact, tdv, o1offs, o2offs, offs );
-                break;
+            /*           / impulse1Offs
+             * +--------X----------------+----------------+
+             * | line   X body 1 impulse | body 2 impulse |
+             * +--------X----------------+----------------+
+             */
+            final double impactLineX = tdv[0];
+            final double impactLineY = tdv[1];
+            final int impulse1Offs = 2;
+            final int impulse2Offs = impact.o1.getPrImpulse( impact.o1pi, impact.x, impact.y, tdv, impulse1Offs );
+            final int offs = impact.o2.getPrImpulse( impact.o2pi, impact.x, impact.y, tdv, impulse2Offs );
+            handleImpact( impact, tdv, impulse1Offs, impulse2Offs, offs, impactLineX, impactLineY );
+        }
 
-            default:
-                throw new RuntimeException( "Internal error" );
+        if (m_impactListener != null)
+        {
+            m_impactListener.onImpact(
+                    time, impact.o1, impact.o1pi, impact.o2, impact.o2pi, impact.x, impact.y );
         }
     }
 
     private final HashSet<Body> m_objHash;
-    private Body [] m_objArray;
+    private Body [] m_objArray; /* Kept in sync with m_objHash by add() and remove() */
     private int m_objects;
+    private int m_solids; /* Not sensor bodies are at the beginning of m_objArray */
 
     private final Impact m_impact;
 
-    private final Segment2Ball m_segmentE1Ball;
-    private final Segment2Ball m_segmentE2Ball;
+    private final PairSolver [] m_solvers; /* [type1*MAX_TYPES + type2] */
+    private final DefaultPairKernel m_kernel;
+    private boolean m_specialization;
+    private PairKernel [][] m_kernels; /* [class id 1][class id 2] */
+    private boolean m_hybridMode;
+    private double [] m_speeds; /* Body.getMaxSpeed() of the solid bodies while impact is searched */
+    /* Bounding boxes of the solid bodies while impact is searched,
+     * kept as separate arrays so the pair filter loops over them can be vectorized.
+     */
+    private double [] m_boxMinX;
+    private double [] m_boxMinY;
+    private double [] m_boxMaxX;
+    private double [] m_boxMaxY;
+    private double [] m_slack; /* Gap minus travel for the pairs of one body, see getSlack() */
+    /* Ball of the solid bodies made of one ball while impact is searched,
+     * radius is infinite for other bodies, so they are never filtered out by the distance.
+     */
+    private double [] m_ballX;
+    private double [] m_ballY;
+    private double [] m_ballR;
+    private double [] m_distance; /* Scratch for the batch distance functions */
+    private double [] m_segmentDistance;
+    private double [] m_pairTimes; /* Heap of the body pairs by the earliest possible impact time */
+    private long [] m_pairs; /* (idx << 32) | jdx, in the same order as m_pairTimes */
+    private final PairCache m_pairCache;
+
+    /* Solid bodies taking part in the current run() pass,
+     * all solid bodies at the beginning of m_objArray if there are no regions.
+     */
+    private Body [] m_search;
+    private int m_searchCount;
+
+    /* Regions stepped at a coarser rate, see addRegion(). */
+    private int m_regions;
+    private double [] m_regionRect; /* [minX, minY, maxX, maxY] for every region */
+    private int [] m_regionInterval;
+    private int [] m_regionMembers; /* Number of bodies asleep in the region */
+    private double [] m_regionLag; /* Time the region members are behind the world */
+    private double [] m_regionBounds; /* Area the region members can reach until the region wakes up */
+    private long m_tick; /* Number of run() calls, region steps start when it is a multiple of the interval */
+    private Body [] m_passBodies;
+    private Body [] m_passMoving;
     private final double [] m_tdv; /* Temporary double vector */
 
+    private boolean m_referenceMode;
+    private ByteBuffer m_snapshotBuffer;
+    private ImpactListener m_impactListener;
+    private boolean m_bodyCallbacks;
+    private StaticLevel m_level;
+    private final double [] m_qdv; /* Temporary double vector for queries */
+    private int [] m_queryStamps; /* Last query visited the level primitive */
+    private int m_queryStamp;
+    private double [] m_bounds; /* Bounding boxes of bodies for queries */
+    private boolean m_boundsValid;
+    private final SensorEvents m_sensorEvents;
+    private final Impact m_touchImpact;
+    /* Sensors sorted by the bounding box, see indexSensors(),
+     * sensor slot is the sensor index in m_objArray minus m_solids.
+     */
+    private double [] m_sensorBox; /* [minX, minY, maxX, maxY] for every slot */
+    private int [] m_sensorOrder; /* Slots by the box minX, kept between calls */
+    private double [] m_sensorReach; /* Maximum box maxX of m_sensorOrder[0..i] */
+    private int m_sensorOrderCount;
+    private int m_sensorIndexed; /* Sensors in the index, left out ones follow them */
+    private int [] m_sensorPairs; /* (slot, body index) pairs found by findSensors() */
+    private int [] m_sensorStart; /* First body of the slot in m_sensorBodies */
+    private int [] m_sensorBodies; /* Body indices of the pairs by the slot */
+    private FrameBuffer m_frameBuffer;
+    private final Impact m_predictionImpact;
+    private final LaggedBody m_lagged1;
+    private final LaggedBody m_lagged2;
+
     public CDE()
     {
         m_objHash = new HashSet<Body>();
+        m_objArray = new Body[32];
         m_impact = new Impact();
-        m_segmentE1Ball = new SegmentE1Ball();
-        m_segmentE2Ball = new SegmentE2Ball();
+        m_solvers = new PairSolver[MAX_TYPES * MAX_TYPES];
+        m_kernel = new DefaultPairKernel( m_solvers );
+        setPairSolver( Body.SEGMENT, Body.SEGMENT, new SSSolver(m_kernel) );
+        setPairSolver( Body.SEGMENT, Body.BALL, new SBSolver(m_kernel) );
+        setPairSolver( Body.BALL, Body.BALL, new BBSolver(m_kernel) );
+
+        final PairSolver convexSolver = new ConvexSolver( m_kernel );
+        setPairSolver( Body.CAPSULE, Body.SEGMENT, convexSolver );
+        setPairSolver( Body.CAPSULE, Body.BALL, convexSolver );
+        setPairSolver( Body.CAPSULE, Body.CAPSULE, convexSolver );
+        setPairSolver( Body.POLYGON, Body.SEGMENT, convexSolver );
+        setPairSolver( Body.POLYGON, Body.BALL, convexSolver );
+        setPairSolver( Body.POLYGON, Body.CAPSULE, convexSolver );
+        setPairSolver( Body.POLYGON, Body.POLYGON, convexSolver );
         m_tdv = new double[32];
+        m_qdv = new double[4*CONVEX_SIZE + 4*Body.Point.SIZE];
+        m_bounds = new double[32*4];
+        m_speeds = new double[32];
+        m_boxMinX = new double[32];
+        m_boxMinY = new double[32];
+        m_boxMaxX = new double[32];
+        m_boxMaxY = new double[32];
+        m_slack = new double[32];
+        m_ballX = new double[32];
+        m_ballY = new double[32];
+        m_ballR = new double[32];
+        m_distance = new double[32];
+        m_segmentDistance = new double[32];
+        m_pairTimes = new double[64];
+        m_pairs = new long[64];
+        m_pairCache = new PairCache();
+        m_regionRect = new double[4*4];
+        m_regionInterval = new int[4];
+        m_regionMembers = new int[4];
+        m_regionLag = new double[4];
+        m_regionBounds = new double[4*4];
+        m_passBodies = new Body[32];
+        m_passMoving = new Body[32];
+        m_sensorEvents = new SensorEvents();
+        m_touchImpact = new Impact();
+        m_sensorBox = new double[8*4];
+        m_sensorOrder = new int[8];
+        m_sensorReach = new double[8];
+        m_sensorPairs = new int[16*2];
+        m_sensorStart = new int[8+1];
+        m_sensorBodies = new int[16];
+        m_bodyCallbacks = true;
+        m_predictionImpact = new Impact();
+        m_lagged1 = new LaggedBody();
+        m_lagged2 = new LaggedBody();
     }
 
     public final void add( Body obj )
     {
-        m_objHash.add( obj );
-        m_objects = -1;
+        if (m_objHash.add(obj))
+        {
+            if (m_objects == m_objArray.length)
+            {
+                final Body [] objArray = new Body[clp2(m_objects + 1)];
+                System.arraycopy( m_objArray, 0, objArray, 0, m_objects );
+                m_objArray = objArray;
+            }
+            if (obj.isSensor())
+            {
+                obj.m_idx = m_objects;
+                m_objArray[m_objects++] = obj;
+            }
+            else
+            {
+                /* Move the first sensor to the end. */
+                final Body sensor = m_objArray[m_solids];
+                if (sensor != null)
+                {
+                    sensor.m_idx = m_objects;
+                    m_objArray[m_objects] = sensor;
+                }
+                obj.m_idx = m_solids;
+                m_objArray[m_solids++] = obj;
+                m_objects++;
+            }
+            m_boundsValid = false;
+            m_pairCache.clear();
+        }
     }
 
     public final void remove( Body obj )
     {
         if (m_objHash.remove(obj))
-            m_objects = -1;
+        {
+            for (int idx=0; idx<m_objects; idx++)
+            {
+                if (m_objArray[idx] == obj)
+                {
+                    /* Order of the objects does not matter,
+                     * move the last one of the same kind to the free slot,
+                     * then the last sensor to the slot freed by the solid body.
+                     */
+                    if (idx < m_solids)
+                    {
+                        m_solids--;
+                        m_objArray[idx] = m_objArray[m_solids];
+                        m_objArray[idx].m_idx = idx;
+                        idx = m_solids;
+                    }
+                    m_objects--;
+                    if (idx < m_objects)
+                    {
+                        m_objArray[idx] = m_objArray[m_objects];
+                        m_objArray[idx].m_idx = idx;
+                    }
+                    m_objArray[m_objects] = null;
+                    obj.m_idx = -1;
+                    if (obj.m_region >= 0)
+                    {
+                        m_regionMembers[obj.m_region]--;
+                        obj.m_region = -1;
+                    }
+                    m_boundsValid = false;
+                    m_pairCache.clear();
+                    break;
+                }
+            }
+        }
     }
 
-    public final void run( final double runTime )
+    private ByteBuffer getSnapshotBuffer( int capacity )
     {
-        if (s_logger.isLoggable( Level.FINE))
-            s_logger.fine( "runTime=" + runTime );
+        if ((m_snapshotBuffer == null) || (m_snapshotBuffer.capacity() < capacity))
+            m_snapshotBuffer = ByteBuffer.allocateDirect( (capacity < 4096) ? 4096 : clp2(capacity) );
+        m_snapshotBuffer.clear();
+        return m_snapshotBuffer;
+    }
 
-        if (m_objects == -1)
-        {
-            m_objects = m_objHash.size();
-            if ((m_objArray == null) ||
-                (m_objArray.length < m_objHash.size()))
-            {
-                final int newSize = (m_objects < 32) ? 32 : clp2(m_objects);
-                m_objArray = new Body[newSize];
-            }
+    private void saveWorld( ByteBuffer buf )
+    {
+        buf.putInt( SNAPSHOT_MAGIC );
+        final int lengthPos = buf.position();
+        buf.putInt( 0 );
+        buf.putInt( SNAPSHOT_VERSION );
+        buf.putInt( m_referenceMode ? SNAPSHOT_FLAG_REFERENCE_MODE : 0 );
+        buf.putInt( m_objects );
 
-            Iterator<Body> it = m_objHash.iterator();
-            for (int idx=0; it.hasNext(); idx++)
-                m_objArray[idx] = it.next();
+        for (int idx=0; idx<m_objects; idx++)
+        {
+            final int recordPos = buf.position();
+            buf.putInt( 0 );
+            ((Body.Snapshot) m_objArray[idx]).saveState( buf );
+            buf.putInt( recordPos, (buf.position() - recordPos - 4) );
         }
 
-        double timeRemaining = runTime;
-        for (;;)
+        final SensorEvents sensorEvents = m_sensorEvents;
+        final int overlaps = sensorEvents.getOverlapCount();
+        if (overlaps > 0)
         {
-            double impactTime = Double.MAX_VALUE;
-
-            for (int idx=0; idx<m_objects; idx++)
+            /* Pairs of the body indices, removed bodies are skipped. */
+            buf.putInt( SNAPSHOT_SECTION_SENSORS );
+            final int sectionPos = buf.position();
+            buf.putInt( 0 );
+            buf.putInt( 0 );
+            int pairs = 0;
+            for (int idx=0; idx<overlaps; idx++)
             {
-                final Body obj1 = m_objArray[idx];
-                for (int jdx=idx+1; jdx<m_objects; jdx++)
+                final int sensorIdx = sensorEvents.getOverlapSensor(idx).m_idx;
+                final int bodyIdx = sensorEvents.getOverlapBody(idx).m_idx;
+                if ((sensorIdx >= 0) && (bodyIdx >= 0))
                 {
-                    final Body obj2 = m_objArray[jdx];
-                    if (obj1.inTheSameGroup(obj2))
-                        impactTime = getImpactTime( obj1, obj2, timeRemaining, impactTime, m_impact );
+                    buf.putInt( sensorIdx );
+                    buf.putInt( bodyIdx );
+                    pairs++;
                 }
             }
+            buf.putInt( sectionPos, (buf.position() - sectionPos - 4) );
+            buf.putInt( sectionPos+4, pairs );
+        }
 
-            if (impactTime < Double.MAX_VALUE)
+        if (m_regions > 0)
+        {
+            /* Region rectangles and state, then the region of every body record. */
+            buf.putInt( SNAPSHOT_SECTION_REGIONS );
+            final int sectionPos = buf.position();
+            buf.putInt( 0 );
+            buf.putLong( m_tick );
+            buf.putInt( m_regions );
+            for (int region=0; region<m_regions; region++)
             {
-                assert( impactTime <= timeRemaining );
+                for (int idx=region*4; idx<region*4+4; idx++)
+                    buf.putDouble( m_regionRect[idx] );
+                buf.putInt( m_regionInterval[region] );
+                buf.putDouble( m_regionLag[region] );
+                for (int idx=region*4; idx<region*4+4; idx++)
+                    buf.putDouble( m_regionBounds[idx] );
+            }
+            for (int idx=0; idx<m_objects; idx++)
+                buf.putInt( m_objArray[idx].m_region );
+            buf.putInt( sectionPos, (buf.position() - sectionPos - 4) );
+        }
 
-                if (impactTime > 0.0d)
-                {
-                    for (int idx = 0; idx < m_objects; idx++)
-                        m_objArray[idx].move( impactTime );
+        buf.putInt( SNAPSHOT_SECTION_END );
+        buf.putInt( lengthPos, (buf.position() - SNAPSHOT_HEADER_SIZE) );
+    }
 
-                    handleImpact( m_impact );
+    private void loadWorld( ByteBuffer buf, Body.Loader loader ) throws IOException
+    {
+        final int version = buf.getInt();
+        if (version != SNAPSHOT_VERSION)
+            throw new IOException( "Unsupported snapshot version " + version );
 
-                    timeRemaining -= impactTime;
-                    if (timeRemaining == 0.0)
-                        break;
-                }
-                else
+        final int flags = buf.getInt();
+        final int objects = buf.getInt();
+        if ((objects < 0) || (objects > (buf.remaining() / 4)))
+            throw new IOException( "Invalid snapshot, invalid object count " + objects );
+        final Body [] objArray = new Body[(objects < 32) ? 32 : clp2(objects)];
+        final int limit = buf.limit();
+
+        for (int idx=0; idx<objects; idx++)
+        {
+            final int recordLength = buf.getInt();
+            final int recordEnd = (recordLength + buf.position());
+            if ((recordLength < 0) || (recordEnd > limit))
+                throw new IOException( "Invalid snapshot, object record " + idx + " is truncated" );
+            buf.limit( recordEnd );
+            objArray[idx] = loader.load( buf );
+            buf.limit( limit );
+            buf.position( recordEnd );
+        }
+
+        int [] overlaps = null;
+        long tick = 0;
+        int regions = 0;
+        double [] regionRect = null;
+        int [] regionInterval = null;
+        double [] regionLag = null;
+        double [] regionBounds = null;
+        int [] bodyRegion = null;
+        for (;;)
+        {
+            final int tag = buf.getInt();
+            if (tag == SNAPSHOT_SECTION_END)
+                break;
+            final int length = buf.getInt();
+            if ((length < 0) || (length > buf.remaining()))
+                throw new IOException( "Invalid snapshot, section " + tag + " is truncated" );
+            if (tag == SNAPSHOT_SECTION_SENSORS)
+            {
+                final int pairs = buf.getInt();
+                if ((pairs < 0) || (pairs > (length / 8)))
+                    throw new IOException( "Invalid snapshot, invalid sensor overlap count" );
+                overlaps = new int[pairs * 2];
+                for (int idx=0; idx<pairs*2; idx++)
                 {
-                    handleImpact( m_impact );
+                    overlaps[idx] = buf.getInt();
+                    if ((overlaps[idx] < 0) || (overlaps[idx] >= objects))
+                        throw new IOException( "Invalid snapshot, invalid sensor overlap" );
+                }
+            }
+            else if (tag == SNAPSHOT_SECTION_REGIONS)
+            {
+                tick = buf.getLong();
+                regions = buf.getInt();
+                if ((regions < 0) || (regions > (length / (10*8 + 4))))
+                    throw new IOException( "Invalid snapshot, invalid region count " + regions );
+                final int capacity = ((regions < 4) ? 4 : clp2(regions));
+                regionRect = new double[capacity*4];
+                regionInterval = new int[capacity];
+                regionLag = new double[capacity];
+                regionBounds = new double[capacity*4];
+                for (int region=0; region<regions; region++)
+                {
+                    for (int idx=region*4; idx<region*4+4; idx++)
+                        regionRect[idx] = buf.getDouble();
+                    regionInterval[region] = buf.getInt();
+                    regionLag[region] = buf.getDouble();
+                    for (int idx=region*4; idx<region*4+4; idx++)
+                        regionBounds[idx] = buf.getDouble();
+                    final int offs = (region * 4);
+                    if ((regionInterval[region] < 1) || !(regionLag[region] >= 0.0d) ||
+                        !(regionRect[offs] < regionRect[offs+2]) || !(regionRect[offs+1] < regionRect[offs+3]))
+                    {
+                        throw new IOException( "Invalid snapshot, invalid region " + region );
+                    }
+                }
+                bodyRegion = new int[objects];
+                for (int idx=0; idx<objects; idx++)
+                {
+                    bodyRegion[idx] = buf.getInt();
+                    if ((bodyRegion[idx] < -1) || (bodyRegion[idx] >= regions))
+                        throw new IOException( "Invalid snapshot, invalid body region" );
+                }
+            }
+            else
+            {
+                /* Skip unknown section. */
+                buf.position( buf.position() + length );
+            }
+        }
+
+        /* Nothing is changed in the world before all checks are passed. */
+        final HashSet<Body> objHash = new HashSet<Body>();
+        for (int idx=0; idx<objects; idx++)
+        {
+            if (objArray[idx] == null)
+                throw new IOException( "Invalid snapshot, object " + idx + " is not loaded" );
+            if (!objHash.add(objArray[idx]))
+                throw new IOException( "Invalid snapshot, object " + idx + " loaded twice" );
+            if ((bodyRegion != null) && (bodyRegion[idx] >= 0) && objArray[idx].isSensor())
+                throw new IOException( "Invalid snapshot, sensor " + idx + " is asleep in a region" );
+        }
+
+        /* Snapshot is written with sensors at the end,
+         * but do not rely on it.
+         */
+        final Body [] loaded = ((overlaps == null) && (bodyRegion == null)) ? objArray : objArray.clone();
+        int solids = 0;
+        for (int idx=0; idx<objects; idx++)
+        {
+            if (!objArray[idx].isSensor())
+            {
+                final Body obj = objArray[idx];
+                System.arraycopy( objArray, solids, objArray, solids+1, idx-solids );
+                objArray[solids++] = obj;
+            }
+        }
+
+        for (int idx=0; idx<m_objects; idx++)
+        {
+            m_objArray[idx].m_idx = -1;
+            m_objArray[idx].m_region = -1;
+        }
+        for (int idx=0; idx<objects; idx++)
+            objArray[idx].m_idx = idx;
+        m_objHash.clear();
+        m_objHash.addAll( objHash );
+        m_objArray = objArray;
+        m_objects = objects;
+        m_solids = solids;
+        m_boundsValid = false;
+        m_pairCache.clear();
+        m_sensorEvents.reset();
+        if (overlaps != null)
+        {
+            /* Indices in the snapshot are the record numbers, not the new indices. */
+            for (int idx=0; idx<overlaps.length; idx+=2)
+                m_sensorEvents.addOverlap( loaded[overlaps[idx]], loaded[overlaps[idx+1]] );
+        }
+
+        /* Regions of the snapshot replace the current ones. */
+        m_tick = tick;
+        m_regions = regions;
+        if (regions > 0)
+        {
+            m_regionRect = regionRect;
+            m_regionInterval = regionInterval;
+            m_regionMembers = new int[regionInterval.length];
+            m_regionLag = regionLag;
+            m_regionBounds = regionBounds;
+        }
+        for (int idx=0; idx<objects; idx++)
+        {
+            final int region = ((bodyRegion == null) ? -1 : bodyRegion[idx]);
+            loaded[idx].m_region = region;
+            if (region >= 0)
+                m_regionMembers[region]++;
+        }
+        m_referenceMode = ((flags & SNAPSHOT_FLAG_REFERENCE_MODE) != 0);
+    }
+
+    private static void readFully( ReadableByteChannel channel, ByteBuffer buf ) throws IOException
+    {
+        while (buf.hasRemaining())
+        {
+            if (channel.read(buf) < 0)
+                throw new EOFException( "Unexpected end of snapshot" );
+        }
+    }
+
+    /**
+     * Throws IllegalStateException if some registered body
+     * does not implement Body.Snapshot, before anything is written.
+     */
+    private void checkSnapshot()
+    {
+        for (int idx=0; idx<m_objects; idx++)
+        {
+            if (!(m_objArray[idx] instanceof Body.Snapshot))
+            {
+                throw new IllegalStateException(
+                        m_objArray[idx].getClass().getName() + " does not implement Body.Snapshot" );
+            }
+        }
+    }
+
+    /**
+     * Writes all registered bodies (using Body.Snapshot.saveState())
+     * and the engine state to the channel, every body should implement Body.Snapshot.
+     */
+    public final void save( WritableByteChannel channel ) throws IOException
+    {
+        checkSnapshot();
+        int capacity = 0;
+        ByteBuffer buf;
+        for (;;)
+        {
+            buf = getSnapshotBuffer( capacity );
+            try
+            {
+                saveWorld( buf );
+                break;
+            }
+            catch (BufferOverflowException ex)
+            {
+                capacity = (buf.capacity() * 2);
+            }
+        }
+
+        buf.flip();
+        while (buf.hasRemaining())
+            channel.write( buf );
+    }
+
+    /**
+     * Replaces the current world by the one written by CDE.save(),
+     * bodies are created by the loader, regions (see addRegion())
+     * are replaced by the regions of the snapshot.
+     * Current world stays untouched if snapshot is invalid.
+     */
+    public final void load( ReadableByteChannel channel, Body.Loader loader ) throws IOException
+    {
+        ByteBuffer buf = getSnapshotBuffer( SNAPSHOT_HEADER_SIZE );
+        buf.limit( SNAPSHOT_HEADER_SIZE );
+        readFully( channel, buf );
+        buf.flip();
+
+        if (buf.getInt() != SNAPSHOT_MAGIC)
+            throw new IOException( "Invalid snapshot" );
+
+        final int length = buf.getInt();
+        if ((length < 0) || (length > SNAPSHOT_MAX_LENGTH))
+            throw new IOException( "Invalid snapshot" );
+        if (channel instanceof SeekableByteChannel)
+        {
+            final SeekableByteChannel seekableChannel = (SeekableByteChannel) channel;
+            if (length > (seekableChannel.size() - seekableChannel.position()))
+                throw new EOFException( "Unexpected end of snapshot" );
+        }
+
+        /* Length is not trusted, buffer grows with the data actually read. */
+        buf = getSnapshotBuffer( Math.min(length, SNAPSHOT_CHUNK_SIZE) );
+        buf.limit( Math.min(length, buf.capacity()) );
+        for (;;)
+        {
+            readFully( channel, buf );
+            if (buf.position() == length)
+                break;
+            final ByteBuffer data = buf;
+            buf = getSnapshotBuffer( (int) Math.min(((long) data.capacity()) * 2, length) );
+            data.flip();
+            buf.put( data );
+            buf.limit( Math.min(length, buf.capacity()) );
+        }
+        buf.flip();
+
+        try
+        {
+            loadWorld( buf, loader );
+        }
+        catch (RuntimeException ex)
+        {
+            /* BufferUnderflowException or so */
+            throw new IOException( "Invalid snapshot", ex );
+        }
+    }
+
+    /**
+     * Writes the dynamic state of the world to the buffer:
+     * Body.Snapshot.saveDynamicState() of every registered body (all should implement it),
+     * the current sensor overlaps and the state of the regions (see addRegion()).
+     * Unlike CDE.save() bodies are not recreated later,
+     * so the state can be restored only to the same world by CDE.restoreDynamicState().
+     * Does not allocate memory, BufferOverflowException is thrown
+     * if the buffer is too small.
+     */
+    public final void saveDynamicState( ByteBuffer buf )
+    {
+        checkSnapshot();
+        final Body [] objArray = m_objArray;
+        final int objects = m_objects;
+        buf.putInt( objects );
+        for (int idx=0; idx<objects; idx++)
+            ((Body.Snapshot) objArray[idx]).saveDynamicState( buf );
+
+        final SensorEvents sensorEvents = m_sensorEvents;
+        final int overlaps = sensorEvents.getOverlapCount();
+        final int countPos = buf.position();
+        buf.putInt( 0 );
+        int pairs = 0;
+        for (int idx=0; idx<overlaps; idx++)
+        {
+            final int sensorIdx = sensorEvents.getOverlapSensor(idx).m_idx;
+            final int bodyIdx = sensorEvents.getOverlapBody(idx).m_idx;
+            if ((sensorIdx >= 0) && (bodyIdx >= 0))
+            {
+                buf.putInt( sensorIdx );
+                buf.putInt( bodyIdx );
+                pairs++;
+            }
+        }
+        buf.putInt( countPos, pairs );
+
+        buf.putLong( m_tick );
+        buf.putInt( m_regions );
+        for (int region=0; region<m_regions; region++)
+        {
+            buf.putInt( m_regionMembers[region] );
+            buf.putDouble( m_regionLag[region] );
+            for (int idx=region*4; idx<region*4+4; idx++)
+                buf.putDouble( m_regionBounds[idx] );
+        }
+        if (m_regions > 0)
+        {
+            for (int idx=0; idx<objects; idx++)
+                buf.putInt( objArray[idx].m_region );
+        }
+    }
+
+    /**
+     * Rewinds the world to the state written by CDE.saveDynamicState().
+     * The world should have the same bodies as it had when the state was saved,
+     * bodies keep their order while not added or removed.
+     * Sensor overlaps are restored without reporting any events,
+     * cached bounds are recalculated on the next query.
+     * Does not allocate memory.
+     */
+    public final void restoreDynamicState( ByteBuffer buf )
+    {
+        final Body [] objArray = m_objArray;
+        final int objects = m_objects;
+        final int savedObjects = buf.getInt();
+        if (savedObjects != objects)
+        {
+            throw new IllegalStateException(
+                    "World has " + objects + " bodies, saved state has " + savedObjects );
+        }
+
+        checkSnapshot();
+        for (int idx=0; idx<objects; idx++)
+            ((Body.Snapshot) objArray[idx]).restoreDynamicState( buf );
+
+        final SensorEvents sensorEvents = m_sensorEvents;
+        sensorEvents.reset();
+        final int pairs = buf.getInt();
+        for (int idx=0; idx<pairs; idx++)
+        {
+            final int sensorIdx = buf.getInt();
+            final int bodyIdx = buf.getInt();
+            if ((sensorIdx < 0) || (sensorIdx >= objects) || (bodyIdx < 0) || (bodyIdx >= objects))
+                throw new IllegalStateException( "Invalid sensor overlap in saved state" );
+            sensorEvents.addOverlap( objArray[sensorIdx], objArray[bodyIdx] );
+        }
+
+        m_tick = buf.getLong();
+        final int regions = buf.getInt();
+        if (regions != m_regions)
+        {
+            throw new IllegalStateException(
+                    "World has " + m_regions + " regions, saved state has " + regions );
+        }
+        for (int region=0; region<regions; region++)
+        {
+            m_regionMembers[region] = buf.getInt();
+            m_regionLag[region] = buf.getDouble();
+            for (int idx=region*4; idx<region*4+4; idx++)
+                m_regionBounds[idx] = buf.getDouble();
+        }
+        if (regions > 0)
+        {
+            for (int idx=0; idx<objects; idx++)
+            {
+                final int region = buf.getInt();
+                if ((region < -1) || (region >= regions))
+                    throw new IllegalStateException( "Invalid body region in saved state" );
+                objArray[idx].m_region = region;
+            }
+        }
+
+        m_boundsValid = false;
+        m_pairCache.clear();
+    }
+
+    /**
+     * Reference mode makes the engine to find impacts
+     * by the plain search over all object pairs,
+     * any optimization is not used in this mode.
+     * Intended for the verification of the optimized code paths.
+     */
+    public final void setReferenceMode( boolean referenceMode )
+    {
+        m_referenceMode = referenceMode;
+        m_pairCache.clear();
+    }
+
+    public final boolean getReferenceMode()
+    {
+        return m_referenceMode;
+    }
+
+    private double getImpactTimeRef( double frameTime, Impact impact )
+    {
+        final Body [] search = m_search;
+        final int searchCount = m_searchCount;
+        double impactTime = Double.MAX_VALUE;
+        for (int idx=0; idx<searchCount; idx++)
+        {
+            final Body obj1 = search[idx];
+            for (int jdx=idx+1; jdx<searchCount; jdx++)
+            {
+                final Body obj2 = search[jdx];
+                if (obj1.inTheSameGroup(obj2))
+                    impactTime = getImpactTime( obj1, obj2, frameTime, impactTime, impact );
+            }
+        }
+
+        if (m_level != null)
+        {
+            for (int idx=0; idx<searchCount; idx++)
+            {
+                final Body obj = search[idx];
+                if (obj.inTheSameGroup(m_level))
+                    impactTime = getImpactTime( m_level, obj, frameTime, impactTime, impact );
+            }
+        }
+        return impactTime;
+    }
+
+    /**
+     * Returns time of the earliest impact on the interval [0, frameTime]
+     * or Double.MAX_VALUE if there is no impact.
+     */
+    private double getImpactTime( double frameTime, Impact impact )
+    {
+        if (m_referenceMode)
+            return getImpactTimeRef( frameTime, impact );
+
+        if (m_hybridMode)
+            return getImpactTimeHybrid( frameTime, impact );
+
+        final Body [] search = m_search;
+        final int searchCount = m_searchCount;
+        double impactTime = Double.MAX_VALUE;
+        for (int idx=0; idx<searchCount; idx++)
+        {
+            final Body obj1 = search[idx];
+            for (int jdx=idx+1; jdx<searchCount; jdx++)
+            {
+                final Body obj2 = search[jdx];
+                if (obj1.inTheSameGroup(obj2))
+                    impactTime = getImpactTime( obj1, obj2, frameTime, impactTime, impact );
+            }
+        }
+
+        if (m_level != null)
+        {
+            for (int idx=0; idx<searchCount; idx++)
+            {
+                final Body obj = search[idx];
+                if (obj.inTheSameGroup(m_level))
+                    impactTime = getImpactTimeLevel( obj, frameTime, impactTime, impact );
+            }
+        }
+        return impactTime;
+    }
+
+    private double getImpactTimeHybrid( double frameTime, Impact impact )
+    {
+        final Body [] search = m_search;
+        final int searchCount = m_searchCount;
+
+        /* Body speeds do not change during the search. */
+        ensureHybridCapacity( searchCount );
+        final double [] speeds = m_speeds;
+        final double [] minX = m_boxMinX;
+        final double [] minY = m_boxMinY;
+        final double [] maxX = m_boxMaxX;
+        final double [] maxY = m_boxMaxY;
+        final double [] slack = m_slack;
+        final double [] ballX = m_ballX;
+        final double [] ballY = m_ballY;
+        final double [] ballR = m_ballR;
+        final double [] distance = m_distance;
+        final double [] tdv = m_tdv;
+        for (int idx=0; idx<searchCount; idx++)
+        {
+            final Body obj = search[idx];
+            speeds[idx] = obj.getMaxSpeed();
+            getBodyBounds( obj, tdv, 0 );
+            minX[idx] = tdv[0];
+            minY[idx] = tdv[1];
+            maxX[idx] = tdv[2];
+            maxY[idx] = tdv[3];
+            if ((obj.getPrCount() == 1) && (obj.getPrType(0) == Body.BALL))
+            {
+                obj.getPrPosition( 0.0d, 0, tdv, 0 );
+                ballX[idx] = Body.Ball.getX( tdv, 0 );
+                ballY[idx] = Body.Ball.getY( tdv, 0 );
+                ballR[idx] = Body.Ball.getR( tdv, 0 );
+            }
+            else
+            {
+                ballX[idx] = 0.0d;
+                ballY[idx] = 0.0d;
+                ballR[idx] = Double.POSITIVE_INFINITY;
+            }
+        }
+
+        /* The primitive pair filter of the kernel (see setHybridMode())
+         * is applied to the ball bodies right here for all pairs of the body at once,
+         * only if the ball pairs are handled by the built-in solvers.
+         */
+        final boolean filterBB = isBuiltin( Body.BALL, Body.BALL, PairSolver.BUILTIN_BB );
+        final boolean filterSB = isBuiltin( Body.SEGMENT, Body.BALL, PairSolver.BUILTIN_SB );
+
+        /* Pairs of bodies with the speed bound are searched in the order
+         * of the earliest time the gap between their bounding boxes can be closed,
+         * pairs which can not touch before the earliest impact found are not searched.
+         */
+        double impactTime = Double.MAX_VALUE;
+        int pairs = 0;
+        for (int idx=0; idx<searchCount; idx++)
+        {
+            final Body obj1 = search[idx];
+            getSlack( minX, minY, maxX, maxY, speeds, idx, idx+1, searchCount, frameTime, slack );
+            if (filterBB && (ballR[idx] < Double.POSITIVE_INFINITY))
+            {
+                getDistanceBB( ballX, ballY, ballR, idx, idx+1, searchCount, distance );
+                addSlack( distance, 1.0d, speeds, idx, idx+1, searchCount, frameTime, slack );
+            }
+            else if (filterSB && getSegmentDistance(obj1, ballX, ballY, ballR, idx+1, searchCount, distance))
+                addSlack( distance, 3.0d, speeds, idx, idx+1, searchCount, frameTime, slack );
+
+            for (int jdx=idx+1; jdx<searchCount; jdx++)
+            {
+                /* Boxes can not meet in the frame. */
+                if (slack[jdx] > 0.0d)
+                    continue;
+
+                final Body obj2 = search[jdx];
+                if (obj1.inTheSameGroup(obj2))
+                {
+                    final double speed = (speeds[idx] + speeds[jdx]);
+                    final double travel = (speed * frameTime);
+                    if (travel < Double.POSITIVE_INFINITY)
+                    {
+                        final double gap = Math.max(
+                                Math.max(minX[jdx] - maxX[idx], minX[idx] - maxX[jdx]),
+                                Math.max(minY[jdx] - maxY[idx], minY[idx] - maxY[jdx]) );
+
+                        if (pairs == m_pairs.length)
+                        {
+                            m_pairTimes = Arrays.copyOf( m_pairTimes, pairs*2 );
+                            m_pairs = Arrays.copyOf( m_pairs, pairs*2 );
+                        }
+                        m_pairTimes[pairs] = ((gap > 0.0d) ? (gap / speed) : 0.0d);
+                        m_pairs[pairs] = ((((long) idx) << 32) | jdx);
+                        pairs++;
+                    }
+                    else
+                    {
+                        impactTime = getImpactTime( obj1, obj2, frameTime, impactTime, impact );
+                    }
+                }
+            }
+        }
+
+        final double [] pairTimes = m_pairTimes;
+        final long [] pairIdx = m_pairs;
+        for (int idx=(pairs/2)-1; idx>=0; idx--)
+            siftDown( pairTimes, pairIdx, idx, pairs );
+
+        while ((pairs > 0) && ((pairTimes[0] - EPS) < impactTime))
+        {
+            final long pair = pairIdx[0];
+            pairs--;
+            pairTimes[0] = pairTimes[pairs];
+            pairIdx[0] = pairIdx[pairs];
+            siftDown( pairTimes, pairIdx, 0, pairs );
+
+            final int idx = (int) (pair >>> 32);
+            final int jdx = (int) pair;
+            final Body obj1 = search[idx];
+            final Body obj2 = search[jdx];
+            final double travel = ((speeds[idx] + speeds[jdx]) * frameTime);
+            impactTime = getKernel( obj1, obj2 ).getImpactTimeHybrid(
+                    obj1, obj2, frameTime, travel, impactTime, impact, m_pairCache );
+        }
+
+        if (m_level != null)
+        {
+            for (int idx=0; idx<searchCount; idx++)
+            {
+                final Body obj = search[idx];
+                if (obj.inTheSameGroup(m_level))
+                    impactTime = getImpactTimeLevel( obj, frameTime, impactTime, impact );
+            }
+        }
+        return impactTime;
+    }
+
+    private void ensureHybridCapacity( int count )
+    {
+        if (m_speeds.length < count)
+        {
+            final int capacity = m_objArray.length;
+            m_speeds = new double[capacity];
+            m_boxMinX = new double[capacity];
+            m_boxMinY = new double[capacity];
+            m_boxMaxX = new double[capacity];
+            m_boxMaxY = new double[capacity];
+            m_slack = new double[capacity];
+            m_ballX = new double[capacity];
+            m_ballY = new double[capacity];
+            m_ballR = new double[capacity];
+            m_distance = new double[capacity];
+            m_segmentDistance = new double[capacity];
+        }
+    }
+
+    /**
+     * Writes the gap between the box 'idx' and every box in [from, to)
+     * minus the distance the bodies can travel in the time to the slack[from, to),
+     * the boxes can not meet in the time if the slack is positive.
+     * Loop has no branches and no calls, so the JIT compiler can vectorize it.
+     */
+    static void getSlack(
+            double [] minX, double [] minY, double [] maxX, double [] maxY, double [] speeds,
+            int idx, int from, int to, double time, double [] slack )
+    {
+        final double minX1 = minX[idx];
+        final double minY1 = minY[idx];
+        final double maxX1 = maxX[idx];
+        final double maxY1 = maxY[idx];
+        final double speed1 = speeds[idx];
+        for (int jdx=from; jdx<to; jdx++)
+        {
+            final double gapX = Math.max( minX[jdx] - maxX1, minX1 - maxX[jdx] );
+            final double gapY = Math.max( minY[jdx] - maxY1, minY1 - maxY[jdx] );
+            slack[jdx] = (Math.max(gapX, gapY) - ((speed1 + speeds[jdx]) * time));
+        }
+    }
+
+    /**
+     * Raises slack[from, to) to the distance minus 'k' distances
+     * the bodies can travel in the time if it is more.
+     * Kernel skips the ball pairs farther than the travel
+     * and segment and ball pairs farther than 3 travels at the start of the frame
+     * (see DefaultPairKernel.getImpactTimeHybrid()), so the pair with positive slack
+     * is skipped by the kernel anyway.
+     */
+    static void addSlack(
+            double [] distance, double k, double [] speeds,
+            int idx, int from, int to, double time, double [] slack )
+    {
+        final double speed1 = speeds[idx];
+        for (int jdx=from; jdx<to; jdx++)
+            slack[jdx] = Math.max( slack[jdx], distance[jdx] - k*((speed1 + speeds[jdx]) * time) );
+    }
+
+    /**
+     * Writes the minimum of getDistanceDB() over all segments of the body
+     * and every ball in [from, to) to the distance[from, to),
+     * returns false if the body is not made of segments only.
+     * Distance to the direct is not more than the distance to the segment
+     * if the ball is on the left side, and negative otherwise.
+     */
+    private boolean getSegmentDistance(
+            Body obj, double [] ballX, double [] ballY, double [] ballR, int from, int to, double [] distance )
+    {
+        final int prCount = obj.getPrCount();
+        if (prCount == 0)
+            return false;
+        for (int pi=0; pi<prCount; pi++)
+        {
+            if (obj.getPrType(pi) != Body.SEGMENT)
+                return false;
+        }
+
+        final double [] tdv = m_tdv;
+        for (int pi=0; pi<prCount; pi++)
+        {
+            obj.getPrPosition( 0.0d, pi, tdv, 0 );
+            final double x1 = Body.Segment.getX1( tdv, 0 );
+            final double y1 = Body.Segment.getY1( tdv, 0 );
+            final double x2 = Body.Segment.getX2( tdv, 0 );
+            final double y2 = Body.Segment.getY2( tdv, 0 );
+            if (pi == 0)
+                getDistanceDB( x1, y1, x2, y2, ballX, ballY, ballR, from, to, distance );
+            else
+            {
+                final double [] segmentDistance = m_segmentDistance;
+                getDistanceDB( x1, y1, x2, y2, ballX, ballY, ballR, from, to, segmentDistance );
+                for (int idx=from; idx<to; idx++)
+                    distance[idx] = Math.min( distance[idx], segmentDistance[idx] );
+            }
+        }
+        return true;
+    }
+
+    private boolean isBuiltin( int type1, int type2, int builtinId )
+    {
+        final PairSolver solver = m_solvers[type1*MAX_TYPES + type2];
+        return ((solver != null) && (Math.abs(solver.getBuiltinId()) == builtinId));
+    }
+
+    /**
+     * Restores the order of the binary heap of the body pairs below the 'idx'.
+     */
+    private static void siftDown( double [] pairTimes, long [] pairs, int idx, int size )
+    {
+        final double time = pairTimes[idx];
+        final long pair = pairs[idx];
+        for (;;)
+        {
+            int child = (2*idx + 1);
+            if (child >= size)
+                break;
+            if (((child + 1) < size) && (pairTimes[child+1] < pairTimes[child]))
+                child++;
+            if (!(pairTimes[child] < time))
+                break;
+            pairTimes[idx] = pairTimes[child];
+            pairs[idx] = pairs[child];
+            idx = child;
+        }
+        pairTimes[idx] = time;
+        pairs[idx] = pair;
+    }
+
+    /**
+     * In the hybrid mode the engine checks the distance between
+     * the primitives at the start and at the end of the frame first,
+     * the pair is skipped if the primitives are farther than they can move
+     * in the frame (see Body.getMaxSpeed()). Most of the pairs in a world of slow bodies
+     * take a couple of distance evaluations then, only the pairs which can touch
+     * get the continuous impact search, so the impacts are still found
+     * at the time of the contact and bodies never overlap.
+     * The search of ball and convex pairs skips the part of the frame
+     * the primitives can not touch in and stops early if the distance
+     * can not drop to zero, results are the same as without the hybrid mode.
+     * Body pairs are searched in the order of the earliest time
+     * the gap between their bounding boxes can be closed, the pairs
+     * which can not touch before the earliest impact found are not searched,
+     * so custom solvers should not report impacts before the primitives touch.
+     * Requires Body.getMaxSpeed() to return a real bound,
+     * bodies underestimating their speed can pass through each other.
+     * Segment pairs and pairs with custom solvers are always searched.
+     */
+    public final void setHybridMode( boolean hybridMode )
+    {
+        m_hybridMode = hybridMode;
+        m_pairCache.clear();
+    }
+
+    public final boolean getHybridMode()
+    {
+        return m_hybridMode;
+    }
+
+    /**
+     * Specialization makes the engine to use a separate copy of the impact search code
+     * for every pair of body classes, so the calls of the Body methods
+     * in every copy see only one class and can be inlined by the JIT compiler.
+     * Helps when the world has many body classes, costs a class
+     * and its compiled code per pair of body classes met in the world.
+     * Copy is created on the first impact search for the pair
+     * and shared by all CDE instances, the shared code is used
+     * if copies can not be created.
+     */
+    public final void setSpecialization( boolean specialization )
+    {
+        m_specialization = specialization;
+    }
+
+    public final boolean getSpecialization()
+    {
+        return m_specialization;
+    }
+
+    private PairKernel getKernel( Body o1, Body o2 )
+    {
+        if (!m_specialization)
+            return m_kernel;
+
+        final int classId1 = o1.getClassId();
+        final int classId2 = o2.getClassId();
+        PairKernel [][] kernels = m_kernels;
+        if ((kernels == null) || (kernels.length <= classId1))
+        {
+            final PairKernel [][] nk = new PairKernel[clp2(classId1 + 1)][];
+            if (kernels != null)
+                System.arraycopy( kernels, 0, nk, 0, kernels.length );
+            m_kernels = kernels = nk;
+        }
+
+        PairKernel [] row = kernels[classId1];
+        if ((row == null) || (row.length <= classId2))
+        {
+            final PairKernel [] nr = new PairKernel[clp2(classId2 + 1)];
+            if (row != null)
+                System.arraycopy( row, 0, nr, 0, row.length );
+            kernels[classId1] = row = nr;
+        }
+
+        PairKernel kernel = row[classId2];
+        if (kernel == null)
+        {
+            kernel = PairKernel.createCopy( o1.getClass(), o2.getClass(), m_solvers );
+            if (kernel == null)
+                kernel = m_kernel;
+            row[classId2] = kernel;
+        }
+        return kernel;
+    }
+
+    /**
+     * Registers the solver for the primitive types pair (type1, type2)
+     * replacing the current one, solver is also used for the (type2, type1) pair
+     * with primitives swapped. Types should be in range [1, MAX_TYPES).
+     * Casts, queries and sensors support only the built-in primitive types.
+     */
+    public final void setPairSolver( int type1, int type2, PairSolver solver )
+    {
+        if ((type1 <= 0) || (type1 >= MAX_TYPES) || (type2 <= 0) || (type2 >= MAX_TYPES))
+            throw new IllegalArgumentException( "Invalid primitive type " + type1 + "-" + type2 );
+
+        m_solvers[type1*MAX_TYPES + type2] = solver;
+        if (type1 != type2)
+            m_solvers[type2*MAX_TYPES + type1] = ((solver == null) ? null : new SwappedSolver(solver));
+    }
+
+    public final PairSolver getPairSolver( int type1, int type2 )
+    {
+        return m_solvers[type1*MAX_TYPES + type2];
+    }
+
+    /**
+     * Sets the static level, level is not a registered body,
+     * so it is not saved by CDE.save(). Null removes the level.
+     */
+    public final void setStaticLevel( StaticLevel level )
+    {
+        m_level = level;
+        m_queryStamps = (level == null) ? null : new int[level.getPrCount()];
+        m_queryStamp = 0;
+    }
+
+    public final StaticLevel getStaticLevel()
+    {
+        return m_level;
+    }
+
+    private int castPr(
+            Body obj, int pi, double x, double y, double dx, double dy, double maxDistance,
+            Body [] hitBody, int [] hitId, double [] hit, int hits, int capacity )
+    {
+        final double [] qdv = m_qdv;
+        obj.getPrPosition( 0.0d, pi, qdv, 0 );
+        final double distance = getRayDistance( qdv, 0, obj.getPrType(pi), x, y, dx, dy );
+        if ((distance >= 0.0d) && (distance <= maxDistance))
+        {
+            hits = addHit( obj, pi, x + dx*distance, y + dy*distance, distance,
+                    hitBody, hitId, hit, hits, capacity );
+        }
+        return hits;
+    }
+
+    /**
+     * Walks the level grid cells along the ray,
+     * stops as soon as all hits found are closer than the current cell.
+     */
+    private int castLevel(
+            double x, double y, double dx, double dy, double maxDistance,
+            Body [] hitBody, int [] hitId, double [] hit, int hits, int capacity )
+    {
+        final StaticLevel level = m_level;
+        final double minX = level.getGridMinX();
+        final double minY = level.getGridMinY();
+        final double maxX = level.getGridMaxX();
+        final double maxY = level.getGridMaxY();
+
+        /* Clip the ray by the grid bounds. */
+        double t1 = 0.0d;
+        double t2 = maxDistance;
+        if (dx != 0.0d)
+        {
+            final double ta = ((minX - x) / dx);
+            final double tb = ((maxX - x) / dx);
+            t1 = Math.max( t1, Math.min(ta, tb) );
+            t2 = Math.min( t2, Math.max(ta, tb) );
+        }
+        else if ((x < minX) || (x > maxX))
+            return hits;
+
+        if (dy != 0.0d)
+        {
+            final double ta = ((minY - y) / dy);
+            final double tb = ((maxY - y) / dy);
+            t1 = Math.max( t1, Math.min(ta, tb) );
+            t2 = Math.min( t2, Math.max(ta, tb) );
+        }
+        else if ((y < minY) || (y > maxY))
+            return hits;
+
+        if (t1 > t2)
+            return hits;
+
+        final int stamp = nextQueryStamp();
+
+        final int cols = level.getCols();
+        final int rows = level.getRows();
+        final double cellSize = level.getCellSize();
+        int cx = level.getCellX( x + dx*t1 );
+        int cy = level.getCellY( y + dy*t1 );
+
+        final int stepX = (dx > 0.0d) ? 1 : -1;
+        final int stepY = (dy > 0.0d) ? 1 : -1;
+        final double tDeltaX = (dx != 0.0d) ? (cellSize / Math.abs(dx)) : Double.POSITIVE_INFINITY;
+        final double tDeltaY = (dy != 0.0d) ? (cellSize / Math.abs(dy)) : Double.POSITIVE_INFINITY;
+        double tMaxX = (dx != 0.0d) ? ((minX + (cx + ((dx > 0.0d) ? 1 : 0))*cellSize - x) / dx) : Double.POSITIVE_INFINITY;
+        double tMaxY = (dy != 0.0d) ? ((minY + (cy + ((dy > 0.0d) ? 1 : 0))*cellSize - y) / dy) : Double.POSITIVE_INFINITY;
+
+        for (;;)
+        {
+            final int cell = (cy*cols + cx);
+            final int itemEnd = level.getCellStart( cell + 1 );
+            for (int item=level.getCellStart(cell); item<itemEnd; item++)
+            {
+                final int id = level.getItem( item );
+                if (m_queryStamps[id] != stamp)
+                {
+                    m_queryStamps[id] = stamp;
+                    hits = castPr( level, id, x, y, dx, dy, maxDistance, hitBody, hitId, hit, hits, capacity );
+                }
+            }
+
+            final double tExit = Math.min( tMaxX, tMaxY );
+            if (tExit >= t2)
+                break;
+
+            if ((hits == capacity) && (Hit.getDistance(hit, (capacity-1)*Hit.SIZE) <= tExit))
+                break;
+
+            if (tMaxX < tMaxY)
+            {
+                cx += stepX;
+                if ((cx < 0) || (cx >= cols))
+                    break;
+                tMaxX += tDeltaX;
+            }
+            else
+            {
+                cy += stepY;
+                if ((cy < 0) || (cy >= rows))
+                    break;
+                tMaxY += tDeltaY;
+            }
+        }
+        return hits;
+    }
+
+    private int cast(
+            double x, double y, double dx, double dy, double maxDistance, int [] groups,
+            Body [] hitBody, int [] hitId, double [] hit, int capacity )
+    {
+        final double length = Math.sqrt( dx*dx + dy*dy );
+        if ((length == 0.0d) || (capacity <= 0))
+            return 0;
+        dx /= length;
+        dy /= length;
+
+        final double [] bounds = getBounds();
+        int hits = 0;
+        for (int idx=0; idx<m_objects; idx++)
+        {
+            final Body obj = m_objArray[idx];
+            if (!obj.inGroups(groups))
+                continue;
+
+            if (bounds != null)
+            {
+                final double distance = getRayBoxDistance(
+                        bounds[idx*4], bounds[idx*4+1], bounds[idx*4+2], bounds[idx*4+3], x, y, dx, dy );
+                if ((distance < 0.0d) || (distance > maxDistance) ||
+                    ((hits == capacity) && (distance > Hit.getDistance(hit, (capacity-1)*Hit.SIZE))))
+                {
+                    continue;
+                }
+            }
+
+            final int prCount = obj.getPrCount();
+            for (int pi=0; pi<prCount; pi++)
+                hits = castPr( obj, pi, x, y, dx, dy, maxDistance, hitBody, hitId, hit, hits, capacity );
+        }
+
+        final StaticLevel level = m_level;
+        if ((level != null) && level.inGroups(groups))
+        {
+            if (m_referenceMode)
+            {
+                final int prCount = level.getPrCount();
+                for (int pi=0; pi<prCount; pi++)
+                    hits = castPr( level, pi, x, y, dx, dy, maxDistance, hitBody, hitId, hit, hits, capacity );
+            }
+            else
+                hits = castLevel( x, y, dx, dy, maxDistance, hitBody, hitId, hit, hits, capacity );
+        }
+        return hits;
+    }
+
+    private static int getCapacity( Body [] hitBody, int [] hitId, double [] hit )
+    {
+        return Math.min( Math.min(hitBody.length, hitId.length), (hit.length / Hit.SIZE) );
+    }
+
+    /**
+     * Casts a ray from the point (x, y) in the direction (dx, dy)
+     * through the current state of the bodies and the static level.
+     * Only the bodies in any of the 'groups' are checked, null means all bodies.
+     * Nearest hit is written to the hitBody[0], hitId[0] (primitive id)
+     * and hit[0..Hit.SIZE) (see Hit), returns the number of hits (0 or 1).
+     * Does not allocate memory.
+     */
+    public final int rayCast(
+            double x, double y, double dx, double dy, double maxDistance, int [] groups,
+            Body [] hitBody, int [] hitId, double [] hit )
+    {
+        return cast( x, y, dx, dy, maxDistance, groups, hitBody, hitId, hit, 1 );
+    }
+
+    /**
+     * Same as rayCast(), but returns all hits sorted by the distance,
+     * if there are more hits than the arrays can hold then the nearest ones are returned.
+     */
+    public final int rayCastAll(
+            double x, double y, double dx, double dy, double maxDistance, int [] groups,
+            Body [] hitBody, int [] hitId, double [] hit )
+    {
+        return cast( x, y, dx, dy, maxDistance, groups, hitBody, hitId, hit, getCapacity(hitBody, hitId, hit) );
+    }
+
+    /**
+     * Casts a segment (x1, y1) - (x2, y2), see rayCast().
+     */
+    public final int segmentCast(
+            double x1, double y1, double x2, double y2, int [] groups,
+            Body [] hitBody, int [] hitId, double [] hit )
+    {
+        final double dx = (x2 - x1);
+        final double dy = (y2 - y1);
+        return cast( x1, y1, dx, dy, Math.sqrt(dx*dx + dy*dy), groups, hitBody, hitId, hit, 1 );
+    }
+
+    /**
+     * Casts a segment (x1, y1) - (x2, y2), see rayCastAll().
+     */
+    public final int segmentCastAll(
+            double x1, double y1, double x2, double y2, int [] groups,
+            Body [] hitBody, int [] hitId, double [] hit )
+    {
+        final double dx = (x2 - x1);
+        final double dy = (y2 - y1);
+        return cast( x1, y1, dx, dy, Math.sqrt(dx*dx + dy*dy), groups,
+                hitBody, hitId, hit, getCapacity(hitBody, hitId, hit) );
+    }
+
+    private int nextQueryStamp()
+    {
+        int stamp = ++m_queryStamp;
+        if (stamp == 0)
+        {
+            Arrays.fill( m_queryStamps, 0 );
+            stamp = m_queryStamp = 1;
+        }
+        return stamp;
+    }
+
+    /**
+     * Writes the bounding box of the body primitives
+     * at the current time to the bounds[offs].
+     */
+    private void getBodyBounds( Body obj, double [] bounds, int offs )
+    {
+        final double [] qdv = m_qdv;
+        double minX = Double.POSITIVE_INFINITY;
+        double minY = Double.POSITIVE_INFINITY;
+        double maxX = Double.NEGATIVE_INFINITY;
+        double maxY = Double.NEGATIVE_INFINITY;
+        final int prCount = obj.getPrCount();
+        for (int pi=0; pi<prCount; pi++)
+        {
+            final int type = obj.getPrType( pi );
+            obj.getPrPosition( 0.0d, pi, qdv, 0 );
+            minX = Math.min( minX, StaticLevel.getMinX(type, qdv, 0) );
+            minY = Math.min( minY, StaticLevel.getMinY(type, qdv, 0) );
+            maxX = Math.max( maxX, StaticLevel.getMaxX(type, qdv, 0) );
+            maxY = Math.max( maxY, StaticLevel.getMaxY(type, qdv, 0) );
+        }
+        bounds[offs] = minX;
+        bounds[offs+1] = minY;
+        bounds[offs+2] = maxX;
+        bounds[offs+3] = maxY;
+    }
+
+    /**
+     * Returns bounding boxes (minX, minY, maxX, maxY) of the bodies
+     * at the current time, or null in the reference mode.
+     * Boxes are cached until the next run(), add(), remove() or invalidateBounds().
+     */
+    private double [] getBounds()
+    {
+        if (m_referenceMode)
+            return null;
+
+        if (!m_boundsValid)
+        {
+            if (m_bounds.length < m_objArray.length*4)
+                m_bounds = new double[m_objArray.length*4];
+
+            final double [] bounds = m_bounds;
+            for (int idx=0; idx<m_objects; idx++)
+                getBodyBounds( m_objArray[idx], bounds, idx*4 );
+            m_boundsValid = true;
+        }
+        return m_bounds;
+    }
+
+    /**
+     * Should be called if bodies were moved not by the run(),
+     * queries cache the bodies bounding boxes between run() calls,
+     * the hybrid mode caches the distances between the body primitives.
+     */
+    public final void invalidateBounds()
+    {
+        m_boundsValid = false;
+        m_pairCache.clear();
+    }
+
+    /**
+     * Calls overlaps() for every level primitive in the grid cells overlapping the box,
+     * every primitive is checked only in the first cell of the box it overlaps.
+     */
+    private int queryLevel(
+            double minX, double minY, double maxX, double maxY, double x, double y, double r,
+            Body [] body, int [] id, int found, int capacity )
+    {
+        final StaticLevel level = m_level;
+        if ((maxX < level.getGridMinX()) || (minX > level.getGridMaxX()) ||
+            (maxY < level.getGridMinY()) || (minY > level.getGridMaxY()))
+        {
+            return found;
+        }
+
+        final int cols = level.getCols();
+        final int cx1 = level.getCellX( minX );
+        final int cy1 = level.getCellY( minY );
+        final int cx2 = level.getCellX( maxX );
+        final int cy2 = level.getCellY( maxY );
+        for (int cy=cy1; cy<=cy2; cy++)
+        {
+            for (int cx=cx1; cx<=cx2; cx++)
+            {
+                final int cell = (cy*cols + cx);
+                final int itemEnd = level.getCellStart( cell + 1 );
+                for (int item=level.getCellStart(cell); item<itemEnd; item++)
+                {
+                    final int pi = level.getItem( item );
+                    if ((Math.max(level.getPrCellX(pi), cx1) != cx) ||
+                        (Math.max(level.getPrCellY(pi), cy1) != cy))
+                    {
+                        continue;
+                    }
+
+                    if (overlaps(level, pi, minX, minY, maxX, maxY, x, y, r))
+                    {
+                        body[found] = level;
+                        id[found] = pi;
+                        if (++found == capacity)
+                            return found;
+                    }
+                }
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Returns true if the primitive overlaps the box (r < 0)
+     * or the circle (x, y, r) with the bounding box (minX, minY, maxX, maxY).
+     */
+    private boolean overlaps(
+            Body obj, int pi, double minX, double minY, double maxX, double maxY, double x, double y, double r )
+    {
+        final double [] qdv = m_qdv;
+        obj.getPrPosition( 0.0d, pi, qdv, 0 );
+        final int type = obj.getPrType( pi );
+        if (r < 0.0d)
+            return overlapsBox( qdv, 0, type, minX, minY, maxX, maxY );
+        else
+            return (getPointDistance(qdv, 0, type, x, y) <= r);
+    }
+
+    private int query(
+            double minX, double minY, double maxX, double maxY, double x, double y, double r,
+            int [] groups, Body [] body, int [] id )
+    {
+        final int capacity = Math.min( body.length, id.length );
+        if (capacity == 0)
+            return 0;
+
+        final double [] bounds = getBounds();
+        int found = 0;
+        for (int idx=0; idx<m_objects; idx++)
+        {
+            final Body obj = m_objArray[idx];
+            if (!obj.inGroups(groups))
+                continue;
+
+            if ((bounds != null) &&
+                ((bounds[idx*4] > maxX) || (bounds[idx*4+1] > maxY) ||
+                 (bounds[idx*4+2] < minX) || (bounds[idx*4+3] < minY)))
+            {
+                continue;
+            }
+
+            final int prCount = obj.getPrCount();
+            for (int pi=0; pi<prCount; pi++)
+            {
+                if (overlaps(obj, pi, minX, minY, maxX, maxY, x, y, r))
+                {
+                    body[found] = obj;
+                    id[found] = pi;
+                    if (++found == capacity)
+                        return found;
+                }
+            }
+        }
+
+        final StaticLevel level = m_level;
+        if ((level != null) && level.inGroups(groups))
+        {
+            if (m_referenceMode)
+            {
+                final int prCount = level.getPrCount();
+                for (int pi=0; pi<prCount; pi++)
+                {
+                    if (overlaps(level, pi, minX, minY, maxX, maxY, x, y, r))
+                    {
+                        body[found] = level;
+                        id[found] = pi;
+                        if (++found == capacity)
+                            return found;
+                    }
+                }
+            }
+            else
+                found = queryLevel( minX, minY, maxX, maxY, x, y, r, body, id, found, capacity );
+        }
+        return found;
+    }
+
+    /**
+     * Finds primitives overlapping the box, bodies first, then the static level.
+     * Only the bodies in any of the 'groups' are checked, null means all bodies.
+     * Found bodies and primitive ids are written to the 'body' and 'id' arrays,
+     * returns the number of primitives found, search stops when arrays are full.
+     * Does not allocate memory.
+     */
+    public final int queryBox(
+            double minX, double minY, double maxX, double maxY, int [] groups, Body [] body, int [] id )
+    {
+        return query( minX, minY, maxX, maxY, 0.0d, 0.0d, -1.0d, groups, body, id );
+    }
+
+    /**
+     * Finds primitives overlapping the circle, see queryBox().
+     */
+    public final int queryCircle( double x, double y, double r, int [] groups, Body [] body, int [] id )
+    {
+        return query( x-r, y-r, x+r, y+r, x, y, r, groups, body, id );
+    }
+
+    private int nearestPr(
+            Body obj, int pi, double x, double y, double maxDistance,
+            Body [] body, int [] id, double [] distance, int found, int capacity )
+    {
+        final double [] qdv = m_qdv;
+        obj.getPrPosition( 0.0d, pi, qdv, 0 );
+        final double d = getPointDistance( qdv, 0, obj.getPrType(pi), x, y );
+        if (d > maxDistance)
+            return found;
+
+        /* Same order as for the cast hits: distance, body index, primitive id. */
+        int idx = found;
+        while (idx > 0)
+        {
+            final double dd = distance[idx-1];
+            if ((dd < d) ||
+                ((dd == d) &&
+                 ((body[idx-1].m_idx < obj.m_idx) || ((body[idx-1].m_idx == obj.m_idx) && (id[idx-1] < pi)))))
+            {
+                break;
+            }
+            idx--;
+        }
+
+        if (idx == capacity)
+            return found;
+
+        if (found == capacity)
+            found--;
+
+        for (int jdx=found; jdx>idx; jdx--)
+        {
+            body[jdx] = body[jdx-1];
+            id[jdx] = id[jdx-1];
+            distance[jdx] = distance[jdx-1];
+        }
+
+        body[idx] = obj;
+        id[idx] = pi;
+        distance[idx] = d;
+        return (found + 1);
+    }
+
+    /**
+     * Visits the level grid cells in rings around the point cell
+     * until the ring is farther than the k-th nearest primitive found.
+     */
+    private int nearestLevel(
+            double x, double y, double maxDistance,
+            Body [] body, int [] id, double [] distance, int found, int capacity )
+    {
+        final StaticLevel level = m_level;
+        final int stamp = nextQueryStamp();
+        final int cols = level.getCols();
+        final int rows = level.getRows();
+        final double cellSize = level.getCellSize();
+        final int pcx = level.getCellX( x );
+        final int pcy = level.getCellY( y );
+        final int maxRing = Math.max( Math.max(pcx, cols-1-pcx), Math.max(pcy, rows-1-pcy) );
+
+        for (int ring=0; ring<=maxRing; ring++)
+        {
+            /* Any point of the cells in the ring is not closer than that. */
+            final double ringDistance = ((ring - 1) * cellSize);
+            if ((ringDistance > maxDistance) ||
+                ((found == capacity) && (ringDistance > distance[capacity-1])))
+            {
+                break;
+            }
+
+            final int cy1 = Math.max( pcy-ring, 0 );
+            final int cy2 = Math.min( pcy+ring, rows-1 );
+            for (int cy=cy1; cy<=cy2; cy++)
+            {
+                /* Only the border cells of the ring. */
+                final boolean border = ((cy == pcy-ring) || (cy == pcy+ring));
+                final int step = (border || (ring == 0)) ? 1 : (2 * ring);
+                for (int cx=pcx-ring; cx<=pcx+ring; cx+=step)
+                {
+                    if ((cx < 0) || (cx >= cols))
+                        continue;
+
+                    final int cell = (cy*cols + cx);
+                    final int itemEnd = level.getCellStart( cell + 1 );
+                    for (int item=level.getCellStart(cell); item<itemEnd; item++)
+                    {
+                        final int pi = level.getItem( item );
+                        if (m_queryStamps[pi] != stamp)
+                        {
+                            m_queryStamps[pi] = stamp;
+                            found = nearestPr( level, pi, x, y, maxDistance, body, id, distance, found, capacity );
+                        }
+                    }
+                }
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Finds up to k nearest primitives not farther than maxDistance from the point (x, y),
+     * k is the minimum length of the 'body', 'id' and 'distance' arrays.
+     * Results are sorted by the distance, distance is 0 if the point
+     * is inside the ball or on the segment. Only the bodies in any of the 'groups'
+     * are checked, null means all bodies. Does not allocate memory.
+     */
+    public final int queryNearest(
+            double x, double y, double maxDistance, int [] groups, Body [] body, int [] id, double [] distance )
+    {
+        final int capacity = Math.min( Math.min(body.length, id.length), distance.length );
+        if (capacity == 0)
+            return 0;
+
+        final double [] bounds = getBounds();
+        int found = 0;
+        for (int idx=0; idx<m_objects; idx++)
+        {
+            final Body obj = m_objArray[idx];
+            if (!obj.inGroups(groups))
+                continue;
+
+            if (bounds != null)
+            {
+                final double d = getBoxDistance(
+                        bounds[idx*4], bounds[idx*4+1], bounds[idx*4+2], bounds[idx*4+3], x, y );
+                if ((d > maxDistance) || ((found == capacity) && (d > distance[capacity-1])))
+                    continue;
+            }
+
+            final int prCount = obj.getPrCount();
+            for (int pi=0; pi<prCount; pi++)
+                found = nearestPr( obj, pi, x, y, maxDistance, body, id, distance, found, capacity );
+        }
+
+        final StaticLevel level = m_level;
+        if ((level != null) && level.inGroups(groups))
+        {
+            if (m_referenceMode)
+            {
+                final int prCount = level.getPrCount();
+                for (int pi=0; pi<prCount; pi++)
+                    found = nearestPr( level, pi, x, y, maxDistance, body, id, distance, found, capacity );
+            }
+            else
+                found = nearestLevel( x, y, maxDistance, body, id, distance, found, capacity );
+        }
+        return found;
+    }
+
+    private static int addPrediction(
+            double time, Body o1, int o1pi, Body o2, int o2pi, double x, double y,
+            Body [] body1, int [] id1, Body [] body2, int [] id2, double [] prediction,
+            int predictions, int capacity )
+    {
+        /* Impacts at the same time keep the pair iteration order. */
+        int idx = predictions;
+        while ((idx > 0) && (Prediction.getTime(prediction, (idx-1)*Prediction.SIZE) > time))
+            idx--;
+
+        if (idx == capacity)
+            return predictions;
+
+        if (predictions == capacity)
+            predictions--;
+
+        for (int jdx=predictions; jdx>idx; jdx--)
+        {
+            body1[jdx] = body1[jdx-1];
+            id1[jdx] = id1[jdx-1];
+            body2[jdx] = body2[jdx-1];
+            id2[jdx] = id2[jdx-1];
+            System.arraycopy( prediction, (jdx-1)*Prediction.SIZE, prediction, jdx*Prediction.SIZE, Prediction.SIZE );
+        }
+
+        body1[idx] = o1;
+        id1[idx] = o1pi;
+        body2[idx] = o2;
+        id2[idx] = o2pi;
+        Prediction.set( prediction, idx*Prediction.SIZE, time, x, y );
+        return (predictions + 1);
+    }
+
+    private static double getPredictionBound( double [] prediction, int predictions, int capacity )
+    {
+        /* Only impacts earlier than the last one found are interesting when the arrays are full. */
+        if (predictions == capacity)
+            return Prediction.getTime( prediction, (capacity-1)*Prediction.SIZE );
+        return Double.MAX_VALUE;
+    }
+
+    private static int getCapacity( Body [] body1, int [] id1, Body [] body2, int [] id2, double [] prediction )
+    {
+        return Math.min( Math.min(Math.min(body1.length, id1.length), Math.min(body2.length, id2.length)),
+                (prediction.length / Prediction.SIZE) );
+    }
+
+    private double predictImpactTimeLevel( Body obj, double maxTime, double bound, Impact impact )
+    {
+        /* Level does not move, so the body is searched from its own position. */
+        final double lag = getLag( obj );
+        final double impactTime = m_referenceMode ?
+                getImpactTime( m_level, obj, maxTime+lag, bound+lag, impact ) :
+                getImpactTimeLevel( obj, maxTime+lag, bound+lag, impact );
+        return (impactTime < (bound + lag)) ? (impactTime - lag) : Double.MAX_VALUE;
+    }
+
+    /**
+     * Time the pair positions are behind the world, the time of the body at rest
+     * (Body.getMaxSpeed() returns 0) does not matter: it did not move
+     * while the region was asleep (isDisturbed() wakes the region
+     * when a moving body can reach it), so the pair with the body asleep in a region
+     * gets impacts the body has while catching up with the world,
+     * as the catch-up pass does (see wakeRegion()).
+     */
+    private double getPairLag( Body obj1, Body obj2 )
+    {
+        if (obj1.getMaxSpeed() == 0.0d)
+            return getLag( obj2 );
+        if (obj2.getMaxSpeed() == 0.0d)
+            return getLag( obj1 );
+        return Math.min( getLag(obj1), getLag(obj2) );
+    }
+
+    private Body getLaggedBody( LaggedBody lagged, Body obj, double lag )
+    {
+        final double shift = (getLag(obj) - lag);
+        if ((shift == 0.0d) || (obj.getMaxSpeed() == 0.0d))
+            return obj;
+        lagged.m_body = obj;
+        lagged.m_shift = shift;
+        return lagged;
+    }
+
+    private Body getPredictedBody( Body obj )
+    {
+        return (obj == m_lagged1) ? m_lagged1.m_body : (obj == m_lagged2) ? m_lagged2.m_body : obj;
+    }
+
+    /**
+     * Returns the world time of the first impact of the pair earlier than the bound
+     * or Double.MAX_VALUE. Pair is searched from the position of the body
+     * more behind the world (see getLag()), the other one is moved ahead,
+     * so impacts found while the bodies catch up have negative times.
+     */
+    private double predictImpactTime( Body obj1, Body obj2, double maxTime, double bound, Impact impact )
+    {
+        final double lag = getPairLag( obj1, obj2 );
+        final Body o1 = getLaggedBody( m_lagged1, obj1, lag );
+        final Body o2 = getLaggedBody( m_lagged2, obj2, lag );
+        final double impactTime = getImpactTime( o1, o2, maxTime+lag, bound+lag, impact );
+        final boolean found = (impactTime < (bound + lag));
+        if (found)
+        {
+            impact.o1 = getPredictedBody( impact.o1 );
+            impact.o2 = getPredictedBody( impact.o2 );
+        }
+        m_lagged1.m_body = null;
+        m_lagged2.m_body = null;
+        return found ? (impactTime - lag) : Double.MAX_VALUE;
+    }
+
+    /**
+     * Predicts the earliest impacts in the world on the interval [0, maxTime]
+     * if all bodies keep moving as they move now, world state is not changed.
+     * Every pair of bodies is reported once, at its first impact,
+     * impacts found earlier are not resolved, so the later impacts
+     * are the ones which would happen if the earlier ones did not.
+     * Bodies asleep in a region move on from their position behind the world,
+     * impacts they have while catching up are reported with negative times
+     * (not earlier than -getLag()), as by run().
+     * Up to k impacts are written sorted by the time, k is the minimum length
+     * of the arrays (prediction holds Prediction.SIZE values per impact):
+     * primitives body1[i][id1[i]] and body2[i][id2[i]], the time and the impact point
+     * (see Prediction). Static level is reported as a body.
+     * Body pairs are filtered and searched in the same order as by run()
+     * in the hybrid mode (see setHybridMode()) unless the reference mode is on.
+     * Does not allocate memory.
+     */
+    public final int predictImpacts(
+            double maxTime, Body [] body1, int [] id1, Body [] body2, int [] id2, double [] prediction )
+    {
+        final int capacity = getCapacity( body1, id1, body2, id2, prediction );
+        if (capacity == 0)
+            return 0;
+
+        final Impact impact = m_predictionImpact;
+        int predictions = 0;
+        if (m_referenceMode)
+        {
+            for (int idx=0; idx<m_solids; idx++)
+            {
+                final Body obj1 = m_objArray[idx];
+                for (int jdx=idx+1; jdx<m_solids; jdx++)
+                {
+                    final Body obj2 = m_objArray[jdx];
+                    if (obj1.inTheSameGroup(obj2))
+                    {
+                        predictions = predictPair( obj1, obj2, maxTime,
+                                body1, id1, body2, id2, prediction, predictions, capacity );
+                    }
+                }
+            }
+        }
+        else
+            predictions = predictPairs( maxTime, body1, id1, body2, id2, prediction, capacity );
+
+        if (m_level != null)
+        {
+            for (int idx=0; idx<m_solids; idx++)
+            {
+                final Body obj = m_objArray[idx];
+                if (obj.inTheSameGroup(m_level))
+                {
+                    final double bound = getPredictionBound( prediction, predictions, capacity );
+                    final double impactTime = predictImpactTimeLevel( obj, maxTime, bound, impact );
+                    if (impactTime < bound)
+                    {
+                        predictions = addPrediction( impactTime,
+                                impact.o1, impact.o1pi, impact.o2, impact.o2pi, impact.x, impact.y,
+                                body1, id1, body2, id2, prediction, predictions, capacity );
+                    }
+                }
+            }
+        }
+        return predictions;
+    }
+
+    private int predictPair(
+            Body obj1, Body obj2, double maxTime,
+            Body [] body1, int [] id1, Body [] body2, int [] id2, double [] prediction,
+            int predictions, int capacity )
+    {
+        final Impact impact = m_predictionImpact;
+        final double bound = getPredictionBound( prediction, predictions, capacity );
+        final double impactTime = predictImpactTime( obj1, obj2, maxTime, bound, impact );
+        if (impactTime < bound)
+        {
+            predictions = addPrediction( impactTime,
+                    impact.o1, impact.o1pi, impact.o2, impact.o2pi, impact.x, impact.y,
+                    body1, id1, body2, id2, prediction, predictions, capacity );
+        }
+        return predictions;
+    }
+
+    /**
+     * Searches the solid body pairs as getImpactTimeHybrid() does:
+     * pairs which can not meet in the time are skipped, others are searched
+     * in the order of the earliest time the gap between their bounding boxes
+     * can be closed while it is earlier than the last prediction kept.
+     * Boxes of the bodies asleep in a region cover the way
+     * the body passes while it catches up with the world.
+     */
+    private int predictPairs(
+            double maxTime, Body [] body1, int [] id1, Body [] body2, int [] id2, double [] prediction, int capacity )
+    {
+        final Body [] objArray = m_objArray;
+        final int solids = m_solids;
+        ensureHybridCapacity( solids );
+        final double [] speeds = m_speeds;
+        final double [] minX = m_boxMinX;
+        final double [] minY = m_boxMinY;
+        final double [] maxX = m_boxMaxX;
+        final double [] maxY = m_boxMaxY;
+        final double [] slack = m_slack;
+        final double [] tdv = m_tdv;
+        for (int idx=0; idx<solids; idx++)
+        {
+            final Body obj = objArray[idx];
+            final double lag = getLag( obj );
+            speeds[idx] = obj.getMaxSpeed();
+            final double distance = ((lag > 0.0d) ? (speeds[idx] * lag) : 0.0d);
+            getBodyBounds( obj, tdv, 0 );
+            minX[idx] = (tdv[0] - distance);
+            minY[idx] = (tdv[1] - distance);
+            maxX[idx] = (tdv[2] + distance);
+            maxY[idx] = (tdv[3] + distance);
+        }
+
+        int predictions = 0;
+        int pairs = 0;
+        for (int idx=0; idx<solids; idx++)
+        {
+            final Body obj1 = objArray[idx];
+            getSlack( minX, minY, maxX, maxY, speeds, idx, idx+1, solids, maxTime, slack );
+            for (int jdx=idx+1; jdx<solids; jdx++)
+            {
+                /* Boxes can not meet in the time. */
+                if (slack[jdx] > 0.0d)
+                    continue;
+
+                final Body obj2 = objArray[jdx];
+                if (obj1.inTheSameGroup(obj2))
+                {
+                    final double speed = (speeds[idx] + speeds[jdx]);
+                    if ((speed * maxTime) < Double.POSITIVE_INFINITY)
+                    {
+                        final double gap = Math.max(
+                                Math.max(minX[jdx] - maxX[idx], minX[idx] - maxX[jdx]),
+                                Math.max(minY[jdx] - maxY[idx], minY[idx] - maxY[jdx]) );
+
+                        if (pairs == m_pairs.length)
+                        {
+                            m_pairTimes = Arrays.copyOf( m_pairTimes, pairs*2 );
+                            m_pairs = Arrays.copyOf( m_pairs, pairs*2 );
+                        }
+                        /* Pair overlapping at the start can meet while catching up. */
+                        m_pairTimes[pairs] = ((gap > 0.0d) ? (gap / speed) : -getPairLag(obj1, obj2));
+                        m_pairs[pairs] = ((((long) idx) << 32) | jdx);
+                        pairs++;
+                    }
+                    else
+                    {
+                        predictions = predictPair( obj1, obj2, maxTime,
+                                body1, id1, body2, id2, prediction, predictions, capacity );
+                    }
+                }
+            }
+        }
+
+        final double [] pairTimes = m_pairTimes;
+        final long [] pairIdx = m_pairs;
+        for (int idx=(pairs/2)-1; idx>=0; idx--)
+            siftDown( pairTimes, pairIdx, idx, pairs );
+
+        while ((pairs > 0) && ((pairTimes[0] - EPS) < getPredictionBound(prediction, predictions, capacity)))
+        {
+            final long pair = pairIdx[0];
+            pairs--;
+            pairTimes[0] = pairTimes[pairs];
+            pairIdx[0] = pairIdx[pairs];
+            siftDown( pairTimes, pairIdx, 0, pairs );
+
+            final int idx = (int) (pair >>> 32);
+            final int jdx = (int) pair;
+            predictions = predictPair( objArray[idx], objArray[jdx], maxTime,
+                    body1, id1, body2, id2, prediction, predictions, capacity );
+        }
+        return predictions;
+    }
+
+    /**
+     * Same as predictImpacts() for the impacts of the one body,
+     * body1[i] is always the body and body2[i] is the body it impacts.
+     * Body does not need to be added to the world, so the trajectory
+     * of a body not existing yet can be checked as well.
+     */
+    public final int predictImpacts(
+            Body body, double maxTime, Body [] body1, int [] id1, Body [] body2, int [] id2, double [] prediction )
+    {
+        final int capacity = getCapacity( body1, id1, body2, id2, prediction );
+        if ((capacity == 0) || body.isSensor())
+            return 0;
+
+        final Impact impact = m_predictionImpact;
+        int predictions = 0;
+        for (int idx=0; idx<m_solids; idx++)
+        {
+            final Body obj = m_objArray[idx];
+            if ((obj != body) && obj.inTheSameGroup(body))
+            {
+                final double bound = getPredictionBound( prediction, predictions, capacity );
+                final double impactTime = predictImpactTime( body, obj, maxTime, bound, impact );
+                if (impactTime < bound)
+                {
+                    predictions = addPrediction( body, impactTime, impact,
+                            body1, id1, body2, id2, prediction, predictions, capacity );
+                }
+            }
+        }
+
+        if ((m_level != null) && body.inTheSameGroup(m_level))
+        {
+            final double bound = getPredictionBound( prediction, predictions, capacity );
+            final double impactTime = predictImpactTimeLevel( body, maxTime, bound, impact );
+            if (impactTime < bound)
+            {
+                predictions = addPrediction( body, impactTime, impact,
+                        body1, id1, body2, id2, prediction, predictions, capacity );
+            }
+        }
+        return predictions;
+    }
+
+    /**
+     * Adds the impact with the body as the first primitive,
+     * solvers keep their own order of the primitives
+     * (the segment and the level go first for example).
+     */
+    private static int addPrediction(
+            Body body, double time, Impact impact,
+            Body [] body1, int [] id1, Body [] body2, int [] id2, double [] prediction,
+            int predictions, int capacity )
+    {
+        if (impact.o1 == body)
+        {
+            return addPrediction( time,
+                    impact.o1, impact.o1pi, impact.o2, impact.o2pi, impact.x, impact.y,
+                    body1, id1, body2, id2, prediction, predictions, capacity );
+        }
+        else
+        {
+            return addPrediction( time,
+                    impact.o2, impact.o2pi, impact.o1, impact.o1pi, impact.x, impact.y,
+                    body1, id1, body2, id2, prediction, predictions, capacity );
+        }
+    }
+
+    /**
+     * Listener will be notified about every step and every impact
+     * from the run() method, null removes the listener.
+     */
+    public final void setImpactListener( ImpactListener impactListener )
+    {
+        m_impactListener = impactListener;
+    }
+
+    public final ImpactListener getImpactListener()
+    {
+        return m_impactListener;
+    }
+
+    /**
+     * Turns on or off Body.handleImpact() calls (on by default),
+     * impulses are applied anyway. Application can turn them off
+     * and take impacts from the ImpactBuffer or ImpactRing listener
+     * to keep the game logic out of the run() loop.
+     */
+    public final void setBodyCallbacks( boolean bodyCallbacks )
+    {
+        m_bodyCallbacks = bodyCallbacks;
+    }
+
+    public final boolean getBodyCallbacks()
+    {
+        return m_bodyCallbacks;
+    }
+
+    /**
+     * Returns body by the index reported to the ImpactListener.
+     */
+    public final Body getBody( int idx )
+    {
+        return m_objArray[idx];
+    }
+
+    public final int getBodyCount()
+    {
+        return m_objects;
+    }
+
+    /**
+     * Returns true if the primitives overlap (or touch),
+     * positions should be in the tdv at offsets offs1 and offs2.
+     */
+    private static boolean overlaps( double [] tdv, int offs1, int type1, int offs2, int type2 )
+    {
+        /* Primitives can take up to CONVEX_SIZE doubles each,
+         * convex forms and nearest points follow them.
+         */
+        final int convex1Offs = (2 * CONVEX_SIZE);
+        final int convex2Offs = (3 * CONVEX_SIZE);
+        getConvex( tdv, offs1, type1, tdv, convex1Offs );
+        getConvex( tdv, offs2, type2, tdv, convex2Offs );
+        return (getDistanceConvex(tdv, convex1Offs, convex2Offs, tdv, 4*CONVEX_SIZE) <= 0.0d);
+    }
+
+    private boolean overlaps( Body o1, Body o2 )
+    {
+        final double [] qdv = m_qdv;
+        final int o1pc = o1.getPrCount();
+        final int o2pc = o2.getPrCount();
+        for (int o1pi=0; o1pi<o1pc; o1pi++)
+        {
+            final int offs2 = o1.getPrPosition( 0.0d, o1pi, qdv, 0 );
+            final int type1 = o1.getPrType( o1pi );
+            for (int o2pi=0; o2pi<o2pc; o2pi++)
+            {
+                o2.getPrPosition( 0.0d, o2pi, qdv, offs2 );
+                if (overlaps(qdv, 0, type1, offs2, o2.getPrType(o2pi)))
+                    return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Finds sensors overlapping other bodies at the end of run().
+     */
+    private void updateSensors()
+    {
+        final SensorEvents events = m_sensorEvents;
+        events.start();
+        if ((m_solids == m_objects) && events.isEmpty())
+            return;
+
+        if (m_referenceMode)
+        {
+            for (int sdx=m_solids; sdx<m_objects; sdx++)
+            {
+                final Body sensor = m_objArray[sdx];
+                for (int idx=0; idx<m_solids; idx++)
+                {
+                    final Body obj = m_objArray[idx];
+                    if (sensor.inTheSameGroup(obj) && overlaps(sensor, obj))
+                        events.overlap( sensor, obj );
+                }
+            }
+        }
+        else if (indexSensors(0.0d, true) > 0)
+        {
+            final double [] bounds = getBounds();
+            int pairs = 0;
+            for (int idx=0; idx<m_solids; idx++)
+                pairs = findSensors( bounds[idx*4], bounds[idx*4+1], bounds[idx*4+2], bounds[idx*4+3], idx, pairs );
+            sortSensorPairs( pairs );
+
+            final int [] start = m_sensorStart;
+            final int [] bodies = m_sensorBodies;
+            for (int slot=0; slot<(m_objects - m_solids); slot++)
+            {
+                final Body sensor = m_objArray[m_solids + slot];
+                for (int pos=start[slot]; pos<start[slot+1]; pos++)
+                {
+                    final Body obj = m_objArray[bodies[pos]];
+                    if (sensor.inTheSameGroup(obj) && overlaps(sensor, obj))
+                        events.overlap( sensor, obj );
+                }
+            }
+        }
+        events.finish();
+    }
+
+    /**
+     * Returns sensor overlap events of the last run() call,
+     * buffer is reused by the next run().
+     */
+    public final SensorEvents getSensorEvents()
+    {
+        return m_sensorEvents;
+    }
+
+    /**
+     * Sets the buffer receiving the frame at the end of every run() call,
+     * null stops the publication. Regions do not put bodies asleep
+     * while the frame buffer is set (see addRegion()).
+     */
+    public final void setFrameBuffer( FrameBuffer frameBuffer )
+    {
+        m_frameBuffer = frameBuffer;
+    }
+
+    public final FrameBuffer getFrameBuffer()
+    {
+        return m_frameBuffer;
+    }
+
+    final void writeFrame( Frame frame, long step, double time )
+    {
+        frame.write( m_objArray, m_objects, step, time );
+    }
+
+    /**
+     * Finds the sensors the searched bodies touch in the time before they are moved,
+     * so the body passing through the sensor between two run() calls
+     * still gets the sensor events. Only static sensors are checked
+     * if 'movingSensors' is false.
+     */
+    private void touchSensors( Body [] search, int searchCount, double time, boolean movingSensors )
+    {
+        if ((m_solids == m_objects) || !(time > 0.0d))
+            return;
+
+        /* Pairs are checked sensor by sensor, bodies in the search order,
+         * in both modes, so the events are reported in the same order.
+         */
+        final int sensors = (m_objects - m_solids);
+        if (m_referenceMode)
+        {
+            for (int slot=0; slot<sensors; slot++)
+            {
+                final Body sensor = m_objArray[m_solids + slot];
+                if (movingSensors || (getReach(sensor, time) == 0.0d))
+                {
+                    for (int idx=0; idx<searchCount; idx++)
+                        touchSensor( sensor, search[idx], time );
+                }
+            }
+            return;
+        }
+
+        if (indexSensors(time, movingSensors) == 0)
+            return;
+
+        /* Area every body can reach in the time,
+         * infinite for the bodies with unknown speed, so they are always checked.
+         */
+        final double [] tdv = m_tdv;
+        int pairs = 0;
+        for (int idx=0; idx<searchCount; idx++)
+        {
+            final double distance = getReach( search[idx], time );
+            getBodyBounds( search[idx], tdv, 0 );
+            pairs = findSensors( tdv[0] - distance, tdv[1] - distance, tdv[2] + distance, tdv[3] + distance, idx, pairs );
+        }
+        sortSensorPairs( pairs );
+
+        final int [] start = m_sensorStart;
+        final int [] bodies = m_sensorBodies;
+        for (int slot=0; slot<sensors; slot++)
+        {
+            final Body sensor = m_objArray[m_solids + slot];
+            for (int pos=start[slot]; pos<start[slot+1]; pos++)
+                touchSensor( sensor, search[bodies[pos]], time );
+        }
+    }
+
+    private void touchSensor( Body sensor, Body obj, double time )
+    {
+        final SensorEvents events = m_sensorEvents;
+        if (!sensor.inTheSameGroup(obj) || events.isTouched(sensor, obj))
+            return;
+
+        if (getImpactTime(sensor, obj, time, Double.MAX_VALUE, m_touchImpact) < Double.MAX_VALUE)
+            events.touch( sensor, obj );
+    }
+
+    /**
+     * Returns the distance the body can travel in the time,
+     * infinite if the speed is unknown.
+     */
+    private static double getReach( Body obj, double time )
+    {
+        if (!(time > 0.0d))
+            return 0.0d;
+        final double distance = (obj.getMaxSpeed() * time);
+        return (distance >= 0.0d) ? distance : Double.POSITIVE_INFINITY;
+    }
+
+    /**
+     * Writes the area every sensor can reach in the time to m_sensorBox
+     * and sorts the sensors by the left side of the area,
+     * sensors which are not static are left out unless 'movingSensors' is true.
+     * Order is kept between calls, sensors do not move much
+     * between the sub-steps, so the insertion sort is about linear.
+     * Returns the number of the sensors in the index.
+     */
+    private int indexSensors( double time, boolean movingSensors )
+    {
+        final int sensors = (m_objects - m_solids);
+        if (m_sensorOrder.length < sensors)
+        {
+            final int capacity = m_objArray.length;
+            m_sensorBox = new double[capacity*4];
+            m_sensorOrder = new int[capacity];
+            m_sensorReach = new double[capacity];
+            m_sensorStart = new int[capacity+1];
+            m_sensorOrderCount = 0;
+        }
+        if (m_sensorOrderCount != sensors)
+        {
+            /* Sensors were added or removed, any permutation will do. */
+            for (int slot=0; slot<sensors; slot++)
+                m_sensorOrder[slot] = slot;
+            m_sensorOrderCount = sensors;
+        }
+
+        final double [] box = m_sensorBox;
+        final double [] tdv = m_tdv;
+        for (int slot=0; slot<sensors; slot++)
+        {
+            final Body sensor = m_objArray[m_solids + slot];
+            final double distance = getReach( sensor, time );
+            final int offs = (slot * 4);
+            if (!movingSensors && (distance != 0.0d))
+            {
+                /* Left out sensors go to the end of the order. */
+                box[offs] = Double.POSITIVE_INFINITY;
+                continue;
+            }
+            getBodyBounds( sensor, tdv, 0 );
+            box[offs] = (tdv[0] - distance);
+            box[offs+1] = (tdv[1] - distance);
+            box[offs+2] = (tdv[2] + distance);
+            box[offs+3] = (tdv[3] + distance);
+        }
+
+        final int [] order = m_sensorOrder;
+        for (int idx=1; idx<sensors; idx++)
+        {
+            final int slot = order[idx];
+            final double minX = box[slot*4];
+            int jdx = idx;
+            for (; (jdx > 0) && (box[order[jdx-1]*4] > minX); jdx--)
+                order[jdx] = order[jdx-1];
+            order[jdx] = slot;
+        }
+
+        int indexed = sensors;
+        while ((indexed > 0) && (box[order[indexed-1]*4] == Double.POSITIVE_INFINITY))
+            indexed--;
+        m_sensorIndexed = indexed;
+
+        final double [] reach = m_sensorReach;
+        double maxX = Double.NEGATIVE_INFINITY;
+        for (int idx=0; idx<indexed; idx++)
+        {
+            maxX = Math.max( maxX, box[order[idx]*4+2] );
+            reach[idx] = maxX;
+        }
+        return indexed;
+    }
+
+    /**
+     * Adds the (slot, idx) pairs for the indexed sensors
+     * with the area overlapping the box, returns the number of pairs.
+     * Sensors left of the box are skipped by the binary search
+     * over the m_sensorReach, the scan stops at the first sensor right of the box.
+     */
+    private int findSensors( double minX, double minY, double maxX, double maxY, int idx, int pairs )
+    {
+        final double [] box = m_sensorBox;
+        final int [] order = m_sensorOrder;
+        final double [] reach = m_sensorReach;
+        final int indexed = m_sensorIndexed;
+
+        /* Box with NaN bounds is checked against every sensor. */
+        if (!(minX <= maxX) || !(minY <= maxY))
+        {
+            minX = Double.NEGATIVE_INFINITY;
+            minY = Double.NEGATIVE_INFINITY;
+            maxX = Double.POSITIVE_INFINITY;
+            maxY = Double.POSITIVE_INFINITY;
+        }
+
+        int lo = 0;
+        int hi = indexed;
+        while (lo < hi)
+        {
+            final int mid = ((lo + hi) >>> 1);
+            if (reach[mid] < minX)
+                lo = (mid + 1);
+            else
+                hi = mid;
+        }
+
+        for (int pos=lo; pos<indexed; pos++)
+        {
+            final int slot = order[pos];
+            final int offs = (slot * 4);
+            if (box[offs] > maxX)
+                break;
+            if ((box[offs+2] < minX) || (box[offs+1] > maxY) || (box[offs+3] < minY))
+                continue;
+
+            if (m_sensorPairs.length < (pairs + 1) * 2)
+                m_sensorPairs = Arrays.copyOf( m_sensorPairs, m_sensorPairs.length * 2 );
+            m_sensorPairs[pairs*2] = slot;
+            m_sensorPairs[pairs*2+1] = idx;
+            pairs++;
+        }
+        return pairs;
+    }
+
+    /**
+     * Sorts the pairs found by the sensor slot: m_sensorBodies
+     * gets the body indices of the slot at [m_sensorStart[slot], m_sensorStart[slot+1]).
+     * Pairs of one sensor keep the order they were found.
+     */
+    private void sortSensorPairs( int pairs )
+    {
+        final int sensors = (m_objects - m_solids);
+        final int [] start = m_sensorStart;
+        final int [] found = m_sensorPairs;
+        if (m_sensorBodies.length < pairs)
+            m_sensorBodies = new int[found.length / 2];
+        final int [] bodies = m_sensorBodies;
+
+        /* First pass counts pairs of every sensor, second one fills them. */
+        Arrays.fill( start, 0, sensors+1, 0 );
+        for (int pos=0; pos<pairs; pos++)
+            start[found[pos*2] + 1]++;
+        for (int slot=0; slot<sensors; slot++)
+            start[slot+1] += start[slot];
+        for (int pos=0; pos<pairs; pos++)
+            bodies[start[found[pos*2]]++] = found[pos*2+1];
+        /* Fill moved every start to the next slot start. */
+        for (int slot=sensors; slot>0; slot--)
+            start[slot] = start[slot-1];
+        start[0] = 0;
+    }
+
+    /**
+     * Moves the 'moving' bodies for runTime resolving impacts
+     * between the 'search' solid bodies, impact times are reported
+     * relative to the timeOffset. Sensors touched by the 'search' bodies
+     * are recorded (see touchSensors()). Resting bodies (see wakeRegion())
+     * are added to the 'moving' ones when they are hit,
+     * the array should have room for them.
+     */
+    private void runPass(
+            Body [] search, int searchCount, Body [] moving, int movingCount,
+            double runTime, double timeOffset, boolean movingSensors )
+    {
+        m_search = search;
+        m_searchCount = searchCount;
+
+        double timeRemaining = runTime;
+        for (;;)
+        {
+            final double impactTime = getImpactTime( timeRemaining, m_impact );
+
+            if (impactTime < Double.MAX_VALUE)
+            {
+                assert( impactTime <= timeRemaining );
+
+                if (impactTime > 0.0d)
+                {
+                    touchSensors( search, searchCount, impactTime, movingSensors );
+                    addTravel( impactTime );
+                    for (int idx = 0; idx < movingCount; idx++)
+                        moving[idx].move( impactTime );
+
+                    timeRemaining -= impactTime;
+                    handleImpact( m_impact, timeOffset + (runTime - timeRemaining) );
+                    movingCount = addResting( m_impact, moving, movingCount );
+
+                    if (timeRemaining == 0.0)
+                        break;
+                }
+                else
+                {
+                    handleImpact( m_impact, timeOffset + (runTime - timeRemaining) );
+                    movingCount = addResting( m_impact, moving, movingCount );
                 }
             }
             else
             {
-                for (int idx=0; idx<m_objects; idx++)
-                    m_objArray[idx].move( timeRemaining );
+                touchSensors( search, searchCount, timeRemaining, movingSensors );
+                addTravel( timeRemaining );
+                for (int idx=0; idx<movingCount; idx++)
+                    moving[idx].move( timeRemaining );
                 break;
             }
         }
     }
+
+    /**
+     * Adds the resting bodies of the impact to the moving ones,
+     * they are moved by the rest of the pass.
+     */
+    private static int addResting( Impact impact, Body [] moving, int movingCount )
+    {
+        if (impact.o1.m_resting)
+        {
+            impact.o1.m_resting = false;
+            moving[movingCount++] = impact.o1;
+        }
+        if (impact.o2.m_resting)
+        {
+            impact.o2.m_resting = false;
+            moving[movingCount++] = impact.o2;
+        }
+        return movingCount;
+    }
+
+    /**
+     * Adds the distance the searched bodies can travel in the time
+     * to their Body.m_travel, speeds are taken by the last hybrid search.
+     */
+    private void addTravel( double time )
+    {
+        if (m_hybridMode && !m_referenceMode)
+        {
+            final Body [] search = m_search;
+            final double [] speeds = m_speeds;
+            for (int idx=0; idx<m_searchCount; idx++)
+                search[idx].m_travel += (speeds[idx] * time);
+        }
+    }
+
+    private void ensurePassCapacity()
+    {
+        if (m_passBodies.length < m_objects)
+        {
+            m_passBodies = new Body[m_objArray.length];
+            m_passMoving = new Body[m_objArray.length];
+        }
+    }
+
+    /**
+     * Puts the bodies which can reach the region rectangle
+     * in the interval to sleep, region bounds get the area they can reach.
+     */
+    private void sleepRegion( int region, double interval )
+    {
+        final double [] rect = m_regionRect;
+        final double [] regionBounds = m_regionBounds;
+        final int offs = (region * 4);
+        final double [] bounds = m_tdv;
+        double minX = Double.POSITIVE_INFINITY;
+        double minY = Double.POSITIVE_INFINITY;
+        double maxX = Double.NEGATIVE_INFINITY;
+        double maxY = Double.NEGATIVE_INFINITY;
+        int members = 0;
+        for (int idx=0; idx<m_solids; idx++)
+        {
+            final Body obj = m_objArray[idx];
+            if (obj.m_region >= 0)
+                continue;
+
+            /* Bodies at rest are always awake, they do not cost anything
+             * and are moved by the catch-up pass if a member hits them,
+             * bodies with unknown speed can not be bound.
+             */
+            final double distance = (obj.getMaxSpeed() * interval);
+            if (!(distance > 0.0d) || (distance == Double.POSITIVE_INFINITY))
+                continue;
+
+            getBodyBounds( obj, bounds, 0 );
+            if (((bounds[0] - distance) >= rect[offs]) &&
+                ((bounds[1] - distance) >= rect[offs+1]) &&
+                ((bounds[2] + distance) <= rect[offs+2]) &&
+                ((bounds[3] + distance) <= rect[offs+3]))
+            {
+                obj.m_region = region;
+                members++;
+                minX = Math.min( minX, bounds[0] - distance );
+                minY = Math.min( minY, bounds[1] - distance );
+                maxX = Math.max( maxX, bounds[2] + distance );
+                maxY = Math.max( maxY, bounds[3] + distance );
+            }
+        }
+        m_regionMembers[region] = members;
+        m_regionLag[region] = 0.0d;
+        regionBounds[offs] = minX;
+        regionBounds[offs+1] = minY;
+        regionBounds[offs+2] = maxX;
+        regionBounds[offs+3] = maxY;
+    }
+
+    /**
+     * Returns true if some awake body can reach the area
+     * of the region members in time. Bodies at rest in the area
+     * do not disturb the region: they stay where they are until
+     * something hits them, the catch-up pass moves them then
+     * (see wakeRegion()). Any sensor in the area
+     * disturbs the region, so the sensors always see
+     * the current positions of the bodies.
+     */
+    private boolean isDisturbed( int region, double time )
+    {
+        final double [] regionBounds = m_regionBounds;
+        final int offs = (region * 4);
+        final double [] bounds = m_tdv;
+        for (int idx=0; idx<m_objects; idx++)
+        {
+            final Body obj = m_objArray[idx];
+            if (obj.m_region >= 0)
+                continue;
+
+            final double distance = (obj.getMaxSpeed() * time);
+            if ((distance == 0.0d) && (idx < m_solids))
+                continue;
+
+            getBodyBounds( obj, bounds, 0 );
+            if (!((bounds[2] + distance) < regionBounds[offs]) &&
+                !((bounds[3] + distance) < regionBounds[offs+1]) &&
+                !((bounds[0] - distance) > regionBounds[offs+2]) &&
+                !((bounds[1] - distance) > regionBounds[offs+3]))
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Moves the region members to the world time in one pass,
+     * members have impacts with each other, bodies at rest and the level.
+     * Body at rest has not moved while the region was asleep
+     * (it would have disturbed the region), so it is searched
+     * at its position and moved with the members after the first impact.
+     * Impacts are reported with negative times (before the current step).
+     */
+    private void wakeRegion( int region )
+    {
+        ensurePassCapacity();
+        final Body [] search = m_passBodies;
+        final Body [] moving = m_passMoving;
+        int searchCount = 0;
+        int movingCount = 0;
+        for (int idx=0; idx<m_solids; idx++)
+        {
+            final Body obj = m_objArray[idx];
+            if (obj.m_region == region)
+            {
+                obj.m_region = -1;
+                search[searchCount++] = obj;
+                moving[movingCount++] = obj;
+            }
+            else if ((obj.m_region < 0) && (obj.getMaxSpeed() == 0.0d))
+            {
+                obj.m_resting = true;
+                search[searchCount++] = obj;
+            }
+        }
+
+        final double lag = m_regionLag[region];
+        m_regionMembers[region] = 0;
+        m_regionLag[region] = 0.0d;
+        if (lag > 0.0d)
+            runPass( search, searchCount, moving, movingCount, lag, -lag, false );
+
+        /* Moving array got the resting bodies hit by the pass. */
+        for (int idx=0; idx<searchCount; idx++)
+        {
+            search[idx].m_resting = false;
+            search[idx] = null;
+            moving[idx] = null;
+        }
+        m_boundsValid = false;
+    }
+
+    private void runRegions( double runTime )
+    {
+        final long tick = m_tick++;
+        for (int region=0; region<m_regions; region++)
+        {
+            final int interval = m_regionInterval[region];
+            final boolean start = ((tick % interval) == 0);
+            if ((m_regionMembers[region] > 0) && (start || isDisturbed(region, runTime)))
+                wakeRegion( region );
+            if (start && (m_regionMembers[region] == 0) && (m_frameBuffer == null))
+            {
+                sleepRegion( region, runTime * interval );
+                if ((m_regionMembers[region] > 0) && isDisturbed(region, runTime))
+                    wakeRegion( region );
+            }
+        }
+
+        /* Solid bodies are followed by sensors, as in m_objArray. */
+        ensurePassCapacity();
+        final Body [] bodies = m_passBodies;
+        int solids = 0;
+        for (int idx=0; idx<m_solids; idx++)
+        {
+            if (m_objArray[idx].m_region < 0)
+                bodies[solids++] = m_objArray[idx];
+        }
+        int objects = solids;
+        for (int idx=m_solids; idx<m_objects; idx++)
+            bodies[objects++] = m_objArray[idx];
+
+        runPass( bodies, solids, bodies, objects, runTime, 0.0d, true );
+
+        for (int idx=0; idx<objects; idx++)
+            bodies[idx] = null;
+        for (int region=0; region<m_regions; region++)
+        {
+            if (m_regionMembers[region] > 0)
+                m_regionLag[region] += runTime;
+        }
+    }
+
+    /**
+     * Adds a region of the world stepped at a coarser rate:
+     * bodies which stay inside the region rectangle for 'interval' run() calls
+     * are put asleep at the beginning of the interval and moved
+     * at the end of the interval in one pass, so their impacts
+     * are searched once per interval instead of every run().
+     * Region wakes up earlier if some other moving body
+     * can reach the area available to the region members,
+     * so the bodies never pass through each other.
+     * Bodies asleep are not moved, their position is behind
+     * the world time by getLag(), impacts found while the region
+     * catches up are reported to the ImpactListener with negative times.
+     * Bodies at rest (Body.getMaxSpeed() returns 0) are never put asleep,
+     * they stay where they are while the region catches up
+     * until a region member hits them and move on from that impact,
+     * bodies with unknown speed are never put asleep
+     * and wake up every region they can reach.
+     * Sensors wake up every region they can reach, as sensor events
+     * are reported for the current body positions, and no body is put asleep
+     * while the frame buffer is set (see setFrameBuffer()),
+     * as the frame has all bodies at the world time.
+     * Regions should not overlap, regions and their state are saved
+     * by save() and saveDynamicState().
+     * Returns the region index.
+     */
+    public final int addRegion( double minX, double minY, double maxX, double maxY, int interval )
+    {
+        if (interval < 1)
+            throw new IllegalArgumentException( "Invalid region interval: " + interval );
+        if (!(minX < maxX) || !(minY < maxY))
+            throw new IllegalArgumentException( "Invalid region rectangle" );
+
+        for (int region=0; region<m_regions; region++)
+        {
+            final int offs = (region * 4);
+            if ((minX < m_regionRect[offs+2]) && (maxX > m_regionRect[offs]) &&
+                (minY < m_regionRect[offs+3]) && (maxY > m_regionRect[offs+1]))
+            {
+                throw new IllegalArgumentException( "Region overlaps region " + region );
+            }
+        }
+
+        if (m_regions == m_regionInterval.length)
+        {
+            final int regions = (m_regions * 2);
+            m_regionRect = Arrays.copyOf( m_regionRect, regions*4 );
+            m_regionInterval = Arrays.copyOf( m_regionInterval, regions );
+            m_regionMembers = Arrays.copyOf( m_regionMembers, regions );
+            m_regionLag = Arrays.copyOf( m_regionLag, regions );
+            m_regionBounds = Arrays.copyOf( m_regionBounds, regions*4 );
+        }
+
+        final int region = m_regions++;
+        final int offs = (region * 4);
+        m_regionRect[offs] = minX;
+        m_regionRect[offs+1] = minY;
+        m_regionRect[offs+2] = maxX;
+        m_regionRect[offs+3] = maxY;
+        m_regionInterval[region] = interval;
+        m_regionMembers[region] = 0;
+        m_regionLag[region] = 0.0d;
+        return region;
+    }
+
+    public final int getRegionCount()
+    {
+        return m_regions;
+    }
+
+    /**
+     * Moves all regions members to the world time and removes the regions,
+     * impacts are reported as by run().
+     */
+    public final void removeRegions()
+    {
+        wakeRegions();
+        m_regions = 0;
+    }
+
+    private void wakeRegions()
+    {
+        for (int region=0; region<m_regions; region++)
+        {
+            if (m_regionMembers[region] > 0)
+                wakeRegion( region );
+        }
+    }
+
+    /**
+     * Returns the time the body position is behind the world,
+     * not zero only for the bodies asleep in a region (see addRegion()).
+     */
+    public final double getLag( Body body )
+    {
+        return (body.m_region < 0) ? 0.0d : m_regionLag[body.m_region];
+    }
+
+    public final void run( final double runTime )
+    {
+        /* run() should not produce any garbage,
+         * so do not build a log message unless it will be really logged.
+         */
+        if (s_logger.isLoggable(Level.FINE))
+            s_logger.fine( "runTime=" + runTime );
+
+        if (m_impactListener != null)
+            m_impactListener.onStep( runTime );
+
+        m_boundsValid = false;
+
+        if (m_regions > 0)
+            runRegions( runTime );
+        else
+            runPass( m_objArray, m_solids, m_objArray, m_objects, runTime, 0.0d, true );
+
+        /* Bodies asleep before the frame buffer was set. */
+        if (m_frameBuffer != null)
+            wakeRegions();
+
+        updateSensors();
+
+        if (m_frameBuffer != null)
+            m_frameBuffer.publish( this, runTime );
+    }
 }
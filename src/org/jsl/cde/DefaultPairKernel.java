@@ -0,0 +1,768 @@
+/*
+ * Copyright (C) 2013 Sergey Zubarev, info@js-labs.org
+ *
+ * This file is a part of JS-CDE
+ * (Collision Detection Engine) framework.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jsl.cde;
+
+/**
+ * Impact time search for the pairs of body primitives,
+ * bodies are called only from here while the impact is searched.
+ * CDE uses one kernel for all bodies, with CDE.setSpecialization()
+ * it loads a copy of this class for every pair of body classes,
+ * every copy has its own call sites, so they stay monomorphic.
+ * Copy is defined from the class file of this class,
+ * so the class should not have nested classes.
+ */
+final class DefaultPairKernel extends PairKernel
+{
+    private static final double GSC = (1.0d + Math.sqrt(5.0d)) / 2.0d;
+    private static final double EPS = 0.000001d;
+
+    /* Convex primitive positions are at [0, 2*CONVEX_SIZE),
+     * nearest points follow them, primitive positions are at RAW_OFFS.
+     */
+    private static final int POINTS_OFFS = (2 * CDE.CONVEX_SIZE);
+    private static final int RAW_OFFS = (POINTS_OFFS + 4*Body.Point.SIZE);
+
+    private final PairSolver [] m_solvers;
+    private final double [] m_tdv;
+
+    DefaultPairKernel( PairSolver [] solvers )
+    {
+        m_solvers = solvers;
+        m_tdv = new double[RAW_OFFS + CDE.CONVEX_SIZE];
+    }
+
+    double getImpactTime( Body o1, Body o2, double frameTime, double impactTime, Impact impact )
+    {
+        final int o1pc = o1.getPrCount();
+        final int o2pc = o2.getPrCount();
+
+        for (int o1pi=0; o1pi<o1pc; o1pi++)
+        {
+            for (int o2pi=0; o2pi<o2pc; o2pi++)
+            {
+                impactTime = getImpactTime( o1, o1pi, o2, o2pi, frameTime, impactTime, impact );
+                if ((impactTime == 0.0d) || (impactTime == Double.MIN_VALUE))
+                    return impactTime;
+            }
+        }
+        return impactTime;
+    }
+
+    double getImpactTime(
+            Body o1, int o1pi, Body o2, int o2pi, double frameTime, double impactTime, Impact impact )
+    {
+        final int type1 = o1.getPrType( o1pi );
+        final int type2 = o2.getPrType( o2pi );
+        final PairSolver solver = m_solvers[(type1 * CDE.MAX_TYPES) + type2];
+        if (solver == null)
+            throw new RuntimeException( "No solver for impact type " + type1 + "-" + type2 );
+
+        /* Built-in solvers are inlined here, not called through the solver. */
+        switch (solver.getBuiltinId())
+        {
+            case PairSolver.BUILTIN_SS:
+                return getImpactTimeSS( o1, o1pi, o2, o2pi, frameTime, impactTime, impact );
+            case -PairSolver.BUILTIN_SS:
+                return getImpactTimeSS( o2, o2pi, o1, o1pi, frameTime, impactTime, impact );
+            case PairSolver.BUILTIN_SB:
+                return getImpactTimeSB( o1, o1pi, o2, o2pi, frameTime, impactTime, impact );
+            case -PairSolver.BUILTIN_SB:
+                return getImpactTimeSB( o2, o2pi, o1, o1pi, frameTime, impactTime, impact );
+            case PairSolver.BUILTIN_BB:
+                return getImpactTimeBB( o1, o1pi, o2, o2pi, frameTime, impactTime, impact );
+            case -PairSolver.BUILTIN_BB:
+                return getImpactTimeBB( o2, o2pi, o1, o1pi, frameTime, impactTime, impact );
+            case PairSolver.BUILTIN_CONVEX:
+                return getImpactTimeConvex( o1, o1pi, type1, o2, o2pi, type2, frameTime, impactTime, impact );
+            case -PairSolver.BUILTIN_CONVEX:
+                return getImpactTimeConvex( o2, o2pi, type2, o1, o1pi, type1, frameTime, impactTime, impact );
+            default:
+                return solver.getImpactTime( o1, o1pi, o2, o2pi, frameTime, impactTime, impact );
+        }
+    }
+
+    double getImpactTimeHybrid(
+            Body o1, Body o2, double frameTime, double travel, double impactTime, Impact impact, PairCache cache )
+    {
+        final int o1pc = o1.getPrCount();
+        final int o2pc = o2.getPrCount();
+
+        for (int o1pi=0; o1pi<o1pc; o1pi++)
+        {
+            for (int o2pi=0; o2pi<o2pc; o2pi++)
+            {
+                impactTime = getImpactTimeHybrid( o1, o1pi, o2, o2pi, frameTime, travel, impactTime, impact, cache );
+                if ((impactTime == 0.0d) || (impactTime == Double.MIN_VALUE))
+                    return impactTime;
+            }
+        }
+        return impactTime;
+    }
+
+    /**
+     * Primitives can not touch during the frame if they are farther
+     * than they can move at frameTime, distance can not change faster
+     * than the primitive points move. Segment and ball pairs are checked
+     * with one extra travel of margin, see the comment in the method.
+     * Segment pairs are not checked, their solver stops after
+     * a few line distance evaluations anyway.
+     * Ball and convex pairs can not touch before the time
+     * the distance at the frame start can be travelled,
+     * the distance is not evaluated before that time
+     * and the minimum distance search stops as soon as the distance
+     * can not drop to zero on the remaining interval.
+     * Search gives exactly the same result as the plain one.
+     * Pairs which were far enough apart when the distance
+     * was kept in the cache are skipped without getting the primitive positions,
+     * ball and convex pairs are skipped as well if the bracket [startTime, frameTime]
+     * started by the cached distance begins after the impact already found.
+     * Cached distance is a lower bound of the current one, so the cached bracket
+     * begins not later than the measured one, and the pair skipped
+     * by it is skipped by the plain search too: the cache does not change
+     * the search results. Search itself always starts from the bracket
+     * measured at the frame start, the bracket of a previous frame
+     * would move the impact time found within the search precision.
+     */
+    double getImpactTimeHybrid(
+            Body o1, int o1pi, Body o2, int o2pi, double frameTime, double travel,
+            double impactTime, Impact impact, PairCache cache )
+    {
+        final int type1 = o1.getPrType( o1pi );
+        final int type2 = o2.getPrType( o2pi );
+        final PairSolver solver = m_solvers[(type1 * CDE.MAX_TYPES) + type2];
+        if (solver != null)
+        {
+            final int builtinId = Math.abs( solver.getBuiltinId() );
+            final long key = (((cache != null) && (builtinId > PairSolver.BUILTIN_SS))
+                    ? PairCache.getKey(o1, o1pi, o2, o2pi) : 0);
+            if (builtinId == PairSolver.BUILTIN_SB)
+            {
+                /* Distance can not change more than the travel during the frame,
+                 * so the pair farther than 3 travels at the frame start
+                 * stays farther than 2 travels, and the pair farther than
+                 * 2 travels at frameTime was farther than one travel,
+                 * during the whole frame. One travel would be enough for the exact
+                 * contact, the solver reports the time up to EPS before the ball
+                 * crosses the segment line and works on the line distance,
+                 * the extra travel keeps the skip safe for that and for the distance
+                 * rounding. Factors match the broad phase filter (CDE.addSlack()).
+                 */
+                if ((key != 0) && (cache.getDistance(key, o1, o2) > 3.0d*travel))
+                    return impactTime;
+
+                if (key != 0)
+                {
+                    final double distance = getConvexDistance( o1, o1pi, type1, o2, o2pi, type2, 0.0d );
+                    cache.put( key, o1, o2, distance );
+                    if (distance > 3.0d*travel)
+                        return impactTime;
+                }
+
+                if (getConvexDistance(o1, o1pi, type1, o2, o2pi, type2, frameTime) > 2.0d*travel)
+                    return impactTime;
+            }
+            else if (builtinId == PairSolver.BUILTIN_BB)
+            {
+                if ((key != 0) && isCachedApart(cache.getDistance(key, o1, o2), frameTime, travel, impactTime))
+                    return impactTime;
+
+                final double [] tdv = m_tdv;
+                final int ball2Offs = o1.getPrPosition( 0.0d, o1pi, tdv, 0 );
+                o2.getPrPosition( 0.0d, o2pi, tdv, ball2Offs );
+                final double distance = CDE.getDistanceBB( tdv, 0, ball2Offs );
+                if (key != 0)
+                    cache.put( key, o1, o2, distance );
+                if (distance > travel)
+                    return impactTime;
+
+                o1.getPrPosition( frameTime, o1pi, tdv, 0 );
+                o2.getPrPosition( frameTime, o2pi, tdv, ball2Offs );
+                if (CDE.getDistanceBB(tdv, 0, ball2Offs) > travel)
+                    return impactTime;
+
+                final double speed = (travel / frameTime);
+                final double startTime = getStartTime( distance, speed );
+                if ((startTime - EPS) >= impactTime)
+                    return impactTime;
+
+                if (solver.getBuiltinId() > 0)
+                {
+                    return getImpactTimeBB(
+                            tdv, o1, o1pi, -1, o2, o2pi, startTime, speed, frameTime, impactTime, impact );
+                }
+                else
+                {
+                    return getImpactTimeBB(
+                            tdv, o2, o2pi, -1, o1, o1pi, startTime, speed, frameTime, impactTime, impact );
+                }
+            }
+            else if (builtinId == PairSolver.BUILTIN_CONVEX)
+            {
+                if ((key != 0) && isCachedApart(cache.getDistance(key, o1, o2), frameTime, travel, impactTime))
+                    return impactTime;
+
+                final double distance = getConvexDistance( o1, o1pi, type1, o2, o2pi, type2, 0.0d );
+                if (key != 0)
+                    cache.put( key, o1, o2, distance );
+                if (distance > travel)
+                    return impactTime;
+                if (getConvexDistance(o1, o1pi, type1, o2, o2pi, type2, frameTime) > travel)
+                    return impactTime;
+
+                /* Primitives overlapping at the frame start are not impacted. */
+                if (distance <= 0.0d)
+                    return impactTime;
+
+                final double speed = (travel / frameTime);
+                final double startTime = getStartTime( distance, speed );
+                if ((startTime - EPS) >= impactTime)
+                    return impactTime;
+
+                if (solver.getBuiltinId() > 0)
+                {
+                    return getImpactTimeConvex(
+                            o1, o1pi, type1, o2, o2pi, type2, startTime, speed, frameTime, impactTime, impact );
+                }
+                else
+                {
+                    return getImpactTimeConvex(
+                            o2, o2pi, type2, o1, o1pi, type1, startTime, speed, frameTime, impactTime, impact );
+                }
+            }
+        }
+        return getImpactTime( o1, o1pi, o2, o2pi, frameTime, impactTime, impact );
+    }
+
+    /**
+     * Returns true if the primitives with the cached distance (NaN if there is no entry)
+     * can not touch during the frame or before the impactTime.
+     */
+    private static boolean isCachedApart( double distance, double frameTime, double travel, double impactTime )
+    {
+        if (distance > travel)
+            return true;
+        return ((getStartTime(distance, travel / frameTime) - EPS) >= impactTime);
+    }
+
+    /**
+     * Returns the time primitives 'distance' apart can not touch before,
+     * 'speed' is the speed they can come closer.
+     */
+    private static double getStartTime( double distance, double speed )
+    {
+        if ((distance > 0.0d) && (speed > 0.0d))
+            return (distance / speed);
+        return 0.0d;
+    }
+
+    /**
+     * Returns true if the distance function with values d11 at t11 and d22 at t22
+     * can not reach zero on the interval [t1, t2] changing not faster than 'speed'.
+     */
+    private static boolean isApart(
+            double t1, double t11, double d11, double t22, double d22, double t2, double speed )
+    {
+        return (((d11 - speed*Math.max(t11 - t1, t2 - t11)) > 0.0d) ||
+                ((d22 - speed*Math.max(t22 - t1, t2 - t22)) > 0.0d));
+    }
+
+    double getImpactTimeSS(
+            Body o1, int o1pi, Body o2, int o2pi, double frameTime, double impactTime, Impact impact )
+    {
+        return getImpactTimeSS( m_tdv, o1, o1pi, o2, o2pi, frameTime, impactTime, impact );
+    }
+
+    /**
+     * Segment end points are checked as balls with zero radius,
+     * then the ball is checked against the segment line.
+     */
+    double getImpactTimeSB(
+            Body o1, int o1pi, Body o2, int o2pi, double frameTime, double impactTime, Impact impact )
+    {
+        final double [] tdv = m_tdv;
+        impactTime = getImpactTimeBB( tdv, o1, o1pi, 0, o2, o2pi, frameTime, impactTime, impact );
+        impactTime = getImpactTimeSB( tdv, o1, o1pi, o2, o2pi, frameTime, impactTime, impact );
+        impactTime = getImpactTimeBB( tdv, o1, o1pi, Body.Point.SIZE, o2, o2pi, frameTime, impactTime, impact );
+        return impactTime;
+    }
+
+    double getImpactTimeBB(
+            Body o1, int o1pi, Body o2, int o2pi, double frameTime, double impactTime, Impact impact )
+    {
+        return getImpactTimeBB( m_tdv, o1, o1pi, -1, o2, o2pi, frameTime, impactTime, impact );
+    }
+
+    /**
+     * Writes the ball primitive o[pi] at time t to the dv[offs],
+     * or the segment o[pi] end point at 'end' offset as a ball with zero radius
+     * if 'end' is not negative, returns the offset after the ball.
+     */
+    private static int getBallPosition( Body o, int pi, int end, double t, double [] dv, int offs )
+    {
+        if (end < 0)
+            return o.getPrPosition( t, pi, dv, offs );
+        o.getPrPosition( t, pi, dv, offs );
+        return Body.Ball.set( dv, offs, Body.Point.getX(dv, offs+end), Body.Point.getY(dv, offs+end), 0.0d );
+    }
+
+    private static double getImpactTimeSS(
+            double [] tdv, Body b1, int b1pi, Body b2, int b2pi, int b2ps, double frameTime, double impactTime, Impact impact )
+    {
+        /* b1[b1pi] - segment
+         * b2[b2pi] - segment
+         */
+        double t1 = 0.0d;
+        final int segment1Offs = 0;
+        final int segment2Offs = b1.getPrPosition( t1, b1pi, tdv, segment1Offs );
+        b2.getPrPosition( t1, b2pi, tdv, segment2Offs );
+
+        double d1 = CDE.getDistanceDP( tdv, segment1Offs, segment2Offs+b2ps );
+        if (d1 < 0.0d)
+            return impactTime;
+
+        double t2 = frameTime;
+        b1.getPrPosition( t2, b1pi, tdv, segment1Offs );
+        b2.getPrPosition( t2, b2pi, tdv, segment2Offs );
+        double d2 = CDE.getDistanceDP( tdv, segment1Offs, segment2Offs+b2ps );
+
+        if (d2 > 0.0d)
+        {
+            /* let's try t2 = (t2 / 2),
+             * if distance still > 0 - no impact.
+             */
+            t2 /= 2.0d;
+            b1.getPrPosition( t2, b1pi, tdv, segment1Offs );
+            b2.getPrPosition( t2, b2pi, tdv, segment2Offs );
+            d2 = CDE.getDistanceDP( tdv, segment1Offs, segment2Offs+b2ps );
+            if (d2 > 0.0d)
+                return impactTime;
+        }
+
+        /* Second segment end definitely cross the direct on the time interval,
+         * but not necessary on the segment, will check it later.
+         */
+        for (;;)
+        {
+            double tt = (t2 - t1);
+            if (tt < EPS)
+            {
+                if (t1 < impactTime)
+                {
+                    final double sx = (Body.Segment.getX2(tdv, segment1Offs) - Body.Segment.getX1(tdv, segment1Offs));
+                    final double sy = (Body.Segment.getY2(tdv, segment1Offs) - Body.Segment.getY1(tdv, segment1Offs));
+                    final double segmentLength = Math.sqrt( sx*sx + sy*sy );
+                    if (segmentLength > 0.0d)
+                    {
+                        final double px = (Body.Point.getX(tdv, segment2Offs + b2ps)
+                                           - Body.Segment.getX1(tdv, segment1Offs));
+                        final double py = (Body.Point.getY(tdv, segment2Offs + b2ps)
+                                           - Body.Segment.getY1(tdv, segment1Offs));
+                        final double tbx = (((sx * px) + (sy * py)) / segmentLength);
+                        if ((tbx >= 0.0d) && (tbx <= segmentLength))
+                        {
+                            /* Impact happen on segment,
+                             * but it is reported only if it can be resolved,
+                             * otherwise it would be found again at the same time.
+                             */
+                            final double x = Body.Segment.getX1(tdv, segment1Offs) + (tbx * sx / segmentLength);
+                            final double y = Body.Segment.getY1(tdv, segment1Offs) + (tbx * sy / segmentLength);
+                            final int impulse1Offs = (segment2Offs + 2*Body.Point.SIZE);
+                            final int impulse2Offs = b1.getPrImpulse( b1pi, x, y, tdv, impulse1Offs );
+                            b2.getPrImpulse( b2pi, x, y, tdv, impulse2Offs );
+                            if (CDE.isApproaching(tdv, impulse1Offs, impulse2Offs, sy, -sx))
+                            {
+                                impact.set( b1, b1pi, b2, b2pi, x, y );
+                                impactTime = t1;
+                            }
+                        }
+                    }
+                    /* case when (segmentLength == 0.0d)
+                     * will be handled anyway later when segment end points
+                     * and ball impact time will be checked.
+                     */
+                }
+                return impactTime;
+            }
+
+            tt = (t1 + (tt / 2.0d));
+            b1.getPrPosition(tt, b1pi, tdv, segment1Offs);
+            b2.getPrPosition(tt, b2pi, tdv, segment2Offs);
+            final double dt = CDE.getDistanceDP(tdv, segment1Offs, segment2Offs + b2ps);
+
+            if (dt > 0.0d)
+                t1 = tt;
+            else
+                t2 = tt;
+        }
+    }
+
+    private static double getImpactTimeSS(
+            double [] tdv, Body b1, int b1pi, Body b2, int b2pi, double frameTime, double impactTime, Impact impact )
+    {
+        impactTime = getImpactTimeSS( tdv, b1, b1pi, b2, b2pi, 0, frameTime, impactTime, impact );
+        impactTime = getImpactTimeSS( tdv, b1, b1pi, b2, b2pi, Body.Point.SIZE, frameTime, impactTime, impact );
+        impactTime = getImpactTimeSS( tdv, b2, b2pi, b1, b1pi, 0, frameTime, impactTime, impact);
+        impactTime = getImpactTimeSS( tdv, b2, b2pi, b1, b1pi, Body.Point.SIZE, frameTime, impactTime, impact);
+        return impactTime;
+    }
+
+    private static double getImpactTimeSB(
+            double [] tdv, Body b1, int b1pi, Body b2, int b2pi, double frameTime, double impactTime, Impact impact )
+    {
+        /* b1[b1pi] - segment
+         * b2[b2pi] - ball
+         */
+        double t1 = 0.0d;
+        final int segmentOffs = 0;
+        final int ballOffs = b1.getPrPosition( t1, b1pi, tdv, segmentOffs );
+        b2.getPrPosition( t1, b2pi, tdv, ballOffs );
+        double d1 = CDE.getDistanceDB( tdv, segmentOffs, ballOffs );
+        if (d1 < 0.0d)
+            return impactTime;
+
+        double t2 = frameTime;
+        b1.getPrPosition( t2, b1pi, tdv, segmentOffs );
+        b2.getPrPosition( t2, b2pi, tdv, ballOffs );
+        double d2 = CDE.getDistanceDB( tdv, segmentOffs, ballOffs );
+
+        if (d2 > 0.0d)
+        {
+            /* let's try t2 = (t2 / 2),
+             * if distance still > 0 - no impact.
+             */
+            t2 /= 2.0d;
+            b1.getPrPosition( t2, b1pi, tdv, segmentOffs );
+            b2.getPrPosition( t2, b2pi, tdv, ballOffs );
+            d2 = CDE.getDistanceDB( tdv, segmentOffs, ballOffs );
+            if (d2 > 0.0d)
+                return impactTime;
+        }
+
+        /* Ball definitely cross the direct on the time interval,
+         * but not necessary on the segment, will check it later.
+         */
+        for (;;)
+        {
+            double tt = (t2 - t1);
+            if (tt < EPS)
+            {
+                if (t1 < impactTime)
+                {
+                    final double sx = (Body.Segment.getX2(tdv, segmentOffs) - Body.Segment.getX1(tdv, segmentOffs));
+                    final double sy = (Body.Segment.getY2(tdv, segmentOffs) - Body.Segment.getY1(tdv, segmentOffs));
+                    final double segmentLength = Math.sqrt( sx*sx + sy*sy );
+                    if (segmentLength > 0.0d)
+                    {
+                        final double bx = (Body.Ball.getX(tdv, ballOffs) - Body.Segment.getX1(tdv, segmentOffs));
+                        final double by = (Body.Ball.getY(tdv, ballOffs) - Body.Segment.getY1(tdv, segmentOffs));
+                        final double tbx = (((sx * bx) + (sy * by)) / segmentLength);
+                        if ((tbx >= 0.0d) && (tbx <= segmentLength))
+                        {
+                            /* Impact happen on segment. */
+                            impact.o1 = b1;
+                            impact.o1pi = b1pi;
+                            impact.o2 = b2;
+                            impact.o2pi = b2pi;
+                            impact.x = Body.Segment.getX1(tdv, segmentOffs) + (tbx * sx / segmentLength);
+                            impact.y = Body.Segment.getY1(tdv, segmentOffs) + (tbx * sy / segmentLength);
+                            impactTime = t1;
+                        }
+                    }
+                    /* case when (segmentLength == 0.0d)
+                     * will be handled anyway later when segment end points
+                     * and ball impact time will be checked.
+                     */
+                }
+                return impactTime;
+            }
+
+            tt = (t1 + (tt / 2.0d));
+            b1.getPrPosition( tt, b1pi, tdv, segmentOffs );
+            b2.getPrPosition( tt, b2pi, tdv, ballOffs );
+            final double dt = CDE.getDistanceDB( tdv, segmentOffs, ballOffs );
+
+            if (dt > 0.0d)
+                t1 = tt;
+            else
+                t2 = tt;
+        }
+    }
+
+    private static double getImpactTimeBB(
+            double [] tdv, Body o1, int o1pi, int end1, Body o2, int o2pi,
+            double frameTime, double impactTime, Impact impact )
+    {
+        return getImpactTimeBB(
+                tdv, o1, o1pi, end1, o2, o2pi, 0.0d, Double.POSITIVE_INFINITY, frameTime, impactTime, impact );
+    }
+
+    /**
+     * Balls should not touch before startTime,
+     * distance between them should not change faster than 'speed'.
+     */
+    private static double getImpactTimeBB(
+            double [] tdv, Body o1, int o1pi, int end1, Body o2, int o2pi,
+            double startTime, double speed, double frameTime, double impactTime, Impact impact )
+    {
+        /* It is not so simple to detect the impact time for balls,
+         * especially if they are relatively small comparing to their speed.
+         * We will try to find minimum distance first (distance between centers - (radius sum)),
+         * and consider they impacts if minimum distance is less or equal zero.
+         */
+        double t1 = 0.0d;
+        double t2 = frameTime;
+        double t11 = (t2 - (t2 - t1)/GSC);
+        double t22 = (t1 + (t2 - t1)/GSC);
+
+        final int ball1Offs = 0;
+        final int ball2Offs = getBallPosition( o1, o1pi, end1, t11, tdv, ball1Offs );
+        o2.getPrPosition( t11, o2pi, tdv, ball2Offs );
+        double d11 = CDE.getDistanceBB( tdv, ball1Offs, ball2Offs );
+
+        /*
+        o1.getPrPosition( 0.0d, o1pi, tdv, ball1Offs );
+        o2.getPrPosition( 0.0d, o2pi, tdv, ball2Offs );
+        System.out.println( "d1=" + CDE.getDistanceBB(tdv, ball1Offs, ball2Offs) );
+        */
+
+        getBallPosition( o1, o1pi, end1, t22, tdv, ball1Offs );
+        o2.getPrPosition( t22, o2pi, tdv, ball2Offs );
+        double d22 = CDE.getDistanceBB( tdv, ball1Offs, ball2Offs );
+
+        for (;;)
+        {
+            if ((t2 - t1) < EPS)
+            {
+                t2 = (t2 + t1) / 2.0d;
+                break;
+            }
+
+            if (isApart(t1, t11, d11, t22, d22, t2, speed))
+                return impactTime;
+
+            if (d11 >= d22)
+            {
+                t1 = t11;
+                t11 = t22;
+                d11 = d22;
+                t22 = (t1 + (t2 - t1)/GSC);
+                getBallPosition( o1, o1pi, end1, t22, tdv, ball1Offs );
+                o2.getPrPosition( t22, o2pi, tdv, ball2Offs );
+                d22 = CDE.getDistanceBB( tdv, ball1Offs, ball2Offs );
+            }
+            else
+            {
+                t2 = t22;
+                t22 = t11;
+                d22 = d11;
+                t11 = (t2 - (t2 - t1)/GSC);
+                getBallPosition( o1, o1pi, end1, t11, tdv, ball1Offs );
+                o2.getPrPosition( t11, o2pi, tdv, ball2Offs );
+                d11 = CDE.getDistanceBB( tdv, ball1Offs, ball2Offs );
+            }
+        }
+
+        getBallPosition( o1, o1pi, end1, t2, tdv, ball1Offs );
+        o2.getPrPosition( t2, o2pi, tdv, ball2Offs );
+        final double d2 = CDE.getDistanceBB( tdv, ball1Offs, ball2Offs );
+        if (d2 > 0.0d)
+            return impactTime;
+
+        t1 = 0.0d;
+        for (;;)
+        {
+            double tt = (t2 - t1);
+            if (tt < EPS)
+            {
+                if (t1 < impactTime)
+                {
+                    /* Object state in the 'tdv' can be at time point 't1',
+                     * as well as at time point 't2'. But we return impact time = t1 here,
+                     * so we should take an impact point exactly at 't1'.
+                     */
+                    impactTime = t1;
+                    impact.o1 = o1;
+                    impact.o1pi = o1pi;
+                    impact.o2 = o2;
+                    impact.o2pi = o2pi;
+                    if (Body.Ball.getR(tdv, ball1Offs) == 0.0d)
+                    {
+                        getBallPosition( o1, o1pi, end1, impactTime, tdv, ball1Offs );
+                        impact.x = Body.Ball.getX( tdv, ball1Offs );
+                        impact.y = Body.Ball.getY( tdv, ball1Offs );
+                    }
+                    else if (Body.Ball.getR(tdv, ball2Offs) == 0.0d)
+                    {
+                        o2.getPrPosition( impactTime, o2pi, tdv, ball2Offs );
+                        impact.x = Body.Ball.getX( tdv, ball2Offs );
+                        impact.y = Body.Ball.getY( tdv, ball2Offs );
+                    }
+                    else
+                    {
+                        getBallPosition( o1, o1pi, end1, impactTime, tdv, ball1Offs );
+                        o2.getPrPosition( impactTime, o2pi, tdv, ball2Offs );
+                        tt = (Body.Ball.getR(tdv, ball1Offs) + Body.Ball.getR(tdv, ball2Offs)) /
+                                Body.Ball.getR(tdv, ball1Offs);
+                        impact.x = Body.Ball.getX(tdv, ball1Offs) +
+                                tt * (Body.Ball.getX(tdv, ball2Offs) - Body.Ball.getX(tdv, ball1Offs));
+                        impact.y = Body.Ball.getY(tdv, ball1Offs) +
+                                tt * (Body.Ball.getY(tdv, ball2Offs) - Body.Ball.getY(tdv, ball1Offs));
+                    }
+                }
+                return impactTime;
+            }
+
+            tt = (t1 + (tt / 2.0d));
+            if (tt < startTime)
+            {
+                t1 = tt;
+                continue;
+            }
+
+            getBallPosition( o1, o1pi, end1, tt, tdv, ball1Offs );
+            o2.getPrPosition( tt, o2pi, tdv, ball2Offs );
+            final double dt = CDE.getDistanceBB( tdv, ball1Offs, ball2Offs );
+            if (dt > 0.0d)
+                t1 = tt;
+            else
+                t2 = tt;
+        }
+    }
+
+    private double getConvexDistance( Body o1, int o1pi, int type1, Body o2, int o2pi, int type2, double t )
+    {
+        final double [] tdv = m_tdv;
+        o1.getPrPosition( t, o1pi, tdv, RAW_OFFS );
+        CDE.getConvex( tdv, RAW_OFFS, type1, tdv, 0 );
+        o2.getPrPosition( t, o2pi, tdv, RAW_OFFS );
+        CDE.getConvex( tdv, RAW_OFFS, type2, tdv, CDE.CONVEX_SIZE );
+        return CDE.getDistanceConvex( tdv, 0, CDE.CONVEX_SIZE, tdv, POINTS_OFFS );
+    }
+
+    /**
+     * Capsule or polygon with any built-in primitive,
+     * all primitives are treated as convex polygons with a radius.
+     */
+    double getImpactTimeConvex(
+            Body o1, int o1pi, int type1, Body o2, int o2pi, int type2,
+            double frameTime, double impactTime, Impact impact )
+    {
+        /* Primitives overlapping at the frame start are not impacted. */
+        if (getConvexDistance(o1, o1pi, type1, o2, o2pi, type2, 0.0d) <= 0.0d)
+            return impactTime;
+        return getImpactTimeConvex(
+                o1, o1pi, type1, o2, o2pi, type2, 0.0d, Double.POSITIVE_INFINITY, frameTime, impactTime, impact );
+    }
+
+    /**
+     * Primitives should not touch before startTime,
+     * distance between them should not change faster than 'speed'.
+     */
+    private double getImpactTimeConvex(
+            Body o1, int o1pi, int type1, Body o2, int o2pi, int type2,
+            double startTime, double speed, double frameTime, double impactTime, Impact impact )
+    {
+        /* Find the minimum distance first, the same way as for the balls,
+         * distance is a convex function of time for the linear movement.
+         */
+        double t1 = 0.0d;
+        double t2 = frameTime;
+        double t11 = (t2 - (t2 - t1)/GSC);
+        double t22 = (t1 + (t2 - t1)/GSC);
+        double d11 = getConvexDistance( o1, o1pi, type1, o2, o2pi, type2, t11 );
+        double d22 = getConvexDistance( o1, o1pi, type1, o2, o2pi, type2, t22 );
+
+        for (;;)
+        {
+            if ((t2 - t1) < EPS)
+            {
+                t2 = (t2 + t1) / 2.0d;
+                break;
+            }
+
+            if (isApart(t1, t11, d11, t22, d22, t2, speed))
+                return impactTime;
+
+            if (d11 >= d22)
+            {
+                t1 = t11;
+                t11 = t22;
+                d11 = d22;
+                t22 = (t1 + (t2 - t1)/GSC);
+                d22 = getConvexDistance( o1, o1pi, type1, o2, o2pi, type2, t22 );
+            }
+            else
+            {
+                t2 = t22;
+                t22 = t11;
+                d22 = d11;
+                t11 = (t2 - (t2 - t1)/GSC);
+                d11 = getConvexDistance( o1, o1pi, type1, o2, o2pi, type2, t11 );
+            }
+        }
+
+        if (getConvexDistance(o1, o1pi, type1, o2, o2pi, type2, t2) > 0.0d)
+            return impactTime;
+
+        t1 = 0.0d;
+        while ((t2 - t1) >= EPS)
+        {
+            final double tt = (t1 + (t2 - t1) / 2.0d);
+            if ((tt < startTime) || (getConvexDistance(o1, o1pi, type1, o2, o2pi, type2, tt) > 0.0d))
+                t1 = tt;
+            else
+                t2 = tt;
+        }
+
+        if (t1 < impactTime)
+        {
+            /* Impact point is on the surface of the first primitive
+             * on the line between nearest points at 't1'.
+             */
+            final double [] tdv = m_tdv;
+            getConvexDistance( o1, o1pi, type1, o2, o2pi, type2, t1 );
+            final double px = Body.Point.getX( tdv, POINTS_OFFS );
+            final double py = Body.Point.getY( tdv, POINTS_OFFS );
+            final double dx = (Body.Point.getX(tdv, POINTS_OFFS+Body.Point.SIZE) - px);
+            final double dy = (Body.Point.getY(tdv, POINTS_OFFS+Body.Point.SIZE) - py);
+            final double length = Math.sqrt( dx*dx + dy*dy );
+            final double k = (length > 0.0d) ? (tdv[1] / length) : 0.0d;
+            impact.set( o1, o1pi, o2, o2pi, px + k*dx, py + k*dy );
+            impactTime = t1;
+        }
+        return impactTime;
+    }
+
+    boolean getImpactLineConvex( Impact impact, double [] dv, int offs )
+    {
+        /* Impact line is a vector between nearest points. */
+        final double [] tdv = m_tdv;
+        getConvexDistance( impact.o1, impact.o1pi, impact.o1.getPrType(impact.o1pi),
+                     impact.o2, impact.o2pi, impact.o2.getPrType(impact.o2pi), 0.0d );
+        final double dx = (Body.Point.getX(tdv, POINTS_OFFS+Body.Point.SIZE) - Body.Point.getX(tdv, POINTS_OFFS));
+        final double dy = (Body.Point.getY(tdv, POINTS_OFFS+Body.Point.SIZE) - Body.Point.getY(tdv, POINTS_OFFS));
+        if ((dx == 0.0d) && (dy == 0.0d))
+            return false;
+        dv[offs] = dx;
+        dv[offs+1] = dy;
+        return true;
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright (C) 2013 Sergey Zubarev, info@js-labs.org
+ *
+ * This file is a part of JS-CDE
+ * (Collision Detection Engine) framework.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jsl.cde;
+
+/**
+ * Read-only copy of the primitive positions of all bodies
+ * at the end of the CDE.run() call, published by the FrameBuffer.
+ * Primitives are in the body order (Body.getIndex()), data of the primitive
+ * is at getPrOffset() in the getData() in the layout of the primitive type,
+ * for example Body.Ball.getX(frame.getData(), frame.getPrOffset(idx)).
+ */
+public class Frame
+{
+    /* Reserved for the primitive position, the same limit as for the CDE internal buffers. */
+    private static final int MAX_PR_SIZE = 32;
+
+    private long m_step;
+    private double m_time;
+    private int m_bodies;
+    private int m_prs;
+    private int m_size;
+    private int [] m_prIndex;
+    private int [] m_prId;
+    private int [] m_prType;
+    private int [] m_prOffs;
+    private double [] m_data;
+
+    Frame()
+    {
+        m_prIndex = new int[16];
+        m_prId = new int[16];
+        m_prType = new int[16];
+        m_prOffs = new int[16];
+        m_data = new double[16 * MAX_PR_SIZE];
+    }
+
+    private void addPr( int idx, int id, int type, int offs )
+    {
+        if (m_prs == m_prIndex.length)
+        {
+            final int capacity = (m_prs * 2);
+            final int [] prIndex = new int[capacity];
+            final int [] prId = new int[capacity];
+            final int [] prType = new int[capacity];
+            final int [] prOffs = new int[capacity];
+            System.arraycopy( m_prIndex, 0, prIndex, 0, m_prs );
+            System.arraycopy( m_prId, 0, prId, 0, m_prs );
+            System.arraycopy( m_prType, 0, prType, 0, m_prs );
+            System.arraycopy( m_prOffs, 0, prOffs, 0, m_prs );
+            m_prIndex = prIndex;
+            m_prId = prId;
+            m_prType = prType;
+            m_prOffs = prOffs;
+        }
+        m_prIndex[m_prs] = idx;
+        m_prId[m_prs] = id;
+        m_prType[m_prs] = type;
+        m_prOffs[m_prs] = offs;
+        m_prs++;
+    }
+
+    void write( Body [] bodies, int count, long step, double time )
+    {
+        m_step = step;
+        m_time = time;
+        m_bodies = count;
+        m_prs = 0;
+        int offs = 0;
+        for (int idx=0; idx<count; idx++)
+        {
+            final Body body = bodies[idx];
+            final int prc = body.getPrCount();
+            for (int id=0; id<prc; id++)
+            {
+                if ((offs + MAX_PR_SIZE) > m_data.length)
+                {
+                    final double [] data = new double[m_data.length * 2];
+                    System.arraycopy( m_data, 0, data, 0, offs );
+                    m_data = data;
+                }
+                addPr( idx, id, body.getPrType(id), offs );
+                offs = body.getPrPosition( 0.0d, id, m_data, offs );
+            }
+        }
+        m_size = offs;
+    }
+
+    /**
+     * Returns the number of the run() calls done before the frame publication.
+     */
+    public final long getStep() { return m_step; }
+
+    /**
+     * Returns the sum of the run times of all run() calls.
+     */
+    public final double getTime() { return m_time; }
+
+    public final int getBodyCount() { return m_bodies; }
+    public final int getPrCount() { return m_prs; }
+
+    /**
+     * Returns the index of the body (Body.getIndex()) the primitive belongs to.
+     */
+    public final int getPrIndex( int pr ) { return m_prIndex[pr]; }
+    public final int getPrId( int pr ) { return m_prId[pr]; }
+    public final int getPrType( int pr ) { return m_prType[pr]; }
+    public final int getPrOffset( int pr ) { return m_prOffs[pr]; }
+
+    /**
+     * Returns the number of doubles used by the primitive position.
+     */
+    public final int getPrSize( int pr ) { return (((pr + 1) < m_prs) ? m_prOffs[pr+1] : m_size) - m_prOffs[pr]; }
+    public final double [] getData() { return m_data; }
+}
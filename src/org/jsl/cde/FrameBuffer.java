@@ -0,0 +1,78 @@
+/*
+ * Copyright (C) 2013 Sergey Zubarev, info@js-labs.org
+ *
+ * This file is a part of JS-CDE
+ * (Collision Detection Engine) framework.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jsl.cde;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Triple buffer of frames: the thread calling CDE.run() writes the next frame
+ * while one reader thread keeps the last acquired frame, the third frame
+ * is the latest published one. Frames are exchanged with a single atomic swap,
+ * so neither writer nor reader ever waits for the other.
+ *
+ * Reader usage:
+ *     final Frame frame = buffer.acquire();
+ *     ... frame is valid until the next acquire() ...
+ */
+public class FrameBuffer
+{
+    private static final int INDEX_MASK = 3;
+    private static final int FRESH = 4;
+
+    private final Frame [] m_frames;
+    private final AtomicInteger m_ready; /* index of the latest published frame, FRESH if not acquired yet */
+
+    /* Writer thread only */
+    private int m_back;
+    private long m_step;
+    private double m_time;
+
+    /* Reader thread only */
+    private int m_front;
+
+    public FrameBuffer()
+    {
+        m_frames = new Frame[] { new Frame(), new Frame(), new Frame() };
+        m_front = 0;
+        m_ready = new AtomicInteger( 1 );
+        m_back = 2;
+    }
+
+    void publish( CDE cde, double runTime )
+    {
+        m_step++;
+        m_time += runTime;
+        cde.writeFrame( m_frames[m_back], m_step, m_time );
+        m_back = (m_ready.getAndSet(m_back | FRESH) & INDEX_MASK);
+    }
+
+    /**
+     * Returns the latest published frame, or the same frame
+     * as the previous call if nothing was published since then.
+     * Frame step is 0 if nothing was published at all.
+     */
+    public final Frame acquire()
+    {
+        if ((m_ready.get() & FRESH) != 0)
+            m_front = (m_ready.getAndSet(m_front) & INDEX_MASK);
+        return m_frames[m_front];
+    }
+}
@@ -0,0 +1,42 @@
+/*
+ * Copyright (C) 2013 Sergey Zubarev, info@js-labs.org
+ *
+ * This file is a part of JS-CDE
+ * (Collision Detection Engine) framework.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jsl.cde;
+
+/**
+ * Ray cast hit layout in the double vector:
+ * hit point and the distance from the ray origin.
+ */
+public class Hit
+{
+    public static final int SIZE = 3;
+
+    public static int set( double [] dv, int offs, double x, double y, double distance )
+    {
+        dv[offs+0] = x;
+        dv[offs+1] = y;
+        dv[offs+2] = distance;
+        return (offs + SIZE);
+    }
+
+    public static double getX( double [] dv, int offs ) { return dv[offs+0]; }
+    public static double getY( double [] dv, int offs ) { return dv[offs+1]; }
+    public static double getDistance( double [] dv, int offs ) { return dv[offs+2]; }
+}
@@ -0,0 +1,45 @@
+/*
+ * Copyright (C) 2013 Sergey Zubarev, info@js-labs.org
+ *
+ * This file is a part of JS-CDE
+ * (Collision Detection Engine) framework.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jsl.cde;
+
+/**
+ * Impact found by the PairSolver: primitives o1[o1pi] and o2[o2pi]
+ * and the impact point (x, y).
+ */
+public class Impact
+{
+    public Body o1;
+    public int o1pi;
+    public Body o2;
+    public int o2pi;
+    public double x;
+    public double y;
+
+    public final void set( Body o1, int o1pi, Body o2, int o2pi, double x, double y )
+    {
+        this.o1 = o1;
+        this.o1pi = o1pi;
+        this.o2 = o2;
+        this.o2pi = o2pi;
+        this.x = x;
+        this.y = y;
+    }
+}
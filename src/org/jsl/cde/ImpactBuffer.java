@@ -0,0 +1,89 @@
+/*
+ * Copyright (C) 2013 Sergey Zubarev, info@js-labs.org
+ *
+ * This file is a part of JS-CDE
+ * (Collision Detection Engine) framework.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jsl.cde;
+
+/**
+ * Impact listener collecting impacts of the last CDE.run() call
+ * to the preallocated arrays, application drains them after run().
+ * Buffer is cleared at the beginning of every run(),
+ * arrays grow if there are more impacts than expected.
+ */
+public class ImpactBuffer implements ImpactListener
+{
+    private static final int DATA_SIZE = 3; /* time, x, y */
+
+    private double [] m_data;
+    private Body [] m_body;
+    private int [] m_id;
+    private int m_impacts;
+
+    public ImpactBuffer( int capacity )
+    {
+        if (capacity < 1)
+            capacity = 1;
+        m_data = new double[capacity * DATA_SIZE];
+        m_body = new Body[capacity * 2];
+        m_id = new int[capacity * 2];
+    }
+
+    public void onStep( double runTime )
+    {
+        for (int idx=0; idx<m_impacts*2; idx++)
+            m_body[idx] = null;
+        m_impacts = 0;
+    }
+
+    public void onImpact( double time, Body o1, int o1pi, Body o2, int o2pi, double x, double y )
+    {
+        if (m_impacts == m_id.length/2)
+        {
+            final int capacity = (m_impacts * 2);
+            final double [] data = new double[capacity * DATA_SIZE];
+            final Body [] body = new Body[capacity * 2];
+            final int [] id = new int[capacity * 2];
+            System.arraycopy( m_data, 0, data, 0, m_impacts*DATA_SIZE );
+            System.arraycopy( m_body, 0, body, 0, m_impacts*2 );
+            System.arraycopy( m_id, 0, id, 0, m_impacts*2 );
+            m_data = data;
+            m_body = body;
+            m_id = id;
+        }
+
+        final int offs = (m_impacts * DATA_SIZE);
+        m_data[offs] = time;
+        m_data[offs+1] = x;
+        m_data[offs+2] = y;
+        m_body[m_impacts*2] = o1;
+        m_body[m_impacts*2+1] = o2;
+        m_id[m_impacts*2] = o1pi;
+        m_id[m_impacts*2+1] = o2pi;
+        m_impacts++;
+    }
+
+    public final int getCount() { return m_impacts; }
+    public final double getTime( int idx ) { return m_data[idx*DATA_SIZE]; }
+    public final double getX( int idx ) { return m_data[idx*DATA_SIZE+1]; }
+    public final double getY( int idx ) { return m_data[idx*DATA_SIZE+2]; }
+    public final Body getBody1( int idx ) { return m_body[idx*2]; }
+    public final int getId1( int idx ) { return m_id[idx*2]; }
+    public final Body getBody2( int idx ) { return m_body[idx*2+1]; }
+    public final int getId2( int idx ) { return m_id[idx*2+1]; }
+}
@@ -0,0 +1,36 @@
+/*
+ * Copyright (C) 2013 Sergey Zubarev, info@js-labs.org
+ *
+ * This file is a part of JS-CDE
+ * (Collision Detection Engine) framework.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jsl.cde;
+
+public interface ImpactListener
+{
+    /**
+     * Called at the beginning of every CDE.run().
+     */
+    void onStep( double runTime );
+
+    /**
+     * Called after the impact is resolved,
+     * time is a time passed from the beginning of the step,
+     * (x, y) is an impact point.
+     */
+    void onImpact( double time, Body o1, int o1pi, Body o2, int o2pi, double x, double y );
+}
@@ -0,0 +1,210 @@
+/*
+ * Copyright (C) 2013 Sergey Zubarev, info@js-labs.org
+ *
+ * This file is a part of JS-CDE
+ * (Collision Detection Engine) framework.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jsl.cde;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Append-only binary log of the CDE steps and impacts.
+ * Log starts with the world snapshot (see CDE.save()) followed by records:
+ * <pre>
+ * STEP:   | type (byte) | runTime (double) |
+ * IMPACT: | type (byte) | time (double) | o1 (int) | o1pi (int) | o2 (int) | o2pi (int) | x (double) | y (double) |
+ * </pre>
+ * Objects are identified by their indexes in the CDE,
+ * so bodies should not be added or removed while log is attached.
+ * Records are collected in the preallocated direct buffer,
+ * full buffer is written to the channel by the separate thread
+ * while the simulation thread fills another one.
+ */
+public class ImpactLog implements ImpactListener
+{
+    static final byte RECORD_STEP = 1;
+    static final byte RECORD_IMPACT = 2;
+    static final int RECORD_STEP_SIZE = (1 + 8);
+    static final int RECORD_IMPACT_SIZE = (1 + 8 + 4*4 + 8*2);
+
+    private final CDE m_cde;
+    private final FileChannel m_channel;
+    private final Thread m_writer;
+
+    private final Object m_lock;
+    private ByteBuffer m_buf;     /* filled by the simulation thread */
+    private ByteBuffer m_spare;   /* null while writer thread writes it */
+    private ByteBuffer m_pending; /* buffer to be written */
+    private IOException m_error;
+    private boolean m_closed;
+
+    private void run_i()
+    {
+        for (;;)
+        {
+            ByteBuffer buf;
+            synchronized (m_lock)
+            {
+                while ((m_pending == null) && !m_closed)
+                {
+                    try { m_lock.wait(); }
+                    catch (InterruptedException ex)
+                    { /* Writer stops only when log is closed. */ }
+                }
+
+                if (m_pending == null)
+                    break;
+                buf = m_pending;
+                m_pending = null;
+            }
+
+            IOException error = null;
+            try
+            {
+                while (buf.hasRemaining())
+                    m_channel.write( buf );
+            }
+            catch (IOException ex)
+            {
+                error = ex;
+            }
+
+            buf.clear();
+            synchronized (m_lock)
+            {
+                if ((error != null) && (m_error == null))
+                    m_error = error;
+                m_spare = buf;
+                m_lock.notifyAll();
+            }
+        }
+    }
+
+    private void flush_i()
+    {
+        m_buf.flip();
+        boolean interrupted = false;
+        synchronized (m_lock)
+        {
+            while (m_spare == null)
+            {
+                try { m_lock.wait(); }
+                catch (InterruptedException ex)
+                { interrupted = true; }
+            }
+
+            if (m_error != null)
+                throw new RuntimeException( "Impact log write failed", m_error );
+
+            m_pending = m_buf;
+            m_buf = m_spare;
+            m_spare = null;
+            m_lock.notifyAll();
+        }
+
+        if (interrupted)
+            Thread.currentThread().interrupt();
+    }
+
+    /**
+     * Writes the current world snapshot to the channel
+     * and starts logging of the CDE steps.
+     */
+    public ImpactLog( CDE cde, FileChannel channel, int bufferSize ) throws IOException
+    {
+        if (bufferSize < RECORD_IMPACT_SIZE)
+            throw new IllegalArgumentException( "Buffer size is too small: " + bufferSize );
+
+        m_cde = cde;
+        m_channel = channel;
+        m_lock = new Object();
+        m_buf = ByteBuffer.allocateDirect( bufferSize );
+        m_spare = ByteBuffer.allocateDirect( bufferSize );
+
+        cde.save( channel );
+
+        m_writer = new Thread( new Runnable() { public void run() { run_i(); } }, "ImpactLog writer" );
+        m_writer.setDaemon( true );
+        m_writer.start();
+
+        cde.setImpactListener( this );
+    }
+
+    public void onStep( double runTime )
+    {
+        if (m_buf.remaining() < RECORD_STEP_SIZE)
+            flush_i();
+        m_buf.put( RECORD_STEP );
+        m_buf.putDouble( runTime );
+    }
+
+    public void onImpact( double time, Body o1, int o1pi, Body o2, int o2pi, double x, double y )
+    {
+        if (m_buf.remaining() < RECORD_IMPACT_SIZE)
+            flush_i();
+        m_buf.put( RECORD_IMPACT );
+        m_buf.putDouble( time );
+        m_buf.putInt( o1.m_idx );
+        m_buf.putInt( o1pi );
+        m_buf.putInt( o2.m_idx );
+        m_buf.putInt( o2pi );
+        m_buf.putDouble( x );
+        m_buf.putDouble( y );
+    }
+
+    /**
+     * Detaches log from the CDE, writes all collected records
+     * and stops the writer thread. Channel is not closed.
+     */
+    public void close() throws IOException
+    {
+        if (m_cde.getImpactListener() == this)
+            m_cde.setImpactListener( null );
+
+        if (m_buf.position() > 0)
+            flush_i();
+
+        synchronized (m_lock)
+        {
+            m_closed = true;
+            m_lock.notifyAll();
+        }
+
+        boolean interrupted = false;
+        for (;;)
+        {
+            try
+            {
+                m_writer.join();
+                break;
+            }
+            catch (InterruptedException ex)
+            {
+                interrupted = true;
+            }
+        }
+
+        if (interrupted)
+            Thread.currentThread().interrupt();
+
+        if (m_error != null)
+            throw m_error;
+    }
+}
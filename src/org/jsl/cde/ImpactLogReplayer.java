@@ -0,0 +1,168 @@
+/*
+ * Copyright (C) 2013 Sergey Zubarev, info@js-labs.org
+ *
+ * This file is a part of JS-CDE
+ * (Collision Detection Engine) framework.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jsl.cde;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Loads the world from the log written by the ImpactLog
+ * and re-runs it step by step, every impact found by the CDE
+ * should exactly match the impact from the log.
+ * Does not wait between steps, so replay runs as fast as possible.
+ */
+public class ImpactLogReplayer implements ImpactListener
+{
+    private final CDE m_cde;
+    private final ReadableByteChannel m_channel;
+    private final ByteBuffer m_buf;
+    private boolean m_eof;
+    private long m_steps;
+    private long m_impacts;
+
+    /* Ensures there are at least 'size' bytes available in the buffer,
+     * returns false if log ended before.
+     */
+    private boolean ensure( int size ) throws IOException
+    {
+        if (m_buf.remaining() >= size)
+            return true;
+
+        m_buf.compact();
+        while (!m_eof && (m_buf.position() < size))
+        {
+            if (m_channel.read(m_buf) < 0)
+                m_eof = true;
+        }
+        m_buf.flip();
+        return (m_buf.remaining() >= size);
+    }
+
+    private String getPosition()
+    {
+        return "step " + m_steps + ", impact " + m_impacts;
+    }
+
+    /**
+     * Loads the world snapshot into the cde, bodies are created by the loader.
+     */
+    public ImpactLogReplayer( CDE cde, ReadableByteChannel channel, Body.Loader loader, int bufferSize ) throws IOException
+    {
+        if (bufferSize < ImpactLog.RECORD_IMPACT_SIZE)
+            throw new IllegalArgumentException( "Buffer size is too small: " + bufferSize );
+
+        m_cde = cde;
+        m_channel = channel;
+        m_buf = ByteBuffer.allocateDirect( bufferSize );
+        m_buf.flip();
+
+        cde.load( channel, loader );
+    }
+
+    public final CDE getCDE()
+    {
+        return m_cde;
+    }
+
+    /**
+     * Replays next step from the log.
+     * Returns false if there are no more steps in the log,
+     * throws RuntimeException if impacts does not match.
+     */
+    public boolean step() throws IOException
+    {
+        if (!ensure(ImpactLog.RECORD_STEP_SIZE))
+        {
+            if (m_buf.hasRemaining())
+                throw new IOException( "Log is truncated at " + getPosition() );
+            return false;
+        }
+
+        final byte type = m_buf.get();
+        if (type != ImpactLog.RECORD_STEP)
+            throw new IOException( "Unexpected record type " + type + " at " + getPosition() );
+
+        final double runTime = m_buf.getDouble();
+        final ImpactListener impactListener = m_cde.getImpactListener();
+        m_cde.setImpactListener( this );
+        try
+        {
+            m_cde.run( runTime );
+        }
+        finally
+        {
+            m_cde.setImpactListener( impactListener );
+        }
+
+        if (ensure(1) && (m_buf.get(m_buf.position()) == ImpactLog.RECORD_IMPACT))
+            throw new RuntimeException( "Impact from the log was not found at " + getPosition() );
+
+        m_steps++;
+        m_impacts = 0;
+        return true;
+    }
+
+    /**
+     * Replays all steps, returns number of steps replayed.
+     */
+    public long replay() throws IOException
+    {
+        while (step());
+        return m_steps;
+    }
+
+    public void onStep( double runTime )
+    {
+        /* Step record is already read by step(). */
+    }
+
+    public void onImpact( double time, Body o1, int o1pi, Body o2, int o2pi, double x, double y )
+    {
+        boolean match;
+        try
+        {
+            match = (ensure(ImpactLog.RECORD_IMPACT_SIZE) && (m_buf.get() == ImpactLog.RECORD_IMPACT));
+        }
+        catch (IOException ex)
+        {
+            throw new RuntimeException( ex );
+        }
+
+        if (match)
+        {
+            match = ((m_buf.getDouble() == time) &&
+                     (m_buf.getInt() == o1.m_idx) &&
+                     (m_buf.getInt() == o1pi) &&
+                     (m_buf.getInt() == o2.m_idx) &&
+                     (m_buf.getInt() == o2pi) &&
+                     (m_buf.getDouble() == x) &&
+                     (m_buf.getDouble() == y));
+        }
+
+        if (!match)
+        {
+            throw new RuntimeException( "Impact " + o1.m_idx + "[" + o1pi + "]-" + o2.m_idx + "[" + o2pi + "]" +
+                    " at " + time + " does not match the log at " + getPosition() );
+        }
+        m_impacts++;
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2013 Sergey Zubarev, info@js-labs.org
+ *
+ * This file is a part of JS-CDE
+ * (Collision Detection Engine) framework.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jsl.cde;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Single producer single consumer ring of impacts,
+ * producer is the thread calling CDE.run(), consumer is any other thread.
+ * Record contains the step number (counted from 1), impact time, impact point,
+ * body indices (Body.getIndex() at the impact time) and primitive ids.
+ * Producer never waits: if the ring is full then the impact is dropped
+ * and counted (see getDropped()).
+ *
+ * Consumer usage:
+ *     final int records = ring.poll();
+ *     for (int idx=0; idx<records; idx++)
+ *         ... ring.getTime(idx) ...
+ *     ring.release( records );
+ */
+public class ImpactRing implements ImpactListener
+{
+    private static final int DATA_SIZE = 3; /* time, x, y */
+    private static final int IDS_SIZE = 4; /* index1, id1, index2, id2 */
+
+    private final int m_mask;
+    private final long [] m_step;
+    private final double [] m_data;
+    private final int [] m_ids;
+    private final AtomicLong m_head;
+    private final AtomicLong m_tail;
+    private final AtomicLong m_dropped;
+
+    /* Producer thread only */
+    private long m_producerStep;
+    private long m_producerHead;
+    private long m_tailCache;
+
+    /* Consumer thread only */
+    private long m_consumerTail;
+
+    public ImpactRing( int capacity )
+    {
+        int size = 1;
+        while (size < capacity)
+            size <<= 1;
+        m_mask = (size - 1);
+        m_step = new long[size];
+        m_data = new double[size * DATA_SIZE];
+        m_ids = new int[size * IDS_SIZE];
+        m_head = new AtomicLong();
+        m_tail = new AtomicLong();
+        m_dropped = new AtomicLong();
+    }
+
+    public void onStep( double runTime )
+    {
+        m_producerStep++;
+    }
+
+    public void onImpact( double time, Body o1, int o1pi, Body o2, int o2pi, double x, double y )
+    {
+        final long head = m_producerHead;
+        if ((head - m_tailCache) > m_mask)
+        {
+            m_tailCache = m_tail.get();
+            if ((head - m_tailCache) > m_mask)
+            {
+                m_dropped.incrementAndGet();
+                return;
+            }
+        }
+
+        final int slot = (int) (head & m_mask);
+        m_step[slot] = m_producerStep;
+        m_data[slot*DATA_SIZE] = time;
+        m_data[slot*DATA_SIZE+1] = x;
+        m_data[slot*DATA_SIZE+2] = y;
+        m_ids[slot*IDS_SIZE] = o1.getIndex();
+        m_ids[slot*IDS_SIZE+1] = o1pi;
+        m_ids[slot*IDS_SIZE+2] = o2.getIndex();
+        m_ids[slot*IDS_SIZE+3] = o2pi;
+        m_producerHead = (head + 1);
+        m_head.lazySet( head + 1 );
+    }
+
+    /**
+     * Returns the number of records available to the consumer.
+     */
+    public final int poll()
+    {
+        return (int) (m_head.get() - m_consumerTail);
+    }
+
+    private int getSlot( int idx )
+    {
+        return (int) ((m_consumerTail + idx) & m_mask);
+    }
+
+    public final long getStep( int idx ) { return m_step[getSlot(idx)]; }
+    public final double getTime( int idx ) { return m_data[getSlot(idx)*DATA_SIZE]; }
+    public final double getX( int idx ) { return m_data[getSlot(idx)*DATA_SIZE+1]; }
+    public final double getY( int idx ) { return m_data[getSlot(idx)*DATA_SIZE+2]; }
+    public final int getIndex1( int idx ) { return m_ids[getSlot(idx)*IDS_SIZE]; }
+    public final int getId1( int idx ) { return m_ids[getSlot(idx)*IDS_SIZE+1]; }
+    public final int getIndex2( int idx ) { return m_ids[getSlot(idx)*IDS_SIZE+2]; }
+    public final int getId2( int idx ) { return m_ids[getSlot(idx)*IDS_SIZE+3]; }
+
+    /**
+     * Returns first 'records' records to the producer.
+     */
+    public final void release( int records )
+    {
+        m_consumerTail += records;
+        m_tail.lazySet( m_consumerTail );
+    }
+
+    /**
+     * Returns the number of impacts dropped because the ring was full.
+     */
+    public final long getDropped()
+    {
+        return m_dropped.get();
+    }
+}
@@ -0,0 +1,140 @@
+/*
+ * Copyright (C) 2013 Sergey Zubarev, info@js-labs.org
+ *
+ * This file is a part of JS-CDE
+ * (Collision Detection Engine) framework.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jsl.cde;
+
+import java.util.Arrays;
+
+/**
+ * Distances between the primitives of the body pairs found by the impact search,
+ * used by the hybrid mode to skip the pairs which are still too far apart
+ * without getting the primitive positions. Distance is stored together with
+ * the Body.m_travel of both bodies, the current distance is not less than
+ * the stored one minus the distance the bodies travelled since then.
+ * Entries are keyed by the body indexes and primitive ids,
+ * so the cache should be cleared when the body indexes change
+ * or the bodies are moved not by the CDE.run().
+ */
+final class PairCache
+{
+    private static final int MAX_BODIES = (1 << 21);
+    private static final int MAX_PRIMITIVES = (1 << 11);
+    private static final int MAX_CAPACITY = (1 << 20);
+
+    private long [] m_keys; /* 0 is a free slot */
+    private double [] m_values; /* distance + travel of both bodies */
+    private int m_size;
+
+    PairCache()
+    {
+        m_keys = new long[64];
+        m_values = new double[64];
+    }
+
+    /**
+     * Returns the key of the primitives pair, 0 if the pair can not be cached.
+     */
+    static long getKey( Body o1, int o1pi, Body o2, int o2pi )
+    {
+        if ((o1.m_idx < 0) || (o1.m_idx >= MAX_BODIES) || (o2.m_idx < 0) || (o2.m_idx >= MAX_BODIES) ||
+            (o1pi >= MAX_PRIMITIVES) || (o2pi >= MAX_PRIMITIVES) || (o1.m_idx == o2.m_idx))
+        {
+            return 0;
+        }
+        return ((((long) o1.m_idx) << 43) | (((long) o2.m_idx) << 22) | (((long) o1pi) << 11) | o2pi);
+    }
+
+    private static int getSlot( long key, int mask )
+    {
+        long h = (key * 0x9E3779B97F4A7C15L);
+        h ^= (h >>> 32);
+        return (((int) h) & mask);
+    }
+
+    /**
+     * Returns the lower bound of the current distance between primitives,
+     * Double.NaN if there is no entry for the key.
+     */
+    double getDistance( long key, Body o1, Body o2 )
+    {
+        final long [] keys = m_keys;
+        final int mask = (keys.length - 1);
+        for (int slot=getSlot(key, mask);; slot=((slot+1) & mask))
+        {
+            final long k = keys[slot];
+            if (k == key)
+                return (m_values[slot] - o1.m_travel - o2.m_travel);
+            if (k == 0)
+                return Double.NaN;
+        }
+    }
+
+    void put( long key, Body o1, Body o2, double distance )
+    {
+        if ((m_size * 2) >= m_keys.length)
+        {
+            if (m_keys.length < MAX_CAPACITY)
+                grow();
+            else
+                clear();
+        }
+
+        final long [] keys = m_keys;
+        final int mask = (keys.length - 1);
+        int slot = getSlot( key, mask );
+        while ((keys[slot] != 0) && (keys[slot] != key))
+            slot = ((slot + 1) & mask);
+        if (keys[slot] == 0)
+        {
+            keys[slot] = key;
+            m_size++;
+        }
+        m_values[slot] = (distance + o1.m_travel + o2.m_travel);
+    }
+
+    private void grow()
+    {
+        final long [] keys = m_keys;
+        final double [] values = m_values;
+        m_keys = new long[keys.length * 2];
+        m_values = new double[keys.length * 2];
+        final int mask = (m_keys.length - 1);
+        for (int idx=0; idx<keys.length; idx++)
+        {
+            if (keys[idx] != 0)
+            {
+                int slot = getSlot( keys[idx], mask );
+                while (m_keys[slot] != 0)
+                    slot = ((slot + 1) & mask);
+                m_keys[slot] = keys[idx];
+                m_values[slot] = values[idx];
+            }
+        }
+    }
+
+    void clear()
+    {
+        if (m_size > 0)
+        {
+            Arrays.fill( m_keys, 0 );
+            m_size = 0;
+        }
+    }
+}
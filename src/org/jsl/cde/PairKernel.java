@@ -0,0 +1,159 @@
+/*
+ * Copyright (C) 2013 Sergey Zubarev, info@js-labs.org
+ *
+ * This file is a part of JS-CDE
+ * (Collision Detection Engine) framework.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jsl.cde;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Array;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Impact time search used by the CDE, see DefaultPairKernel.
+ */
+abstract class PairKernel
+{
+    private static final Logger s_logger = Logger.getLogger( "org.jsl.cde" );
+    private static byte [] s_classBytes;
+
+    /* Copy constructors by the first and then by the second body class,
+     * ClassValue keeps the value with the class, so the entries
+     * go away with the classes when their class loader is unloaded.
+     */
+    private static final ClassValue<ClassValue<Constructor<?>>> s_copies = new ClassValue<ClassValue<Constructor<?>>>()
+    {
+        protected ClassValue<Constructor<?>> computeValue( Class<?> type1 )
+        {
+            return new ClassValue<Constructor<?>>()
+            {
+                protected Constructor<?> computeValue( Class<?> type2 )
+                {
+                    try
+                    {
+                        if (s_classBytes == null)
+                            s_classBytes = readClassBytes();
+                        return defineCopy( s_classBytes ).getDeclaredConstructor( PairSolver[].class );
+                    }
+                    catch (Exception ex)
+                    {
+                        throw new IllegalStateException( ex );
+                    }
+                }
+            };
+        }
+    };
+    private static boolean s_failed;
+
+    /**
+     * Returns time of the earliest impact of the bodies primitives
+     * if less than impactTime, impactTime otherwise.
+     */
+    abstract double getImpactTime( Body o1, Body o2, double frameTime, double impactTime, Impact impact );
+
+    /**
+     * Same as getImpactTime() for the primitives o1[o1pi] and o2[o2pi].
+     */
+    abstract double getImpactTime(
+            Body o1, int o1pi, Body o2, int o2pi, double frameTime, double impactTime, Impact impact );
+
+    /**
+     * Same as getImpactTime(), but the built-in primitive pairs
+     * being farther than 'travel' from each other at frameTime
+     * are skipped without search, 'travel' should be not less
+     * than the distance primitives can come closer in frameTime.
+     * Distances between the primitives are kept in the cache if it is not null.
+     */
+    abstract double getImpactTimeHybrid(
+            Body o1, Body o2, double frameTime, double travel, double impactTime, Impact impact, PairCache cache );
+
+    abstract double getImpactTimeHybrid(
+            Body o1, int o1pi, Body o2, int o2pi, double frameTime, double travel,
+            double impactTime, Impact impact, PairCache cache );
+
+    private static byte [] readClassBytes() throws IOException
+    {
+        final InputStream in = DefaultPairKernel.class.getResourceAsStream( "DefaultPairKernel.class" );
+        if (in == null)
+            throw new IOException( "DefaultPairKernel.class not found" );
+        try
+        {
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            final byte [] buf = new byte[4096];
+            int bytes;
+            while ((bytes = in.read(buf)) > 0)
+                out.write( buf, 0, bytes );
+            return out.toByteArray();
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+
+    /**
+     * Defines a hidden class from the DefaultPairKernel class file.
+     * Lookup.defineHiddenClass() is available since JDK 15,
+     * it is called through the reflection so the engine still builds
+     * and runs on the older JDK, just without the specialization.
+     */
+    private static Class<?> defineCopy( byte [] classBytes ) throws Exception
+    {
+        final Class<?> methodHandles = Class.forName( "java.lang.invoke.MethodHandles" );
+        final Class<?> lookupClass = Class.forName( "java.lang.invoke.MethodHandles$Lookup" );
+        final Class<?> optionClass = Class.forName( "java.lang.invoke.MethodHandles$Lookup$ClassOption" );
+        final Object options = Array.newInstance( optionClass, 0 );
+        final Method define = lookupClass.getMethod(
+                "defineHiddenClass", byte[].class, boolean.class, options.getClass() );
+        final Object lookup = methodHandles.getMethod( "lookup" ).invoke( null );
+        final Object hiddenLookup = define.invoke( lookup, classBytes, true, options );
+        return (Class<?>) lookupClass.getMethod( "lookupClass" ).invoke( hiddenLookup );
+    }
+
+    /**
+     * Returns a new instance of the DefaultPairKernel copy for the body classes pair,
+     * the copy class is defined once for the pair and kept with the body classes
+     * (so it goes away with them), it is shared by all CDE instances,
+     * so the compiled code is shared as well. Returns null if the copy
+     * can not be defined (class file is not available, JDK is older than 15 or so),
+     * the error is logged only once.
+     */
+    static synchronized PairKernel createCopy( Class<?> type1, Class<?> type2, PairSolver [] solvers )
+    {
+        if (s_failed)
+            return null;
+
+        try
+        {
+            final Constructor<?> constructor = s_copies.get( type1 ).get( type2 );
+            return (PairKernel) constructor.newInstance( (Object) solvers );
+        }
+        catch (Throwable ex)
+        {
+            /* LinkageError or so as well, the shared kernel is used then. */
+            s_failed = true;
+            s_logger.log( Level.WARNING, "Pair kernel specialization is not available", ex );
+            return null;
+        }
+    }
+}
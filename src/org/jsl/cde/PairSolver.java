@@ -0,0 +1,59 @@
+/*
+ * Copyright (C) 2013 Sergey Zubarev, info@js-labs.org
+ *
+ * This file is a part of JS-CDE
+ * (Collision Detection Engine) framework.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jsl.cde;
+
+/**
+ * Narrow phase for a pair of primitive types, see CDE.setPairSolver().
+ * Solver instance is used by one CDE only,
+ * so it can keep the temporary data in its fields.
+ */
+public abstract class PairSolver
+{
+    /* Built-in solvers are run by the PairKernel directly,
+     * negative id means primitives are swapped.
+     */
+    static final int BUILTIN_NONE = 0;
+    static final int BUILTIN_SS = 1;
+    static final int BUILTIN_SB = 2;
+    static final int BUILTIN_BB = 3;
+    static final int BUILTIN_CONVEX = 4;
+
+    /**
+     * Returns time of the first impact of the primitives o1[o1pi] and o2[o2pi]
+     * on the interval [0, frameTime] and sets the impact if the time is less than
+     * impactTime, returns impactTime otherwise. Primitives already overlapping
+     * at time 0 should not be reported, otherwise they would impact forever.
+     */
+    public abstract double getImpactTime(
+            Body o1, int o1pi, Body o2, int o2pi, double frameTime, double impactTime, Impact impact );
+
+    /**
+     * Called for the impact found by getImpactTime() when bodies are moved
+     * to the impact time. Writes the impact line (impulses are exchanged along it)
+     * to the dv[offs] and dv[offs+1], returns false if impulses should not be changed.
+     */
+    public abstract boolean getImpactLine( Impact impact, double [] dv, int offs );
+
+    int getBuiltinId()
+    {
+        return BUILTIN_NONE;
+    }
+}
@@ -0,0 +1,273 @@
+/*
+ * Copyright (C) 2013 Sergey Zubarev, info@js-labs.org
+ *
+ * This file is a part of JS-CDE
+ * (Collision Detection Engine) framework.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jsl.cde;
+
+import java.util.Arrays;
+
+/**
+ * Sensor overlap events of the last CDE.run() call.
+ * Begin event is reported when the sensor body starts to overlap
+ * other (not sensor) body, end event is reported when overlap ends
+ * or any of the bodies is removed. Body passing through the sensor
+ * during one run() gets both begin and end events. Buffer is reused by every run() call,
+ * so events should be processed before the next one.
+ */
+public class SensorEvents
+{
+    /* Overlapping pairs in the order they were found,
+     * with open addressing hash table of their positions.
+     */
+    private static class PairSet
+    {
+        public Body [] sensor;
+        public Body [] body;
+        public int size;
+        public int [] hash; /* position + 1, 0 is a free slot */
+
+        public PairSet()
+        {
+            sensor = new Body[16];
+            body = new Body[16];
+            hash = new int[32];
+        }
+
+        private static int getSlot( Body s, Body b, int mask )
+        {
+            int h = (System.identityHashCode(s) * 31 + System.identityHashCode(b));
+            h ^= (h >>> 16);
+            return (h & mask);
+        }
+
+        public boolean contains( Body s, Body b )
+        {
+            final int mask = (hash.length - 1);
+            for (int slot=getSlot(s, b, mask);; slot=((slot+1) & mask))
+            {
+                final int pos = hash[slot];
+                if (pos == 0)
+                    return false;
+                if ((sensor[pos-1] == s) && (body[pos-1] == b))
+                    return true;
+            }
+        }
+
+        private void insert( int pos )
+        {
+            final int mask = (hash.length - 1);
+            int slot = getSlot( sensor[pos], body[pos], mask );
+            while (hash[slot] != 0)
+                slot = ((slot + 1) & mask);
+            hash[slot] = (pos + 1);
+        }
+
+        public void add( Body s, Body b )
+        {
+            if (size == sensor.length)
+            {
+                final Body [] ns = new Body[size * 2];
+                final Body [] nb = new Body[size * 2];
+                System.arraycopy( sensor, 0, ns, 0, size );
+                System.arraycopy( body, 0, nb, 0, size );
+                sensor = ns;
+                body = nb;
+                hash = new int[size * 4];
+                for (int pos=0; pos<size; pos++)
+                    insert( pos );
+            }
+            sensor[size] = s;
+            body[size] = b;
+            insert( size );
+            size++;
+        }
+
+        public void clear()
+        {
+            for (int pos=0; pos<size; pos++)
+            {
+                sensor[pos] = null;
+                body[pos] = null;
+            }
+            Arrays.fill( hash, 0 );
+            size = 0;
+        }
+    }
+
+    private PairSet m_overlaps;
+    private PairSet m_spare;
+    private final PairSet m_touched; /* Pairs touched during the run() */
+
+    private Body [] m_sensor;
+    private Body [] m_body;
+    private boolean [] m_begin;
+    private int m_events;
+
+    SensorEvents()
+    {
+        m_overlaps = new PairSet();
+        m_spare = new PairSet();
+        m_touched = new PairSet();
+        m_sensor = new Body[16];
+        m_body = new Body[16];
+        m_begin = new boolean[16];
+    }
+
+    private void addEvent( Body sensor, Body body, boolean begin )
+    {
+        if (m_events == m_sensor.length)
+        {
+            final int newSize = (m_events * 2);
+            final Body [] ns = new Body[newSize];
+            final Body [] nb = new Body[newSize];
+            final boolean [] nbg = new boolean[newSize];
+            System.arraycopy( m_sensor, 0, ns, 0, m_events );
+            System.arraycopy( m_body, 0, nb, 0, m_events );
+            System.arraycopy( m_begin, 0, nbg, 0, m_events );
+            m_sensor = ns;
+            m_body = nb;
+            m_begin = nbg;
+        }
+        m_sensor[m_events] = sensor;
+        m_body[m_events] = body;
+        m_begin[m_events] = begin;
+        m_events++;
+    }
+
+    /* Called by the CDE: touch() for the pairs touched during the run(),
+     * then start(), overlap() for every overlapping pair, finish().
+     */
+
+    final void start()
+    {
+        for (int idx=0; idx<m_events; idx++)
+        {
+            m_sensor[idx] = null;
+            m_body[idx] = null;
+        }
+        m_events = 0;
+    }
+
+    final void overlap( Body sensor, Body body )
+    {
+        if (!m_overlaps.contains(sensor, body))
+            addEvent( sensor, body, true );
+        m_spare.add( sensor, body );
+    }
+
+    final void touch( Body sensor, Body body )
+    {
+        if (!m_touched.contains(sensor, body))
+            m_touched.add( sensor, body );
+    }
+
+    final boolean isTouched( Body sensor, Body body )
+    {
+        return m_touched.contains( sensor, body ) || m_overlaps.contains( sensor, body );
+    }
+
+    final void finish()
+    {
+        /* Body passed through the sensor during the run(),
+         * not overlapping it at the beginning and at the end.
+         */
+        final PairSet touched = m_touched;
+        for (int pos=0; pos<touched.size; pos++)
+        {
+            final Body sensor = touched.sensor[pos];
+            final Body body = touched.body[pos];
+            if (!m_overlaps.contains(sensor, body) && !m_spare.contains(sensor, body))
+            {
+                addEvent( sensor, body, true );
+                addEvent( sensor, body, false );
+            }
+        }
+        touched.clear();
+
+        final PairSet overlaps = m_overlaps;
+        for (int pos=0; pos<overlaps.size; pos++)
+        {
+            if (!m_spare.contains(overlaps.sensor[pos], overlaps.body[pos]))
+                addEvent( overlaps.sensor[pos], overlaps.body[pos], false );
+        }
+        overlaps.clear();
+        m_overlaps = m_spare;
+        m_spare = overlaps;
+    }
+
+    final boolean isEmpty()
+    {
+        return (m_overlaps.size == 0);
+    }
+
+    /**
+     * Forgets all overlaps, no end events will be reported for them.
+     */
+    final void reset()
+    {
+        start();
+        m_overlaps.clear();
+        m_touched.clear();
+    }
+
+    /* Current overlaps access for the snapshot. */
+
+    final int getOverlapCount()
+    {
+        return m_overlaps.size;
+    }
+
+    final Body getOverlapSensor( int idx )
+    {
+        return m_overlaps.sensor[idx];
+    }
+
+    final Body getOverlapBody( int idx )
+    {
+        return m_overlaps.body[idx];
+    }
+
+    final void addOverlap( Body sensor, Body body )
+    {
+        m_overlaps.add( sensor, body );
+    }
+
+    public final int getCount()
+    {
+        return m_events;
+    }
+
+    public final Body getSensor( int idx )
+    {
+        return m_sensor[idx];
+    }
+
+    public final Body getBody( int idx )
+    {
+        return m_body[idx];
+    }
+
+    /**
+     * Returns true for the begin overlap event, false for the end one.
+     */
+    public final boolean isBegin( int idx )
+    {
+        return m_begin[idx];
+    }
+}
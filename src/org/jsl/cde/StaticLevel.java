@@ -0,0 +1,464 @@
+/*
+ * Copyright (C) 2013 Sergey Zubarev, info@js-labs.org
+ *
+ * This file is a part of JS-CDE
+ * (Collision Detection Engine) framework.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jsl.cde;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Static level geometry (segments and balls) with a prebuilt uniform grid,
+ * read directly from the (usually memory mapped) buffer,
+ * primitives are never copied to the Java heap.
+ * Level is a body with a lot of primitives: segments have ids [0, segments),
+ * balls have ids [segments, segments + balls).
+ * <pre>
+ * +--------+----------------------+-------------------+--------------------+-----------------+
+ * | header | segments (4 doubles) | balls (3 doubles) | cells (cells+1 int) | items (int)    |
+ * +--------+----------------------+-------------------+--------------------+-----------------+
+ * </pre>
+ * Header is HEADER_SIZE bytes: magic, version, segments, balls, cols, rows, items (int),
+ * minX, minY, cellSize (double). Cell 'c' contains items [cells[c], cells[c+1]),
+ * every item is an id of the primitive overlapping the cell.
+ * All numbers are little endian.
+ */
+public class StaticLevel extends Body
+{
+    private static final int MAGIC = 0x4344454C; /* "CDEL" */
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 64;
+
+    private static final int SEGMENT_SIZE = (4 * 8);
+    private static final int BALL_SIZE = (3 * 8);
+
+    private final ByteBuffer m_buf;
+    private final int m_segments;
+    private final int m_balls;
+    private final int m_cols;
+    private final int m_rows;
+    private final double m_minX;
+    private final double m_minY;
+    private final double m_cellSize;
+    private final int m_ballsOffs;
+    private final int m_cellsOffs;
+    private final int m_itemsOffs;
+
+    private static int getCell( double v, double min, double cellSize, int cells )
+    {
+        final double c = ((v - min) / cellSize);
+        if (c <= 0.0d)
+            return 0;
+        if (c >= cells)
+            return (cells - 1);
+        return (int) c;
+    }
+
+    /* Primitive bounding box, infinite for the primitive types
+     * not known to the engine.
+     */
+    static double getMinX( int type, double [] dv, int offs )
+    {
+        switch (type)
+        {
+            case SEGMENT: return Math.min( Segment.getX1(dv, offs), Segment.getX2(dv, offs) );
+            case CAPSULE: return (Math.min(Capsule.getX1(dv, offs), Capsule.getX2(dv, offs)) - Capsule.getR(dv, offs));
+            case BALL: return (Ball.getX(dv, offs) - Ball.getR(dv, offs));
+            case POLYGON:
+            {
+                double v = Double.POSITIVE_INFINITY;
+                for (int idx=Polygon.getVertices(dv, offs)-1; idx>=0; idx--)
+                    v = Math.min( v, Polygon.getX(dv, offs, idx) );
+                return v;
+            }
+            default: return Double.NEGATIVE_INFINITY;
+        }
+    }
+
+    static double getMinY( int type, double [] dv, int offs )
+    {
+        switch (type)
+        {
+            case SEGMENT: return Math.min( Segment.getY1(dv, offs), Segment.getY2(dv, offs) );
+            case CAPSULE: return (Math.min(Capsule.getY1(dv, offs), Capsule.getY2(dv, offs)) - Capsule.getR(dv, offs));
+            case BALL: return (Ball.getY(dv, offs) - Ball.getR(dv, offs));
+            case POLYGON:
+            {
+                double v = Double.POSITIVE_INFINITY;
+                for (int idx=Polygon.getVertices(dv, offs)-1; idx>=0; idx--)
+                    v = Math.min( v, Polygon.getY(dv, offs, idx) );
+                return v;
+            }
+            default: return Double.NEGATIVE_INFINITY;
+        }
+    }
+
+    static double getMaxX( int type, double [] dv, int offs )
+    {
+        switch (type)
+        {
+            case SEGMENT: return Math.max( Segment.getX1(dv, offs), Segment.getX2(dv, offs) );
+            case CAPSULE: return (Math.max(Capsule.getX1(dv, offs), Capsule.getX2(dv, offs)) + Capsule.getR(dv, offs));
+            case BALL: return (Ball.getX(dv, offs) + Ball.getR(dv, offs));
+            case POLYGON:
+            {
+                double v = Double.NEGATIVE_INFINITY;
+                for (int idx=Polygon.getVertices(dv, offs)-1; idx>=0; idx--)
+                    v = Math.max( v, Polygon.getX(dv, offs, idx) );
+                return v;
+            }
+            default: return Double.POSITIVE_INFINITY;
+        }
+    }
+
+    static double getMaxY( int type, double [] dv, int offs )
+    {
+        switch (type)
+        {
+            case SEGMENT: return Math.max( Segment.getY1(dv, offs), Segment.getY2(dv, offs) );
+            case CAPSULE: return (Math.max(Capsule.getY1(dv, offs), Capsule.getY2(dv, offs)) + Capsule.getR(dv, offs));
+            case BALL: return (Ball.getY(dv, offs) + Ball.getR(dv, offs));
+            case POLYGON:
+            {
+                double v = Double.NEGATIVE_INFINITY;
+                for (int idx=Polygon.getVertices(dv, offs)-1; idx>=0; idx--)
+                    v = Math.max( v, Polygon.getY(dv, offs, idx) );
+                return v;
+            }
+            default: return Double.POSITIVE_INFINITY;
+        }
+    }
+
+    /**
+     * Writes level to the channel,
+     * segments are in the Body.Segment layout, balls are in the Body.Ball layout.
+     */
+    public static void write( WritableByteChannel channel,
+                              double [] segments, int segmentCount, double [] balls, int ballCount,
+                              double cellSize ) throws IOException
+    {
+        if (cellSize <= 0.0d)
+            throw new IllegalArgumentException( "Invalid cell size " + cellSize );
+
+        final int prCount = (segmentCount + ballCount);
+        final double [] dv = new double[4];
+        double minX = Double.MAX_VALUE;
+        double minY = Double.MAX_VALUE;
+        double maxX = -Double.MAX_VALUE;
+        double maxY = -Double.MAX_VALUE;
+
+        for (int id=0; id<prCount; id++)
+        {
+            final int type = getPosition( segments, segmentCount, balls, id, dv );
+            minX = Math.min( minX, getMinX(type, dv, 0) );
+            minY = Math.min( minY, getMinY(type, dv, 0) );
+            maxX = Math.max( maxX, getMaxX(type, dv, 0) );
+            maxY = Math.max( maxY, getMaxY(type, dv, 0) );
+        }
+
+        if (prCount == 0)
+        {
+            minX = 0.0d;
+            minY = 0.0d;
+            maxX = 0.0d;
+            maxY = 0.0d;
+        }
+
+        /* Grid and file sizes are computed in long, the cell size
+         * too small for the level should not overflow them.
+         */
+        final long longCols = Math.max( 1L, (long) Math.ceil((maxX - minX) / cellSize) );
+        final long longRows = Math.max( 1L, (long) Math.ceil((maxY - minY) / cellSize) );
+        final long cellCount = (longCols * longRows + 1);
+        final long primitivesSize = (HEADER_SIZE + (long) segmentCount*SEGMENT_SIZE + (long) ballCount*BALL_SIZE);
+        if ((longCols > Integer.MAX_VALUE) || (longRows > Integer.MAX_VALUE)
+                || ((primitivesSize + cellCount*4) > Integer.MAX_VALUE))
+            throw new IllegalArgumentException( "Cell size " + cellSize + " is too small for the level" );
+
+        final int cols = (int) longCols;
+        final int rows = (int) longRows;
+        final int [] cells = new int[(int) cellCount];
+
+        /* First pass counts items in every cell, second one fills them. */
+        long itemCount = 0;
+        for (int id=0; id<prCount; id++)
+        {
+            final int type = getPosition( segments, segmentCount, balls, id, dv );
+            final int cx1 = getCell( getMinX(type, dv, 0), minX, cellSize, cols );
+            final int cy1 = getCell( getMinY(type, dv, 0), minY, cellSize, rows );
+            final int cx2 = getCell( getMaxX(type, dv, 0), minX, cellSize, cols );
+            final int cy2 = getCell( getMaxY(type, dv, 0), minY, cellSize, rows );
+            itemCount += ((long) (cx2 - cx1 + 1) * (cy2 - cy1 + 1));
+            if (itemCount > Integer.MAX_VALUE)
+                throw new IllegalArgumentException( "Cell size " + cellSize + " is too small for the level" );
+            for (int cy=cy1; cy<=cy2; cy++)
+                for (int cx=cx1; cx<=cx2; cx++)
+                    cells[cy*cols + cx + 1]++;
+        }
+
+        for (int idx=1; idx<cells.length; idx++)
+            cells[idx] += cells[idx-1];
+
+        final int items = cells[cells.length-1];
+        final int [] itemArray = new int[items];
+        final int [] fill = new int[cols*rows];
+        System.arraycopy( cells, 0, fill, 0, fill.length );
+
+        for (int id=0; id<prCount; id++)
+        {
+            final int type = getPosition( segments, segmentCount, balls, id, dv );
+            final int cx1 = getCell( getMinX(type, dv, 0), minX, cellSize, cols );
+            final int cy1 = getCell( getMinY(type, dv, 0), minY, cellSize, rows );
+            final int cx2 = getCell( getMaxX(type, dv, 0), minX, cellSize, cols );
+            final int cy2 = getCell( getMaxY(type, dv, 0), minY, cellSize, rows );
+            for (int cy=cy1; cy<=cy2; cy++)
+                for (int cx=cx1; cx<=cx2; cx++)
+                    itemArray[fill[cy*cols + cx]++] = id;
+        }
+
+        final long size = (primitivesSize + (long) cells.length*4 + (long) items*4);
+        if (size > Integer.MAX_VALUE)
+            throw new IllegalArgumentException( "Level is too large (" + size + " bytes)" );
+        final ByteBuffer buf = ByteBuffer.allocateDirect( (int) size );
+        buf.order( ByteOrder.LITTLE_ENDIAN );
+        buf.putInt( MAGIC );
+        buf.putInt( VERSION );
+        buf.putInt( segmentCount );
+        buf.putInt( ballCount );
+        buf.putInt( cols );
+        buf.putInt( rows );
+        buf.putInt( items );
+        buf.putInt( 0 );
+        buf.putDouble( minX );
+        buf.putDouble( minY );
+        buf.putDouble( cellSize );
+        buf.position( HEADER_SIZE );
+
+        for (int idx=0; idx<segmentCount*4; idx++)
+            buf.putDouble( segments[idx] );
+        for (int idx=0; idx<ballCount*3; idx++)
+            buf.putDouble( balls[idx] );
+        for (int idx=0; idx<cells.length; idx++)
+            buf.putInt( cells[idx] );
+        for (int idx=0; idx<items; idx++)
+            buf.putInt( itemArray[idx] );
+
+        buf.flip();
+        while (buf.hasRemaining())
+            channel.write( buf );
+    }
+
+    private static int getPosition( double [] segments, int segmentCount, double [] balls, int id, double [] dv )
+    {
+        if (id < segmentCount)
+        {
+            final int offs = (id * 4);
+            Segment.set( dv, 0, segments[offs], segments[offs+1], segments[offs+2], segments[offs+3] );
+            return SEGMENT;
+        }
+        else
+        {
+            final int offs = ((id - segmentCount) * 3);
+            Ball.set( dv, 0, balls[offs], balls[offs+1], balls[offs+2] );
+            return BALL;
+        }
+    }
+
+    /**
+     * Maps the whole file written by StaticLevel.write(),
+     * mapped pages are shared between all processes using the same file.
+     */
+    public static StaticLevel map( FileChannel channel ) throws IOException
+    {
+        return new StaticLevel( channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()) );
+    }
+
+    public StaticLevel( ByteBuffer buf ) throws IOException
+    {
+        this( buf, DEFAULT_GROUPS );
+    }
+
+    /**
+     * Level is read from the buffer starting at index 0,
+     * position, limit and byte order of the buffer are not changed.
+     * IOException is thrown if the level data is not consistent.
+     */
+    public StaticLevel( ByteBuffer buf, int [] groups ) throws IOException
+    {
+        super( groups );
+        buf = buf.duplicate();
+        buf.order( ByteOrder.LITTLE_ENDIAN );
+
+        if ((buf.limit() < HEADER_SIZE) || (buf.getInt(0) != MAGIC))
+            throw new IOException( "Invalid level" );
+
+        final int version = buf.getInt( 4 );
+        if (version != VERSION)
+            throw new IOException( "Unsupported level version " + version );
+
+        m_buf = buf;
+        m_segments = buf.getInt( 8 );
+        m_balls = buf.getInt( 12 );
+        m_cols = buf.getInt( 16 );
+        m_rows = buf.getInt( 20 );
+        final int items = buf.getInt( 24 );
+        m_minX = buf.getDouble( 32 );
+        m_minY = buf.getDouble( 40 );
+        m_cellSize = buf.getDouble( 48 );
+
+        /* Sizes are checked in long, so huge counts do not overflow. */
+        final long ballsOffs = (HEADER_SIZE + ((long) m_segments)*SEGMENT_SIZE);
+        final long cellsOffs = (ballsOffs + ((long) m_balls)*BALL_SIZE);
+        final long itemsOffs = (cellsOffs + (((long) m_cols)*m_rows + 1)*4);
+        if ((m_segments < 0) || (m_balls < 0) || (m_cols <= 0) || (m_rows <= 0) || (items < 0) ||
+            ((itemsOffs + ((long) items)*4) > buf.limit()) ||
+            !(m_cellSize > 0.0d) || Double.isInfinite(m_cellSize) ||
+            Double.isNaN(m_minX) || Double.isInfinite(m_minX) ||
+            Double.isNaN(m_minY) || Double.isInfinite(m_minY))
+        {
+            throw new IOException( "Invalid level" );
+        }
+        m_ballsOffs = (int) ballsOffs;
+        m_cellsOffs = (int) cellsOffs;
+        m_itemsOffs = (int) itemsOffs;
+
+        /* Cell item ranges should be ordered and cover all items,
+         * every item should be a primitive id.
+         */
+        final int cells = (m_cols * m_rows);
+        int prev = buf.getInt( m_cellsOffs );
+        if (prev != 0)
+            throw new IOException( "Invalid level, invalid cell 0" );
+        for (int cell=1; cell<=cells; cell++)
+        {
+            final int next = buf.getInt( m_cellsOffs + cell*4 );
+            if ((next < prev) || (next > items))
+                throw new IOException( "Invalid level, invalid cell " + (cell - 1) );
+            prev = next;
+        }
+        if (prev != items)
+            throw new IOException( "Invalid level, cells do not cover all items" );
+
+        final int prCount = (m_segments + m_balls);
+        for (int item=0; item<items; item++)
+        {
+            final int id = buf.getInt( m_itemsOffs + item*4 );
+            if ((id < 0) || (id >= prCount))
+                throw new IOException( "Invalid level, invalid item " + item );
+        }
+    }
+
+    public final int getSegmentCount()
+    {
+        return m_segments;
+    }
+
+    public final int getBallCount()
+    {
+        return m_balls;
+    }
+
+    public int getPrCount()
+    {
+        return (m_segments + m_balls);
+    }
+
+    public int getPrType( int id )
+    {
+        return (id < m_segments) ? SEGMENT : BALL;
+    }
+
+    public int getPrPosition( double t, int id, double [] dv, int offs )
+    {
+        if (id < m_segments)
+        {
+            final int pos = (HEADER_SIZE + id*SEGMENT_SIZE);
+            return Segment.set( dv, offs,
+                    m_buf.getDouble(pos), m_buf.getDouble(pos+8), m_buf.getDouble(pos+16), m_buf.getDouble(pos+24) );
+        }
+        else
+        {
+            final int pos = (m_ballsOffs + (id - m_segments)*BALL_SIZE);
+            return Ball.set( dv, offs, m_buf.getDouble(pos), m_buf.getDouble(pos+8), m_buf.getDouble(pos+16) );
+        }
+    }
+
+    public int getPrImpulse( int id, double x, double y, double [] dv, int offs )
+    {
+        return Impulse.set( dv, offs, 0.0d, 0.0d, Double.MAX_VALUE );
+    }
+
+    public int applyPrImpulse( int id, double x, double y, double vx, double vy )
+    {
+        /* Level does not move. */
+        return 0;
+    }
+
+    public void move( double t )
+    {
+        /* Level does not move. */
+    }
+
+    public double getMaxSpeed()
+    {
+        return 0.0d;
+    }
+
+    /* Grid access for the CDE. */
+
+    final double getGridMinX() { return m_minX; }
+    final double getGridMinY() { return m_minY; }
+    final double getGridMaxX() { return (m_minX + m_cols*m_cellSize); }
+    final double getGridMaxY() { return (m_minY + m_rows*m_cellSize); }
+    final double getCellSize() { return m_cellSize; }
+    final int getCols() { return m_cols; }
+    final int getRows() { return m_rows; }
+    final int getCellX( double x ) { return getCell( x, m_minX, m_cellSize, m_cols ); }
+    final int getCellY( double y ) { return getCell( y, m_minY, m_cellSize, m_rows ); }
+    final int getCellStart( int cell ) { return m_buf.getInt( m_cellsOffs + cell*4 ); }
+    final int getItem( int item ) { return m_buf.getInt( m_itemsOffs + item*4 ); }
+
+    /* Cell of the primitive bounding box minimum point,
+     * used to visit primitive only once when it overlaps many cells.
+     */
+    final int getPrCellX( int id )
+    {
+        if (id < m_segments)
+        {
+            final int pos = (HEADER_SIZE + id*SEGMENT_SIZE);
+            return getCellX( Math.min(m_buf.getDouble(pos), m_buf.getDouble(pos+16)) );
+        }
+        final int pos = (m_ballsOffs + (id - m_segments)*BALL_SIZE);
+        return getCellX( m_buf.getDouble(pos) - m_buf.getDouble(pos+16) );
+    }
+
+    final int getPrCellY( int id )
+    {
+        if (id < m_segments)
+        {
+            final int pos = (HEADER_SIZE + id*SEGMENT_SIZE);
+            return getCellY( Math.min(m_buf.getDouble(pos+8), m_buf.getDouble(pos+24)) );
+        }
+        final int pos = (m_ballsOffs + (id - m_segments)*BALL_SIZE);
+        return getCellY( m_buf.getDouble(pos+8) - m_buf.getDouble(pos+16) );
+    }
+}
@@ -0,0 +1,180 @@
+/*
+ * Copyright (C) 2013 Sergey Zubarev, info@js-labs.org
+ *
+ * This file is a part of JS-CDE
+ * (Collision Detection Engine) framework.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jsl.cde;
+
+/**
+ * Runs the CDE with a fixed time step driven by the real time.
+ * Time passed since the previous update() is accumulated and consumed
+ * by the fixed steps, the rest is kept for the next update().
+ * Number of steps per update() is limited, time which could not be
+ * consumed by the allowed steps is dropped, so the simulation slows down
+ * instead of spending more and more time to catch up.
+ *
+ * Frames with the primitive positions before and after the last step
+ * are kept for rendering between steps: state at the render time is
+ * the previous state interpolated toward the current one by getAlpha(),
+ * see interpolate(). Stepper is used by one thread only.
+ */
+public class Stepper
+{
+    private final CDE m_cde;
+    private final double m_step;
+    private final long m_stepNs;
+    private final int m_maxSteps;
+    private Frame m_previous;
+    private Frame m_current;
+    private long m_lastTime;
+    private long m_accumulator;
+    private long m_steps;
+    private long m_droppedTime;
+    private boolean m_started;
+
+    public Stepper( CDE cde, double step, int maxSteps )
+    {
+        if (step <= 0.0d)
+            throw new IllegalArgumentException( "Invalid step " + step );
+        if (maxSteps <= 0)
+            throw new IllegalArgumentException( "Invalid number of steps " + maxSteps );
+        m_cde = cde;
+        m_step = step;
+        m_stepNs = (long) (step * 1000000000.0d);
+        m_maxSteps = maxSteps;
+        m_previous = new Frame();
+        m_current = new Frame();
+    }
+
+    /**
+     * Runs fixed steps for the time passed since the previous call,
+     * returns the number of steps done. The first call only starts the clock.
+     */
+    public final int update()
+    {
+        return update( System.nanoTime() );
+    }
+
+    /**
+     * The same as update(), but with explicit time in nanoseconds
+     * (System.nanoTime() or any other monotonic clock).
+     */
+    public final int update( long time )
+    {
+        if (!m_started)
+        {
+            m_started = true;
+            m_lastTime = time;
+            m_cde.writeFrame( m_current, m_steps, 0.0d );
+            m_cde.writeFrame( m_previous, m_steps, 0.0d );
+            return 0;
+        }
+
+        m_accumulator += (time - m_lastTime);
+        m_lastTime = time;
+
+        long steps = (m_accumulator / m_stepNs);
+        if (steps > m_maxSteps)
+        {
+            final long dropped = ((steps - m_maxSteps) * m_stepNs);
+            m_droppedTime += dropped;
+            m_accumulator -= dropped;
+            steps = m_maxSteps;
+        }
+
+        if (steps == 0)
+            return 0;
+
+        /* Only the state before the last step is needed as previous one. */
+        for (int idx=0; idx<steps; idx++)
+        {
+            if (idx == (steps - 1))
+            {
+                if (steps == 1)
+                {
+                    final Frame frame = m_previous;
+                    m_previous = m_current;
+                    m_current = frame;
+                }
+                else
+                    m_cde.writeFrame( m_previous, m_steps, m_steps*m_step );
+            }
+            m_cde.run( m_step );
+            m_steps++;
+        }
+        m_accumulator -= (steps * m_stepNs);
+        m_cde.writeFrame( m_current, m_steps, m_steps*m_step );
+        return (int) steps;
+    }
+
+    /**
+     * Returns part [0, 1) of the step accumulated since the last step.
+     */
+    public final double getAlpha()
+    {
+        return (((double) m_accumulator) / m_stepNs);
+    }
+
+    public final Frame getPrevious() { return m_previous; }
+    public final Frame getCurrent() { return m_current; }
+
+    /**
+     * Returns the number of steps done.
+     */
+    public final long getSteps() { return m_steps; }
+
+    /**
+     * Returns the time in nanoseconds dropped because of the steps limit.
+     */
+    public final long getDroppedTime() { return m_droppedTime; }
+
+    /**
+     * Writes the primitive 'pr' of the current frame interpolated
+     * from the previous frame by getAlpha() to the 'dv' at 'offs',
+     * returns the offset after it. Primitive layouts of the built-in types
+     * consist of coordinates and radiuses, so all values are interpolated linearly.
+     * If the primitive is not in the previous frame at the same place
+     * (bodies were added or removed) then the current state is written.
+     */
+    public final int interpolate( int pr, double [] dv, int offs )
+    {
+        final Frame previous = m_previous;
+        final Frame current = m_current;
+        final int size = current.getPrSize( pr );
+        final int currentOffs = current.getPrOffset( pr );
+        final double [] currentData = current.getData();
+        if ((pr < previous.getPrCount()) &&
+            (previous.getPrIndex(pr) == current.getPrIndex(pr)) &&
+            (previous.getPrId(pr) == current.getPrId(pr)) &&
+            (previous.getPrType(pr) == current.getPrType(pr)) &&
+            (previous.getPrSize(pr) == size))
+        {
+            final double alpha = getAlpha();
+            final int previousOffs = previous.getPrOffset( pr );
+            final double [] previousData = previous.getData();
+            for (int idx=0; idx<size; idx++)
+            {
+                final double v = previousData[previousOffs+idx];
+                dv[offs+idx] = (v + alpha*(currentData[currentOffs+idx] - v));
+            }
+        }
+        else
+            System.arraycopy( currentData, currentOffs, dv, offs, size );
+        return (offs + size);
+    }
+}
@@ -0,0 +1,368 @@
+/*
+ * Copyright (C) 2013 Sergey Zubarev, info@js-labs.org
+ *
+ * This file is a part of JS-CDE
+ * (Collision Detection Engine) framework.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jsl.cde;
+
+import java.util.HashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs many CDE instances with the same fixed time step
+ * on a fixed number of worker threads. Worlds are kept in the heap
+ * ordered by the deadline of the next tick, a free worker takes the world
+ * with the earliest deadline as soon as it is due. World is ticked by
+ * one worker at a time, so all CDE scratch buffers are used by one thread.
+ *
+ * If a world is late it runs up to 'maxCatchUp' ticks at once,
+ * the rest of the ticks is dropped (see getDroppedTicks()).
+ * While the workers are late more than one step add() refuses new worlds,
+ * so the caller can place them to another scheduler (or host).
+ * World removed while its tick is in progress and added again
+ * is not run until that tick is completed.
+ */
+public class WorldScheduler
+{
+    private static final Logger s_logger = Logger.getLogger( "org.jsl.cde" );
+
+    /**
+     * Called by the worker thread after every tick of the world.
+     */
+    public interface TickListener
+    {
+        void onTick( CDE cde, long tick );
+    }
+
+    private static class World
+    {
+        final CDE cde;
+        final TickListener listener;
+        long deadline;
+        volatile long ticks; /* read by getTicks() without the worker */
+        volatile long droppedTicks;
+        int heapIdx; /* -1 if not in the heap */
+        boolean removed;
+        boolean ticking;
+        World next; /* same CDE added again while the tick is in progress */
+
+        World( CDE cde, TickListener listener, long deadline )
+        {
+            this.cde = cde;
+            this.listener = listener;
+            this.deadline = deadline;
+            this.heapIdx = -1;
+        }
+    }
+
+    private final double m_step;
+    private final long m_stepNs;
+    private final int m_maxCatchUp;
+    private final Thread [] m_workers;
+    private final HashMap<CDE, World> m_worlds;
+    private final HashMap<CDE, World> m_removedTicking; /* removed during the tick in progress */
+    private World [] m_heap;
+    private int m_size;
+    private boolean m_run;
+    private volatile long m_lag; /* how late the last tick was started, ns */
+
+    private static boolean before( World w1, World w2 )
+    {
+        return (w1.deadline - w2.deadline) < 0;
+    }
+
+    private void siftUp( int idx, World world )
+    {
+        while (idx > 0)
+        {
+            final int parentIdx = ((idx - 1) >> 1);
+            final World parent = m_heap[parentIdx];
+            if (!before(world, parent))
+                break;
+            m_heap[idx] = parent;
+            parent.heapIdx = idx;
+            idx = parentIdx;
+        }
+        m_heap[idx] = world;
+        world.heapIdx = idx;
+    }
+
+    private void siftDown( int idx, World world )
+    {
+        for (;;)
+        {
+            int childIdx = ((idx << 1) + 1);
+            if (childIdx >= m_size)
+                break;
+            if (((childIdx + 1) < m_size) && before(m_heap[childIdx+1], m_heap[childIdx]))
+                childIdx++;
+            final World child = m_heap[childIdx];
+            if (!before(child, world))
+                break;
+            m_heap[idx] = child;
+            child.heapIdx = idx;
+            idx = childIdx;
+        }
+        m_heap[idx] = world;
+        world.heapIdx = idx;
+    }
+
+    private void offer( World world )
+    {
+        if (m_size == m_heap.length)
+        {
+            final World [] heap = new World[m_size * 2];
+            System.arraycopy( m_heap, 0, heap, 0, m_size );
+            m_heap = heap;
+        }
+        siftUp( m_size++, world );
+        if (world.heapIdx == 0)
+            notifyAll();
+    }
+
+    private void removeAt( int idx )
+    {
+        final World world = m_heap[idx];
+        world.heapIdx = -1;
+        final World last = m_heap[--m_size];
+        m_heap[m_size] = null;
+        if (idx < m_size)
+        {
+            siftDown( idx, last );
+            if (last.heapIdx == idx)
+                siftUp( idx, last );
+        }
+    }
+
+    /* Waits for the next due world, returns null if the scheduler is stopped. */
+    private synchronized World take() throws InterruptedException
+    {
+        for (;;)
+        {
+            if (!m_run)
+                return null;
+
+            if (m_size == 0)
+            {
+                /* Nobody is late while there is nothing to run. */
+                m_lag = 0;
+                wait();
+                continue;
+            }
+
+            final World world = m_heap[0];
+            final long delay = (world.deadline - System.nanoTime());
+            if (delay > 0)
+            {
+                wait( delay / 1000000, (int) (delay % 1000000) );
+                continue;
+            }
+
+            m_lag = -delay;
+            removeAt( 0 );
+            world.ticking = true;
+            return world;
+        }
+    }
+
+    private synchronized void release( World world )
+    {
+        world.ticking = false;
+        if (!world.removed)
+            offer( world );
+        else
+        {
+            if (m_removedTicking.get(world.cde) == world)
+                m_removedTicking.remove( world.cde );
+            if ((world.next != null) && !world.next.removed)
+                offer( world.next );
+            world.next = null;
+        }
+    }
+
+    private void tick( World world )
+    {
+        final long now = System.nanoTime();
+        int ticks = 0;
+        do
+        {
+            world.cde.run( m_step );
+            world.ticks++;
+            if (world.listener != null)
+                world.listener.onTick( world.cde, world.ticks );
+            world.deadline += m_stepNs;
+        }
+        while (((world.deadline - now) <= 0) && (++ticks < m_maxCatchUp));
+
+        if ((world.deadline - now) <= 0)
+        {
+            final long dropped = (((now - world.deadline) / m_stepNs) + 1);
+            world.deadline += (dropped * m_stepNs);
+            world.droppedTicks += dropped;
+        }
+    }
+
+    private void run_i()
+    {
+        try
+        {
+            for (;;)
+            {
+                final World world = take();
+                if (world == null)
+                    break;
+
+                try
+                {
+                    tick( world );
+                }
+                catch (Throwable ex)
+                {
+                    /* AssertionError from the listener or so,
+                     * the world is dropped but the worker keeps running other worlds.
+                     */
+                    s_logger.log( Level.SEVERE, "World tick failed, world removed", ex );
+                    synchronized (this)
+                    {
+                        world.removed = true;
+                        if (m_worlds.get(world.cde) == world)
+                            m_worlds.remove( world.cde );
+                    }
+                }
+                release( world );
+            }
+        }
+        catch (InterruptedException ex)
+        {
+            s_logger.log( Level.WARNING, "Worker interrupted", ex );
+        }
+    }
+
+    public WorldScheduler( String name, int workers, double step, int maxCatchUp )
+    {
+        if (workers <= 0)
+            throw new IllegalArgumentException( "Invalid number of workers " + workers );
+        if (step <= 0.0d)
+            throw new IllegalArgumentException( "Invalid step " + step );
+        if (maxCatchUp <= 0)
+            throw new IllegalArgumentException( "Invalid number of catch up ticks " + maxCatchUp );
+
+        m_step = step;
+        m_stepNs = (long) (step * 1000000000.0d);
+        m_maxCatchUp = maxCatchUp;
+        m_worlds = new HashMap<CDE, World>();
+        m_removedTicking = new HashMap<CDE, World>();
+        m_heap = new World[64];
+        m_workers = new Thread[workers];
+        for (int idx=0; idx<workers; idx++)
+        {
+            m_workers[idx] = new Thread( new Runnable() { public void run() { run_i(); } }, name + "-" + idx );
+            m_workers[idx].setDaemon( true );
+        }
+    }
+
+    public final synchronized void start()
+    {
+        m_run = true;
+        for (Thread worker : m_workers)
+            worker.start();
+    }
+
+    /**
+     * Stops workers, waits for the ticks in progress.
+     */
+    public final void stop() throws InterruptedException
+    {
+        synchronized (this)
+        {
+            m_run = false;
+            notifyAll();
+        }
+        for (Thread worker : m_workers)
+            worker.join();
+    }
+
+    /**
+     * Adds the world, the first tick is due after one step
+     * (or when the tick in progress is completed if the world was removed
+     * during that tick). Returns false if the world is already added
+     * or workers are late more than one step, world is not added then.
+     */
+    public final synchronized boolean add( CDE cde, TickListener listener )
+    {
+        if (m_worlds.containsKey(cde))
+            return false;
+        if (m_size > 0)
+        {
+            /* m_lag can be stale, look how late the earliest world is right now. */
+            final long lag = (System.nanoTime() - m_heap[0].deadline);
+            if (lag > m_stepNs)
+                return false;
+        }
+        final World world = new World( cde, listener, System.nanoTime() + m_stepNs );
+        m_worlds.put( cde, world );
+        final World ticking = m_removedTicking.get( cde );
+        if (ticking != null)
+            ticking.next = world;
+        else
+            offer( world );
+        return true;
+    }
+
+    /**
+     * Removes the world, tick in progress (if any) will be completed.
+     */
+    public final synchronized boolean remove( CDE cde )
+    {
+        final World world = m_worlds.remove( cde );
+        if (world == null)
+            return false;
+        world.removed = true;
+        if (world.heapIdx >= 0)
+            removeAt( world.heapIdx );
+        else if (world.ticking)
+            m_removedTicking.put( cde, world );
+        return true;
+    }
+
+    public final synchronized int getWorldCount()
+    {
+        return m_worlds.size();
+    }
+
+    public final synchronized long getTicks( CDE cde )
+    {
+        final World world = m_worlds.get( cde );
+        return (world == null) ? -1 : world.ticks;
+    }
+
+    public final synchronized long getDroppedTicks( CDE cde )
+    {
+        final World world = m_worlds.get( cde );
+        return (world == null) ? -1 : world.droppedTicks;
+    }
+
+    /**
+     * Returns how late (in nanoseconds) the last tick was started.
+     */
+    public final long getLag()
+    {
+        return m_lag;
+    }
+}
@@ -0,0 +1,314 @@
+/*
+ * Copyright (C) 2013 Sergey Zubarev, info@js-labs.org
+ *
+ * This file is a part of JS-CDE
+ * (Collision Detection Engine) framework.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jsl.tests.Benchmark;
+
+import org.jsl.cde.Body;
+import org.jsl.cde.CDE;
+import org.jsl.cde.Impulse;
+import java.util.Random;
+
+/*
+ * Compares the engine throughput in a few configurations,
+ * every configuration turns on one more optimization:
+ * the shared impact search code, the code specialized for every pair
+ * of body classes (CDE.setSpecialization()), the hybrid mode
+ * (CDE.setHybridMode()). Scene has a few body classes,
+ * so the calls of the Body methods in the shared code are megamorphic.
+ * All worlds are created from the same seed and do the same work.
+ */
+public class Main
+{
+    private static final double FRAME_INTERVAL_S = (1.0d / 30);
+    private static final int WARMUP_FRAMES = 3000;
+    private static final int FRAMES = 2000;
+    private static final int ROUNDS = 5;
+
+    private static final String [] CONFIGS = { "shared code", "specialized", "hybrid" };
+
+    private static class Box extends Body
+    {
+        private final double m_x1;
+        private final double m_y1;
+        private final double m_x2;
+        private final double m_y2;
+
+        public Box( double x1, double y1, double x2, double y2 )
+        {
+            m_x1 = x1;
+            m_y1 = y1;
+            m_x2 = x2;
+            m_y2 = y2;
+        }
+
+        public int getPrCount() { return 4; }
+        public int getPrType( int id ) { return SEGMENT; }
+
+        public int getPrPosition( double t, int id, double [] dv, int offs )
+        {
+            switch (id)
+            {
+                case 0: return Segment.set( dv, offs, m_x1, m_y1, m_x1, m_y2 );
+                case 1: return Segment.set( dv, offs, m_x1, m_y2, m_x2, m_y2 );
+                case 2: return Segment.set( dv, offs, m_x2, m_y2, m_x2, m_y1 );
+                default: return Segment.set( dv, offs, m_x2, m_y1, m_x1, m_y1 );
+            }
+        }
+
+        public int getPrImpulse( int id, double x, double y, double [] dv, int offs )
+        {
+            return Impulse.set( dv, offs, 0.0d, 0.0d, Double.MAX_VALUE );
+        }
+
+        public int applyPrImpulse( int id, double x, double y, double vx, double vy ) { return 0; }
+        public void move( double t ) { }
+        public double getMaxSpeed() { return 0.0d; }
+    }
+
+    /* Rotating cross of two segments. */
+    private static class Fence extends Body
+    {
+        private final double m_x;
+        private final double m_y;
+        private final double m_r;
+        private final double m_rv;
+        private double m_angle;
+
+        public Fence( double x, double y, double r, double rv )
+        {
+            m_x = x;
+            m_y = y;
+            m_r = r;
+            m_rv = rv;
+        }
+
+        public int getPrCount() { return 2; }
+        public int getPrType( int id ) { return SEGMENT; }
+
+        public int getPrPosition( double t, int id, double [] dv, int offs )
+        {
+            final double angle = m_angle + m_rv * t + Math.PI / 2 * id;
+            final double sin = Math.sin( angle );
+            final double cos = Math.cos( angle );
+            return Segment.set( dv, offs, m_x - m_r*cos, m_y - m_r*sin, m_x + m_r*cos, m_y + m_r*sin );
+        }
+
+        public int getPrImpulse( int id, double x, double y, double [] dv, int offs )
+        {
+            x -= m_x;
+            y -= m_y;
+            return Impulse.set( dv, offs, -y*m_rv, x*m_rv, Double.MAX_VALUE );
+        }
+
+        public int applyPrImpulse( int id, double x, double y, double vx, double vy ) { return 0; }
+
+        public void move( double t )
+        {
+            m_angle += (m_rv * t);
+        }
+
+        public double getMaxSpeed()
+        {
+            return Math.abs( m_rv * m_r );
+        }
+    }
+
+    private static class Ball extends Body
+    {
+        protected double m_x;
+        protected double m_y;
+        protected final double m_r;
+        protected double m_vx;
+        protected double m_vy;
+
+        public Ball( double x, double y, double r, double vx, double vy )
+        {
+            m_x = x;
+            m_y = y;
+            m_r = r;
+            m_vx = vx;
+            m_vy = vy;
+        }
+
+        public int getPrCount() { return 1; }
+        public int getPrType( int id ) { return BALL; }
+
+        public int getPrPosition( double t, int id, double [] dv, int offs )
+        {
+            return Body.Ball.set( dv, offs, m_x + t*m_vx, m_y + t*m_vy, m_r );
+        }
+
+        public int getPrImpulse( int id, double x, double y, double [] dv, int offs )
+        {
+            return Impulse.set( dv, offs, m_vx, m_vy, m_r*m_r );
+        }
+
+        public int applyPrImpulse( int id, double x, double y, double vx, double vy )
+        {
+            m_vx = vx;
+            m_vy = vy;
+            return 0;
+        }
+
+        public void move( double t )
+        {
+            m_x += (m_vx * t);
+            m_y += (m_vy * t);
+        }
+
+        public double getMaxSpeed()
+        {
+            return Math.sqrt( m_vx*m_vx + m_vy*m_vy );
+        }
+    }
+
+    /* Ball slowing down on every impact. */
+    private static class Pebble extends Ball
+    {
+        public Pebble( double x, double y, double r, double vx, double vy )
+        {
+            super( x, y, r, vx, vy );
+        }
+
+        public int applyPrImpulse( int id, double x, double y, double vx, double vy )
+        {
+            final double k = ((vx*vx + vy*vy) > 2500.0d) ? 0.99d : 1.0d;
+            m_vx = (vx * k);
+            m_vy = (vy * k);
+            return 0;
+        }
+    }
+
+    private static class Peg extends Body
+    {
+        private final double m_x;
+        private final double m_y;
+        private final double m_r;
+
+        public Peg( double x, double y, double r )
+        {
+            m_x = x;
+            m_y = y;
+            m_r = r;
+        }
+
+        public int getPrCount() { return 1; }
+        public int getPrType( int id ) { return BALL; }
+
+        public int getPrPosition( double t, int id, double [] dv, int offs )
+        {
+            return Body.Ball.set( dv, offs, m_x, m_y, m_r );
+        }
+
+        public int getPrImpulse( int id, double x, double y, double [] dv, int offs )
+        {
+            return Impulse.set( dv, offs, 0.0d, 0.0d, Double.MAX_VALUE );
+        }
+
+        public int applyPrImpulse( int id, double x, double y, double vx, double vy ) { return 0; }
+        public void move( double t ) { }
+        public double getMaxSpeed() { return 0.0d; }
+    }
+
+    /*
+     * Box split to the cells, every cell contains a ball or a pebble,
+     * some cells contain a fence, pegs are between the cells.
+     */
+    private static CDE createScene( long seed, int cols, int rows, int fences )
+    {
+        final double cellSize = 100.0d;
+        final Random random = new Random( seed );
+        final CDE cde = new CDE();
+
+        cde.add( new Box(0.0d, 0.0d, cols*cellSize, rows*cellSize) );
+
+        for (int row=0; row<rows; row++)
+        {
+            for (int col=0; col<cols; col++)
+            {
+                final double x = (col * cellSize + cellSize / 2.0d);
+                final double y = (row * cellSize + cellSize / 2.0d);
+                final double r = (5.0d + random.nextInt(5));
+                final double vx = (random.nextDouble()*200.0d - 100.0d);
+                final double vy = (random.nextDouble()*200.0d - 100.0d);
+                if (((row + col) % 4 == 0) && (fences > 0))
+                {
+                    cde.add( new Fence(x, y, cellSize/4.0d, Math.PI / 180.0d * (10 + random.nextInt(30))) );
+                    fences--;
+                }
+                else if (((row + col) % 2) == 0)
+                    cde.add( new Ball(x, y, r, vx, vy) );
+                else
+                    cde.add( new Pebble(x, y, r, vx, vy) );
+
+                if ((row > 0) && (col > 0))
+                    cde.add( new Peg(col*cellSize, row*cellSize, 4.0d) );
+            }
+        }
+        return cde;
+    }
+
+    private static long run( CDE cde, int frames )
+    {
+        final long startTime = System.nanoTime();
+        for (int idx=0; idx<frames; idx++)
+            cde.run( FRAME_INTERVAL_S );
+        return (System.nanoTime() - startTime);
+    }
+
+    private static CDE createWorld( int config, int cols, int rows )
+    {
+        final CDE cde = createScene( 1, cols, rows, cols*rows/8 );
+        cde.setSpecialization( config >= 1 );
+        cde.setHybridMode( config >= 2 );
+        return cde;
+    }
+
+    public static void main( String [] args )
+    {
+        final int cols = (args.length > 0) ? Integer.parseInt(args[0]) : 8;
+        final int rows = (args.length > 1) ? Integer.parseInt(args[1]) : 8;
+
+        final CDE [] world = new CDE[CONFIGS.length];
+        for (int config=0; config<CONFIGS.length; config++)
+        {
+            world[config] = createWorld( config, cols, rows );
+            run( world[config], WARMUP_FRAMES );
+        }
+
+        /* Rounds are interleaved, so all worlds see the same machine state. */
+        final long [] time = new long[CONFIGS.length];
+        for (int round=0; round<ROUNDS; round++)
+        {
+            for (int config=0; config<CONFIGS.length; config++)
+                time[config] += run( world[config], FRAMES );
+        }
+
+        System.out.println( cols + "x" + rows + " cells, " + world[0].getBodyCount() + " bodies" );
+        final double baseFPS = (1000000000.0d * FRAMES * ROUNDS / time[0]);
+        System.out.println( String.format("%s: %.1f frames/s", CONFIGS[0], baseFPS) );
+        for (int config=1; config<CONFIGS.length; config++)
+        {
+            final double fps = (1000000000.0d * FRAMES * ROUNDS / time[config]);
+            System.out.println( String.format("%s: %.1f frames/s (%+.1f%%)",
+                    CONFIGS[config], fps, (fps / baseFPS - 1.0d) * 100.0d) );
+        }
+    }
+}
@@ -0,0 +1,1788 @@
+/*
+ * Copyright (C) 2013 Sergey Zubarev, info@js-labs.org
+ *
+ * This file is a part of JS-CDE
+ * (Collision Detection Engine) framework.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jsl.tests.FuzzTest;
+
+import org.jsl.cde.Body;
+import org.jsl.cde.CDE;
+import org.jsl.cde.FrameBuffer;
+import org.jsl.cde.Hit;
+import org.jsl.cde.ImpactLog;
+import org.jsl.cde.ImpactLogReplayer;
+import org.jsl.cde.ImpactListener;
+import org.jsl.cde.Impulse;
+import org.jsl.cde.Prediction;
+import org.jsl.cde.SensorEvents;
+import org.jsl.cde.StaticLevel;
+import org.jsl.cde.WorldScheduler;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/*
+ * Differential fuzzer: generates random worlds,
+ * runs every world twice (in the reference mode and with all optimizations on)
+ * and reports the first divergence in impacts or body states.
+ * In the middle of the run optimized world is saved and restored
+ * to the new engine instance. Optimized run is logged by the ImpactLog,
+ * log is replayed and verified after the run.
+ * About a half of worlds have the walls in the static level.
+ * Worlds have sensor zones moving through everything, sensor events are compared.
+ * After every frame random rays are casted and random region and nearest queries
+ * are done in both worlds, results are compared.
+ *
+ * Usage: Main [first seed] [number of worlds] [frames per world]
+ */
+public class Main
+{
+    private static final double FRAME_INTERVAL_S = (1.0d / 30);
+    private static final int SPECULATIVE_FRAMES = 10;
+    private static final double TIME_TOLERANCE = 0.00001d;
+    private static final double STATE_TOLERANCE = 0.001d;
+    private static final int MAX_IMPACTS_PER_FRAME = 10000;
+    private static final int QUERIES_PER_FRAME = 8;
+    private static final int MAX_HITS = 4;
+    private static final int MAX_FOUND = 64;
+
+    private static class World implements Body.Loader
+    {
+        public CDE cde;
+        public final TBody [] bodies;
+        public int objects;
+
+        public double [] impactTime;
+        public int [] impactObj1;
+        public int [] impactObj2;
+        public int impacts;
+
+        /* Sensor events: (sensor index << 16) | (body index << 1) | begin */
+        public int [] sensorEvents;
+        public int events;
+        public boolean record;
+        public boolean predict;
+
+        public final Body [] hitBody;
+        public final int [] hitId;
+        public final double [] hit;
+        public int hits;
+
+        public final Body [] predictedBody1;
+        public final int [] predictedId1;
+        public final Body [] predictedBody2;
+        public final int [] predictedId2;
+        public final double [] prediction;
+
+        public final Body [] foundBody;
+        public final int [] foundId;
+        public final double [] foundDistance;
+        public int found;
+
+        public World( int maxObjects )
+        {
+            cde = new CDE();
+            bodies = new TBody[maxObjects];
+            impactTime = new double[16];
+            impactObj1 = new int[16];
+            impactObj2 = new int[16];
+            sensorEvents = new int[16];
+            record = true;
+            predict = true;
+            hitBody = new Body[MAX_HITS];
+            hitId = new int[MAX_HITS];
+            hit = new double[MAX_HITS * Hit.SIZE];
+            foundBody = new Body[MAX_FOUND];
+            foundId = new int[MAX_FOUND];
+            foundDistance = new double[MAX_HITS];
+            predictedBody1 = new Body[1];
+            predictedId1 = new int[1];
+            predictedBody2 = new Body[1];
+            predictedId2 = new int[1];
+            prediction = new double[Prediction.SIZE];
+        }
+
+        public void add( TBody body )
+        {
+            body.m_world = this;
+            body.m_idx = objects;
+            bodies[objects++] = body;
+            cde.add( body );
+        }
+
+        public void addImpact( double time, int obj1, int obj2 )
+        {
+            if (!record)
+                return;
+
+            if (impacts == MAX_IMPACTS_PER_FRAME)
+                throw new RuntimeException( "too many impacts in one frame" );
+
+            if (impacts == impactTime.length)
+            {
+                final int newSize = (impacts * 2);
+                final double [] it = new double[newSize];
+                final int [] io1 = new int[newSize];
+                final int [] io2 = new int[newSize];
+                System.arraycopy( impactTime, 0, it, 0, impacts );
+                System.arraycopy( impactObj1, 0, io1, 0, impacts );
+                System.arraycopy( impactObj2, 0, io2, 0, impacts );
+                impactTime = it;
+                impactObj1 = io1;
+                impactObj2 = io2;
+            }
+            impactTime[impacts] = time;
+            impactObj1[impacts] = obj1;
+            impactObj2[impacts] = obj2;
+            impacts++;
+        }
+
+        public void run( double runTime )
+        {
+            impacts = 0;
+            for (int idx=0; idx<objects; idx++)
+                bodies[idx].m_time = 0.0d;
+
+            final int predictions = ((record && predict) ? cde.predictImpacts(
+                    runTime, predictedBody1, predictedId1, predictedBody2, predictedId2, prediction) : 0);
+
+            cde.run( runTime );
+
+            if (record && predict)
+                checkPrediction( predictions );
+
+            final SensorEvents se = cde.getSensorEvents();
+            events = se.getCount();
+            if (events > sensorEvents.length)
+                sensorEvents = new int[events];
+            for (int idx=0; idx<events; idx++)
+            {
+                sensorEvents[idx] = ((((TBody)se.getSensor(idx)).m_idx << 16) |
+                                     (((TBody)se.getBody(idx)).m_idx << 1) |
+                                     (se.isBegin(idx) ? 1 : 0));
+            }
+        }
+
+        private static int getIndex( Body body )
+        {
+            return (body instanceof TBody) ? ((TBody)body).m_idx : -1;
+        }
+
+        /* The first impact of the frame should be the predicted one. */
+        private void checkPrediction( int predictions )
+        {
+            if ((predictions == 0) && (impacts == 0))
+                return;
+
+            if ((predictions == 0) || (impacts == 0))
+            {
+                throw new RuntimeException( (predictions == 0) ?
+                        ("impact " + impactObj1[0] + "-" + impactObj2[0] + " at " + impactTime[0] + " was not predicted") :
+                        ("predicted impact " + getIndex(predictedBody1[0]) + "-" + getIndex(predictedBody2[0]) +
+                         " at " + Prediction.getTime(prediction, 0) + " did not happen") );
+            }
+
+            final double time = Prediction.getTime( prediction, 0 );
+            final int obj1 = getIndex( predictedBody1[0] );
+            final int obj2 = getIndex( predictedBody2[0] );
+            /* Static level does not record impacts. */
+            final int first = ((obj1 < 0) ? obj2 : obj1);
+            final int second = ((obj1 < 0) ? obj1 : obj2);
+            if ((Math.abs(time - impactTime[0]) > TIME_TOLERANCE) ||
+                (impactObj1[0] != first) || (impactObj2[0] != second))
+            {
+                throw new RuntimeException( "predicted impact " + obj1 + "-" + obj2 + " at " + time +
+                        ", happened " + impactObj1[0] + "-" + impactObj2[0] + " at " + impactTime[0] );
+            }
+        }
+
+        public void cast( double x, double y, double dx, double dy, double maxDistance, int [] groups, boolean all )
+        {
+            if (all)
+                hits = cde.rayCastAll( x, y, dx, dy, maxDistance, groups, hitBody, hitId, hit );
+            else
+                hits = cde.rayCast( x, y, dx, dy, maxDistance, groups, hitBody, hitId, hit );
+        }
+
+        /* Region query results order is not defined, sort them by body index and primitive id. */
+        public void query( double x, double y, double r, int [] groups, boolean box )
+        {
+            if (box)
+                found = cde.queryBox( x-r, y-r, x+r, y+r, groups, foundBody, foundId );
+            else
+                found = cde.queryCircle( x, y, r, groups, foundBody, foundId );
+
+            for (int idx=1; idx<found; idx++)
+            {
+                final Body body = foundBody[idx];
+                final int id = foundId[idx];
+                int jdx = idx;
+                for (; jdx>0; jdx--)
+                {
+                    final int c = (foundBody[jdx-1].getIndex() - body.getIndex());
+                    if ((c < 0) || ((c == 0) && (foundId[jdx-1] < id)))
+                        break;
+                    foundBody[jdx] = foundBody[jdx-1];
+                    foundId[jdx] = foundId[jdx-1];
+                }
+                foundBody[jdx] = body;
+                foundId[jdx] = id;
+            }
+        }
+
+        public void queryNearest( double x, double y, double maxDistance, int [] groups )
+        {
+            found = cde.queryNearest( x, y, maxDistance, groups, foundBody, foundId, foundDistance );
+        }
+
+        public Body load( ByteBuffer buf )
+        {
+            final int type = buf.getInt();
+            final TBody body;
+            switch (type)
+            {
+                case Box.TYPE: body = new Box( buf ); break;
+                case Wall.TYPE: body = new Wall( buf ); break;
+                case Ball.TYPE: body = new Ball( buf ); break;
+                case Zone.TYPE: body = new Zone( buf ); break;
+                case Rock.TYPE: body = new Rock( buf ); break;
+                case Stick.TYPE: body = new Stick( buf ); break;
+                default: throw new RuntimeException( "Invalid body type " + type );
+            }
+            body.m_world = this;
+            bodies[body.m_idx] = body;
+            return body;
+        }
+
+        /*
+         * Runs a few frames ahead and rewinds the world back,
+         * further frames should not notice anything.
+         * Speculative frames are not written to the impact log.
+         */
+        public void speculate( int frames )
+        {
+            final ByteBuffer buf = ByteBuffer.allocate( 64 * 1024 );
+            cde.saveDynamicState( buf );
+            buf.flip();
+            final ImpactListener impactListener = cde.getImpactListener();
+            cde.setImpactListener( null );
+            record = false;
+            for (int idx=0; idx<frames; idx++)
+                run( FRAME_INTERVAL_S );
+            record = true;
+            cde.setImpactListener( impactListener );
+            cde.restoreDynamicState( buf );
+        }
+
+        public void checkpoint() throws IOException
+        {
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            cde.save( Channels.newChannel(out) );
+            final byte [] snapshot = out.toByteArray();
+
+            /* Invalid snapshots should leave the world untouched. */
+            final byte [] invalidLength = snapshot.clone();
+            invalidLength[4] = (byte) 0xFF;
+            invalidLength[5] = (byte) 0xFF;
+            invalidLength[6] = (byte) 0xFF;
+            invalidLength[7] = (byte) 0xFF;
+            checkRejected( invalidLength, this );
+
+            /* Length far beyond the data should not allocate a buffer for it. */
+            final byte [] longLength = snapshot.clone();
+            longLength[4] = (byte) 0x20;
+            longLength[5] = 0;
+            longLength[6] = 0;
+            longLength[7] = 0;
+            final long directMemory = getDirectMemoryUsed();
+            checkRejected( longLength, this );
+            if ((getDirectMemoryUsed() - directMemory) > (16 * 1024 * 1024))
+                throw new RuntimeException( "snapshot buffer is allocated by the length header" );
+            checkRejected( snapshot, new Body.Loader()
+                {
+                    public Body load( ByteBuffer buf )
+                    {
+                        /* Same body for every record. */
+                        buf.position( buf.limit() );
+                        return bodies[0];
+                    }
+                } );
+
+            final CDE cde2 = new CDE();
+            configure( cde2 );
+            cde2.load( Channels.newChannel(new ByteArrayInputStream(snapshot)), this );
+            cde2.setImpactListener( cde.getImpactListener() );
+            cde2.setStaticLevel( cde.getStaticLevel() );
+            cde = cde2;
+        }
+
+        private static long getDirectMemoryUsed()
+        {
+            for (BufferPoolMXBean pool : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class))
+            {
+                if (pool.getName().equals("direct"))
+                    return pool.getMemoryUsed();
+            }
+            return 0;
+        }
+
+        private void checkRejected( byte [] snapshot, Body.Loader loader )
+        {
+            final int [] index = new int[objects];
+            for (int idx=0; idx<objects; idx++)
+                index[idx] = bodies[idx].getIndex();
+            try
+            {
+                cde.load( Channels.newChannel(new ByteArrayInputStream(snapshot)), loader );
+                throw new RuntimeException( "invalid snapshot is loaded" );
+            }
+            catch (IOException ex)
+            {
+                /* expected */
+            }
+            /* All bodies are still registered, so add() should do nothing. */
+            for (int idx=0; idx<objects; idx++)
+                cde.add( bodies[idx] );
+            for (int idx=0; idx<objects; idx++)
+            {
+                if (bodies[idx].getIndex() != index[idx])
+                    throw new RuntimeException( "invalid snapshot changed body " + idx );
+            }
+        }
+    }
+
+    private static abstract class TBody extends Body implements Body.Snapshot
+    {
+        public World m_world;
+        public int m_idx;
+        public double m_time; /* time passed from the frame start */
+
+        public TBody()
+        {
+        }
+
+        public TBody( ByteBuffer buf )
+        {
+            m_idx = buf.getInt();
+        }
+
+        public void saveState( ByteBuffer buf )
+        {
+            buf.putInt( getType() );
+            buf.putInt( m_idx );
+        }
+
+        /* Static bodies have no state changing during the simulation. */
+        public void saveDynamicState( ByteBuffer buf ) { }
+        public void restoreDynamicState( ByteBuffer buf ) { }
+
+        public abstract int getType();
+
+        public void move( double t )
+        {
+            m_time += t;
+        }
+
+        public void handleImpact( Body b )
+        {
+            /* Static level is not a TBody */
+            m_world.addImpact( m_time, m_idx, (b instanceof TBody) ? ((TBody)b).m_idx : -1 );
+        }
+
+        /* x, y, vx, vy */
+        public double getState( int idx ) { return 0.0d; }
+    }
+
+    private static class Box extends TBody
+    {
+        public static final int TYPE = 1;
+
+        private final double m_x1;
+        private final double m_y1;
+        private final double m_x2;
+        private final double m_y2;
+
+        public Box( double x1, double y1, double x2, double y2 )
+        {
+            m_x1 = x1;
+            m_y1 = y1;
+            m_x2 = x2;
+            m_y2 = y2;
+        }
+
+        public Box( ByteBuffer buf )
+        {
+            super( buf );
+            m_x1 = buf.getDouble();
+            m_y1 = buf.getDouble();
+            m_x2 = buf.getDouble();
+            m_y2 = buf.getDouble();
+        }
+
+        public int getType() { return TYPE; }
+
+        public void saveState( ByteBuffer buf )
+        {
+            super.saveState( buf );
+            buf.putDouble( m_x1 );
+            buf.putDouble( m_y1 );
+            buf.putDouble( m_x2 );
+            buf.putDouble( m_y2 );
+        }
+
+        public int getPrCount() { return 4; }
+        public int getPrType( int id ) { return SEGMENT; }
+
+        public int getPrPosition( double t, int id, double [] dv, int offs )
+        {
+            /* All other objects are inside, use non-clockwise direction. */
+            switch (id)
+            {
+                case 0: return Segment.set( dv, offs, m_x1, m_y1, m_x1, m_y2 );
+                case 1: return Segment.set( dv, offs, m_x1, m_y2, m_x2, m_y2 );
+                case 2: return Segment.set( dv, offs, m_x2, m_y2, m_x2, m_y1 );
+                default: return Segment.set( dv, offs, m_x2, m_y1, m_x1, m_y1 );
+            }
+        }
+
+        public int getPrImpulse( int id, double x, double y, double [] dv, int offs )
+        {
+            return Impulse.set( dv, offs, 0.0d, 0.0d, Double.MAX_VALUE );
+        }
+
+        public int applyPrImpulse( int id, double x, double y, double vx, double vy ) { return 0; }
+        public double getMaxSpeed() { return 0.0d; }
+    }
+
+    private static class Wall extends TBody
+    {
+        public static final int TYPE = 2;
+
+        private final double m_x1;
+        private final double m_y1;
+        private final double m_x2;
+        private final double m_y2;
+        private final double m_r;
+
+        /* Wall with non zero radius is a capsule. */
+        public Wall( double x1, double y1, double x2, double y2, double r )
+        {
+            m_x1 = x1;
+            m_y1 = y1;
+            m_x2 = x2;
+            m_y2 = y2;
+            m_r = r;
+        }
+
+        public Wall( ByteBuffer buf )
+        {
+            super( buf );
+            m_x1 = buf.getDouble();
+            m_y1 = buf.getDouble();
+            m_x2 = buf.getDouble();
+            m_y2 = buf.getDouble();
+            m_r = buf.getDouble();
+        }
+
+        public int getType() { return TYPE; }
+
+        public void saveState( ByteBuffer buf )
+        {
+            super.saveState( buf );
+            buf.putDouble( m_x1 );
+            buf.putDouble( m_y1 );
+            buf.putDouble( m_x2 );
+            buf.putDouble( m_y2 );
+            buf.putDouble( m_r );
+        }
+
+        public int getPrCount() { return 1; }
+        public int getPrType( int id ) { return (m_r > 0.0d) ? CAPSULE : SEGMENT; }
+
+        public int getPrPosition( double t, int id, double [] dv, int offs )
+        {
+            if (m_r > 0.0d)
+                return Capsule.set( dv, offs, m_x1, m_y1, m_x2, m_y2, m_r );
+            return Segment.set( dv, offs, m_x1, m_y1, m_x2, m_y2 );
+        }
+
+        public int getPrImpulse( int id, double x, double y, double [] dv, int offs )
+        {
+            return Impulse.set( dv, offs, 0.0d, 0.0d, Double.MAX_VALUE );
+        }
+
+        public int applyPrImpulse( int id, double x, double y, double vx, double vy ) { return 0; }
+        public double getMaxSpeed() { return 0.0d; }
+
+        public double getDistance( double x, double y )
+        {
+            final double sx = (m_x2 - m_x1);
+            final double sy = (m_y2 - m_y1);
+            double k = ((x - m_x1) * sx + (y - m_y1) * sy) / (sx*sx + sy*sy);
+            if (k < 0.0d)
+                k = 0.0d;
+            else if (k > 1.0d)
+                k = 1.0d;
+            final double dx = (m_x1 + k*sx - x);
+            final double dy = (m_y1 + k*sy - y);
+            return (Math.sqrt(dx*dx + dy*dy) - m_r);
+        }
+    }
+
+    /*
+     * Static regular polygon.
+     */
+    private static class Rock extends TBody
+    {
+        public static final int TYPE = 5;
+
+        private final double m_x;
+        private final double m_y;
+        private final double m_r;
+        private final int m_vertices;
+        private final double m_angle;
+        private final double [] m_dv;
+
+        public Rock( double x, double y, double r, int vertices, double angle )
+        {
+            m_x = x;
+            m_y = y;
+            m_r = r;
+            m_vertices = vertices;
+            m_angle = angle;
+            m_dv = getPosition();
+        }
+
+        public Rock( ByteBuffer buf )
+        {
+            super( buf );
+            m_x = buf.getDouble();
+            m_y = buf.getDouble();
+            m_r = buf.getDouble();
+            m_vertices = buf.getInt();
+            m_angle = buf.getDouble();
+            m_dv = getPosition();
+        }
+
+        private double [] getPosition()
+        {
+            final double [] dv = new double[1 + m_vertices*Point.SIZE];
+            int offs = Polygon.set( dv, 0, m_vertices );
+            for (int idx=0; idx<m_vertices; idx++)
+            {
+                final double a = (m_angle + 2.0d * Math.PI * idx / m_vertices);
+                offs = Point.set( dv, offs, m_x + m_r*Math.cos(a), m_y + m_r*Math.sin(a) );
+            }
+            return dv;
+        }
+
+        public int getType() { return TYPE; }
+
+        public void saveState( ByteBuffer buf )
+        {
+            super.saveState( buf );
+            buf.putDouble( m_x );
+            buf.putDouble( m_y );
+            buf.putDouble( m_r );
+            buf.putInt( m_vertices );
+            buf.putDouble( m_angle );
+        }
+
+        public int getPrCount() { return 1; }
+        public int getPrType( int id ) { return POLYGON; }
+
+        public int getPrPosition( double t, int id, double [] dv, int offs )
+        {
+            System.arraycopy( m_dv, 0, dv, offs, m_dv.length );
+            return (offs + m_dv.length);
+        }
+
+        public int getPrImpulse( int id, double x, double y, double [] dv, int offs )
+        {
+            return Impulse.set( dv, offs, 0.0d, 0.0d, Double.MAX_VALUE );
+        }
+
+        public int applyPrImpulse( int id, double x, double y, double vx, double vy ) { return 0; }
+        public double getMaxSpeed() { return 0.0d; }
+
+        /* Distance to the circumscribed circle. */
+        public double getDistance( double x, double y )
+        {
+            final double dx = (m_x - x);
+            final double dy = (m_y - y);
+            return (Math.sqrt(dx*dx + dy*dy) - m_r);
+        }
+    }
+
+    private static class Ball extends TBody
+    {
+        public static final int TYPE = 3;
+
+        private double m_x;
+        private double m_y;
+        private final double m_r;
+        private final double m_m;
+        private double m_vx;
+        private double m_vy;
+
+        public Ball( double x, double y, double r, double vx, double vy )
+        {
+            m_x = x;
+            m_y = y;
+            m_r = r;
+            m_m = (r * r);
+            m_vx = vx;
+            m_vy = vy;
+        }
+
+        public Ball( ByteBuffer buf )
+        {
+            super( buf );
+            m_x = buf.getDouble();
+            m_y = buf.getDouble();
+            m_r = buf.getDouble();
+            m_m = (m_r * m_r);
+            m_vx = buf.getDouble();
+            m_vy = buf.getDouble();
+        }
+
+        public int getType() { return TYPE; }
+
+        public void saveState( ByteBuffer buf )
+        {
+            super.saveState( buf );
+            buf.putDouble( m_x );
+            buf.putDouble( m_y );
+            buf.putDouble( m_r );
+            buf.putDouble( m_vx );
+            buf.putDouble( m_vy );
+        }
+
+        public void saveDynamicState( ByteBuffer buf )
+        {
+            buf.putDouble( m_x );
+            buf.putDouble( m_y );
+            buf.putDouble( m_vx );
+            buf.putDouble( m_vy );
+        }
+
+        public void restoreDynamicState( ByteBuffer buf )
+        {
+            m_x = buf.getDouble();
+            m_y = buf.getDouble();
+            m_vx = buf.getDouble();
+            m_vy = buf.getDouble();
+        }
+
+        public int getPrCount() { return 1; }
+        public int getPrType( int id ) { return BALL; }
+
+        public int getPrPosition( double t, int id, double [] dv, int offs )
+        {
+            return Body.Ball.set( dv, offs, m_x + t*m_vx, m_y + t*m_vy, m_r );
+        }
+
+        public int getPrImpulse( int id, double x, double y, double [] dv, int offs )
+        {
+            return Impulse.set( dv, offs, m_vx, m_vy, m_m );
+        }
+
+        public int applyPrImpulse( int id, double x, double y, double vx, double vy )
+        {
+            m_vx = vx;
+            m_vy = vy;
+            return 0;
+        }
+
+        public void move( double t )
+        {
+            super.move( t );
+            m_x += (m_vx * t);
+            m_y += (m_vy * t);
+        }
+
+        public double getMaxSpeed()
+        {
+            return Math.sqrt( m_vx*m_vx + m_vy*m_vy );
+        }
+
+        public double getState( int idx )
+        {
+            switch (idx)
+            {
+                case 0: return m_x;
+                case 1: return m_y;
+                case 2: return m_vx;
+                default: return m_vy;
+            }
+        }
+    }
+
+    /*
+     * Moving segment, has two primitives (one for each side)
+     * because segments have impacts only from the left side.
+     */
+    private static class Stick extends TBody
+    {
+        public static final int TYPE = 6;
+
+        private double m_x;
+        private double m_y;
+        private final double m_l;
+        private final double m_angle;
+        private double m_vx;
+        private double m_vy;
+
+        public Stick( double x, double y, double l, double angle, double vx, double vy )
+        {
+            m_x = x;
+            m_y = y;
+            m_l = l;
+            m_angle = angle;
+            m_vx = vx;
+            m_vy = vy;
+        }
+
+        public Stick( ByteBuffer buf )
+        {
+            super( buf );
+            m_x = buf.getDouble();
+            m_y = buf.getDouble();
+            m_l = buf.getDouble();
+            m_angle = buf.getDouble();
+            m_vx = buf.getDouble();
+            m_vy = buf.getDouble();
+        }
+
+        public int getType() { return TYPE; }
+
+        public void saveState( ByteBuffer buf )
+        {
+            super.saveState( buf );
+            buf.putDouble( m_x );
+            buf.putDouble( m_y );
+            buf.putDouble( m_l );
+            buf.putDouble( m_angle );
+            buf.putDouble( m_vx );
+            buf.putDouble( m_vy );
+        }
+
+        public void saveDynamicState( ByteBuffer buf )
+        {
+            buf.putDouble( m_x );
+            buf.putDouble( m_y );
+            buf.putDouble( m_vx );
+            buf.putDouble( m_vy );
+        }
+
+        public void restoreDynamicState( ByteBuffer buf )
+        {
+            m_x = buf.getDouble();
+            m_y = buf.getDouble();
+            m_vx = buf.getDouble();
+            m_vy = buf.getDouble();
+        }
+
+        public int getPrCount() { return 2; }
+        public int getPrType( int id ) { return SEGMENT; }
+
+        public int getPrPosition( double t, int id, double [] dv, int offs )
+        {
+            final double dx = (m_l * Math.cos(m_angle));
+            final double dy = (m_l * Math.sin(m_angle));
+            final double x = (m_x + t*m_vx);
+            final double y = (m_y + t*m_vy);
+            if (id == 0)
+                return Segment.set( dv, offs, x - dx, y - dy, x + dx, y + dy );
+            return Segment.set( dv, offs, x + dx, y + dy, x - dx, y - dy );
+        }
+
+        public int getPrImpulse( int id, double x, double y, double [] dv, int offs )
+        {
+            return Impulse.set( dv, offs, m_vx, m_vy, m_l*m_l );
+        }
+
+        public int applyPrImpulse( int id, double x, double y, double vx, double vy )
+        {
+            m_vx = vx;
+            m_vy = vy;
+            return 0;
+        }
+
+        public void move( double t )
+        {
+            super.move( t );
+            m_x += (m_vx * t);
+            m_y += (m_vy * t);
+        }
+
+        public double getMaxSpeed()
+        {
+            return Math.sqrt( m_vx*m_vx + m_vy*m_vy );
+        }
+
+        public double getState( int idx )
+        {
+            switch (idx)
+            {
+                case 0: return m_x;
+                case 1: return m_y;
+                case 2: return m_vx;
+                default: return m_vy;
+            }
+        }
+    }
+
+    /*
+     * Sensor ball moving through everything.
+     */
+    private static class Zone extends TBody
+    {
+        public static final int TYPE = 4;
+
+        private double m_x;
+        private double m_y;
+        private final double m_r;
+        private final double m_vx;
+        private final double m_vy;
+
+        public Zone( double x, double y, double r, double vx, double vy )
+        {
+            m_x = x;
+            m_y = y;
+            m_r = r;
+            m_vx = vx;
+            m_vy = vy;
+        }
+
+        public Zone( ByteBuffer buf )
+        {
+            super( buf );
+            m_x = buf.getDouble();
+            m_y = buf.getDouble();
+            m_r = buf.getDouble();
+            m_vx = buf.getDouble();
+            m_vy = buf.getDouble();
+        }
+
+        public int getType() { return TYPE; }
+
+        public void saveState( ByteBuffer buf )
+        {
+            super.saveState( buf );
+            buf.putDouble( m_x );
+            buf.putDouble( m_y );
+            buf.putDouble( m_r );
+            buf.putDouble( m_vx );
+            buf.putDouble( m_vy );
+        }
+
+        public void saveDynamicState( ByteBuffer buf )
+        {
+            buf.putDouble( m_x );
+            buf.putDouble( m_y );
+        }
+
+        public void restoreDynamicState( ByteBuffer buf )
+        {
+            m_x = buf.getDouble();
+            m_y = buf.getDouble();
+        }
+
+        public boolean isSensor() { return true; }
+        public int getPrCount() { return 1; }
+        public int getPrType( int id ) { return BALL; }
+
+        public int getPrPosition( double t, int id, double [] dv, int offs )
+        {
+            return Body.Ball.set( dv, offs, m_x + t*m_vx, m_y + t*m_vy, m_r );
+        }
+
+        public int getPrImpulse( int id, double x, double y, double [] dv, int offs )
+        {
+            throw new RuntimeException( "Sensor impulse requested" );
+        }
+
+        public int applyPrImpulse( int id, double x, double y, double vx, double vy )
+        {
+            throw new RuntimeException( "Sensor impulse applied" );
+        }
+
+        public void move( double t )
+        {
+            super.move( t );
+            m_x += (m_vx * t);
+            m_y += (m_vy * t);
+        }
+
+        public double getMaxSpeed()
+        {
+            return Math.sqrt( m_vx*m_vx + m_vy*m_vy );
+        }
+
+        public double getState( int idx )
+        {
+            return (idx == 0) ? m_x : (idx == 1) ? m_y : 0.0d;
+        }
+    }
+
+    /* Static ball without Body.Snapshot, enough for the simulation. */
+    private static class Peg extends Body
+    {
+        public int getPrCount() { return 1; }
+        public int getPrType( int id ) { return BALL; }
+
+        public int getPrPosition( double t, int id, double [] dv, int offs )
+        {
+            return Body.Ball.set( dv, offs, 0.0d, 0.0d, 1.0d );
+        }
+
+        public int getPrImpulse( int id, double x, double y, double [] dv, int offs )
+        {
+            return Impulse.set( dv, offs, 0.0d, 0.0d, Double.MAX_VALUE );
+        }
+
+        public int applyPrImpulse( int id, double x, double y, double vx, double vy ) { return 0; }
+        public void move( double t ) { }
+        public double getMaxSpeed() { return 0.0d; }
+    }
+
+    private static StaticLevel createLevel( Wall [] walls, double cellSize ) throws IOException
+    {
+        final double [] segments = new double[walls.length * 4];
+        for (int idx=0; idx<walls.length; idx++)
+            walls[idx].getPrPosition( 0.0d, 0, segments, idx*4 );
+
+        /* Level does not need to be memory mapped, heap buffer is fine as well. */
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        StaticLevel.write( Channels.newChannel(out), segments, walls.length, null, 0, cellSize );
+        return new StaticLevel( ByteBuffer.wrap(out.toByteArray()) );
+    }
+
+    private static World createWorld( long seed, boolean referenceMode ) throws IOException
+    {
+        final Random random = new Random( seed );
+        final double width = (200.0d + random.nextInt(600));
+        final double height = (200.0d + random.nextInt(600));
+        final int walls = random.nextInt( 5 );
+        final int balls = (1 + random.nextInt(15));
+        final boolean level = ((seed % 2) == 0);
+        /* Some worlds have many sensors to exercise the sensor index. */
+        final int zones = (((seed % 5) == 4) ? 20 : 0) + random.nextInt( 4 );
+        final int rocks = random.nextInt( 4 );
+        final int sticks = random.nextInt( 4 );
+
+        final World world = new World( 1 + walls + rocks + balls + sticks + zones );
+        world.cde.setReferenceMode( referenceMode );
+        if (!referenceMode)
+            configure( world.cde );
+
+        world.add( new Box(0.0d, 0.0d, width, height) );
+
+        final Wall [] wallArray = new Wall[walls];
+        for (int idx=0; idx<walls; idx++)
+        {
+            /* Level contains only segments, other worlds have some thick walls. */
+            final double r = (level || random.nextBoolean()) ? 0.0d : (2.0d + random.nextDouble() * 10.0d);
+            wallArray[idx] = new Wall(
+                    20.0d + random.nextDouble() * (width - 40.0d), 20.0d + random.nextDouble() * (height - 40.0d),
+                    20.0d + random.nextDouble() * (width - 40.0d), 20.0d + random.nextDouble() * (height - 40.0d), r );
+            if (!level)
+                world.add( wallArray[idx] );
+        }
+
+        if (level && (walls > 0))
+            world.cde.setStaticLevel( createLevel(wallArray, 20.0d + random.nextInt(100)) );
+
+        final Rock [] rockArray = new Rock[rocks];
+        for (int idx=0; idx<rocks; idx++)
+        {
+            rockArray[idx] = new Rock(
+                    40.0d + random.nextDouble() * (width - 80.0d), 40.0d + random.nextDouble() * (height - 80.0d),
+                    5.0d + random.nextDouble() * 30.0d, 3 + random.nextInt(Body.Polygon.MAX_VERTICES - 2),
+                    random.nextDouble() * Math.PI );
+            world.add( rockArray[idx] );
+        }
+
+        final Ball [] ballArray = new Ball[balls];
+        int placed = 0;
+        for (int attempt=0; (placed < balls) && (attempt < 1000); attempt++)
+        {
+            final double r = (3.0d + random.nextDouble() * 15.0d);
+            final double x = (r + 1.0d + random.nextDouble() * (width - 2.0d*r - 2.0d));
+            final double y = (r + 1.0d + random.nextDouble() * (height - 2.0d*r - 2.0d));
+            final double vx = (random.nextDouble() * 600.0d - 300.0d);
+            final double vy = (random.nextDouble() * 600.0d - 300.0d);
+
+            boolean free = true;
+            for (int idx=0; free && (idx<walls); idx++)
+                free = (wallArray[idx].getDistance(x, y) > (r + 1.0d));
+            for (int idx=0; free && (idx<rocks); idx++)
+                free = (rockArray[idx].getDistance(x, y) > (r + 1.0d));
+            for (int idx=0; free && (idx<placed); idx++)
+            {
+                final double dx = (ballArray[idx].m_x - x);
+                final double dy = (ballArray[idx].m_y - y);
+                free = (Math.sqrt(dx*dx + dy*dy) > (ballArray[idx].m_r + r + 1.0d));
+            }
+
+            if (free)
+            {
+                ballArray[placed] = new Ball( x, y, r, vx, vy );
+                world.add( ballArray[placed] );
+                placed++;
+            }
+        }
+
+        /* Sticks are placed as balls with radius equal to the half length. */
+        final Stick [] stickArray = new Stick[sticks];
+        int stick = 0;
+        for (int attempt=0; (stick < sticks) && (attempt < 1000); attempt++)
+        {
+            final double l = (5.0d + random.nextDouble() * 25.0d);
+            final double x = (l + 1.0d + random.nextDouble() * (width - 2.0d*l - 2.0d));
+            final double y = (l + 1.0d + random.nextDouble() * (height - 2.0d*l - 2.0d));
+            final double angle = (random.nextDouble() * Math.PI);
+            final double vx = (random.nextDouble() * 400.0d - 200.0d);
+            final double vy = (random.nextDouble() * 400.0d - 200.0d);
+
+            boolean free = true;
+            for (int idx=0; free && (idx<walls); idx++)
+                free = (wallArray[idx].getDistance(x, y) > (l + 1.0d));
+            for (int idx=0; free && (idx<rocks); idx++)
+                free = (rockArray[idx].getDistance(x, y) > (l + 1.0d));
+            for (int idx=0; free && (idx<placed); idx++)
+            {
+                final double dx = (ballArray[idx].m_x - x);
+                final double dy = (ballArray[idx].m_y - y);
+                free = (Math.sqrt(dx*dx + dy*dy) > (ballArray[idx].m_r + l + 1.0d));
+            }
+            for (int idx=0; free && (idx<stick); idx++)
+            {
+                final double dx = (stickArray[idx].m_x - x);
+                final double dy = (stickArray[idx].m_y - y);
+                free = (Math.sqrt(dx*dx + dy*dy) > (stickArray[idx].m_l + l + 1.0d));
+            }
+
+            if (free)
+            {
+                stickArray[stick] = new Stick( x, y, l, angle, vx, vy );
+                world.add( stickArray[stick] );
+                stick++;
+            }
+        }
+
+        for (int idx=0; idx<zones; idx++)
+        {
+            world.add( new Zone(random.nextDouble() * width, random.nextDouble() * height,
+                    10.0d + random.nextDouble() * 50.0d,
+                    random.nextDouble() * 100.0d - 50.0d, random.nextDouble() * 100.0d - 50.0d) );
+        }
+        return world;
+    }
+
+    /*
+     * Turns on all optimizations expected to give
+     * the same result as the reference mode.
+     */
+    private static void configure( CDE cde )
+    {
+        cde.setSpecialization( true );
+        cde.setHybridMode( true );
+    }
+
+    private static String compare( World ref, World opt )
+    {
+        final int impacts = Math.min( ref.impacts, opt.impacts );
+        for (int idx=0; idx<impacts; idx++)
+        {
+            if ((Math.abs(ref.impactTime[idx] - opt.impactTime[idx]) > TIME_TOLERANCE) ||
+                (ref.impactObj1[idx] != opt.impactObj1[idx]) ||
+                (ref.impactObj2[idx] != opt.impactObj2[idx]))
+            {
+                return "impact " + idx + ": reference " +
+                        ref.impactObj1[idx] + "-" + ref.impactObj2[idx] + " at " + ref.impactTime[idx] +
+                        ", optimized " +
+                        opt.impactObj1[idx] + "-" + opt.impactObj2[idx] + " at " + opt.impactTime[idx];
+            }
+        }
+
+        if (ref.impacts != opt.impacts)
+        {
+            final World world = (ref.impacts > impacts) ? ref : opt;
+            return "impact " + impacts + ": " +
+                    world.impactObj1[impacts] + "-" + world.impactObj2[impacts] + " at " + world.impactTime[impacts] +
+                    " found only in " + ((world == ref) ? "reference" : "optimized") + " mode";
+        }
+
+        if (ref.events != opt.events)
+            return "reference " + ref.events + " sensor events, optimized " + opt.events + " sensor events";
+
+        for (int idx=0; idx<ref.events; idx++)
+        {
+            if (ref.sensorEvents[idx] != opt.sensorEvents[idx])
+            {
+                return "sensor event " + idx + ": reference " + Integer.toHexString(ref.sensorEvents[idx]) +
+                        ", optimized " + Integer.toHexString(opt.sensorEvents[idx]);
+            }
+        }
+
+        for (int idx=0; idx<ref.objects; idx++)
+        {
+            for (int sdx=0; sdx<4; sdx++)
+            {
+                final double refState = ref.bodies[idx].getState( sdx );
+                final double optState = opt.bodies[idx].getState( sdx );
+                if (Math.abs(refState - optState) > STATE_TOLERANCE)
+                {
+                    return "object " + idx + " state[" + sdx + "]: reference " + refState + ", optimized " + optState;
+                }
+            }
+        }
+        return null;
+    }
+
+    private static String compareHits( World ref, World opt )
+    {
+        if (ref.hits != opt.hits)
+            return "reference " + ref.hits + " hits, optimized " + opt.hits + " hits";
+
+        for (int idx=0; idx<ref.hits; idx++)
+        {
+            final double refDistance = Hit.getDistance( ref.hit, idx*Hit.SIZE );
+            final double optDistance = Hit.getDistance( opt.hit, idx*Hit.SIZE );
+            if ((ref.hitBody[idx].getIndex() != opt.hitBody[idx].getIndex()) ||
+                (ref.hitId[idx] != opt.hitId[idx]) ||
+                (Math.abs(refDistance - optDistance) > STATE_TOLERANCE))
+            {
+                return "hit " + idx + ": reference " +
+                        ref.hitBody[idx].getIndex() + "[" + ref.hitId[idx] + "] at " + refDistance +
+                        ", optimized " +
+                        opt.hitBody[idx].getIndex() + "[" + opt.hitId[idx] + "] at " + optDistance;
+            }
+        }
+        return null;
+    }
+
+    private static String compareFound( World ref, World opt, boolean nearest )
+    {
+        if (ref.found != opt.found)
+            return "reference found " + ref.found + ", optimized found " + opt.found;
+
+        for (int idx=0; idx<ref.found; idx++)
+        {
+            if ((ref.foundBody[idx].getIndex() != opt.foundBody[idx].getIndex()) ||
+                (ref.foundId[idx] != opt.foundId[idx]) ||
+                (nearest && (Math.abs(ref.foundDistance[idx] - opt.foundDistance[idx]) > STATE_TOLERANCE)))
+            {
+                return "found " + idx + ": reference " +
+                        ref.foundBody[idx].getIndex() + "[" + ref.foundId[idx] + "]" +
+                        ", optimized " +
+                        opt.foundBody[idx].getIndex() + "[" + opt.foundId[idx] + "]";
+            }
+        }
+        return null;
+    }
+
+    private static String query( Random random, World ref, World opt )
+    {
+        for (int idx=0; idx<QUERIES_PER_FRAME; idx++)
+        {
+            final double x = (random.nextDouble() * 800.0d);
+            final double y = (random.nextDouble() * 800.0d);
+            final int [] groups = random.nextBoolean() ? null : new int [] { random.nextInt(2) };
+            final int type = random.nextInt( 3 );
+            final String divergence;
+            if (type == 0)
+            {
+                final double angle = (random.nextDouble() * Math.PI * 2.0d);
+                final double maxDistance = random.nextBoolean() ? Double.POSITIVE_INFINITY : (random.nextDouble() * 400.0d);
+                final boolean all = random.nextBoolean();
+                ref.cast( x, y, Math.cos(angle), Math.sin(angle), maxDistance, groups, all );
+                opt.cast( x, y, Math.cos(angle), Math.sin(angle), maxDistance, groups, all );
+                divergence = compareHits( ref, opt );
+            }
+            else if (type == 1)
+            {
+                final double r = (random.nextDouble() * 200.0d);
+                final boolean box = random.nextBoolean();
+                ref.query( x, y, r, groups, box );
+                opt.query( x, y, r, groups, box );
+                divergence = compareFound( ref, opt, false );
+            }
+            else
+            {
+                final double maxDistance = random.nextBoolean() ? Double.POSITIVE_INFINITY : (random.nextDouble() * 200.0d);
+                ref.queryNearest( x, y, maxDistance, groups );
+                opt.queryNearest( x, y, maxDistance, groups );
+                divergence = compareFound( ref, opt, true );
+            }
+
+            if (divergence != null)
+                return "query " + idx + " type " + type + " at (" + x + ", " + y + "): " + divergence;
+        }
+        return null;
+    }
+
+    private static boolean run( long seed, World ref, World opt, int frames )
+    {
+        final Random random = new Random( seed );
+        for (int frame=0; frame<frames; frame++)
+        {
+            String divergence;
+            try
+            {
+                if (frame == (frames / 2))
+                    opt.checkpoint();
+                else if (frame == (frames / 4))
+                    opt.speculate( SPECULATIVE_FRAMES );
+                ref.run( FRAME_INTERVAL_S );
+                opt.run( FRAME_INTERVAL_S );
+                divergence = compare( ref, opt );
+                if (divergence == null)
+                    divergence = query( random, ref, opt );
+            }
+            catch (RuntimeException ex)
+            {
+                divergence = ex.toString();
+            }
+            catch (IOException ex)
+            {
+                divergence = ex.toString();
+            }
+
+            if (divergence != null)
+            {
+                System.out.println( "seed=" + seed + " frame=" + frame + ": " + divergence );
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean replay( long seed, RandomAccessFile logFile, int maxObjects, StaticLevel level, int frames )
+    {
+        final World world = new World( maxObjects );
+        world.record = false;
+        configure( world.cde );
+        world.cde.setStaticLevel( level );
+
+        String error;
+        try
+        {
+            logFile.seek( 0 );
+            final ImpactLogReplayer replayer = new ImpactLogReplayer( world.cde, logFile.getChannel(), world, 4096 );
+            world.objects = world.cde.getBodyCount();
+            final long steps = replayer.replay();
+            error = (steps == frames) ? null : ("replayed " + steps + " steps instead of " + frames);
+        }
+        catch (RuntimeException ex)
+        {
+            error = ex.toString();
+        }
+        catch (IOException ex)
+        {
+            error = ex.toString();
+        }
+
+        if (error != null)
+        {
+            System.out.println( "seed=" + seed + " replay: " + error );
+            return false;
+        }
+        return true;
+    }
+
+    private static boolean test( long seed, int frames ) throws IOException
+    {
+        final World ref = createWorld( seed, true );
+        final World opt = createWorld( seed, false );
+        final File file = File.createTempFile( "FuzzTest", ".log" );
+        final RandomAccessFile logFile = new RandomAccessFile( file, "rw" );
+        try
+        {
+            final ImpactLog log = new ImpactLog( opt.cde, logFile.getChannel(), 4096 );
+            final boolean ret = run( seed, ref, opt, frames );
+            log.close();
+            return ret && replay( seed, logFile, opt.objects, opt.cde.getStaticLevel(), frames ) &&
+                    testRegions( seed, frames ) && testRegionRestingBodies( seed );
+        }
+        finally
+        {
+            logFile.close();
+            file.delete();
+        }
+    }
+
+    /*
+     * Fast ball passes through the zone within one frame,
+     * sensor should report both begin and end events.
+     */
+    private static boolean testSensorCrossing( boolean referenceMode )
+    {
+        final World world = new World( 2 );
+        world.cde.setReferenceMode( referenceMode );
+        if (!referenceMode)
+            configure( world.cde );
+        world.add( new Zone(100.0d, 100.0d, 10.0d, 0.0d, 0.0d) );
+        world.add( new Ball(50.0d, 100.0d, 5.0d, 3000.0d, 0.0d) );
+        world.run( FRAME_INTERVAL_S );
+
+        final boolean ret = ((world.events == 2) &&
+                ((world.sensorEvents[0] & 1) != 0) && ((world.sensorEvents[1] & 1) == 0));
+        if (!ret)
+            System.out.println( "sensor crossing (referenceMode=" + referenceMode + "): " + world.events + " events" );
+        return ret;
+    }
+
+    private static void addRegions( World world )
+    {
+        world.cde.addRegion( -10000.0d, -10000.0d, 300.0d, 10000.0d, 4 );
+        world.cde.addRegion( 300.0d, -10000.0d, 10000.0d, 10000.0d, 8 );
+    }
+
+    /*
+     * World with regions and the copy loaded from its snapshot
+     * should keep going exactly the same way, asleep bodies included.
+     */
+    private static boolean testRegions( long seed, int frames ) throws IOException
+    {
+        final World world = createWorld( seed, false );
+        final World copy = createWorld( seed, false );
+        addRegions( world );
+        addRegions( copy );
+        /* Asleep bodies report impacts when the region catches up,
+         * so the first impact of the run is not always the predicted one.
+         */
+        world.predict = false;
+        copy.predict = false;
+        for (int frame=0; frame<frames; frame++)
+        {
+            if (frame == (frames / 2))
+                copy.checkpoint();
+            world.run( FRAME_INTERVAL_S );
+            copy.run( FRAME_INTERVAL_S );
+
+            String divergence = compare( world, copy );
+            if (divergence == null)
+                divergence = comparePrediction( world );
+            if (divergence == null)
+                divergence = comparePrediction( copy );
+            for (int idx=0; (divergence == null) && (idx<world.objects); idx++)
+            {
+                final double lag = world.cde.getLag( world.bodies[idx] );
+                final double copyLag = copy.cde.getLag( copy.bodies[idx] );
+                if (lag != copyLag)
+                    divergence = "object " + idx + " lag " + lag + ", copy lag " + copyLag;
+            }
+            if (divergence != null)
+            {
+                System.out.println( "regions: seed=" + seed + " frame=" + frame + ": " + divergence );
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /* Prediction should find the same earliest impact with and without the pair filter. */
+    private static String comparePrediction( World world )
+    {
+        final double maxTime = (FRAME_INTERVAL_S * SPECULATIVE_FRAMES);
+        final CDE cde = world.cde;
+        final int predictions = cde.predictImpacts( maxTime,
+                world.predictedBody1, world.predictedId1, world.predictedBody2, world.predictedId2, world.prediction );
+        final double time = Prediction.getTime( world.prediction, 0 );
+        cde.setReferenceMode( true );
+        final int refPredictions = cde.predictImpacts( maxTime,
+                world.predictedBody1, world.predictedId1, world.predictedBody2, world.predictedId2, world.prediction );
+        final double refTime = Prediction.getTime( world.prediction, 0 );
+        cde.setReferenceMode( false );
+        if ((predictions != refPredictions) || ((predictions > 0) && (Math.abs(time - refTime) > TIME_TOLERANCE)))
+        {
+            return "predicted " + predictions + " impacts at " + time +
+                    ", reference mode " + refPredictions + " impacts at " + refTime;
+        }
+        return null;
+    }
+
+    /*
+     * Impact of the ball asleep in the region should happen
+     * at the predicted world time, when the region catches up.
+     */
+    private static boolean testRegionPrediction()
+    {
+        final World world = new World( 2 );
+        world.predict = false;
+        world.add( new Ball(0.0d, 0.0d, 5.0d, 10.0d, 0.0d) );
+        world.add( new Wall(30.0d, -50.0d, 30.0d, 50.0d, 1.0d) );
+        world.cde.addRegion( -1000.0d, -1000.0d, 1000.0d, 1000.0d, 4 );
+
+        int frame = 0;
+        for (; frame<5; frame++)
+            world.run( FRAME_INTERVAL_S );
+
+        final double lag = world.cde.getLag( world.bodies[0] );
+        final int predictions = world.cde.predictImpacts( 10.0d,
+                world.predictedBody1, world.predictedId1, world.predictedBody2, world.predictedId2, world.prediction );
+        final double predicted = ((predictions > 0) ?
+                (frame*FRAME_INTERVAL_S + Prediction.getTime(world.prediction, 0)) : Double.NaN);
+
+        /* Time passed since the frame start includes the time the region catches up. */
+        double happened = Double.NaN;
+        for (; frame<600; frame++)
+        {
+            final double lagBefore = world.cde.getLag( world.bodies[0] );
+            world.run( FRAME_INTERVAL_S );
+            if (world.impacts > 0)
+            {
+                happened = (frame*FRAME_INTERVAL_S - lagBefore + world.impactTime[0]);
+                break;
+            }
+        }
+
+        final boolean ret = ((lag > 0.0d) && (Math.abs(predicted - happened) < TIME_TOLERANCE));
+        if (!ret)
+            System.out.println( "region prediction: lag " + lag + ", predicted at " + predicted + ", happened at " + happened );
+        return ret;
+    }
+
+    /*
+     * Impacts predicted for one body should have the body first,
+     * the segment and the level solvers put the segment first.
+     */
+    private static boolean testBodyPrediction( boolean referenceMode ) throws IOException
+    {
+        final World world = new World( 3 );
+        world.cde.setReferenceMode( referenceMode );
+        if (!referenceMode)
+            configure( world.cde );
+        final Ball ball = new Ball( 0.0d, 0.0d, 5.0d, 10.0d, 0.0d );
+        final Wall wall = new Wall( 30.0d, 50.0d, 30.0d, -50.0d, 0.0d );
+        world.add( wall );
+        world.add( ball );
+        world.add( new Ball(100.0d, 0.0d, 5.0d, -10.0d, 0.0d) );
+        world.cde.setStaticLevel( createLevel(new Wall [] { new Wall(60.0d, 50.0d, 60.0d, -50.0d, 0.0d) }, 20.0d) );
+
+        final Body [] body1 = new Body[4];
+        final int [] id1 = new int[4];
+        final Body [] body2 = new Body[4];
+        final int [] id2 = new int[4];
+        final double [] prediction = new double[4 * Prediction.SIZE];
+        final int predictions = world.cde.predictImpacts( ball, 10.0d, body1, id1, body2, id2, prediction );
+
+        boolean ret = (predictions == 3);
+        for (int idx=0; idx<predictions; idx++)
+            ret &= ((body1[idx] == ball) && (body2[idx] != ball));
+        if (!ret)
+        {
+            System.out.println( "body prediction (reference mode " + referenceMode + "): " +
+                    predictions + " impacts, body first " + ((predictions > 0) && (body1[0] == ball)) );
+        }
+        return ret;
+    }
+
+    private static World createRestingWorld( long seed, boolean regions )
+    {
+        final Random random = new Random( seed );
+        final int resting = (1 + random.nextInt(4));
+        final World world = new World( 1 + resting );
+        configure( world.cde );
+        world.predict = false;
+        world.add( new Ball(0.0d, 0.0d, 5.0d, 20.0d + random.nextDouble() * 20.0d, 0.0d) );
+        for (int idx=0; idx<resting; idx++)
+        {
+            final double x = (20.0d + idx*20.0d + random.nextDouble() * 5.0d);
+            world.add( new Ball(x, random.nextDouble() * 4.0d - 2.0d, 2.0d + random.nextDouble() * 4.0d, 0.0d, 0.0d) );
+        }
+        if (regions)
+            world.cde.addRegion( -1000.0d, -1000.0d, 1000.0d, 1000.0d, 4 );
+        return world;
+    }
+
+    /*
+     * Balls at rest hit by the ball asleep in the region
+     * should move as they do in the same world without regions.
+     */
+    private static boolean testRegionRestingBodies( long seed )
+    {
+        final World world = createRestingWorld( seed, true );
+        final World ref = createRestingWorld( seed, false );
+        try
+        {
+            for (int frame=0; frame<90; frame++)
+            {
+                world.run( FRAME_INTERVAL_S );
+                ref.run( FRAME_INTERVAL_S );
+            }
+            world.cde.removeRegions();
+        }
+        catch (RuntimeException ex)
+        {
+            /* Balls passing through each other get stuck in impacts. */
+            System.out.println( "resting bodies: seed=" + seed + ": " + ex );
+            return false;
+        }
+
+        /* Impacts are searched on other intervals, so their times differ by the solver
+         * precision, glancing impacts turn it into some distance by the end.
+         */
+        final double tolerance = 0.01d;
+        for (int idx=0; idx<world.objects; idx++)
+        {
+            final Ball ball = (Ball) world.bodies[idx];
+            final Ball refBall = (Ball) ref.bodies[idx];
+            if ((Math.abs(ball.m_x - refBall.m_x) > tolerance) ||
+                (Math.abs(ball.m_y - refBall.m_y) > tolerance))
+            {
+                System.out.println( "resting bodies: seed=" + seed + " ball " + idx + " at (" + ball.m_x + ", " + ball.m_y +
+                        "), without regions at (" + refBall.m_x + ", " + refBall.m_y + ")" );
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /*
+     * Ball asleep in the region should be woken up by the sensor it can reach
+     * and by the frame buffer, both need the current ball position.
+     */
+    private static boolean testRegionCatchUp( double zoneX )
+    {
+        final World world = new World( 2 );
+        world.add( new Ball(0.0d, 0.0d, 5.0d, 10.0d, 0.0d) );
+        world.add( new Zone(zoneX, 0.0d, 5.0d, 0.0d, 0.0d) );
+        world.cde.addRegion( -1000.0d, -1000.0d, 1000.0d, 1000.0d, 4 );
+
+        final boolean reachable = (zoneX < 20.0d);
+        double lag = 0.0d;
+        for (int frame=0; frame<5; frame++)
+        {
+            world.run( FRAME_INTERVAL_S );
+            lag = Math.max( lag, world.cde.getLag(world.bodies[0]) );
+        }
+
+        world.cde.setFrameBuffer( new FrameBuffer() );
+        world.run( FRAME_INTERVAL_S );
+        final double frameLag = world.cde.getLag( world.bodies[0] );
+
+        final boolean ret = ((reachable ? (lag == 0.0d) : (lag > 0.0d)) && (frameLag == 0.0d));
+        if (!ret)
+            System.out.println( "region catch-up (zone at " + zoneX + "): lag " + lag + ", frame lag " + frameLag );
+        return ret;
+    }
+
+    /*
+     * World removed during its tick and added again should not run
+     * on another worker before that tick is completed.
+     */
+    private static boolean testSchedulerReAdd() throws InterruptedException
+    {
+        final CDE cde = new CDE();
+        final AtomicInteger active = new AtomicInteger();
+        final AtomicInteger maxActive = new AtomicInteger();
+        final CountDownLatch entered = new CountDownLatch( 1 );
+        final CountDownLatch resume = new CountDownLatch( 1 );
+        final WorldScheduler.TickListener listener = new WorldScheduler.TickListener()
+        {
+            public void onTick( CDE cde, long tick )
+            {
+                final int count = active.incrementAndGet();
+                if (count > maxActive.get())
+                    maxActive.set( count );
+                if (entered.getCount() > 0)
+                {
+                    entered.countDown();
+                    try
+                    {
+                        resume.await( 5, TimeUnit.SECONDS );
+                    }
+                    catch (InterruptedException ex)
+                    {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                active.decrementAndGet();
+            }
+        };
+
+        final WorldScheduler scheduler = new WorldScheduler( "fuzz-scheduler", 2, 0.001d, 1 );
+        scheduler.start();
+        scheduler.add( cde, listener );
+        entered.await( 5, TimeUnit.SECONDS );
+        scheduler.remove( cde );
+        final boolean added = scheduler.add( cde, listener );
+        Thread.sleep( 50 );
+        final long ticksDuringTick = scheduler.getTicks( cde );
+        resume.countDown();
+        Thread.sleep( 50 );
+        final long ticks = scheduler.getTicks( cde );
+        scheduler.stop();
+
+        final boolean ret = (added && (ticksDuringTick == 0) && (ticks > 0) && (maxActive.get() == 1));
+        if (!ret)
+        {
+            System.out.println( "scheduler: added " + added + ", ticks during the tick " + ticksDuringTick +
+                    ", ticks after " + ticks + ", concurrent ticks " + maxActive.get() );
+        }
+        return ret;
+    }
+
+    private static boolean isLevelRejected( byte [] level )
+    {
+        try
+        {
+            new StaticLevel( ByteBuffer.wrap(level) );
+            return false;
+        }
+        catch (IOException ex)
+        {
+            return true;
+        }
+    }
+
+    /*
+     * Level should leave the caller's buffer as it is
+     * and reject the cells and items out of range,
+     * write() should reject the grid which does not fit the int range.
+     */
+    private static boolean testLevel() throws IOException
+    {
+        final double [] segments = { 0.0d, 0.0d, 100.0d, 0.0d, 100.0d, 100.0d, 0.0d, 100.0d };
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        StaticLevel.write( Channels.newChannel(out), segments, 2, null, 0, 10.0d );
+        final byte [] level = out.toByteArray();
+
+        final ByteBuffer buf = ByteBuffer.wrap( level );
+        buf.position( 8 );
+        new StaticLevel( buf );
+        boolean ret = ((buf.order() == ByteOrder.BIG_ENDIAN) && (buf.position() == 8));
+
+        /* Layout is described in the StaticLevel. */
+        final ByteBuffer header = ByteBuffer.wrap( level ).order( ByteOrder.LITTLE_ENDIAN );
+        final int cellsOffs = (64 + header.getInt(8)*32 + header.getInt(12)*24);
+        final int itemsOffs = (cellsOffs + (header.getInt(16)*header.getInt(20) + 1)*4);
+
+        final byte [] invalidItem = level.clone();
+        ByteBuffer.wrap( invalidItem ).order( ByteOrder.LITTLE_ENDIAN ).putInt( itemsOffs, 2 );
+        final byte [] invalidCell = level.clone();
+        ByteBuffer.wrap( invalidCell ).order( ByteOrder.LITTLE_ENDIAN ).putInt( cellsOffs+4, -1 );
+        final byte [] invalidCount = level.clone();
+        ByteBuffer.wrap( invalidCount ).order( ByteOrder.LITTLE_ENDIAN ).putInt( 8, Integer.MAX_VALUE );
+        ret &= (isLevelRejected(invalidItem) && isLevelRejected(invalidCell) && isLevelRejected(invalidCount));
+
+        try
+        {
+            StaticLevel.write( Channels.newChannel(new ByteArrayOutputStream()), segments, 2, null, 0, 1.0e-6d );
+            ret = false;
+        }
+        catch (IllegalArgumentException ex)
+        {
+            /* expected, 1e8 x 1e8 cells */
+        }
+
+        if (!ret)
+            System.out.println( "level: buffer changed or invalid level accepted" );
+        return ret;
+    }
+
+    /*
+     * World with a body not implementing Body.Snapshot runs as usual,
+     * but can not be saved, nothing is written then.
+     */
+    private static boolean testSnapshotOptIn() throws IOException
+    {
+        final World world = new World( 1 );
+        world.add( new Ball(10.0d, 0.0d, 5.0d, -10.0d, 0.0d) );
+        world.cde.add( new Peg() );
+        world.run( FRAME_INTERVAL_S );
+
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        boolean saved;
+        try
+        {
+            world.cde.save( Channels.newChannel(out) );
+            saved = true;
+        }
+        catch (IllegalStateException ex)
+        {
+            saved = false;
+        }
+
+        final ByteBuffer buf = ByteBuffer.allocate( 1024 );
+        boolean savedDynamicState;
+        try
+        {
+            world.cde.saveDynamicState( buf );
+            savedDynamicState = true;
+        }
+        catch (IllegalStateException ex)
+        {
+            savedDynamicState = false;
+        }
+
+        final boolean ret = (!saved && !savedDynamicState && (out.size() == 0) && (buf.position() == 0));
+        if (!ret)
+            System.out.println( "snapshot opt-in: world with a plain body is saved" );
+        return ret;
+    }
+
+    public static void main( String [] args ) throws IOException, InterruptedException
+    {
+        final long firstSeed = (args.length > 0) ? Long.parseLong(args[0]) : 1;
+        final int worlds = (args.length > 1) ? Integer.parseInt(args[1]) : 200;
+        final int frames = (args.length > 2) ? Integer.parseInt(args[2]) : 300;
+
+        int failed = 0;
+        if (!testSensorCrossing(true) || !testSensorCrossing(false))
+            failed++;
+        if (!testRegionCatchUp(8.0d) || !testRegionCatchUp(500.0d))
+            failed++;
+        if (!testRegionPrediction())
+            failed++;
+        if (!testBodyPrediction(true) || !testBodyPrediction(false))
+            failed++;
+        if (!testLevel())
+            failed++;
+        if (!testSnapshotOptIn())
+            failed++;
+        if (!testSchedulerReAdd())
+            failed++;
+
+        for (long seed=firstSeed; seed<firstSeed+worlds; seed++)
+        {
+            if (!test(seed, frames))
+                failed++;
+        }
+
+        System.out.println( worlds + " worlds, " + failed + " failed" );
+        if (failed > 0)
+            System.exit( 1 );
+    }
+}
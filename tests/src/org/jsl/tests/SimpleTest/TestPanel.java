@@ -22,7 +22,10 @@ package org.jsl.tests.SimpleTest;
 
 import org.jsl.cde.Body;
 import org.jsl.cde.CDE;
+import org.jsl.cde.Frame;
+import org.jsl.cde.FrameBuffer;
 import org.jsl.cde.Impulse;
+import org.jsl.cde.Stepper;
 
 import javax.swing.*;
 import java.awt.*;
@@ -33,6 +36,7 @@ public class TestPanel extends JPanel
     private static final int FPS = 30;
     private static double FRAME_INTERVAL_S = (1.0d / FPS);
     private static long FRAME_INTERVAL_MS = (1000 / FPS);
+    private static final int MAX_CATCH_UP_STEPS = 5;
 
     private static abstract class DObj extends Body
     {
@@ -45,7 +49,7 @@ public class TestPanel extends JPanel
         {
         }
 
-        public abstract void draw( Graphics g, double [] tdv );
+        public abstract Color getColor();
     }
 
     private static class Table extends DObj
@@ -116,16 +120,14 @@ public class TestPanel extends JPanel
             /* Table does not move. */
         }
 
-        public void draw( Graphics g, double [] tdv )
+        public double getMaxSpeed()
         {
-            g.setColor( Color.green );
-            for (int idx=0; idx<getPrCount(); idx++)
-            {
-                getPrPosition( 0, idx, tdv, 0 );
-                g.drawLine(
-                        (int) Body.Segment.getX1(tdv, 0), (int) Body.Segment.getY1(tdv, 0),
-                        (int) Body.Segment.getX2(tdv, 0), (int) Body.Segment.getY2(tdv, 0) );
-            }
+            return 0.0d;
+        }
+
+        public Color getColor()
+        {
+            return Color.green;
         }
     }
 
@@ -211,18 +213,17 @@ public class TestPanel extends JPanel
             m_angle += (m_rv * t );
         }
 
-        public void draw( Graphics g, double [] tdv )
+        public double getMaxSpeed()
         {
-            g.setColor( Color.BLUE );
-            for (int idx=0; idx<getPrCount(); idx++)
-            {
-                getPrPosition( 0, idx, tdv, 0 );
-                g.drawLine(
-                        (int) Body.Segment.getX1(tdv, 0), (int) Body.Segment.getY1(tdv, 0),
-                        (int) Body.Segment.getX2(tdv, 0), (int) Body.Segment.getY2(tdv, 0) );
-            }
-            g.setColor( Color.red );
-            g.drawOval( (int)m_x, (int)m_y, 2, 2 );
+            /* Fence does not move, segment points are not farther
+             * than the longest ray from the rotation center.
+             */
+            return Math.abs( m_rv ) * Math.max( m_r1, m_r2 );
+        }
+
+        public Color getColor()
+        {
+            return Color.blue;
         }
     }
 
@@ -280,12 +281,14 @@ public class TestPanel extends JPanel
             m_y += (m_vy * t);
         }
 
-        public void draw( Graphics g, double [] tdv )
+        public double getMaxSpeed()
+        {
+            return Math.sqrt( m_vx*m_vx + m_vy*m_vy );
+        }
+
+        public Color getColor()
         {
-            g.setColor( Color.red );
-            g.drawOval( (int) (m_x - m_r), (int) (m_y - m_r), (int) (m_r * 2.0d), (int) (m_r * 2.0d) );
-            g.setColor( Color.blue );
-            g.drawLine( (int) m_x, (int) m_y, (int) (m_x + m_vx), (int) (m_y + m_vy) );
+            return Color.red;
         }
     }
 
@@ -304,9 +307,9 @@ public class TestPanel extends JPanel
             m_y2 = y2;
         }
 
-        public void draw( Graphics g, double [] tdv )
+        public Color getColor()
         {
-            g.drawLine( (int) m_x1, (int) m_y1, (int) m_x2, (int) m_y2 );
+            return Color.black;
         }
 
         public int getPrCount()
@@ -341,33 +344,39 @@ public class TestPanel extends JPanel
         public void move( double t )
         {
         }
+
+        public double getMaxSpeed()
+        {
+            return 0.0d;
+        }
     }
 
     private final CDE m_cde;
     private final ArrayDeque<DObj> m_objs;
-    private final double [] m_tdv;
+    private final FrameBuffer m_frameBuffer;
+    private final Color [] m_colors; /* by body index */
 
     private volatile boolean m_run;
     private final Thread m_worker;
 
     private void run_i()
     {
+        /* Stepper keeps the simulation time in sync with the real time,
+         * sleep until the next step is due.
+         */
+        final Stepper stepper = new Stepper( m_cde, FRAME_INTERVAL_S, MAX_CATCH_UP_STEPS );
         while (m_run)
         {
-            final long startTime = System.currentTimeMillis();
-            synchronized (m_cde)
-            {
-                m_cde.run( FRAME_INTERVAL_S );
-            }
-            final long endTime = System.currentTimeMillis();
-            final long sleepTime = (startTime + FRAME_INTERVAL_MS - endTime);
+            if (stepper.update() > 0)
+                repaint();
+
+            final long sleepTime = (long) ((1.0d - stepper.getAlpha()) * FRAME_INTERVAL_MS);
             if (sleepTime > 0)
             {
                 try { Thread.sleep( sleepTime ); }
                 catch (InterruptedException ex)
                 { ex.printStackTrace(); }
             }
-            repaint();
         }
     }
 
@@ -377,7 +386,9 @@ public class TestPanel extends JPanel
 
         m_cde = new CDE();
         m_objs = new ArrayDeque<DObj>();
-        m_tdv = new double[54];
+        m_frameBuffer = new FrameBuffer();
+        m_cde.setFrameBuffer( m_frameBuffer );
+        m_cde.setHybridMode( true );
 
         if (true)
         {
@@ -392,6 +403,10 @@ public class TestPanel extends JPanel
         for (DObj obj : m_objs)
             m_cde.add( obj );
 
+        m_colors = new Color[m_objs.size()];
+        for (DObj obj : m_objs)
+            m_colors[obj.getIndex()] = obj.getColor();
+
         m_run = true;
         m_worker = new Thread( new Runnable() { public void run() { run_i(); } } );
         m_worker.start();
@@ -406,10 +421,31 @@ public class TestPanel extends JPanel
     {
         super.paintComponent( g );
 
-        synchronized (m_cde)
+        /* Frame is a copy made by the worker thread,
+         * so there is no need to lock the CDE.
+         */
+        final Frame frame = m_frameBuffer.acquire();
+        final double [] data = frame.getData();
+        for (int pr=0; pr<frame.getPrCount(); pr++)
         {
-            for (DObj obj : m_objs)
-                obj.draw( g, m_tdv );
+            final int offs = frame.getPrOffset( pr );
+            g.setColor( m_colors[frame.getPrIndex(pr)] );
+            switch (frame.getPrType(pr))
+            {
+                case Body.SEGMENT:
+                    g.drawLine(
+                            (int) Body.Segment.getX1(data, offs), (int) Body.Segment.getY1(data, offs),
+                            (int) Body.Segment.getX2(data, offs), (int) Body.Segment.getY2(data, offs) );
+                    break;
+
+                case Body.BALL:
+                {
+                    final double r = Body.Ball.getR( data, offs );
+                    g.drawOval( (int) (Body.Ball.getX(data, offs) - r), (int) (Body.Ball.getY(data, offs) - r),
+                                (int) (r * 2.0d), (int) (r * 2.0d) );
+                    break;
+                }
+            }
         }
     }
 
@@ -0,0 +1,1235 @@
+/*
+ * Copyright (C) 2013 Sergey Zubarev, info@js-labs.org
+ *
+ * This file is a part of JS-CDE
+ * (Collision Detection Engine) framework.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as
+ * published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.jsl.tests.ZeroAllocTest;
+
+import org.jsl.cde.Body;
+import org.jsl.cde.CDE;
+import org.jsl.cde.Frame;
+import org.jsl.cde.FrameBuffer;
+import org.jsl.cde.Hit;
+import org.jsl.cde.ImpactBuffer;
+import org.jsl.cde.ImpactLog;
+import org.jsl.cde.ImpactRing;
+import org.jsl.cde.Impulse;
+import org.jsl.cde.Prediction;
+import org.jsl.cde.StaticLevel;
+import org.jsl.cde.Stepper;
+import org.jsl.cde.WorldScheduler;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/*
+ * Runs generated scenes through CDE.run() and checks
+ * that there is no memory allocated by the engine in the steady state.
+ * Exits with non zero code if any scene allocates.
+ */
+public class Main
+{
+    private static final int FPS = 30;
+    private static final double FRAME_INTERVAL_S = (1.0d / FPS);
+    private static final int WARMUP_FRAMES = 5000;
+    private static final int FRAMES = 1000;
+    private static final int WINDOWS = 5;
+
+    private static class Box extends Body implements Body.Snapshot
+    {
+        private final double m_x1;
+        private final double m_y1;
+        private final double m_x2;
+        private final double m_y2;
+
+        public Box( double x1, double y1, double x2, double y2 )
+        {
+            m_x1 = x1;
+            m_y1 = y1;
+            m_x2 = x2;
+            m_y2 = y2;
+        }
+
+        public int getPrCount() { return 4; }
+        public int getPrType( int id ) { return SEGMENT; }
+
+        public int getPrPosition( double t, int id, double [] dv, int offs )
+        {
+            /* All other objects are inside, use non-clockwise direction. */
+            switch (id)
+            {
+                case 0: return Segment.set( dv, offs, m_x1, m_y1, m_x1, m_y2 );
+                case 1: return Segment.set( dv, offs, m_x1, m_y2, m_x2, m_y2 );
+                case 2: return Segment.set( dv, offs, m_x2, m_y2, m_x2, m_y1 );
+                default: return Segment.set( dv, offs, m_x2, m_y1, m_x1, m_y1 );
+            }
+        }
+
+        public int getPrImpulse( int id, double x, double y, double [] dv, int offs )
+        {
+            return Impulse.set( dv, offs, 0.0d, 0.0d, Double.MAX_VALUE );
+        }
+
+        public int applyPrImpulse( int id, double x, double y, double vx, double vy ) { return 0; }
+        public void move( double t ) { }
+        public double getMaxSpeed() { return 0.0d; }
+
+        public void saveState( ByteBuffer buf )
+        {
+            buf.putDouble( m_x1 );
+            buf.putDouble( m_y1 );
+            buf.putDouble( m_x2 );
+            buf.putDouble( m_y2 );
+        }
+
+        public void saveDynamicState( ByteBuffer buf ) { }
+        public void restoreDynamicState( ByteBuffer buf ) { }
+    }
+
+    private static class Fence extends Body implements Body.Snapshot
+    {
+        private final double m_x;
+        private final double m_y;
+        private final double m_r;
+        private final double m_rv;
+        private double m_angle;
+
+        public Fence( double x, double y, double r, double rv )
+        {
+            m_x = x;
+            m_y = y;
+            m_r = r;
+            m_rv = rv;
+        }
+
+        public int getPrCount() { return 2; }
+        public int getPrType( int id ) { return SEGMENT; }
+
+        public int getPrPosition( double t, int id, double [] dv, int offs )
+        {
+            final double angle = m_angle + m_rv * t + Math.PI / 2 * id;
+            final double sin = Math.sin( angle );
+            final double cos = Math.cos( angle );
+            return Segment.set( dv, offs, m_x - m_r*cos, m_y - m_r*sin, m_x + m_r*cos, m_y + m_r*sin );
+        }
+
+        public int getPrImpulse( int id, double x, double y, double [] dv, int offs )
+        {
+            x -= m_x;
+            y -= m_y;
+            return Impulse.set( dv, offs, -y*m_rv, x*m_rv, Double.MAX_VALUE );
+        }
+
+        public int applyPrImpulse( int id, double x, double y, double vx, double vy ) { return 0; }
+
+        public void move( double t )
+        {
+            m_angle += (m_rv * t);
+        }
+
+        public double getMaxSpeed()
+        {
+            return Math.abs( m_rv * m_r );
+        }
+
+        public void saveState( ByteBuffer buf )
+        {
+            buf.putDouble( m_x );
+            buf.putDouble( m_y );
+            buf.putDouble( m_r );
+            buf.putDouble( m_rv );
+            buf.putDouble( m_angle );
+        }
+
+        public void saveDynamicState( ByteBuffer buf )
+        {
+            buf.putDouble( m_angle );
+        }
+
+        public void restoreDynamicState( ByteBuffer buf )
+        {
+            m_angle = buf.getDouble();
+        }
+    }
+
+    private static class Ball extends Body implements Body.Snapshot
+    {
+        private double m_x;
+        private double m_y;
+        private final double m_r;
+        private double m_vx;
+        private double m_vy;
+
+        public Ball( double x, double y, double r, double vx, double vy )
+        {
+            m_x = x;
+            m_y = y;
+            m_r = r;
+            m_vx = vx;
+            m_vy = vy;
+        }
+
+        public int getPrCount() { return 1; }
+        public int getPrType( int id ) { return BALL; }
+
+        public int getPrPosition( double t, int id, double [] dv, int offs )
+        {
+            return Body.Ball.set( dv, offs, m_x + t*m_vx, m_y + t*m_vy, m_r );
+        }
+
+        public int getPrImpulse( int id, double x, double y, double [] dv, int offs )
+        {
+            return Impulse.set( dv, offs, m_vx, m_vy, 1.0d );
+        }
+
+        public int applyPrImpulse( int id, double x, double y, double vx, double vy )
+        {
+            m_vx = vx;
+            m_vy = vy;
+            return 0;
+        }
+
+        public void move( double t )
+        {
+            m_x += (m_vx * t);
+            m_y += (m_vy * t);
+        }
+
+        public double getMaxSpeed()
+        {
+            return Math.sqrt( m_vx*m_vx + m_vy*m_vy );
+        }
+
+        public void saveState( ByteBuffer buf )
+        {
+            buf.putDouble( m_x );
+            buf.putDouble( m_y );
+            buf.putDouble( m_r );
+            buf.putDouble( m_vx );
+            buf.putDouble( m_vy );
+        }
+
+        public void saveDynamicState( ByteBuffer buf )
+        {
+            buf.putDouble( m_x );
+            buf.putDouble( m_y );
+            buf.putDouble( m_vx );
+            buf.putDouble( m_vy );
+        }
+
+        public void restoreDynamicState( ByteBuffer buf )
+        {
+            m_x = buf.getDouble();
+            m_y = buf.getDouble();
+            m_vx = buf.getDouble();
+            m_vy = buf.getDouble();
+        }
+    }
+
+    private static class Zone extends Body implements Body.Snapshot
+    {
+        private final double m_x;
+        private final double m_y;
+        private final double m_r;
+
+        public Zone( double x, double y, double r )
+        {
+            m_x = x;
+            m_y = y;
+            m_r = r;
+        }
+
+        public boolean isSensor() { return true; }
+        public int getPrCount() { return 1; }
+        public int getPrType( int id ) { return BALL; }
+
+        public int getPrPosition( double t, int id, double [] dv, int offs )
+        {
+            return Body.Ball.set( dv, offs, m_x, m_y, m_r );
+        }
+
+        public int getPrImpulse( int id, double x, double y, double [] dv, int offs )
+        {
+            return Impulse.set( dv, offs, 0.0d, 0.0d, Double.MAX_VALUE );
+        }
+
+        public int applyPrImpulse( int id, double x, double y, double vx, double vy ) { return 0; }
+        public void move( double t ) { }
+        public double getMaxSpeed() { return 0.0d; }
+
+        public void saveState( ByteBuffer buf )
+        {
+            buf.putDouble( m_x );
+            buf.putDouble( m_y );
+            buf.putDouble( m_r );
+        }
+
+        public void saveDynamicState( ByteBuffer buf ) { }
+        public void restoreDynamicState( ByteBuffer buf ) { }
+    }
+
+    /*
+     * Scene is a box split to the cells,
+     * every cell contains one ball, some cells contains a fence.
+     */
+    private static CDE createScene( long seed, int cols, int rows, int fences )
+    {
+        final double cellSize = 100.0d;
+        final double width = (cols * cellSize);
+        final double height = (rows * cellSize);
+        final Random random = new Random( seed );
+        final CDE cde = new CDE();
+
+        cde.add( new Box(0.0d, 0.0d, width, height) );
+
+        for (int row=0; row<rows; row++)
+        {
+            for (int col=0; col<cols; col++)
+            {
+                final double x = (col * cellSize + cellSize / 2.0d);
+                final double y = (row * cellSize + cellSize / 2.0d);
+                if (fences > 0)
+                {
+                    cde.add( new Fence(x, y, cellSize/4.0d, Math.PI / 180.0d * (10 + random.nextInt(30))) );
+                    fences--;
+                }
+                else
+                {
+                    cde.add( new Ball(x, y, 5.0d + random.nextInt(5),
+                            random.nextDouble()*200.0d - 100.0d, random.nextDouble()*200.0d - 100.0d) );
+                }
+            }
+        }
+        return cde;
+    }
+
+    /*
+     * Scene is the same as above, but box walls and pegs
+     * between the cells are in the memory mapped static level.
+     */
+    private static CDE createLevelScene( long seed, int cols, int rows, File file ) throws IOException
+    {
+        final double cellSize = 100.0d;
+        final double width = (cols * cellSize);
+        final double height = (rows * cellSize);
+        final Random random = new Random( seed );
+
+        final double [] segments = new double[4 * 4];
+        Body.Segment.set( segments, 0, 0.0d, 0.0d, 0.0d, height );
+        Body.Segment.set( segments, 4, 0.0d, height, width, height );
+        Body.Segment.set( segments, 8, width, height, width, 0.0d );
+        Body.Segment.set( segments, 12, width, 0.0d, 0.0d, 0.0d );
+
+        final int pegs = ((cols - 1) * (rows - 1));
+        final double [] balls = new double[pegs * 3];
+        int offs = 0;
+        for (int row=1; row<rows; row++)
+            for (int col=1; col<cols; col++)
+                offs = Body.Ball.set( balls, offs, col*cellSize, row*cellSize, 3.0d );
+
+        final RandomAccessFile levelFile = new RandomAccessFile( file, "rw" );
+        final StaticLevel level;
+        try
+        {
+            StaticLevel.write( levelFile.getChannel(), segments, 4, balls, pegs, cellSize );
+            level = StaticLevel.map( levelFile.getChannel() );
+        }
+        finally
+        {
+            levelFile.close();
+        }
+
+        final CDE cde = new CDE();
+        cde.setStaticLevel( level );
+        for (int row=0; row<rows; row++)
+        {
+            for (int col=0; col<cols; col++)
+            {
+                final double x = (col * cellSize + cellSize / 2.0d);
+                final double y = (row * cellSize + cellSize / 2.0d);
+                cde.add( new Ball(x, y, 5.0d + random.nextInt(5),
+                        random.nextDouble()*200.0d - 100.0d, random.nextDouble()*200.0d - 100.0d) );
+            }
+        }
+        return cde;
+    }
+
+    private static boolean testStaticLevel( String name, boolean cast ) throws IOException
+    {
+        final File file = File.createTempFile( "ZeroAllocTest", ".level" );
+        try
+        {
+            final CDE cde = createLevelScene( 4, 6, 6, file );
+            return test( name, cde, cast ? new Caster(cde, 300.0d, 300.0d) : null );
+        }
+        finally
+        {
+            file.delete();
+        }
+    }
+
+    /*
+     * Static ball registered as a user primitive type,
+     * built-in balls solver is reused for it.
+     */
+    private static class Peg extends Body
+    {
+        public static final int TYPE = 5;
+
+        private final double m_x;
+        private final double m_y;
+        private final double m_r;
+
+        public Peg( double x, double y, double r )
+        {
+            m_x = x;
+            m_y = y;
+            m_r = r;
+        }
+
+        public int getPrCount() { return 1; }
+        public int getPrType( int id ) { return TYPE; }
+
+        public int getPrPosition( double t, int id, double [] dv, int offs )
+        {
+            return Body.Ball.set( dv, offs, m_x, m_y, m_r );
+        }
+
+        public int getPrImpulse( int id, double x, double y, double [] dv, int offs )
+        {
+            return Impulse.set( dv, offs, 0.0d, 0.0d, Double.MAX_VALUE );
+        }
+
+        public int applyPrImpulse( int id, double x, double y, double vx, double vy ) { return 0; }
+        public void move( double t ) { }
+        public double getMaxSpeed() { return 0.0d; }
+    }
+
+    /*
+     * Adds pairs of rotating fences sweeping each other below the box,
+     * immovable segments impacts can not be resolved, so should be skipped.
+     * Fences are out of the box, otherwise a ball can be squeezed between them.
+     */
+    private static CDE addCrossingFences( CDE cde, int cols, double cellSize )
+    {
+        for (int col=0; col<cols; col++)
+        {
+            final double x = (col*cellSize + cellSize/2.0d);
+            cde.add( new Fence(x - 15.0d, -cellSize/2.0d, 20.0d, 1.0d) );
+            cde.add( new Fence(x + 15.0d, -cellSize/2.0d, 20.0d, -1.5d) );
+        }
+        return cde;
+    }
+
+    /* Rotating capsule. */
+    private static class Paddle extends Body
+    {
+        private final double m_x;
+        private final double m_y;
+        private final double m_l;
+        private final double m_r;
+        private final double m_rv;
+        private double m_angle;
+
+        public Paddle( double x, double y, double l, double r, double rv )
+        {
+            m_x = x;
+            m_y = y;
+            m_l = l;
+            m_r = r;
+            m_rv = rv;
+        }
+
+        public int getPrCount() { return 1; }
+        public int getPrType( int id ) { return CAPSULE; }
+
+        public int getPrPosition( double t, int id, double [] dv, int offs )
+        {
+            final double angle = m_angle + m_rv * t;
+            final double sin = Math.sin( angle );
+            final double cos = Math.cos( angle );
+            return Capsule.set( dv, offs, m_x - m_l*cos, m_y - m_l*sin, m_x + m_l*cos, m_y + m_l*sin, m_r );
+        }
+
+        public int getPrImpulse( int id, double x, double y, double [] dv, int offs )
+        {
+            x -= m_x;
+            y -= m_y;
+            return Impulse.set( dv, offs, -y*m_rv, x*m_rv, Double.MAX_VALUE );
+        }
+
+        public int applyPrImpulse( int id, double x, double y, double vx, double vy ) { return 0; }
+
+        public void move( double t )
+        {
+            m_angle += (m_rv * t);
+        }
+
+        public double getMaxSpeed()
+        {
+            return Math.abs( m_rv * (m_l + m_r) );
+        }
+    }
+
+    /* Rotating regular polygon. */
+    private static class Crate extends Body
+    {
+        private final double m_x;
+        private final double m_y;
+        private final double m_r;
+        private final int m_vertices;
+        private final double m_rv;
+        private double m_angle;
+
+        public Crate( double x, double y, double r, int vertices, double rv )
+        {
+            m_x = x;
+            m_y = y;
+            m_r = r;
+            m_vertices = vertices;
+            m_rv = rv;
+        }
+
+        public int getPrCount() { return 1; }
+        public int getPrType( int id ) { return POLYGON; }
+
+        public int getPrPosition( double t, int id, double [] dv, int offs )
+        {
+            final double angle = m_angle + m_rv * t;
+            offs = Polygon.set( dv, offs, m_vertices );
+            for (int idx=0; idx<m_vertices; idx++)
+            {
+                final double a = (angle + 2.0d * Math.PI * idx / m_vertices);
+                offs = Point.set( dv, offs, m_x + m_r*Math.cos(a), m_y + m_r*Math.sin(a) );
+            }
+            return offs;
+        }
+
+        public int getPrImpulse( int id, double x, double y, double [] dv, int offs )
+        {
+            x -= m_x;
+            y -= m_y;
+            return Impulse.set( dv, offs, -y*m_rv, x*m_rv, Double.MAX_VALUE );
+        }
+
+        public int applyPrImpulse( int id, double x, double y, double vx, double vy ) { return 0; }
+
+        public void move( double t )
+        {
+            m_angle += (m_rv * t);
+        }
+
+        public double getMaxSpeed()
+        {
+            return Math.abs( m_rv * m_r );
+        }
+    }
+
+    private static CDE addCrates( CDE cde, int cols, int rows, double cellSize )
+    {
+        for (int row=1; row<rows; row++)
+            for (int col=1; col<cols; col++)
+                cde.add( new Crate(col*cellSize, row*cellSize, 15.0d, 3 + (row + col) % 4, ((row + col) % 2 == 0) ? 1.0d : -1.0d) );
+        return cde;
+    }
+
+    private static CDE addPaddles( CDE cde, int cols, int rows, double cellSize )
+    {
+        for (int row=1; row<rows; row++)
+            for (int col=1; col<cols; col++)
+                cde.add( new Paddle(col*cellSize, row*cellSize, 20.0d, 5.0d, ((row + col) % 2 == 0) ? 1.0d : -1.0d) );
+        return cde;
+    }
+
+    private static CDE addPegs( CDE cde, int cols, int rows, double cellSize )
+    {
+        cde.setPairSolver( Peg.TYPE, Body.BALL, cde.getPairSolver(Body.BALL, Body.BALL) );
+        cde.setPairSolver( Peg.TYPE, Peg.TYPE, cde.getPairSolver(Body.BALL, Body.BALL) );
+        cde.setPairSolver( Body.SEGMENT, Peg.TYPE, cde.getPairSolver(Body.SEGMENT, Body.BALL) );
+        for (int row=1; row<rows; row++)
+            for (int col=1; col<cols; col++)
+                cde.add( new Peg(col*cellSize, row*cellSize, 4.0d) );
+        return cde;
+    }
+
+    /*
+     * Adds a grid of sensor zones to the scene.
+     */
+    private static CDE addZones( CDE cde, int cols, int rows, double cellSize )
+    {
+        for (int row=0; row<rows; row++)
+            for (int col=0; col<cols; col++)
+                cde.add( new Zone(col*cellSize + cellSize/2.0d, row*cellSize + cellSize/2.0d, cellSize/4.0d) );
+        return cde;
+    }
+
+    private static com.sun.management.ThreadMXBean getThreadMXBean()
+    {
+        final com.sun.management.ThreadMXBean threadMXBean =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        if (!threadMXBean.isThreadAllocatedMemorySupported())
+            throw new RuntimeException( "Thread allocated memory is not supported by JVM." );
+        threadMXBean.setThreadAllocatedMemoryEnabled( true );
+        return threadMXBean;
+    }
+
+    /*
+     * Casts rays from the scene center in all directions
+     * after every frame, both nearest and all hits,
+     * then does region and nearest queries around the center.
+     */
+    private static class Caster
+    {
+        private static final int RAYS = 64;
+
+        private final CDE m_cde;
+        private final double m_x;
+        private final double m_y;
+        private final Body [] m_hitBody;
+        private final int [] m_hitId;
+        private final double [] m_hit;
+        private final double [] m_distance;
+
+        public Caster( CDE cde, double x, double y )
+        {
+            m_cde = cde;
+            m_x = x;
+            m_y = y;
+            m_hitBody = new Body[8];
+            m_hitId = new int[8];
+            m_hit = new double[8 * Hit.SIZE];
+            m_distance = new double[8];
+        }
+
+        public void run()
+        {
+            for (int idx=0; idx<RAYS; idx++)
+            {
+                final double angle = (Math.PI * 2.0d * idx / RAYS);
+                final double dx = Math.cos( angle );
+                final double dy = Math.sin( angle );
+                m_cde.rayCast( m_x, m_y, dx, dy, Double.POSITIVE_INFINITY, null, m_hitBody, m_hitId, m_hit );
+                m_cde.segmentCastAll( m_x, m_y, m_x + dx*500.0d, m_y + dy*500.0d, null, m_hitBody, m_hitId, m_hit );
+            }
+
+            for (int idx=0; idx<8; idx++)
+            {
+                final double r = (25.0d * (idx + 1));
+                m_cde.queryBox( m_x-r, m_y-r, m_x+r, m_y+r, null, m_hitBody, m_hitId );
+                m_cde.queryCircle( m_x, m_y, r, null, m_hitBody, m_hitId );
+                m_cde.queryNearest( m_x, m_y, r, null, m_hitBody, m_hitId, m_distance );
+            }
+        }
+    }
+
+    private static boolean test( String name, CDE cde )
+    {
+        return test( name, cde, null );
+    }
+
+    /* Replaces the plain CDE.run() call for the frame. */
+    private interface Runner
+    {
+        void run();
+    }
+
+    /*
+     * Drives the Stepper with the simulated clock instead of calling CDE.run(),
+     * every 10th frame takes 3 frame intervals, so the stepper has to catch up.
+     */
+    private static class SteppedRun implements Runner
+    {
+        private static final long FRAME_INTERVAL_NS = (long) (FRAME_INTERVAL_S * 1000000000.0d);
+
+        private final Stepper m_stepper;
+        private final double [] m_dv;
+        private long m_time;
+        private int m_frame;
+        private String m_error;
+
+        public SteppedRun( CDE cde )
+        {
+            /* Half of the frame interval step, at most 4 steps per update. */
+            m_stepper = new Stepper( cde, FRAME_INTERVAL_S / 2.0d, 4 );
+            m_dv = new double[32];
+            m_stepper.update( m_time );
+        }
+
+        public void run()
+        {
+            m_frame++;
+            m_time += (((m_frame % 10) == 0) ? (3 * FRAME_INTERVAL_NS) : (FRAME_INTERVAL_NS + m_frame % 7 * 1000000));
+            m_stepper.update( m_time );
+
+            final double alpha = m_stepper.getAlpha();
+            if ((alpha < 0.0d) || (alpha >= 1.0d))
+                m_error = ("invalid alpha " + alpha);
+
+            final Frame frame = m_stepper.getCurrent();
+            for (int pr=0; pr<frame.getPrCount(); pr++)
+                m_stepper.interpolate( pr, m_dv, 0 );
+        }
+    }
+
+    private static boolean testStepper( String name, CDE cde )
+    {
+        final SteppedRun steppedRun = new SteppedRun( cde );
+        final boolean ret = test( name, cde, null, steppedRun );
+        if (steppedRun.m_error != null)
+            System.out.println( name + ": " + steppedRun.m_error + " FAILED" );
+        else if (steppedRun.m_stepper.getDroppedTime() == 0)
+            System.out.println( name + ": catch up limit was never reached FAILED" );
+        else
+            return ret;
+        return false;
+    }
+
+    /*
+     * Saves the world state after every frame to the ring of preallocated buffers,
+     * every 30th frame rewinds the world 10 frames back and replays them,
+     * replay should come to exactly the same state.
+     */
+    private static class Rollback implements Runner
+    {
+        private static final int INTERVAL = 30;
+        private static final int FRAMES = 10;
+
+        private final CDE m_cde;
+        private final ByteBuffer [] m_ring;
+        private final ByteBuffer m_check;
+        private int m_frame;
+        private int m_rollbacks;
+        private String m_error;
+
+        public Rollback( CDE cde )
+        {
+            m_cde = cde;
+            m_ring = new ByteBuffer[FRAMES+1];
+            for (int idx=0; idx<m_ring.length; idx++)
+                m_ring[idx] = ByteBuffer.allocateDirect( 64 * 1024 );
+            m_check = ByteBuffer.allocateDirect( 64 * 1024 );
+            save( m_ring[0] );
+        }
+
+        private void save( ByteBuffer buf )
+        {
+            buf.clear();
+            m_cde.saveDynamicState( buf );
+            buf.flip();
+        }
+
+        private void step()
+        {
+            m_cde.run( FRAME_INTERVAL_S );
+            m_frame++;
+            save( m_ring[m_frame % m_ring.length] );
+        }
+
+        public void run()
+        {
+            step();
+            if ((m_frame % INTERVAL) == 0)
+            {
+                save( m_check );
+                final ByteBuffer buf = m_ring[(m_frame - FRAMES) % m_ring.length];
+                m_cde.restoreDynamicState( buf );
+                buf.rewind();
+                m_frame -= FRAMES;
+                for (int idx=0; idx<FRAMES; idx++)
+                    step();
+                if (!m_check.equals(m_ring[m_frame % m_ring.length]))
+                    m_error = ("replay diverged at frame " + m_frame);
+                m_rollbacks++;
+            }
+        }
+    }
+
+    private static boolean testRollback( String name, CDE cde )
+    {
+        final Rollback rollback = new Rollback( cde );
+        /* Rollback runs restore and replay code only every INTERVAL frames,
+         * it takes longer for the JIT compiler to settle down.
+         */
+        for (int idx=0; idx<WARMUP_FRAMES; idx++)
+            rollback.run();
+        final boolean ret = test( name, cde, null, rollback );
+        if (rollback.m_error != null)
+            System.out.println( name + ": " + rollback.m_error + " FAILED" );
+        else if (rollback.m_rollbacks == 0)
+            System.out.println( name + ": no rollbacks FAILED" );
+        else
+            return ret;
+        return false;
+    }
+
+    /*
+     * Predicts the next impacts of the world and of every ball
+     * for the next second after every frame.
+     */
+    private static class Lookahead implements Runner
+    {
+        private static final int PREDICTIONS = 8;
+
+        private final CDE m_cde;
+        private final Body [] m_body1;
+        private final int [] m_id1;
+        private final Body [] m_body2;
+        private final int [] m_id2;
+        private final double [] m_prediction;
+        private int m_predictions;
+
+        public Lookahead( CDE cde )
+        {
+            m_cde = cde;
+            m_body1 = new Body[PREDICTIONS];
+            m_id1 = new int[PREDICTIONS];
+            m_body2 = new Body[PREDICTIONS];
+            m_id2 = new int[PREDICTIONS];
+            m_prediction = new double[PREDICTIONS * Prediction.SIZE];
+        }
+
+        public void run()
+        {
+            m_cde.run( FRAME_INTERVAL_S );
+            m_predictions += m_cde.predictImpacts( 1.0d, m_body1, m_id1, m_body2, m_id2, m_prediction );
+
+            final int bodies = m_cde.getBodyCount();
+            for (int idx=0; idx<bodies; idx++)
+            {
+                final Body body = m_cde.getBody( idx );
+                if (body instanceof Ball)
+                    m_predictions += m_cde.predictImpacts( body, 1.0d, m_body1, m_id1, m_body2, m_id2, m_prediction );
+            }
+        }
+    }
+
+    private static boolean testLookahead( String name, CDE cde )
+    {
+        final Lookahead lookahead = new Lookahead( cde );
+        final boolean ret = test( name, cde, null, lookahead );
+        if (lookahead.m_predictions == 0)
+        {
+            System.out.println( name + ": no impacts predicted FAILED" );
+            return false;
+        }
+        return ret;
+    }
+
+    private static void runFrame( CDE cde, Caster caster, Runner runner )
+    {
+        if (runner == null)
+            cde.run( FRAME_INTERVAL_S );
+        else
+            runner.run();
+
+        if (caster != null)
+            caster.run();
+    }
+
+    private static boolean test( String name, CDE cde, Caster caster )
+    {
+        return test( name, cde, caster, null );
+    }
+
+    private static long runWindow( com.sun.management.ThreadMXBean threadMXBean, long threadID, long overhead,
+                                   CDE cde, Caster caster, Runner runner )
+    {
+        final long bytes = threadMXBean.getThreadAllocatedBytes( threadID );
+        for (int idx=0; idx<FRAMES; idx++)
+            runFrame( cde, caster, runner );
+        return (threadMXBean.getThreadAllocatedBytes(threadID) - bytes - overhead);
+    }
+
+    private static boolean test( String name, CDE cde, Caster caster, Runner runner )
+    {
+        final com.sun.management.ThreadMXBean threadMXBean = getThreadMXBean();
+        final long threadID = Thread.currentThread().getId();
+
+        for (int idx=0; idx<WARMUP_FRAMES; idx++)
+            runFrame( cde, caster, runner );
+
+        /* Counter reading itself can allocate something, take it into account. */
+        long bytes = threadMXBean.getThreadAllocatedBytes( threadID );
+        final long overhead = (threadMXBean.getThreadAllocatedBytes(threadID) - bytes);
+
+        /* With C2 compiler the VM can allocate a couple of kilobytes once
+         * in some random window (no Java allocation site shows up in the JFR,
+         * it does not happen with -Xint or C1 only),
+         * so an allocating window is measured once again.
+         * Every window should be allocation free.
+         */
+        long totalBytes = 0;
+        int windows = 0;
+        int retries = 0;
+        for (int window=0; window<WINDOWS; window++)
+        {
+            bytes = runWindow( threadMXBean, threadID, overhead, cde, caster, runner );
+            if (bytes > 0)
+            {
+                retries++;
+                bytes = runWindow( threadMXBean, threadID, overhead, cde, caster, runner );
+            }
+            if (bytes > 0)
+            {
+                totalBytes += bytes;
+                windows++;
+            }
+        }
+
+        final boolean ret = (windows == 0);
+        System.out.println( name + ": " + (((double)totalBytes) / (FRAMES * WINDOWS)) + " bytes/frame, " +
+                windows + "/" + WINDOWS + " windows allocated (" + retries + " re-run)" + (ret ? "" : " FAILED") );
+        return ret;
+    }
+
+    private static boolean testImpactLog( String name, CDE cde ) throws IOException
+    {
+        final File file = File.createTempFile( "ZeroAllocTest", ".log" );
+        final RandomAccessFile logFile = new RandomAccessFile( file, "rw" );
+        try
+        {
+            final ImpactLog impactLog = new ImpactLog( cde, logFile.getChannel(), 4096 );
+            final boolean ret = test( name, cde );
+            impactLog.close();
+            return ret;
+        }
+        finally
+        {
+            logFile.close();
+            file.delete();
+        }
+    }
+
+    private static boolean testImpactBuffer( String name, CDE cde )
+    {
+        cde.setBodyCallbacks( false );
+        cde.setImpactListener( new ImpactBuffer(16) );
+        return test( name, cde );
+    }
+
+    /*
+     * Impacts are consumed by other thread,
+     * consumer checks the steps go in order.
+     */
+    private static class RingConsumer extends Thread
+    {
+        private final ImpactRing m_ring;
+        private volatile boolean m_run;
+        private long m_step;
+        private long m_records;
+        private String m_error;
+
+        public RingConsumer( ImpactRing ring )
+        {
+            super( "ImpactRing consumer" );
+            m_ring = ring;
+            m_run = true;
+        }
+
+        private void consume()
+        {
+            final int records = m_ring.poll();
+            for (int idx=0; idx<records; idx++)
+            {
+                final long step = m_ring.getStep( idx );
+                if ((step < m_step) || (m_ring.getTime(idx) < 0.0d) || (m_ring.getTime(idx) > FRAME_INTERVAL_S))
+                    m_error = ("invalid record: step=" + step + " time=" + m_ring.getTime(idx));
+                m_step = step;
+            }
+            m_ring.release( records );
+            m_records += records;
+        }
+
+        public void run()
+        {
+            while (m_run)
+            {
+                consume();
+                Thread.yield();
+            }
+            consume();
+        }
+
+        public String shutdown() throws InterruptedException
+        {
+            m_run = false;
+            join();
+            if ((m_error == null) && (m_records == 0))
+                m_error = "no records";
+            return m_error;
+        }
+    }
+
+    private static boolean testImpactRing( String name, CDE cde ) throws InterruptedException
+    {
+        final ImpactRing ring = new ImpactRing( 1024 );
+        final RingConsumer consumer = new RingConsumer( ring );
+        cde.setBodyCallbacks( false );
+        cde.setImpactListener( ring );
+        consumer.start();
+        final boolean ret = test( name, cde );
+        final String error = consumer.shutdown();
+        if (error != null)
+            System.out.println( name + ": " + error + " FAILED" );
+        return ret && (error == null);
+    }
+
+    /*
+     * Reads frames while the CDE is running,
+     * checks every frame is consistent: steps increase,
+     * all ball radiuses are the same as at start.
+     */
+    private static class FrameReader extends Thread
+    {
+        private final FrameBuffer m_buffer;
+        private volatile boolean m_run;
+        private long m_step;
+        private long m_frames;
+        private String m_error;
+
+        public FrameReader( FrameBuffer buffer )
+        {
+            super( "Frame reader" );
+            m_buffer = buffer;
+            m_run = true;
+        }
+
+        private void read()
+        {
+            final Frame frame = m_buffer.acquire();
+            if (frame.getStep() == m_step)
+                return;
+            if (frame.getStep() < m_step)
+                m_error = ("step " + frame.getStep() + " after " + m_step);
+            m_step = frame.getStep();
+            m_frames++;
+
+            final double [] data = frame.getData();
+            for (int pr=0; pr<frame.getPrCount(); pr++)
+            {
+                if (frame.getPrType(pr) == Body.BALL)
+                {
+                    final double r = Body.Ball.getR( data, frame.getPrOffset(pr) );
+                    if ((r < 5.0d) || (r >= 10.0d))
+                        m_error = ("invalid ball radius " + r + " at step " + m_step);
+                }
+            }
+        }
+
+        public void run()
+        {
+            while (m_run)
+            {
+                read();
+                Thread.yield();
+            }
+            read();
+        }
+
+        public String shutdown() throws InterruptedException
+        {
+            m_run = false;
+            join();
+            if ((m_error == null) && (m_frames == 0))
+                m_error = "no frames";
+            return m_error;
+        }
+    }
+
+    private static boolean testFrameBuffer( String name, CDE cde ) throws InterruptedException
+    {
+        final FrameBuffer buffer = new FrameBuffer();
+        final FrameReader reader = new FrameReader( buffer );
+        cde.setFrameBuffer( buffer );
+        reader.start();
+        final boolean ret = test( name, cde );
+        final String error = reader.shutdown();
+        if (error != null)
+            System.out.println( name + ": " + error + " FAILED" );
+        return ret && (error == null);
+    }
+
+    private static long getAllocatedBytes( com.sun.management.ThreadMXBean threadMXBean, long [] threadIDs )
+    {
+        long bytes = 0;
+        for (long threadID : threadIDs)
+            bytes += threadMXBean.getThreadAllocatedBytes( threadID );
+        return bytes;
+    }
+
+    /*
+     * Runs worlds on the scheduler for a few windows,
+     * allocations are measured on the worker threads.
+     */
+    private static boolean testScheduler( String name, int worlds, int workers ) throws InterruptedException
+    {
+        final com.sun.management.ThreadMXBean threadMXBean = getThreadMXBean();
+        final WorldScheduler scheduler = new WorldScheduler( name, workers, FRAME_INTERVAL_S, 4 );
+        final CDE [] cde = new CDE[worlds];
+        for (int idx=0; idx<worlds; idx++)
+        {
+            cde[idx] = createScene( 100 + idx, 4, 4, 2 );
+            scheduler.add( cde[idx], null );
+        }
+
+        scheduler.start();
+        Thread.sleep( 1000 );
+
+        int threads = 0;
+        final long [] threadIDs = new long[workers];
+        for (Thread thread : Thread.getAllStackTraces().keySet())
+        {
+            if (thread.getName().startsWith(name + "-") && (threads < workers))
+                threadIDs[threads++] = thread.getId();
+        }
+
+        /* An allocating window is measured once again,
+         * JIT compiler can allocate something once on deoptimization.
+         */
+        long totalBytes = 0;
+        int windows = 0;
+        int retries = 0;
+        for (int window=0; window<WINDOWS; window++)
+        {
+            long bytes = getAllocatedBytes( threadMXBean, threadIDs );
+            Thread.sleep( 500 );
+            bytes = (getAllocatedBytes(threadMXBean, threadIDs) - bytes);
+            if (bytes > 0)
+            {
+                retries++;
+                bytes = getAllocatedBytes( threadMXBean, threadIDs );
+                Thread.sleep( 500 );
+                bytes = (getAllocatedBytes(threadMXBean, threadIDs) - bytes);
+            }
+            if (bytes > 0)
+            {
+                totalBytes += bytes;
+                windows++;
+            }
+        }
+        scheduler.stop();
+
+        long ticks = 0;
+        long droppedTicks = 0;
+        boolean ret = ((threads == workers) && (windows == 0));
+        for (int idx=0; idx<worlds; idx++)
+        {
+            ticks += scheduler.getTicks( cde[idx] );
+            droppedTicks += scheduler.getDroppedTicks( cde[idx] );
+            ret &= (scheduler.getTicks(cde[idx]) > 0);
+        }
+
+        System.out.println( name + ": " + (((double)totalBytes) / ticks) + " bytes/tick, " +
+                windows + "/" + WINDOWS + " windows allocated (" + retries + " re-run), " + ticks + " ticks, " +
+                droppedTicks + " dropped" + (ret ? "" : " FAILED") );
+        return ret;
+    }
+
+    /*
+     * A world failing with an Error is removed and the worker keeps running,
+     * add() accepts worlds again once the workers are not late anymore.
+     */
+    private static boolean testSchedulerRecovery( String name ) throws InterruptedException
+    {
+        final WorldScheduler scheduler = new WorldScheduler( name, 1, FRAME_INTERVAL_S, 4 );
+        final CDE slow = createScene( 200, 4, 4, 2 );
+        final CDE failing = createScene( 201, 4, 4, 2 );
+        final CDE healthy = createScene( 202, 4, 4, 2 );
+        scheduler.add( slow, new WorldScheduler.TickListener()
+            {
+                public void onTick( CDE cde, long tick )
+                {
+                    if (tick == 1)
+                    {
+                        try { Thread.sleep( 200 ); }
+                        catch (InterruptedException ex) { Thread.currentThread().interrupt(); }
+                    }
+                    else
+                        scheduler.remove( cde );
+                }
+            } );
+        scheduler.add( failing, new WorldScheduler.TickListener()
+            {
+                public void onTick( CDE cde, long tick )
+                {
+                    throw new AssertionError( "tick " + tick );
+                }
+            } );
+
+        /* Error logged by the scheduler is expected, keep the output clean. */
+        final Logger logger = Logger.getLogger( "org.jsl.cde" );
+        final Level level = logger.getLevel();
+        logger.setLevel( Level.OFF );
+        scheduler.start();
+        Thread.sleep( 1000 );
+        final boolean added = scheduler.add( healthy, null );
+        Thread.sleep( 200 );
+        scheduler.stop();
+        logger.setLevel( level );
+
+        final boolean ret = (added && (scheduler.getTicks(failing) < 0) && (scheduler.getTicks(healthy) > 0));
+        System.out.println( name + ": added=" + added + ", failing world ticks " + scheduler.getTicks(failing) +
+                ", healthy world ticks " + scheduler.getTicks(healthy) + (ret ? "" : " FAILED") );
+        return ret;
+    }
+
+    public static void main( String [] args ) throws IOException, InterruptedException
+    {
+        boolean ret = true;
+        ret &= test( "balls", createScene(1, 4, 4, 0) );
+        ret &= test( "balls and fences", createScene(2, 6, 6, 6) );
+        ret &= testImpactLog( "impact log", createScene(3, 4, 4, 2) );
+        ret &= testImpactBuffer( "impact buffer", createScene(6, 4, 4, 2) );
+        ret &= testImpactRing( "impact ring", createScene(7, 4, 4, 2) );
+        ret &= testFrameBuffer( "frame buffer", createScene(12, 4, 4, 2) );
+        ret &= testStepper( "stepper", createScene(13, 4, 4, 2) );
+        ret &= testScheduler( "scheduler", 64, 4 );
+        ret &= testSchedulerRecovery( "scheduler recovery" );
+        ret &= testLookahead( "lookahead", createScene(15, 4, 4, 2) );
+        ret &= testRollback( "rollback", addZones(createScene(14, 4, 4, 2), 20, 20, 20.0d) );
+        ret &= test( "sensors", addZones(createScene(5, 4, 4, 2), 20, 20, 20.0d) );
+        ret &= test( "pair solver", addPegs(createScene(8, 4, 4, 0), 4, 4, 100.0d) );
+        ret &= test( "crossing fences", addCrossingFences(createScene(11, 4, 4, 2), 4, 100.0d) );
+        ret &= test( "capsules", addPaddles(createScene(9, 4, 4, 0), 4, 4, 100.0d) );
+        ret &= test( "polygons", addCrates(createScene(10, 4, 4, 0), 4, 4, 100.0d) );
+        final CDE specialized = addPegs( createScene(16, 4, 4, 2), 4, 4, 100.0d );
+        specialized.setSpecialization( true );
+        ret &= test( "specialization", specialized );
+        final CDE hybrid = addCrates( createScene(17, 4, 4, 2), 4, 4, 100.0d );
+        hybrid.setHybridMode( true );
+        ret &= test( "hybrid mode", hybrid );
+        final CDE regions = addCrates( createScene(18, 4, 4, 2), 4, 4, 100.0d );
+        regions.addRegion( 0.0d, 0.0d, 200.0d, 400.0d, 4 );
+        regions.addRegion( 200.0d, 0.0d, 400.0d, 200.0d, 8 );
+        ret &= test( "regions", regions );
+        final CDE regionRollback = createScene( 19, 4, 4, 2 );
+        regionRollback.addRegion( 0.0d, 0.0d, 200.0d, 400.0d, 4 );
+        ret &= testRollback( "region rollback", regionRollback );
+        ret &= testStaticLevel( "static level", false );
+        ret &= testStaticLevel( "queries", true );
+
+        if (!ret)
+            System.exit( 1 );
+    }
+}